@@ -0,0 +1,93 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.CHKBlock;
+
+/**
+ * Encoding and decoding a full splitfile segment, 128 data blocks and 128 check blocks of 32KB
+ * each. The decode has lost every other data block, so half the data has to be recovered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class OnionFECCodecBenchmark {
+
+	private static final int DATA_BLOCKS = 128;
+	private static final int CHECK_BLOCKS = 128;
+	private static final int BLOCK_SIZE = CHKBlock.DATA_LENGTH;
+
+	private final OnionFECCodec codec = new OnionFECCodec();
+	private byte[][] originalData;
+	private byte[][] originalCheck;
+	private byte[][] dataBlocks;
+	private byte[][] checkBlocks;
+	private boolean[] dataPresent;
+	private boolean[] checkPresent;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(1);
+		originalData = new byte[DATA_BLOCKS][BLOCK_SIZE];
+		for(byte[] block : originalData)
+			random.nextBytes(block);
+		originalCheck = new byte[CHECK_BLOCKS][BLOCK_SIZE];
+		codec.encode(originalData, originalCheck, new boolean[CHECK_BLOCKS], BLOCK_SIZE);
+		dataBlocks = new byte[DATA_BLOCKS][BLOCK_SIZE];
+		checkBlocks = new byte[CHECK_BLOCKS][BLOCK_SIZE];
+		dataPresent = new boolean[DATA_BLOCKS];
+		checkPresent = new boolean[CHECK_BLOCKS];
+	}
+
+	/** The codec writes into the arrays it is given, so put back what a fetch would have. */
+	@Setup(Level.Invocation)
+	public void resetBlocks() {
+		for(int i=0;i<DATA_BLOCKS;i++) {
+			dataPresent[i] = i % 2 == 0;
+			if(dataPresent[i])
+				System.arraycopy(originalData[i], 0, dataBlocks[i], 0, BLOCK_SIZE);
+			else
+				Arrays.fill(dataBlocks[i], (byte) 0);
+		}
+		for(int i=0;i<CHECK_BLOCKS;i++) {
+			checkPresent[i] = i % 2 == 0;
+			if(checkPresent[i])
+				System.arraycopy(originalCheck[i], 0, checkBlocks[i], 0, BLOCK_SIZE);
+			else
+				Arrays.fill(checkBlocks[i], (byte) 0);
+		}
+	}
+
+	@Benchmark
+	public byte[][] encode() {
+		codec.encode(originalData, checkBlocks, new boolean[CHECK_BLOCKS], BLOCK_SIZE);
+		return checkBlocks;
+	}
+
+	@Benchmark
+	public byte[][] decode() {
+		codec.decode(dataBlocks, checkBlocks, dataPresent, checkPresent, BLOCK_SIZE);
+		return dataBlocks;
+	}
+
+}
@@ -0,0 +1,66 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Filtering a style sheet of about 100KB: comments, selectors with combinators and pseudo
+ * classes, shorthand properties, quoted font names and url()s, and a media block.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CSSFilterBenchmark {
+
+	private static final String KEY = "USK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AQACAAE/index/55/";
+
+	private byte[] sheet;
+	private GenericReadFilterCallback callback;
+
+	@Setup
+	public void setUp() throws URISyntaxException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("@media screen {\n  body { font-family: \"Gill Sans\", sans-serif; margin: 1em; }\n}\n");
+		for(int i=0;sb.length()<100*1024;i++) {
+			sb.append("/* Section ").append(i).append(": headings and entries */\n");
+			sb.append("div.c").append(i).append(" > p, h").append(i % 6 + 1).append(":first-child {\n");
+			sb.append("  margin: 0 auto; padding: 1em 2em;\n");
+			sb.append("  background: #fff url(images/bg").append(i).append(".png) no-repeat;\n");
+			sb.append("  font-family: \"Gill Sans\", sans-serif; color: #336;\n");
+			sb.append("  border-bottom: 1px solid #ccc;\n}\n");
+			sb.append("a.l").append(i).append(":hover { text-decoration: underline; color: red }\n");
+		}
+		sheet = sb.toString().getBytes(StandardCharsets.UTF_8);
+		callback = new GenericReadFilterCallback(new URI("http://localhost:8888/"+KEY), null, null, null);
+	}
+
+	@Benchmark
+	public byte[] filter() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(sheet.length);
+		new CSSReadFilter().readFilter(new ByteArrayInputStream(sheet), out, "UTF-8", null, null, callback);
+		return out.toByteArray();
+	}
+
+}
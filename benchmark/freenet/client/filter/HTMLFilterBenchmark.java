@@ -0,0 +1,75 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Filtering a freesite index page of about 100KB: headings, paragraphs, a table, links to
+ * other keys and to external sites, images, inline styles and a style sheet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HTMLFilterBenchmark {
+
+	private static final String KEY = "USK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AQACAAE/index/55/";
+
+	private byte[] page;
+	private GenericReadFilterCallback callback;
+
+	@Setup
+	public void setUp() throws URISyntaxException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">\n");
+		sb.append("<html><head><title>Index</title><meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\" />\n");
+		sb.append("<style type=\"text/css\">body { font-family: sans-serif; margin: 1em; } ")
+			.append("h2 { color: #336; border-bottom: 1px solid #ccc; } td.size { text-align: right; }</style></head><body>\n");
+		for(int i=0;sb.length()<100*1024;i++) {
+			sb.append("<h2 id=\"s").append(i).append("\">Section ").append(i).append("</h2>\n");
+			sb.append("<p class=\"intro\" style=\"margin-left: 2em\">Lorem ipsum dolor sit amet, &amp; consectetur ")
+				.append("<b>adipiscing</b> elit, sed do <i>eiusmod</i> tempor incididunt ut labore et dolore magna aliqua. ")
+				.append("See <a href=\"/").append(KEY).append("page").append(i).append(".html\">page ").append(i)
+				.append("</a> or <a href=\"http://www.example.com/").append(i).append("\">this site</a>.</p>\n");
+			sb.append("<table><tr><th>Name</th><th>Size</th></tr>");
+			for(int j=0;j<5;j++) {
+				sb.append("<tr><td><a href=\"file").append(j).append(".zip\">file").append(j)
+					.append(".zip</a></td><td class=\"size\">").append(1000 * j).append(" KiB</td></tr>");
+			}
+			sb.append("</table>\n<img src=\"images/").append(i).append(".png\" alt=\"Image ").append(i)
+				.append("\" width=\"100\" height=\"50\" />\n<!-- comment ").append(i).append(" -->\n");
+		}
+		sb.append("</body></html>\n");
+		page = sb.toString().getBytes(StandardCharsets.UTF_8);
+		callback = new GenericReadFilterCallback(new URI("http://localhost:8888/"+KEY), null, null, null);
+	}
+
+	@Benchmark
+	public byte[] filter() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(page.length);
+		new HTMLFilter().readFilter(new ByteArrayInputStream(page), out, "UTF-8", null, null, callback);
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,184 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.crypt.EncryptedRandomAccessBucket;
+import freenet.crypt.MasterSecret;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.BufferedChannelOutputStream;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FileUtil;
+import freenet.support.io.PaddedRandomAccessBucket;
+import freenet.support.io.TempBucketFactory;
+
+/**
+ * Sending a 1 GiB AllData message over loopback, as an FCP client fetching a big file with
+ * ReturnType=direct sees it. The receiving end just discards the data. Throughput in MiB/s is
+ * 1024 divided by the time per operation in seconds.
+ * <ul>
+ * <li>file / encrypted: a plain file bucket, or one encrypted like temp buckets are when temp
+ * file encryption is on.</li>
+ * <li>stream: a plain socket, as the FCP server uses now. channel: a SocketChannel, so a plain
+ * file can be sent with FileChannel.transferTo().</li>
+ * <li>current / baseline: BucketTools.copyTo() as it is now, or the loop it used to be, which
+ * allocated a 64 KiB buffer for every message and never used the channel.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AllDataBenchmark {
+
+	private static final long SIZE = 1024L * 1024 * 1024;
+
+	static {
+		// For ChaCha, as the node does at startup.
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	@Param({ "file", "encrypted" })
+	public String bucketType;
+
+	@Param({ "stream", "channel" })
+	public String output;
+
+	@Param({ "current", "baseline" })
+	public String copy;
+
+	private File tempDir;
+	private RandomAccessBucket bucket;
+	private ServerSocket serverSocket;
+	private Socket socket;
+	private SocketChannel channel;
+	private OutputStream os;
+	private Thread drain;
+
+	@Setup
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("alldata-benchmark").toFile();
+		bucket = new FileBucket(new File(tempDir, "data"), false, true, false, true);
+		if(bucketType.equals("encrypted"))
+			bucket = new EncryptedRandomAccessBucket(TempBucketFactory.CRYPT_TYPE,
+					new PaddedRandomAccessBucket(bucket), new MasterSecret());
+		byte[] buf = new byte[1024 * 1024];
+		new Random(1).nextBytes(buf);
+		OutputStream out = bucket.getOutputStream();
+		for(long written = 0; written < SIZE; written += buf.length)
+			out.write(buf);
+		out.close();
+
+		serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+		if(output.equals("channel")) {
+			channel = SocketChannel.open(address);
+			os = new BufferedChannelOutputStream(Channels.newOutputStream(channel), channel, 4096);
+		} else {
+			socket = new Socket(address.getAddress(), address.getPort());
+			os = new BufferedOutputStream(socket.getOutputStream(), 4096);
+		}
+		final Socket receiver = serverSocket.accept();
+		drain = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				byte[] buf = new byte[256 * 1024];
+				try {
+					InputStream is = receiver.getInputStream();
+					while(is.read(buf) >= 0) {
+						// Discard.
+					}
+					receiver.close();
+				} catch (IOException e) {
+					// Closed.
+				}
+			}
+
+		}, "AllData benchmark receiver");
+		drain.setDaemon(true);
+		drain.start();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException, InterruptedException {
+		if(channel != null) channel.close();
+		if(socket != null) socket.close();
+		drain.join();
+		serverSocket.close();
+		bucket.free();
+		FileUtil.removeAll(tempDir);
+	}
+
+	@Benchmark
+	public void send() throws IOException {
+		if(copy.equals("baseline"))
+			new BaselineAllDataMessage(bucket).send(os);
+		else
+			new AllDataMessage(bucket, "benchmark", false, 0, 0, null).send(os);
+	}
+
+	/** Sends the data the way BucketTools.copyTo() did before it pooled its buffers. */
+	private static class BaselineAllDataMessage extends AllDataMessage {
+
+		private static final long serialVersionUID = 1L;
+
+		BaselineAllDataMessage(RandomAccessBucket bucket) {
+			super(bucket, "benchmark", false, 0, 0, null);
+		}
+
+		@Override
+		protected void writeData(OutputStream os) throws IOException {
+			long truncateLength = dataLength();
+			InputStream is = bucket.getInputStreamUnbuffered();
+			try {
+				byte[] buf = new byte[(int) Math.min(64 * 1024, truncateLength)];
+				long moved = 0;
+				while(moved < truncateLength) {
+					int bytes = is.read(buf, 0, (int) Math.min(buf.length, truncateLength - moved));
+					if(bytes <= 0)
+						throw new IOException("Short read after "+moved+" of "+truncateLength);
+					os.write(buf, 0, bytes);
+					moved += bytes;
+				}
+			} finally {
+				is.close();
+			}
+			os.flush();
+		}
+
+	}
+
+}
@@ -0,0 +1,73 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+
+/**
+ * Serialising and parsing messages: a CHK request, which is small and has a key in it, and a
+ * block transfer packet, which is how nearly all the data moves between nodes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBenchmark {
+
+	private Message request;
+	private byte[] encodedRequest;
+	private Message bulk;
+	private byte[] encodedBulk;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(1);
+		byte[] routingKey = new byte[32];
+		random.nextBytes(routingKey);
+		request = DMT.createFNPCHKDataRequest(random.nextLong(), (short) 18, new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256));
+		encodedRequest = request.encodeToPacket();
+		byte[] data = new byte[1024];
+		random.nextBytes(data);
+		bulk = DMT.createFNPBulkPacketSend(random.nextLong(), 7, data, false);
+		encodedBulk = bulk.encodeToPacket();
+	}
+
+	@Benchmark
+	public byte[] encodeRequest() {
+		return request.encodeToPacket();
+	}
+
+	@Benchmark
+	public Message decodeRequest() {
+		return Message.decodeMessageFromPacket(encodedRequest, 0, encodedRequest.length, null, 0);
+	}
+
+	@Benchmark
+	public byte[] encodeBulkPacket() {
+		return bulk.encodeToPacket();
+	}
+
+	@Benchmark
+	public Message decodeBulkPacket() {
+		return Message.decodeMessageFromPacket(encodedBulk, 0, encodedBulk.length, null, 0);
+	}
+
+}
@@ -0,0 +1,62 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.support.api.Bucket;
+import freenet.support.compress.InvalidCompressionCodecException;
+import freenet.support.io.ArrayBucketFactory;
+
+/**
+ * Encoding and decoding a CHK block, without compression: hashing, padding and AES. The full
+ * size is what splitfile blocks look like, the small one is a typical single block file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientCHKBlockBenchmark {
+
+	@Param({ "1024", "32768" })
+	public int size;
+
+	private final ArrayBucketFactory bf = new ArrayBucketFactory();
+	private byte[] data;
+	private ClientCHKBlock block;
+
+	@Setup
+	public void setUp() throws CHKEncodeException, InvalidCompressionCodecException {
+		data = new byte[size];
+		new Random(1).nextBytes(data);
+		block = encode();
+	}
+
+	@Benchmark
+	public ClientCHKBlock encode() throws CHKEncodeException, InvalidCompressionCodecException {
+		return ClientCHKBlock.encode(data, false, true, (short)-1, size, null);
+	}
+
+	@Benchmark
+	public Bucket decode() throws CHKDecodeException, IOException {
+		return block.decode(bf, CHKBlock.DATA_LENGTH, false);
+	}
+
+}
@@ -0,0 +1,96 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * Serialising and parsing NewPacketFormat packets, and encrypting sequence numbers, which the
+ * receiver does for every packet it expects. A full size packet carries one large message
+ * fragment plus acks; a small one is what ack-only and keepalive traffic looks like.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NewPacketFormatBenchmark {
+
+	private static final int MAX_PACKET_SIZE = 1400;
+
+	/** Bytes of message data in the packet. */
+	@Param({ "0", "1024" })
+	public int messageSize;
+
+	private final NullBasePeerNode pn = new NullBasePeerNode();
+	private final Random paddingGen = new Random(1);
+	private NPFPacket packet;
+	private byte[] buf;
+	private byte[] encoded;
+	private SessionKey sessionKey;
+	private int seqNum;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(2);
+		packet = new NPFPacket();
+		packet.setSequenceNumber(1000);
+		// Mostly contiguous, as they usually are.
+		for(int i=0;i<20;i++)
+			packet.addAck(500 + i + (i % 5 == 0 ? 3 : 0), MAX_PACKET_SIZE);
+		if(messageSize > 0) {
+			byte[] data = new byte[messageSize];
+			random.nextBytes(data);
+			packet.addMessageFragment(new MessageFragment(false, true, true, 42, messageSize, 4 * messageSize, 0, data, null));
+		}
+		buf = new byte[packet.getLength()];
+		packet.toBytes(buf, 0, paddingGen);
+		encoded = buf.clone();
+
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		BlockCipher incomingCipher = new Rijndael();
+		incomingCipher.initialize(key);
+		random.nextBytes(key);
+		BlockCipher ivCipher = new Rijndael();
+		ivCipher.initialize(key);
+		byte[] ivNonce = new byte[16];
+		random.nextBytes(ivNonce);
+		sessionKey = new SessionKey(null, null, null, incomingCipher, null, ivCipher, ivNonce, null, null, -1);
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		packet.toBytes(buf, 0, paddingGen);
+		return buf;
+	}
+
+	@Benchmark
+	public NPFPacket decode() {
+		return NPFPacket.create(encoded, pn);
+	}
+
+	@Benchmark
+	public byte[] encryptSequenceNumber() {
+		return NewPacketFormat.encryptSequenceNumber(seqNum++ & Integer.MAX_VALUE, sessionKey);
+	}
+
+}
@@ -0,0 +1,116 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.node.DarknetPeerNode.FRIEND_TRUST;
+import freenet.node.DarknetPeerNode.FRIEND_VISIBILITY;
+import freenet.node.NodeStarter.TestNodeParameters;
+import freenet.support.Executor;
+import freenet.support.Logger.LogLevel;
+import freenet.support.PooledExecutor;
+import freenet.support.io.FileUtil;
+
+/**
+ * Routing: choosing the next hop for a request with PeerManager.closerPeer(). This needs real
+ * connected peers, so the setup starts a small network of test nodes on localhost, all connected
+ * to one node, and waits for the connections to come up. It then times routing decisions on that
+ * node for random targets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PeerManagerBenchmark {
+
+	private static final int PEERS = 20;
+	private static final int PORT_BASE = 14000;
+	private static final short MAX_HTL = 18;
+	private static final int TARGETS = 1024;
+
+	private File dir;
+	private Node[] nodes;
+	private PeerManager peers;
+	private final Set<PeerNode> routedTo = Collections.emptySet();
+	private final double[] targets = new double[TARGETS];
+	private int next;
+
+	@Setup
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("peermanager-benchmark").toFile();
+		NodeStarter.globalTestInit(dir, false, LogLevel.ERROR, "", true, new DummyRandomSource(1));
+		Executor executor = new PooledExecutor();
+		nodes = new Node[PEERS + 1];
+		for(int i=0;i<nodes.length;i++) {
+			TestNodeParameters params = new TestNodeParameters();
+			params.port = PORT_BASE + i;
+			params.baseDirectory = dir;
+			params.disableProbabilisticHTLs = true;
+			params.maxHTL = MAX_HTL;
+			params.random = new DummyRandomSource(100 + i);
+			params.executor = executor;
+			params.storeSize = 65536;
+			params.ramStore = true;
+			params.enablePacketCoalescing = true;
+			params.enableFOAF = true;
+			params.longPingTimes = true;
+			nodes[i] = NodeStarter.createTestNode(params);
+		}
+		for(int i=1;i<nodes.length;i++) {
+			nodes[0].connect(nodes[i], FRIEND_TRUST.LOW, FRIEND_VISIBILITY.NO);
+			nodes[i].connect(nodes[0], FRIEND_TRUST.LOW, FRIEND_VISIBILITY.NO);
+		}
+		for(Node node : nodes)
+			node.start(false);
+		peers = nodes[0].peers;
+		long deadline = System.currentTimeMillis() + MINUTES.toMillis(5);
+		while(peers.countConnectedPeers() < PEERS) {
+			if(System.currentTimeMillis() > deadline)
+				throw new IllegalStateException("Only "+peers.countConnectedPeers()+" of "+PEERS+" peers connected");
+			Thread.sleep(100);
+		}
+		Random random = new Random(1);
+		for(int i=0;i<TARGETS;i++)
+			targets[i] = random.nextDouble();
+	}
+
+	@TearDown
+	public void tearDown() {
+		for(Node node : nodes)
+			node.park();
+		FileUtil.removeAll(dir);
+	}
+
+	@Benchmark
+	public PeerNode closerPeer() {
+		PeerNode pn = peers.closerPeer(null, routedTo, targets[next], true, false, -1, null, 2.0, null, MAX_HTL, 0,
+				true, false, null, false, System.currentTimeMillis(), false);
+		if(++next == TARGETS) next = 0;
+		return pn;
+	}
+
+}
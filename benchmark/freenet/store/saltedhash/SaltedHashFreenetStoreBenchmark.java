@@ -0,0 +1,104 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.CHKStore;
+import freenet.support.PooledExecutor;
+import freenet.support.TrivialTicker;
+import freenet.support.io.FileUtil;
+
+/**
+ * CHK fetch and put against an on-disk SaltedHashFreenetStore, which is what every request
+ * and insert that reaches the datastore does. The store is only partly full, and all the keys
+ * used are in it, so fetches always succeed and puts overwrite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaltedHashFreenetStoreBenchmark {
+
+	private static final int STORE_KEYS = 4096;
+	private static final int BLOCKS = 1024;
+
+	@Param({ "false", "true" })
+	public boolean slotFilter;
+
+	private File tempDir;
+	private PooledExecutor exec;
+	private CHKStore store;
+	private SaltedHashFreenetStore<CHKBlock> saltStore;
+	private CHKBlock[] blocks;
+	private NodeCHK[] keys;
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException, CHKEncodeException {
+		tempDir = Files.createTempDirectory("saltedhash-benchmark").toFile();
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+		exec = new PooledExecutor();
+		exec.start();
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "store"), "benchmark", store, new Random(1),
+				STORE_KEYS, slotFilter, SemiOrderedShutdownHook.get(), true, true, new TrivialTicker(exec), null);
+		saltStore.start(null, true);
+		Random random = new Random(2);
+		blocks = new CHKBlock[BLOCKS];
+		keys = new NodeCHK[BLOCKS];
+		byte[] data = new byte[CHKBlock.DATA_LENGTH];
+		for(int i=0;i<BLOCKS;i++) {
+			random.nextBytes(data);
+			blocks[i] = ClientCHKBlock.encodeSplitfileBlock(data, null, Key.ALGO_AES_CTR_256_SHA256).getBlock();
+			keys[i] = blocks[i].getKey();
+			store.put(blocks[i], false);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		saltStore.close();
+		FileUtil.removeAll(tempDir);
+	}
+
+	@Benchmark
+	public CHKBlock fetch() throws IOException {
+		CHKBlock block = store.fetch(keys[next], false, false, null);
+		if(++next == BLOCKS) next = 0;
+		return block;
+	}
+
+	@Benchmark
+	public void put() throws IOException {
+		store.put(blocks[next], false);
+		if(++next == BLOCKS) next = 0;
+	}
+
+}
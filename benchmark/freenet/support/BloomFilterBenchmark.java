@@ -0,0 +1,68 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adding and checking 32 byte routing keys, for a filter sized as for a store with a million
+ * keys. Half the keys checked are in the filter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BloomFilterBenchmark {
+
+	private static final int MAX_KEYS = 1024 * 1024;
+	private static final int FILTER_BITS = MAX_KEYS * 16;
+	private static final int KEYS = 4096;
+
+	@Param({ "false", "true" })
+	public boolean counting;
+
+	private BloomFilter filter;
+	private byte[][] keys;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		filter = BloomFilter.createFilter(FILTER_BITS, BloomFilter.optimialK(FILTER_BITS, MAX_KEYS), counting);
+		Random random = new Random(1);
+		keys = new byte[KEYS][32];
+		for(int i=0;i<KEYS;i++) {
+			random.nextBytes(keys[i]);
+			if(i % 2 == 0) filter.addKey(keys[i]);
+		}
+	}
+
+	@Benchmark
+	public void addKey() {
+		filter.addKey(keys[next]);
+		if(++next == KEYS) next = 0;
+	}
+
+	@Benchmark
+	public boolean checkFilter() {
+		boolean found = filter.checkFilter(keys[next]);
+		if(++next == KEYS) next = 0;
+		return found;
+	}
+
+}
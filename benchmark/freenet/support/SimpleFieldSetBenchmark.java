@@ -0,0 +1,79 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and writing a SimpleFieldSet shaped like a node reference: a few dozen fields, some
+ * nested, some with long base64 values. FCP messages and peer files go through the same code.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimpleFieldSetBenchmark {
+
+	private SimpleFieldSet fs;
+	private String text;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(1);
+		fs = new SimpleFieldSet(true);
+		fs.putSingle("identity", base64(random, 32));
+		fs.putSingle("myName", "Benchmark node");
+		fs.putSingle("version", "Fred,0.7,1.0,1484");
+		fs.putSingle("lastGoodVersion", "Fred,0.7,1.0,1475");
+		fs.put("opennet", false);
+		fs.put("testnet", false);
+		fs.putSingle("physical.udp", "192.0.2.1:12345;[2001:db8::1]:12345");
+		fs.putSingle("ark.pubURI", "SSK@"+base64(random, 32)+","+base64(random, 32)+",AQACAAE/ark");
+		fs.put("ark.number", 1234);
+		fs.putSingle("auth.negTypes", "10");
+		fs.putSingle("dsaGroup.p", base64(random, 128));
+		fs.putSingle("dsaGroup.q", base64(random, 32));
+		fs.putSingle("dsaGroup.g", base64(random, 128));
+		fs.putSingle("dsaPubKey.y", base64(random, 128));
+		fs.putSingle("ecdsa.P256.pub", base64(random, 91));
+		fs.putSingle("sig", base64(random, 40));
+		fs.putSingle("sigP256", base64(random, 72));
+		fs.put("location", 0.123456789);
+		for(int i=0;i<20;i++)
+			fs.put("metadata.peersLocation."+i, random.nextDouble());
+		text = fs.toString();
+	}
+
+	private static String base64(Random random, int length) {
+		byte[] buf = new byte[length];
+		random.nextBytes(buf);
+		return Base64.encode(buf);
+	}
+
+	@Benchmark
+	public SimpleFieldSet parse() throws IOException {
+		return new SimpleFieldSet(text, false, true, false);
+	}
+
+	@Benchmark
+	public String write() {
+		return fs.toString();
+	}
+
+}
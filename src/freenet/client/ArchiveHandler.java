@@ -59,7 +59,8 @@ public interface ArchiveHandler {
 	
 	/**
 	 * Unpack a fetched archive to cache, and call the callback if there is one.
-	 * @param bucket The downloaded data for the archive.
+	 * @param bucket The downloaded data for the archive. The ArchiveManager takes ownership of it
+	 * and will free it, possibly not until later if it keeps the container to read files from.
 	 * @param actx The ArchiveContext.
 	 * @param element The single element that the caller is especially interested in.
 	 * @param callback Callback to be notified whether the content is available, and if so, fed the data.
@@ -9,6 +9,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,11 +31,13 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.MutableBoolean;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
+import freenet.support.io.CountedInputStream;
 import freenet.support.io.SkipShieldingInputStream;
 import net.contrapunctus.lzma.LzmaInputStream;
 
@@ -45,6 +48,12 @@ import net.contrapunctus.lzma.LzmaInputStream;
  * - Keep up to Y bytes (after padding and overheads) of decoded data on disk
  * (the OS is quite capable of determining what to keep in actual RAM)
  *
+ * Uncompressed TAR containers are not unpacked: we keep the container and an index of where each
+ * file starts, and read files straight out of it. See ContainerIndex. Like the extracted files,
+ * the index is only kept in memory: it is dropped with the container when the cache is full, and
+ * on restart, and the container is then fetched and indexed again. ZIP containers, which we only
+ * read through ZipInputStream, and compressed TAR containers are still extracted in full.
+ *
  * Always take the lock on ArchiveStoreContext before the lock on ArchiveManager, NOT the other way around.
  */
 public class ArchiveManager {
@@ -126,6 +135,12 @@ public class ArchiveManager {
 	private final LRUMap<ArchiveKey, ArchiveStoreItem> storedData;
 	/** Bucket Factory */
 	private final BucketFactory tempBucketFactory;
+	/** If true, index uncompressed TAR containers rather than extracting them */
+	private final boolean indexContainers;
+	/** Indexed containers by the key they were fetched from */
+	private final LRUMap<FreenetURI, ContainerIndex> indexes;
+	/** Total size of the indexed containers, counts towards maxCachedData */
+	private long indexedData;
 
 	/**
 	 * Create an ArchiveManager.
@@ -141,6 +156,14 @@ public class ArchiveManager {
 	 * @param tempBucketFactory
 	 */
 	public ArchiveManager(int maxHandlers, long maxCachedData, long maxArchivedFileSize, int maxCachedElements, BucketFactory tempBucketFactory) {
+		this(maxHandlers, maxCachedData, maxArchivedFileSize, maxCachedElements, tempBucketFactory, true);
+	}
+
+	/**
+	 * @param indexContainers If true, keep uncompressed TAR containers whole and read files out
+	 * of them by offset, rather than copying every file into its own bucket.
+	 */
+	public ArchiveManager(int maxHandlers, long maxCachedData, long maxArchivedFileSize, int maxCachedElements, BucketFactory tempBucketFactory, boolean indexContainers) {
 		maxArchiveHandlers = maxHandlers;
 		// FIXME PERFORMANCE I'm assuming there isn't much locality here, so it's faster to use the FAST_COMPARATOR.
 		// This may not be true if there are a lot of sites with many containers all inserted as individual SSKs?
@@ -150,6 +173,8 @@ public class ArchiveManager {
 		storedData = new LRUMap<ArchiveKey, ArchiveStoreItem>();
 		this.maxArchivedFileSize = maxArchivedFileSize;
 		this.tempBucketFactory = tempBucketFactory;
+		this.indexContainers = indexContainers;
+		indexes = LRUMap.createSafeMap(FreenetURI.FAST_COMPARATOR);
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 	}
 
@@ -213,11 +238,22 @@ public class ArchiveManager {
 		if(logMINOR) Logger.minor(this, "Fetch cached: "+key+ ' ' +filename);
 		ArchiveKey k = new ArchiveKey(key, filename);
 		ArchiveStoreItem asi = null;
+		ContainerIndex index = null;
 		synchronized (this) {
 			asi = storedData.get(k);
-			if(asi == null) return null;
-			// Promote to top of LRU
-			storedData.push(k, asi);
+			if(asi != null) {
+				// Promote to top of LRU
+				storedData.push(k, asi);
+			} else {
+				index = indexes.get(key);
+				if(index == null) return null;
+				indexes.push(key, index);
+			}
+		}
+		if(index != null) {
+			Bucket data = index.getBucket(filename);
+			if(logMINOR && data != null) Logger.minor(this, "Found data in indexed container");
+			return data;
 		}
 		if(logMINOR) Logger.minor(this, "Found data");
 		return asi.getReaderBucket();
@@ -240,11 +276,37 @@ public class ArchiveManager {
 		item.close();
 	}
 
+	/** Add an indexed container to the cache, replacing any older one for the same key. */
+	private void addIndex(ContainerIndex index) {
+		index.addRef();
+		ContainerIndex old;
+		synchronized (this) {
+			old = indexes.push(index.key, index);
+			indexedData += index.size();
+			if(old != null) indexedData -= old.size();
+		}
+		if(old != null) old.release();
+		if(logMINOR) Logger.minor(this, "Indexed container "+index.key+" size "+index.size());
+	}
+
+	/** Remove the indexed container for a key, if any. */
+	private void removeIndex(FreenetURI key) {
+		ContainerIndex old;
+		synchronized (this) {
+			old = indexes.get(key);
+			if(old == null) return;
+			indexes.removeKey(key);
+			indexedData -= old.size();
+		}
+		old.release();
+	}
+
 	/**
 	 * Extract data to cache. Call synchronized on ctx.
 	 * @param key The key the data was fetched from.
 	 * @param archiveType The archive type. Must be Metadata.ARCHIVE_ZIP | Metadata.ARCHIVE_TAR.
-	 * @param data The actual data fetched.
+	 * @param data The actual data fetched. We take ownership of it: it is either freed or kept
+	 * as an indexed container.
 	 * @param archiveContext The context for the whole fetch process.
 	 * @param ctx The ArchiveStoreContext for this key.
 	 * @param element A particular element that the caller is especially interested in, or null.
@@ -261,7 +323,36 @@ public class ArchiveManager {
 
 		if(logMINOR) Logger.minor(this, "Extracting "+key);
 		ctx.removeAllCachedItems(this); // flush cache anyway
-		final long expectedSize = ctx.getLastSize();
+		removeIndex(key);
+		ContainerIndex index = null;
+		try {
+			final long expectedSize = ctx.getLastSize();
+			boolean throwAtExit = checkContainer(expectedSize, data, archiveContext, ctx);
+			if(indexContainers && ARCHIVE_TYPE.TAR == archiveType && ctype == null && data instanceof RandomAccessBucket) {
+				try {
+					index = new ContainerIndex(key, ((RandomAccessBucket) data).toRandomAccessBuffer());
+				} catch (IOException e) {
+					throw new ArchiveFailureException("Error reading archive data: "+e, e);
+				}
+				handleTARArchive(ctx, key, index.getContainerStream(), element, callback, gotElement, throwAtExit, index, context);
+			} else {
+				extract(archiveType, ctype, data, expectedSize, ctx, key, element, callback, gotElement, throwAtExit, context);
+			}
+		} finally {
+			// If we indexed it, the index owns the data now, and keeps it if it was cached.
+			if(index != null)
+				index.release();
+			else
+				data.free();
+		}
+	}
+
+	/**
+	 * Check the size and hash of the container against the last time we fetched it.
+	 * @return True if it has changed, in which case we must throw an ArchiveRestartException
+	 * once we have unpacked it.
+	 */
+	private boolean checkContainer(long expectedSize, Bucket data, ArchiveContext archiveContext, ArchiveStoreContext ctx) throws ArchiveFailureException {
 		final long archiveSize = data.size();
 		/** Set if we need to throw a RestartedException rather than returning success,
 		 * after we have unpacked everything.
@@ -290,7 +381,11 @@ public class ArchiveManager {
 			throw new ArchiveFailureException("Archive too small! ("+archiveSize+')');
 		else if(logMINOR)
 			Logger.minor(this, "Container size (possibly compressed): "+archiveSize+" for "+data);
+		return throwAtExit;
+	}
 
+	/** Decompress the container if necessary and copy all the files in it into the cache. */
+	private void extract(ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, final Bucket data, final long expectedSize, ArchiveStoreContext ctx, FreenetURI key, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		InputStream is = null;
 		try {
 			final ExceptionWrapper wrapper;
@@ -351,7 +446,7 @@ public class ArchiveManager {
 				handleZIPArchive(ctx, key, is, element, callback, gotElement, throwAtExit, context);
 			} else if(ARCHIVE_TYPE.TAR == archiveType) {
 				 // COMPRESS-449 workaround, see https://freenet.mantishub.io/view.php?id=6921
-				handleTARArchive(ctx, key, new SkipShieldingInputStream(is), element, callback, gotElement, throwAtExit, context);
+				handleTARArchive(ctx, key, new SkipShieldingInputStream(is), element, callback, gotElement, throwAtExit, null, context);
 			} else {
 				throw new ArchiveFailureException("Unknown or unsupported archive algorithm " + archiveType);
 			}
@@ -366,11 +461,22 @@ public class ArchiveManager {
 	}
 	}
 
-	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
-		if(logMINOR) Logger.minor(this, "Handling a TAR Archive");
+	/**
+	 * @param index If not null, data is the container itself, and rather than copying the files
+	 * out we record where each one starts in the index. The container's own skip() is exact, so
+	 * we don't need the COMPRESS-449 workaround.
+	 */
+	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ContainerIndex index, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+		if(logMINOR) Logger.minor(this, "Handling a TAR Archive"+(index != null ? " (indexing)" : ""));
 		TarArchiveInputStream tarIS = null;
+		CountedInputStream counted = null;
 		try {
-			tarIS = new TarArchiveInputStream(data);
+			if(index != null) {
+				// One record per block, so that the count is exactly the start of the entry's data.
+				counted = new CountedInputStream(data);
+				tarIS = new TarArchiveInputStream(counted, 512, 512);
+			} else
+				tarIS = new TarArchiveInputStream(data);
 
 			// MINOR: Assumes the first entry in the tarball is a directory.
 			ArchiveEntry entry;
@@ -398,6 +504,21 @@ outerTAR:		while(true) {
 					gotMetadata = true;
 				if(size > maxArchivedFileSize && !name.equals(element)) {
 					addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+				} else if(index != null) {
+					long offset = counted.count();
+					if(size <= maxArchivedFileSize) {
+						index.add(name, offset, size);
+						names.add(name);
+						if(name.equals(element) && !gotElement.value) {
+							callback.gotBucket(index.getBucket(name), context);
+							gotElement.value = true;
+						}
+					} else {
+						// We are here because they asked for this file.
+						callback.gotBucket(index.getBucket(name, offset, size), context);
+						gotElement.value = true;
+						addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+					}
 				} else {
 					// Read the element
 					long realLen = 0;
@@ -434,6 +555,10 @@ outerTAR:		while(true) {
 				}
 			}
 
+			if(index != null) {
+				addIndex(index);
+				trimStoredData();
+			}
 			// If no metadata, generate some
 			if(!gotMetadata) {
 				generateMetadata(ctx, key, names, gotElement, element, callback, context);
@@ -688,18 +813,31 @@ outerZIP:		while(true) {
 	}
 
 	/**
-	 * Drop any stored data beyond the limit.
+	 * Drop any stored data beyond the limit. Indexed containers count towards the data limit, and
+	 * whichever of the extracted files and the indexed containers are using more space lose out.
 	 * Call synchronized on storedData.
 	 */
 	private void trimStoredData() {
+		ArrayList<ContainerIndex> dropped = null;
 		synchronized(this) {
 		while(true) {
 			ArchiveStoreItem item;
-				if(cachedData <= maxCachedData && storedData.size() <= maxCachedElements) return;
+				boolean overData = cachedData + indexedData > maxCachedData;
+				if(indexes.size() > maxArchiveHandlers ||
+						(overData && !indexes.isEmpty() && (storedData.isEmpty() || indexedData >= cachedData))) {
+					ContainerIndex index = indexes.popValue();
+					indexedData -= index.size();
+					if(logMINOR)
+						Logger.minor(this, "Dropping indexed container "+index.key+" : indexedData="+indexedData+" cachedData="+cachedData+" of "+maxCachedData);
+					if(dropped == null) dropped = new ArrayList<ContainerIndex>();
+					dropped.add(index);
+					continue;
+				}
+				if(!overData && storedData.size() <= maxCachedElements) break;
 				if(storedData.isEmpty()) {
 					// Race condition? cachedData out of sync?
 					Logger.error(this, "storedData is empty but still over limit: cachedData="+cachedData+" / "+maxCachedData);
-					return;
+					break;
 				}
 				item = storedData.popValue();
 				long space = item.spaceUsed();
@@ -711,6 +849,11 @@ outerZIP:		while(true) {
 			item.close();
 		}
 		}
+		if(dropped != null) {
+			// The container is only freed once any buckets still being read have been freed.
+			for(ContainerIndex index : dropped)
+				index.release();
+		}
 	}
 
 }
@@ -0,0 +1,236 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.BufferedInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.io.ResumeFailedException;
+
+/**
+ * Offsets of the files in an uncompressed TAR container, together with the container itself,
+ * so that files can be read straight out of the container rather than each being copied into
+ * its own bucket. Kept by ArchiveManager, keyed by the container's URI, for as long as the
+ * container stays in the cache. It is not persisted: the container is in a temporary bucket,
+ * which doesn't survive a restart either.
+ * <p>
+ * The container is freed when the index has been dropped by the ArchiveManager and all the
+ * buckets returned by getBucket() have been freed.
+ * </p>
+ */
+class ContainerIndex {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(ContainerIndex.class);
+	}
+
+	final FreenetURI key;
+	private final LockableRandomAccessBuffer data;
+	/** Map from name to { offset, length } */
+	private final HashMap<String, long[]> entries;
+	/** One for the extraction which created the index, one while it is in the ArchiveManager's
+	 * cache, and one for each unfreed reader bucket. */
+	private int refs;
+
+	ContainerIndex(FreenetURI key, LockableRandomAccessBuffer data) {
+		this.key = key;
+		this.data = data;
+		entries = new HashMap<String, long[]>();
+		refs = 1;
+	}
+
+	/** @return A stream of the whole container, for reading the headers. */
+	InputStream getContainerStream() {
+		return new BufferedInputStream(new RangeInputStream(0, data.size()), 32768);
+	}
+
+	synchronized void add(String name, long offset, long length) throws ArchiveFailureException {
+		checkRange(name, offset, length);
+		entries.put(name, new long[] { offset, length });
+	}
+
+	private void checkRange(String name, long offset, long length) throws ArchiveFailureException {
+		if(offset < 0 || length < 0 || offset + length > data.size())
+			throw new ArchiveFailureException("Truncated archive: "+name+" at "+offset+" length "+length+" but archive is only "+data.size()+" bytes");
+	}
+
+	/**
+	 * Get one of the files in the container. The container will not be freed until the returned
+	 * bucket has been.
+	 * @return A read-only bucket, or null if there is no such file or the container has already
+	 * been freed.
+	 */
+	synchronized Bucket getBucket(String name) {
+		if(refs == 0) return null;
+		long[] entry = entries.get(name);
+		if(entry == null) return null;
+		refs++;
+		return new ElementBucket(name, entry[0], entry[1]);
+	}
+
+	/** Get a range of the container which is not in the index, e.g. a file which is too big to
+	 * cache but which has been asked for explicitly. */
+	synchronized Bucket getBucket(String name, long offset, long length) throws ArchiveFailureException {
+		if(refs == 0) throw new IllegalStateException("Already freed");
+		checkRange(name, offset, length);
+		refs++;
+		return new ElementBucket(name, offset, length);
+	}
+
+	synchronized void addRef() {
+		if(refs == 0) throw new IllegalStateException("Already freed");
+		refs++;
+	}
+
+	/** The size of the container, which is what we charge against the archive cache limit. */
+	long size() {
+		return data.size();
+	}
+
+	/** Drop a reference, freeing the container if it was the last one. */
+	void release() {
+		synchronized(this) {
+			if(refs == 0) return;
+			if(--refs > 0) return;
+		}
+		if(logMINOR) Logger.minor(this, "Freeing container "+key);
+		data.free();
+	}
+
+	private class RangeInputStream extends InputStream {
+
+		private long offset;
+		private final long end;
+
+		RangeInputStream(long offset, long length) {
+			this.offset = offset;
+			this.end = offset + length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			if(read(buf, 0, 1) < 0) return -1;
+			return buf[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if(len == 0) return 0;
+			if(offset >= end) return -1;
+			len = (int) Math.min(len, end - offset);
+			data.pread(offset, buf, off, len);
+			offset += len;
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			if(n <= 0) return 0;
+			n = Math.min(n, end - offset);
+			offset += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - offset);
+		}
+
+	}
+
+	private class ElementBucket implements Bucket {
+
+		private final String name;
+		private final long offset;
+		private final long length;
+		private boolean freed;
+
+		ElementBucket(String name, long offset, long length) {
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public OutputStream getOutputStreamUnbuffered() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return new BufferedInputStream(getInputStreamUnbuffered());
+		}
+
+		@Override
+		public InputStream getInputStreamUnbuffered() throws IOException {
+			synchronized(this) {
+				if(freed) throw new IOException("Already freed");
+			}
+			return new RangeInputStream(offset, length);
+		}
+
+		@Override
+		public String getName() {
+			return key+"/"+name;
+		}
+
+		@Override
+		public long size() {
+			return length;
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+
+		@Override
+		public void setReadOnly() {
+			// Already read only.
+		}
+
+		@Override
+		public void free() {
+			synchronized(this) {
+				if(freed) return;
+				freed = true;
+			}
+			release();
+		}
+
+		@Override
+		public Bucket createShadow() {
+			return null;
+		}
+
+		@Override
+		public void onResume(ClientContext context) throws ResumeFailedException {
+			throw new UnsupportedOperationException(); // Not persistent.
+		}
+
+		@Override
+		public void storeTo(DataOutputStream dos) throws IOException {
+			throw new UnsupportedOperationException(); // Not persistent.
+		}
+
+	}
+
+}
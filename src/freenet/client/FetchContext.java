@@ -122,6 +122,10 @@ public class FetchContext implements Cloneable, Serializable {
 
 	/** Ignore USK DATEHINTs */
 	public boolean ignoreUSKDatehints;
+	/** Fetch splitfile segments in order, so the start of the file arrives first, and if the 
+	 * request is transient and the data is not compressed, publish a ProgressiveDataEvent so it 
+	 * can be read before the fetch has finished. Used by FProxy for media. Not persisted. */
+	public boolean fetchInOrder;
 
   /** scheme, host and port: force the prefix of a URI. Example: https://localhost:1234 */
   private final String schemeHostAndPort;
@@ -233,6 +237,7 @@ public class FetchContext implements Cloneable, Serializable {
 		this.cooldownRetries = ctx.cooldownRetries;
 		this.cooldownTime = ctx.cooldownTime;
 		this.ignoreUSKDatehints = ctx.ignoreUSKDatehints;
+		this.fetchInOrder = ctx.fetchInOrder;
 		this.schemeHostAndPort = ctx.schemeHostAndPort;
 
 		if(maskID == IDENTICAL_MASK || maskID == SPLITFILE_DEFAULT_MASK) {
@@ -454,6 +459,7 @@ public class FetchContext implements Cloneable, Serializable {
         result = prime * result + (ignoreStore ? 1231 : 1237);
         result = prime * result + (ignoreTooManyPathComponents ? 1231 : 1237);
         result = prime * result + (ignoreUSKDatehints ? 1231 : 1237);
+        result = prime * result + (fetchInOrder ? 1231 : 1237);
         result = prime * result + (localRequestOnly ? 1231 : 1237);
         result = prime * result + maxArchiveLevels;
         result = prime * result + maxArchiveRestarts;
@@ -525,6 +531,8 @@ public class FetchContext implements Cloneable, Serializable {
             return false;
         if (ignoreUSKDatehints != other.ignoreUSKDatehints)
             return false;
+        if (fetchInOrder != other.fetchInOrder)
+            return false;
         if (localRequestOnly != other.localRequestOnly)
             return false;
         if (maxArchiveLevels != other.maxArchiveLevels)
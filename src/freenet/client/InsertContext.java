@@ -157,6 +157,27 @@ public class InsertContext implements Cloneable, Serializable {
      * because an attacker can usually only identify the datastream once he has the top block, or 
      * once you have announced the key. */
     public boolean earlyEncode;
+    /** What to do with the files in a site insert which the node has inserted before with the
+     * same settings. Null in inserts persisted by older builds, which is treated as INSERT. */
+    public UnchangedFiles unchangedFiles;
+    /** If true, splitfile inserts keep the encrypted blocks on disk when they encode each 
+     * segment, so they don't have to encrypt every block again to insert it. Costs about as 
+     * much temporary disk space again as the data and check blocks. */
+    public boolean cacheEncodedBlocks;
+
+    /** How a site insert treats files found in the node's InsertedFileCache, i.e. files which
+     * have been inserted before with the same content and settings, and so would produce the
+     * same CHK (or an equally good one, if the crypto key is random). */
+    public static enum UnchangedFiles {
+        /** Insert every file. The files are still recorded in the cache, if it is enabled, so
+         * that later inserts of the site can use SKIP or HEAL. */
+        INSERT,
+        /** Reuse the old metadata and don't insert the file at all. */
+        SKIP,
+        /** Reuse the old metadata, and re-insert the same blocks at low priority to keep them
+         * available. The site becomes fetchable without waiting for these. */
+        HEAL
+    }
 	
 	public CompatibilityMode getCompatibilityMode() {
 	    return realCompatMode;
@@ -189,6 +210,7 @@ public class InsertContext implements Cloneable, Serializable {
 		this.realCompatMode = compatibilityMode.intern();
 		this.localRequestOnly = localRequestOnly;
 		this.ignoreUSKDatehints = false;
+		this.unchangedFiles = UnchangedFiles.INSERT;
 	}
 
 	public InsertContext(InsertContext ctx, SimpleEventProducer producer) {
@@ -207,6 +229,8 @@ public class InsertContext implements Cloneable, Serializable {
 		this.realCompatMode = ctx.realCompatMode;
 		this.localRequestOnly = ctx.localRequestOnly;
 		this.ignoreUSKDatehints = ctx.ignoreUSKDatehints;
+		this.unchangedFiles = ctx.unchangedFiles;
+		this.cacheEncodedBlocks = ctx.cacheEncodedBlocks;
 	}
 	
 	/** Make public, but just call parent for a field for field copy */
@@ -224,6 +248,7 @@ public class InsertContext implements Cloneable, Serializable {
     public int hashCode() {
         final int prime = 31;
         int result = 1;
+        result = prime * result + (cacheEncodedBlocks ? 1231 : 1237);
         result = prime * result + (canWriteClientCache ? 1231 : 1237);
         result = prime * result + realCompatMode.ordinal();
         result = prime * result
@@ -240,6 +265,7 @@ public class InsertContext implements Cloneable, Serializable {
         result = prime * result + splitfileAlgo.code;
         result = prime * result + splitfileSegmentCheckBlocks;
         result = prime * result + splitfileSegmentDataBlocks;
+        result = prime * result + ((unchangedFiles == null) ? 0 : unchangedFiles.ordinal() + 1);
         return result;
     }
 
@@ -254,6 +280,8 @@ public class InsertContext implements Cloneable, Serializable {
         if (getClass() != obj.getClass())
             return false;
         InsertContext other = (InsertContext) obj;
+        if (cacheEncodedBlocks != other.cacheEncodedBlocks)
+            return false;
         if (canWriteClientCache != other.canWriteClientCache)
             return false;
         if (compatibilityMode != other.compatibilityMode)
@@ -286,6 +314,8 @@ public class InsertContext implements Cloneable, Serializable {
             return false;
         if (splitfileSegmentDataBlocks != other.splitfileSegmentDataBlocks)
             return false;
+        if (unchangedFiles != other.unchangedFiles)
+            return false;
         return true;
     }
     
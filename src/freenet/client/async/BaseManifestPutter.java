@@ -17,9 +17,11 @@ import freenet.client.DefaultMIMETypes;
 import freenet.client.InsertBlock;
 import freenet.client.InsertContext;
 import freenet.client.InsertContext.CompatibilityMode;
+import freenet.client.InsertContext.UnchangedFiles;
 import freenet.client.InsertException;
 import freenet.client.InsertException.InsertExceptionMode;
 import freenet.client.Metadata;
+import freenet.client.MetadataParseException;
 import freenet.client.MetadataUnresolvedException;
 import freenet.client.ArchiveManager.ARCHIVE_TYPE;
 import freenet.client.Metadata.DocumentType;
@@ -28,11 +30,13 @@ import freenet.client.events.SplitfileProgressEvent;
 import freenet.keys.BaseClientKey;
 import freenet.keys.FreenetURI;
 import freenet.keys.Key;
+import freenet.node.RequestStarter;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.ManifestElement;
 import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.BucketTools;
 import freenet.support.io.ResumeFailedException;
 
 /**
@@ -182,11 +186,42 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 	private final class ExternPutHandler extends PutHandler {
 
         private static final long serialVersionUID = 1L;
+        /** Key for the InsertedFileCache, or null if we are not recording this file. */
+        private final byte[] cacheKey;
+        /** If true, the site already uses metadata from an earlier insert of this file, and we
+         * are only re-inserting the same blocks to keep them available. */
+        private final boolean healing;
+        /** True once the file has been inserted. */
+        private boolean succeeded;
+        /** True once the file has been recorded in the InsertedFileCache. */
+        private boolean recorded;
 
-        private ExternPutHandler(BaseManifestPutter bmp, PutHandler parent, String name, RandomAccessBucket data, ClientMetadata cm2) {
+        private ExternPutHandler(BaseManifestPutter bmp, PutHandler parent, String name, RandomAccessBucket data, ClientMetadata cm2, byte[] cacheKey) {
+			this(bmp, parent, name, data, cm2, cacheKey, null);
+		}
+
+		/**
+		 * @param healMetadata If not null, the metadata from an earlier insert of the same file,
+		 * which the site will use. We insert the file again with the same crypto key at low
+		 * priority, and nothing waits for us apart from the completion of the whole insert.
+		 */
+		private ExternPutHandler(BaseManifestPutter bmp, PutHandler parent, String name, RandomAccessBucket data, ClientMetadata cm2, byte[] cacheKey, Metadata healMetadata) {
 			super(bmp, parent, name, cm2, runningPutHandlers);
+			this.cacheKey = cacheKey;
+			this.healing = healMetadata != null;
+			byte[] cryptoKey = forceCryptoKey;
+			if(healing) {
+				cryptoKey = healingCryptoKey(healMetadata);
+				// The site doesn't wait for our block set or for us to become fetchable.
+				synchronized (putHandlerWaitingForBlockSets) {
+					putHandlerWaitingForBlockSets.remove(this);
+				}
+				synchronized (putHandlersWaitingForFetchable) {
+					putHandlersWaitingForFetchable.remove(this);
+				}
+			}
 			InsertBlock block = new InsertBlock(data, cm, FreenetURI.EMPTY_CHK_URI);
-			this.origSFI = new SingleFileInserter(this, this, block, false, ctx, realTimeFlag, false, true, null, null, false, null, false, persistent(), 0, 0, null, cryptoAlgorithm, forceCryptoKey, -1);
+			this.origSFI = new SingleFileInserter(this, this, block, false, ctx, realTimeFlag, false, true, null, null, false, null, false, persistent(), 0, 0, null, cryptoAlgorithm, cryptoKey, -1);
 		}
 
 		@Override
@@ -215,6 +250,10 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 				return;
 			}
 			metadata = m;
+			// A small file can finish inserting before we get its metadata.
+			recordInsertedFile(context);
+			// The site already has metadata for this file.
+			if(healing) return;
 
 			if (freeformMode) {
 				boolean allMetadatas = false;
@@ -265,8 +304,51 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onSuccess(ClientPutState state, ClientContext context) {
+			synchronized(this) {
+				succeeded = true;
+			}
+			recordInsertedFile(context);
 			super.onSuccess(state, context);
 		}
+
+		@Override
+		public void onFetchable(ClientPutState state) {
+			if(healing) return;
+			super.onFetchable(state);
+		}
+
+		@Override
+		public void onBlockSetFinished(ClientPutState state, ClientContext context) {
+			// Don't finalize the block set again if we finish after the rest of the site.
+			if(healing) return;
+			super.onBlockSetFinished(state, context);
+		}
+
+		@Override
+		public short getPriorityClass() {
+			if(healing)
+				return (short) Math.max(super.getPriorityClass(), RequestStarter.PREFETCH_PRIORITY_CLASS);
+			return super.getPriorityClass();
+		}
+
+		/** Once the file has been inserted completely and we have its metadata, record it, so
+		 * later site inserts can reuse the metadata. Called after either happens. */
+		private void recordInsertedFile(ClientContext context) {
+			InsertedFileCache cache = context.insertedFileCache;
+			if(cacheKey == null || cache == null) return;
+			Metadata m;
+			synchronized(this) {
+				if(!succeeded || recorded || metadata == null) return;
+				recorded = true;
+				m = metadata;
+			}
+			try {
+				cache.put(cacheKey, m.writeToByteArray());
+			} catch (MetadataUnresolvedException e) {
+				// Too big to go in the manifest directly, not worth caching.
+				if(logMINOR) Logger.minor(this, "Not caching unresolved metadata for "+itemName);
+			}
+		}
 	}
 
 	// meta data inserter / resolver
@@ -351,6 +433,11 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 			metadata = m;
 		}
 
+		/** a file inserted by an earlier site insert, see UnchangedFiles */
+		public JokerPutHandler(BaseManifestPutter bmp, String name, Metadata m) {
+			super(bmp, null, name, null, m, m.getClientMetadata());
+		}
+
 	}
 
 	// Only implements PutCompletionCallback for the final metadata insert
@@ -764,6 +851,12 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 	private boolean fetchable;
 	final byte[] forceCryptoKey;
 	final byte cryptoAlgorithm;
+	/** Only set while the constructor is building the put handlers. Files are recorded whatever
+	 * ctx.unchangedFiles is, so that a later insert can reuse them; they are only looked up if
+	 * it is SKIP or HEAL. */
+	private transient InsertedFileCache insertedFileCache;
+	/** Crypto key part of the InsertedFileCache key, see InsertedFileCache.makeKey(). */
+	private transient String cryptoKeyMode;
 
 	public BaseManifestPutter(ClientPutCallback cb,
 			HashMap<String, Object> manifestElements, short prioClass, FreenetURI target, String defaultName,
@@ -772,6 +865,15 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		this.targetURI = target;
 		this.cb = cb;
 		this.ctx = ctx;
+		if(context.insertedFileCache != null) {
+			insertedFileCache = context.insertedFileCache;
+			if(randomiseCryptoKeys && forceCryptoKey == null)
+				cryptoKeyMode = "random";
+			else if(forceCryptoKey != null)
+				cryptoKeyMode = InsertedFileCache.forcedKeyMode(forceCryptoKey);
+			else
+				cryptoKeyMode = "none";
+		}
 		if(randomiseCryptoKeys && forceCryptoKey == null) {
 			forceCryptoKey = new byte[32];
 			context.random.nextBytes(forceCryptoKey);
@@ -797,6 +899,8 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		// builders are not longer needed after constructor
 		rootBuilder = null;
 		rootContainerBuilder = null;
+		insertedFileCache = null;
+		cryptoKeyMode = null;
 	}
 	
 	private String findDefaultName(HashMap<String, Object> manifestElements) {
@@ -834,7 +938,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		synchronized (this) {
 			running = runningPutHandlers.toArray(new PutHandler[runningPutHandlers.size()]);
 			if (containerMode) {
-				containers = getContainersToStart(running.length > 0);
+				containers = getContainersToStart(!onlyHealing(running));
 			} else {
 				containers = null;
 			}
@@ -869,7 +973,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 					Logger.minor(this, "Started " + containers.length + " PutHandler's (containers) for " + this);
 
 			}
-			if (!containerMode && running.length == 0) {
+			if (!containerMode && onlyHealing(running)) {
 				gotAllMetadata(context);
 			}
 		} catch (InsertException e) {
@@ -882,6 +986,56 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		//debugDecompose("Start - End");
 	}
 
+	/** Healing inserts don't produce metadata for the site, so nothing waits for them except
+	 * the completion of the whole insert. */
+	private static boolean onlyHealing(PutHandler[] handlers) {
+		for (PutHandler ph : handlers) {
+			if (!(ph instanceof ExternPutHandler && ((ExternPutHandler) ph).healing))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The InsertedFileCache key for a file, or null if the cache is disabled.
+	 */
+	private byte[] insertedFileCacheKey(RandomAccessBucket data, ClientMetadata cm) {
+		if (insertedFileCache == null || insertedFileCache.getMaxSize() == 0) return null;
+		try {
+			return InsertedFileCache.makeKey(BucketTools.hash(data), cm == null ? null : cm.getMIMEType(),
+					ctx, cryptoAlgorithm, cryptoKeyMode);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to hash "+data+" : "+e, e);
+			return null;
+		}
+	}
+
+	/** @return A fresh copy of the metadata from an earlier insert of the same file, or null if
+	 * there isn't one or we are inserting every file anyway. */
+	private Metadata getInsertedFileMetadata(byte[] cacheKey) {
+		if (cacheKey == null || ctx.unchangedFiles == UnchangedFiles.INSERT) return null;
+		byte[] buf = insertedFileCache.get(cacheKey);
+		if (buf == null) return null;
+		try {
+			return Metadata.construct(buf);
+		} catch (MetadataParseException e) {
+			Logger.error(this, "Unable to parse cached metadata: "+e, e);
+			return null;
+		}
+	}
+
+	/** The crypto key a file was inserted with, so that healing it inserts the same blocks. */
+	private byte[] healingCryptoKey(Metadata m) {
+		if (m.isSplitfile()) {
+			byte[] key = m.getSplitfileCryptoKey();
+			if (key != null) return key;
+		} else if (m.isSimpleRedirect()) {
+			FreenetURI uri = m.getSingleTarget();
+			if (uri != null && uri.isCHK()) return uri.getCryptoKey();
+		}
+		return forceCryptoKey;
+	}
+
 	private PutHandler[] getContainersToStart(boolean excludeRoot) {
 		PutHandler[] maybeStartPH = containerPutHandlers.toArray(new PutHandler[containerPutHandlers.size()]);
 		ArrayList<PutHandler> phToStart = new ArrayList<PutHandler>();
@@ -1409,7 +1563,16 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		@Override
 		public void addExternal(String name, RandomAccessBucket data, ClientMetadata cm, boolean isDefaultDoc) {
 			PutHandler ph;
-			ph = new ExternPutHandler(BaseManifestPutter.this, null, name, data, cm);
+			byte[] cacheKey = insertedFileCacheKey(data, cm);
+			Metadata inserted = getInsertedFileMetadata(cacheKey);
+			if (inserted != null) {
+				if(logMINOR) Logger.minor(this, "Unchanged since an earlier insert: "+name);
+				ph = new JokerPutHandler(BaseManifestPutter.this, name, inserted);
+				if (ctx.unchangedFiles == UnchangedFiles.HEAL)
+					new ExternPutHandler(BaseManifestPutter.this, null, name, data, cm, cacheKey, inserted);
+			} else {
+				ph = new ExternPutHandler(BaseManifestPutter.this, null, name, data, cm, cacheKey);
+			}
 //			putHandlersWaitingForMetadata.add(ph);
 //			putHandlersWaitingForFetchable.add(ph);
 			if(logMINOR) Logger.minor(this, "Inserting separately as PutHandler: "+name+" : "+ph+" persistent="+ph.persistent());
@@ -1522,9 +1685,18 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void addExternal(String name, RandomAccessBucket data, ClientMetadata cm, boolean isDefaultDoc) {
-			PutHandler ph = new ExternPutHandler(BaseManifestPutter.this, selfHandle, name, data, cm);
-			perContainerPutHandlersWaitingForMetadata.get(selfHandle).add(ph);
-			putHandlersTransformMap.put(ph, currentDir);
+			byte[] cacheKey = insertedFileCacheKey(data, cm);
+			Metadata inserted = getInsertedFileMetadata(cacheKey);
+			if (inserted != null) {
+				if(logMINOR) Logger.minor(this, "Unchanged since an earlier insert: "+name);
+				currentDir.put(name, inserted);
+				if (ctx.unchangedFiles == UnchangedFiles.HEAL)
+					new ExternPutHandler(BaseManifestPutter.this, selfHandle, name, data, cm, cacheKey, inserted);
+			} else {
+				PutHandler ph = new ExternPutHandler(BaseManifestPutter.this, selfHandle, name, data, cm, cacheKey);
+				perContainerPutHandlersWaitingForMetadata.get(selfHandle).add(ph);
+				putHandlersTransformMap.put(ph, currentDir);
+			}
 			if (isDefaultDoc) {
 				Metadata m = new Metadata(DocumentType.SYMBOLIC_SHORTLINK, null, null, name, null);
 				currentDir.put("", m);
@@ -72,6 +72,11 @@ public class ClientContext {
 	public transient final RealCompressor rc;
 	public transient final DatastoreChecker checker;
 	public transient DownloadCache downloadCache;
+	/** Cache of content filter output for transient fetches. May be null. */
+	public transient FilteredContentCache filteredContentCache;
+	/** Metadata of files inserted in earlier site inserts, for InsertContext.UnchangedFiles.
+	 * May be null. */
+	public transient InsertedFileCache insertedFileCache;
 	/** Used for memory intensive jobs such as in-RAM FEC decodes. Some of these jobs may do disk 
 	 * I/O and we don't guarantee to serialise them. The new splitfile code does FEC decodes 
 	 * entirely in memory, which saves a lot of seeks and improves robustness. */
@@ -293,6 +298,14 @@ public class ClientContext {
 		this.downloadCache = cache;
 	}
 
+	public void setFilteredContentCache(FilteredContentCache cache) {
+		this.filteredContentCache = cache;
+	}
+
+	public void setInsertedFileCache(InsertedFileCache cache) {
+		this.insertedFileCache = cache;
+	}
+
     public FetchContext getDefaultPersistentFetchContext() {
         return new FetchContext(defaultPersistentFetchContext, FetchContext.IDENTICAL_MASK);
     }
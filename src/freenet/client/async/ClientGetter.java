@@ -32,11 +32,13 @@ import freenet.client.events.EnterFiniteCooldownEvent;
 import freenet.client.events.ExpectedFileSizeEvent;
 import freenet.client.events.ExpectedHashesEvent;
 import freenet.client.events.ExpectedMIMEEvent;
+import freenet.client.events.ProgressiveDataEvent;
 import freenet.client.events.SendingToNetworkEvent;
 import freenet.client.events.SplitfileCompatibilityModeEvent;
 import freenet.client.events.SplitfileProgressEvent;
 import freenet.client.filter.ContentFilter;
 import freenet.client.filter.FilterMIMEType;
+import freenet.client.filter.FoundURICallback;
 import freenet.client.filter.UnsafeContentTypeException;
 import freenet.crypt.ChecksumChecker;
 import freenet.crypt.HashResult;
@@ -326,42 +328,71 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			if(returnBucket == null) finalResult = context.getBucketFactory(persistent()).makeBucket(maxLen);
 			else finalResult = returnBucket;
 			if(logMINOR) Logger.minor(this, "Writing final data to "+finalResult+" return bucket is "+returnBucket);
-			dataOutput .connect(dataInput);
 			result = new FetchResult(clientMetadata, finalResult);
+			if(ctx.overrideMIME != null) mimeType = ctx.overrideMIME;
 
-			// Decompress
-			if(decompressors != null) {
-				if(logMINOR) Logger.minor(this, "Decompressing...");
-				decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen);
-				dataInput = decompressorManager.execute();
+			FilteredContentCache.CacheKey cacheKey = filteredContentCacheKey(state, mimeType, context);
+			String cachedMIME = null;
+			if(cacheKey != null) {
+				try {
+					cachedMIME = context.filteredContentCache.get(cacheKey, finalResult, ctx.prefetchHook);
+				} catch (IOException e) {
+					// The cache has dropped the entry. Filter the data as if it had missed.
+					Logger.error(this, "Unable to read cached filtered data for "+uri+", filtering it again: "+e, e);
+					finalResult.free();
+					finalResult = context.getBucketFactory(persistent()).makeBucket(maxLen);
+					result = new FetchResult(clientMetadata, finalResult);
+				}
 			}
+			if(cachedMIME != null) {
+				if(logMINOR) Logger.minor(this, "Using cached filtered data for "+uri);
+				// We still have to consume the data so the fetcher can release it.
+				streamGenerator.writeTo(new NullOutputStream(), context);
+				clientMetadata = new ClientMetadata(cachedMIME);
+				result = new FetchResult(clientMetadata, finalResult);
+			} else {
+				// Record the links for the prefetch hook, so a hit can tell it about them.
+				FilteredContentCache.LinkRecorder links = null;
+				FoundURICallback prefetchHook = ctx.prefetchHook;
+				if(cacheKey != null && prefetchHook != null)
+					prefetchHook = links = new FilteredContentCache.LinkRecorder(prefetchHook);
+				dataOutput .connect(dataInput);
+
+				// Decompress
+				if(decompressors != null) {
+					if(logMINOR) Logger.minor(this, "Decompressing...");
+					decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen);
+					dataInput = decompressorManager.execute();
+				}
 
-			output = finalResult.getOutputStream();
-			if(ctx.overrideMIME != null) mimeType = ctx.overrideMIME;
-			worker = new ClientGetWorkerThread(new BufferedInputStream(dataInput), output, uri, mimeType, ctx.getSchemeHostAndPort(), hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
-			worker.start();
-			try {
-				streamGenerator.writeTo(dataOutput, context);
-			} catch(IOException e) {
-				//Check if the worker thread caught an exception
-				worker.getError();
-				//If not, throw the original error
-				throw e;
-			}
+				output = finalResult.getOutputStream();
+				worker = new ClientGetWorkerThread(new BufferedInputStream(dataInput), output, uri, mimeType, ctx.getSchemeHostAndPort(), hashes, ctx.filterData, ctx.charset, prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
+				worker.start();
+				try {
+					streamGenerator.writeTo(dataOutput, context);
+				} catch(IOException e) {
+					//Check if the worker thread caught an exception
+					worker.getError();
+					//If not, throw the original error
+					throw e;
+				}
 
-			// An error will propagate backwards, so wait for the worker first.
+				// An error will propagate backwards, so wait for the worker first.
 
-			if(logMINOR) Logger.minor(this, "Waiting for hashing, filtration, and writing to finish");
-			worker.waitFinished();
+				if(logMINOR) Logger.minor(this, "Waiting for hashing, filtration, and writing to finish");
+				worker.waitFinished();
 
-			if(decompressorManager != null) {
-				if(logMINOR) Logger.minor(this, "Waiting for decompression to finalize");
-				decompressorManager.waitFinished();
-			}
+				if(decompressorManager != null) {
+					if(logMINOR) Logger.minor(this, "Waiting for decompression to finalize");
+					decompressorManager.waitFinished();
+				}
 
-			if(worker.getClientMetadata() != null) {
-				clientMetadata = worker.getClientMetadata();
-				result = new FetchResult(clientMetadata, finalResult);
+				if(worker.getClientMetadata() != null) {
+					clientMetadata = worker.getClientMetadata();
+					result = new FetchResult(clientMetadata, finalResult);
+					if(cacheKey != null)
+						context.filteredContentCache.put(cacheKey, finalResult, result.getMimeType(), links);
+				}
 			}
 			// These must be updated for ClientGet.
 			synchronized(this) {
@@ -411,6 +442,25 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		clientCallback.onSuccess(result, ClientGetter.this);
 	}
 
+	/**
+	 * Key to look up the filtered data in the filtered content cache, if we can use it.
+	 * @param state The fetcher which found the data.
+	 * @param mimeType The MIME type the content filter will be told the data is.
+	 * @return The key, or null if the data is not being filtered or can't be cached.
+	 */
+	private FilteredContentCache.CacheKey filteredContentCacheKey(ClientGetState state, String mimeType, ClientContext context) {
+		if(!ctx.filterData || context.filteredContentCache == null) return null;
+		// Web-pushing rewrites the page for a specific browser session. Persistent requests and
+		// those writing to a caller-supplied bucket are not worth caching.
+		if(ctx.tagReplacer != null || persistent() || returnBucket != null) return null;
+		FreenetURI finalKey = null;
+		if(state instanceof SingleFileFetcher)
+			finalKey = ((SingleFileFetcher)state).getThisKey();
+		else if(state instanceof SplitFileFetcher)
+			finalKey = ((SplitFileFetcher)state).getThisKey();
+		return FilteredContentCache.makeKey(finalKey, uri, mimeType, ctx.charset, ctx.getSchemeHostAndPort());
+	}
+
     @Override
     public void onSuccess(File tempFile, long length, ClientMetadata metadata,
             ClientGetState state, ClientContext context) {
@@ -957,6 +1007,22 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		}
 	}
 
+	/** Called when a splitfile fetched with FetchContext.fetchInOrder has decoded its first
+	 * segment. The data is not filtered, and reads from it block until the data is available.
+	 * Transient only. */
+	void onProgressiveData(final Bucket data, ClientContext context) {
+		if(persistent()) return;
+		context.getJobRunner(false).queueNormalOrDrop(new PersistentJob() {
+
+			@Override
+			public boolean run(ClientContext context) {
+				ctx.eventProducer.produceEvent(new ProgressiveDataEvent(data), context);
+				return false;
+			}
+
+		});
+	}
+
 	@Override
 	public void clearCooldown(ClientGetState state) {
 		// Ignore for now. FIXME.
@@ -4,6 +4,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.Random;
 
 import freenet.support.math.MersenneTwister;
@@ -23,14 +24,19 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
 
 /**
+ * Checks the local datastore for the keys of newly registered requests before they are sent
+ * to the network. Several threads check keys in parallel, since most lookups are random reads
+ * that the disk can overlap. Requests are taken in priority order, and large requests are split
+ * into jobs of KEYS_PER_JOB keys, so that one big splitfile segment doesn't hold up the rest of
+ * the queue and can itself be checked by several threads.
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
 public class DatastoreChecker implements PrioRunnable {
 
-    /** True to start the DatastoreChecker thread lazily (mostly for simulations). */
+    /** True to start the DatastoreChecker threads lazily (mostly for simulations). */
     private final boolean lazy;
-    /** True if lazy is true and the datastore checker thread is running */
-    private boolean running;
+    /** The number of datastore checker threads running */
+    private int running;
     private final Executor executor;
     private final String threadName;
     
@@ -40,6 +46,11 @@ public class DatastoreChecker implements PrioRunnable {
 	static final int KILL_BLOCKS = 0;
 	static final int RESET_COUNTER = 100;
 	
+	/** Number of threads checking the datastore. */
+	static final int THREADS = 4;
+	/** Maximum number of keys checked by one thread in one go. */
+	static final int KEYS_PER_JOB = 32;
+	
 	private static volatile boolean logMINOR;
 
 	static {
@@ -59,6 +70,13 @@ public class DatastoreChecker implements PrioRunnable {
         /** Arrays of keys to check. */
         Key[] keys;
         final BlockSet blockSet;
+        /** Index of the first key not yet handed to a thread. Once this reaches keys.length,
+         * the item is removed from the queue. */
+        int nextKey;
+        /** Number of jobs for this item currently being checked. */
+        int checking;
+        /** True if any key checked so far was not found. */
+        boolean anyValid;
 		QueueItem(Key[] keys, SendableGet getter, BlockSet blockSet) {
 			this.getter = getter;
             this.keys = keys;
@@ -67,7 +85,7 @@ public class DatastoreChecker implements PrioRunnable {
 
 		@Override
 		public boolean equals(Object o) {
-		    // Hack to make queue.remove() work, see removeRequest() below.
+		    // Hack to make queue.contains() work, see queueRequest() above.
 			if(!(o instanceof QueueItem)) return false; // equals() should not throw ClassCastException
 			return this.getter == ((QueueItem)o).getter;
 		}
@@ -86,6 +104,15 @@ public class DatastoreChecker implements PrioRunnable {
 
 	private ClientContext context;
 	private final Node node;
+	
+	/** Total keys checked. */
+	private long keysChecked;
+	/** Number of jobs currently being checked. */
+	private int checking;
+	/** Time spent with at least one job being checked, not including the current period. */
+	private long checkingTime;
+	/** When the current period of checking started. */
+	private long checkingSince;
 
 	public synchronized void setContext(ClientContext context) {
 		this.context = context;
@@ -145,33 +172,26 @@ public class DatastoreChecker implements PrioRunnable {
 			random = new MersenneTwister();
 		else
 			random = null;
-		Key[] keys = null;
-		SendableGet getter = null;
-		ClientRequestScheduler sched = null;
-		BlockSet blocks = null;
-		boolean waited = false;
+		QueueItem item = null;
+		short prio;
+		int start;
+		int end;
 		synchronized(this) {
 			while(true) {
-				for(short prio = 0;prio<queue.length;prio++) {
-				    QueueItem trans;
-					if((trans = queue[prio].pollFirst()) != null) {
-						keys = trans.keys;
-						getter = trans.getter;
-						// sched assigned out of loop
-						blocks = trans.blockSet;
-						if(logMINOR)
-							Logger.minor(this, "Checking transient request "+getter+" prio "+prio+" of "+queue[prio].size());
+				for(prio = 0;prio<queue.length;prio++) {
+					if((item = queue[prio].peekFirst()) != null) {
+						if(logMINOR && item.nextKey == 0)
+							Logger.minor(this, "Checking transient request "+item.getter+" prio "+prio+" of "+queue[prio].size());
 						break;
 					}
 				}
-				if(keys != null)
+				if(item != null)
 					break;
 				if(logMINOR) Logger.minor(this, "Waiting for more transient requests");
 				if(lazy) {
-				    running = false;
+				    running--;
 				    return true;
 				}
-				waited = true;
 				try {
 					// Wait for anything.
 					wait(SECONDS.toMillis(100));
@@ -179,35 +199,58 @@ public class DatastoreChecker implements PrioRunnable {
 					// Ok
 				}
 			}
+			start = item.nextKey;
+			end = Math.min(item.keys.length, start + KEYS_PER_JOB);
+			item.nextKey = end;
+			if(end == item.keys.length)
+				queue[prio].pollFirst();
+			item.checking++;
+			if(checking++ == 0)
+				checkingSince = System.currentTimeMillis();
 		}
-		sched = getter.getScheduler(context);
 		boolean anyValid = false;
-		for(Key key : keys) {
-			if(random != null) {
-				if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
+		try {
+			ClientRequestScheduler sched = item.getter.getScheduler(context);
+			for(int i=start;i<end;i++) {
+				Key key = item.keys[i];
+				if(random != null) {
+					if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
+						anyValid = true;
+						continue;
+					}
+				}
+				KeyBlock block;
+				if(item.blockSet != null)
+					block = item.blockSet.get(key);
+				else
+					block = node.fetch(key, true, true, false, false, null);
+				if(block != null) {
+					if(logMINOR) Logger.minor(this, "Found key");
+					sched.tripPendingKey(block);
+				} else {
 					anyValid = true;
-					continue;
 				}
 			}
-			KeyBlock block;
-			if(blocks != null)
-				block = blocks.get(key);
-			else
-				block = node.fetch(key, true, true, false, false, null);
-			if(block != null) {
-				if(logMINOR) Logger.minor(this, "Found key");
-				if(key instanceof NodeSSK)
-					sched.tripPendingKey(block);
-				else // CHK
-					sched.tripPendingKey(block);
-			} else {
-				anyValid = true;
+		} finally {
+			boolean finished;
+			synchronized(this) {
+				if(anyValid) item.anyValid = true;
+				finished = --item.checking == 0 && item.nextKey == item.keys.length;
+				anyValid = item.anyValid;
+				keysChecked += end - start;
+				if(--checking == 0)
+					checkingTime += System.currentTimeMillis() - checkingSince;
+			}
+			if(finished) {
+				if(logMINOR) Logger.minor(this, "Checked "+item.keys.length+" keys");
+				finishRegister(item.getter, anyValid);
 			}
-//			synchronized(this) {
-//				keysToCheck[priority].remove(key);
-//			}
 		}
-		if(logMINOR) Logger.minor(this, "Checked "+keys.length+" keys");
+		return false;
+	}
+	
+	private void finishRegister(SendableGet getter, boolean anyValid) {
+		ClientRequestScheduler sched = getter.getScheduler(context);
 		if(getter.persistent()) {
 			final SendableGet get = getter;
 			final ClientRequestScheduler scheduler = sched;
@@ -242,15 +285,11 @@ public class DatastoreChecker implements PrioRunnable {
 		} else {
 			sched.finishRegister(new SendableGet[] { getter }, false, anyValid);
 		}
-		return false;
 	}
 
 	synchronized void wakeUp() {
-	    if(lazy) {
-	        if(!running) {
-	            start();
-	            return;
-	        }
+	    if(lazy && running < THREADS) {
+	        start();
 	    }
 		notifyAll();
 	}
@@ -258,10 +297,11 @@ public class DatastoreChecker implements PrioRunnable {
 	public synchronized void start() {
 	    if(lazy) {
 	        if(isEmpty()) return;
-	        if(running) return;
 	    }
-	    running = true;
-            executor.execute(this, threadName);
+	    while(running < THREADS) {
+	        running++;
+	        executor.execute(this, threadName);
+	    }
 	}
 
 	private synchronized boolean isEmpty() {
@@ -278,11 +318,39 @@ public class DatastoreChecker implements PrioRunnable {
 
 	public void removeRequest(SendableGet request, boolean persistent, ClientContext context, short prio) {
 		if(logMINOR) Logger.minor(this, "Removing request prio="+prio+" persistent="+persistent);
-		QueueItem requestMatcher = new QueueItem(null, request, null);
 		synchronized(this) {
-		    if(!queue[prio].remove(requestMatcher)) return;
+		    for(Iterator<QueueItem> it = queue[prio].iterator(); it.hasNext();) {
+		        QueueItem item = it.next();
+		        if(item.getter != request) continue;
+		        // If we have started checking it, it will complete as normal.
+		        if(item.nextKey != 0) return;
+		        it.remove();
+		        break;
+		    }
 		}
 		if(logMINOR) Logger.minor(this, "Removed transient request");
 	}
 
+	/** @return The total number of keys checked since startup. */
+	public synchronized long getKeysChecked() {
+		return keysChecked;
+	}
+
+	/** @return The average number of keys checked per second, while there were keys to check. */
+	public synchronized double getKeysCheckedPerSecond() {
+		long time = checkingTime;
+		if(checking > 0)
+			time += System.currentTimeMillis() - checkingSince;
+		if(time <= 0) return 0.0;
+		return keysChecked * 1000.0 / time;
+	}
+
+	/** @return The number of requests waiting for their keys to be checked. */
+	public synchronized int getQueuedRequests() {
+		int total = 0;
+		for(ArrayDeque<QueueItem> q : queue)
+			total += q.size();
+		return total;
+	}
+
 }
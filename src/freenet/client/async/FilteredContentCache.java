@@ -0,0 +1,407 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.client.filter.FoundURICallback;
+import freenet.client.filter.HTMLFilter;
+import freenet.keys.FreenetURI;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+
+/**
+ * Bounded LRU cache of content filter output, so that re-visiting a page (going back and forth
+ * within a freesite, refreshing an index page) doesn't have to run the content filter again.
+ * <p>
+ * Entries are keyed by the CHK the data was ultimately fetched from, the URI the filter resolved
+ * links against, the MIME type and the filter settings. A CHK always decodes to the same data,
+ * so as long as all of those match, the filter output will be identical. Data fetched from
+ * anything other than a CHK is never cached.
+ * </p><p>
+ * The filtered data is kept in buckets from the temp bucket factory, so large entries will end up
+ * on disk (encrypted) rather than in RAM. The total size of the cached data is bounded; least
+ * recently used entries are dropped first.
+ * </p><p>
+ * The links the filter found are kept with the data (see {@link LinkRecorder}), so that a
+ * prefetch hook (FProxy's inline prefetch) is told about them on a hit without filtering the
+ * data again.
+ * </p>
+ * @see ClientGetter#onSuccess(StreamGenerator, freenet.client.ClientMetadata, java.util.List,
+ * ClientGetState, ClientContext)
+ */
+public class FilteredContentCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(FilteredContentCache.class);
+	}
+
+	/** An entry must be no bigger than this fraction of the total, otherwise one big file
+	 * would evict everything else. */
+	private static final int MAX_ENTRY_FRACTION = 4;
+
+	/** Don't cache pages with more links than this, to bound the memory used by the links. */
+	static final int MAX_LINKS = 1024;
+
+	private final BucketFactory bf;
+	private final LRUMap<CacheKey, Entry> entries;
+	private long maxSize;
+	private long totalSize;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public FilteredContentCache(BucketFactory bf, long maxSize) {
+		this.bf = bf;
+		this.maxSize = maxSize;
+		this.entries = new LRUMap<CacheKey, Entry>();
+	}
+
+	/**
+	 * Create a key for the filtered data.
+	 * @param finalKey The key the data was fetched from. Must be a CHK, including any meta
+	 * strings used to find the file within a container.
+	 * @param uri The URI passed to the content filter, which relative links are resolved against.
+	 * @param mimeType The MIME type the content filter was told the data is.
+	 * @param charset The charset the content filter was told the data is in, if any.
+	 * @param schemeHostAndPort The scheme, host and port passed to the content filter, if any.
+	 * @return The key, or null if the data can't be cached because it did not come from a CHK.
+	 */
+	public static CacheKey makeKey(FreenetURI finalKey, FreenetURI uri, String mimeType, String charset,
+			String schemeHostAndPort) {
+		if(finalKey == null || uri == null || mimeType == null) return null;
+		if(!finalKey.isCHK() || finalKey.getRoutingKey() == null) return null;
+		return new CacheKey(finalKey.toString(false, false), uri.toString(false, false), mimeType,
+				charset, schemeHostAndPort, filterSettings());
+	}
+
+	/** The global FProxy settings which change what the HTML filter outputs. If the user changes
+	 * any of them, existing entries simply stop matching and are eventually evicted. */
+	private static String filterSettings() {
+		return HTMLFilter.embedM3uPlayer+","+HTMLFilter.metaRefreshSamePageMinInterval+","+
+			HTMLFilter.metaRefreshRedirectMinInterval;
+	}
+
+	/**
+	 * Copy cached filtered data to a bucket.
+	 * @param key The key returned by makeKey().
+	 * @param output The bucket to write the filtered data to.
+	 * @return The MIME type returned by the content filter (including the charset), or null if
+	 * the data is not in the cache, in which case nothing will have been written.
+	 * @throws IOException If we failed to copy the data. The entry is removed from the cache.
+	 */
+	public String get(CacheKey key, Bucket output) throws IOException {
+		return get(key, output, null);
+	}
+
+	/**
+	 * Copy cached filtered data to a bucket, and tell a callback about the links in it, as the
+	 * content filter would have done.
+	 * @param key The key returned by makeKey().
+	 * @param output The bucket to write the filtered data to.
+	 * @param hook If not null, called with the links recorded when the data was filtered.
+	 * @return The MIME type returned by the content filter (including the charset), or null if
+	 * the data is not in the cache, in which case nothing will have been written.
+	 * @throws IOException If we failed to copy the data. The entry is removed from the cache.
+	 */
+	public String get(CacheKey key, Bucket output, FoundURICallback hook) throws IOException {
+		Entry entry;
+		synchronized(this) {
+			entry = entries.get(key);
+			if(entry == null) {
+				misses++;
+				return null;
+			}
+			entries.push(key, entry);
+			hits++;
+			entry.readers++;
+		}
+		boolean success = false;
+		try {
+			BucketTools.copy(entry.data, output);
+			success = true;
+			if(hook != null)
+				entry.replayLinks(hook);
+			return entry.mimeType;
+		} finally {
+			synchronized(this) {
+				entry.readers--;
+				if(!success && !entry.removed) {
+					entries.removeKey(key);
+					removed(entry);
+				}
+			}
+			maybeFree(entry);
+		}
+	}
+
+	/**
+	 * Add filtered data to the cache. The data is copied, so the caller keeps ownership of
+	 * <code>filtered</code>.
+	 * @param key The key returned by makeKey().
+	 * @param filtered The output of the content filter.
+	 * @param mimeType The MIME type returned by the content filter.
+	 */
+	public void put(CacheKey key, Bucket filtered, String mimeType) {
+		put(key, filtered, mimeType, null);
+	}
+
+	/**
+	 * Add filtered data to the cache, with the links the filter found in it. The data is copied,
+	 * so the caller keeps ownership of <code>filtered</code>.
+	 * @param key The key returned by makeKey().
+	 * @param filtered The output of the content filter.
+	 * @param mimeType The MIME type returned by the content filter.
+	 * @param links The recorder the content filter was given, or null if the links weren't
+	 * recorded. If it found too many links, the data is not cached.
+	 */
+	public void put(CacheKey key, Bucket filtered, String mimeType, LinkRecorder links) {
+		if(links != null && links.overflowed()) return;
+		long size = filtered.size();
+		synchronized(this) {
+			if(maxSize == 0 || size > maxSize / MAX_ENTRY_FRACTION) return;
+			if(entries.containsKey(key)) return;
+		}
+		Bucket copy = null;
+		try {
+			copy = bf.makeBucket(size);
+			BucketTools.copy(filtered, copy);
+			copy.setReadOnly();
+		} catch (IOException e) {
+			Logger.normal(this, "Unable to cache filtered data for "+key+" : "+e, e);
+			if(copy != null) copy.free();
+			return;
+		}
+		Entry entry = new Entry(copy, mimeType, size, links);
+		Entry old;
+		synchronized(this) {
+			old = entries.push(key, entry);
+			totalSize += size;
+			if(old != null)
+				removed(old);
+			shrink();
+		}
+		if(old != null) maybeFree(old);
+		if(logMINOR) Logger.minor(this, "Cached "+size+" bytes of filtered data for "+key);
+	}
+
+	/** Change the maximum total size of the cached data, evicting entries as necessary. */
+	public void setMaxSize(long maxSize) {
+		synchronized(this) {
+			this.maxSize = maxSize;
+			shrink();
+		}
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long getSize() {
+		return totalSize;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/** Drop least recently used entries until we are within the size limit. Caller must hold
+	 * the lock on this. */
+	private void shrink() {
+		while(totalSize > maxSize && !entries.isEmpty()) {
+			Entry entry = entries.popValue();
+			removed(entry);
+			evictions++;
+			maybeFree(entry);
+		}
+	}
+
+	/** Account for an entry having been removed from the map. Caller must hold the lock on this. */
+	private void removed(Entry entry) {
+		entry.removed = true;
+		totalSize -= entry.size;
+	}
+
+	/** Free the data of an entry which has been removed from the cache, unless somebody is
+	 * still copying it, in which case get() will free it when it has finished. */
+	private void maybeFree(Entry entry) {
+		synchronized(this) {
+			if(!entry.removed || entry.readers > 0 || entry.freed) return;
+			entry.freed = true;
+		}
+		entry.data.free();
+	}
+
+	/**
+	 * Passes the content filter's callbacks on to a prefetch hook, and records the links so
+	 * they can be replayed on a cache hit. Text is passed on but not recorded: FProxy's hook
+	 * ignores it, and spiders don't use the cache.
+	 */
+	public static class LinkRecorder implements FoundURICallback {
+
+		private final FoundURICallback hook;
+		private final List<FreenetURI> uris = new ArrayList<FreenetURI>();
+		private final List<Boolean> inline = new ArrayList<Boolean>();
+		private boolean overflowed;
+		private boolean finishedPage;
+
+		public LinkRecorder(FoundURICallback hook) {
+			this.hook = hook;
+		}
+
+		@Override
+		public void foundURI(FreenetURI uri) {
+			// The filter calls both versions for every link, so record the other one.
+			hook.foundURI(uri);
+		}
+
+		@Override
+		public void foundURI(FreenetURI uri, boolean inline) {
+			synchronized(this) {
+				if(uris.size() < MAX_LINKS) {
+					uris.add(uri);
+					this.inline.add(inline);
+				} else
+					overflowed = true;
+			}
+			hook.foundURI(uri, inline);
+		}
+
+		@Override
+		public void onText(String text, String type, URI baseURI) {
+			hook.onText(text, type, baseURI);
+		}
+
+		@Override
+		public void onFinishedPage() {
+			synchronized(this) {
+				finishedPage = true;
+			}
+			hook.onFinishedPage();
+		}
+
+		synchronized boolean overflowed() {
+			return overflowed;
+		}
+
+	}
+
+	private static class Entry {
+		final Bucket data;
+		final String mimeType;
+		final long size;
+		/** Links found by the filter, or null if they weren't recorded. */
+		private final FreenetURI[] uris;
+		private final boolean[] inline;
+		private final boolean finishedPage;
+		/** Number of get()'s currently copying the data. Protected by the cache's lock. */
+		int readers;
+		/** True once the entry has been dropped from the cache. Protected by the cache's lock. */
+		boolean removed;
+		/** Protected by the cache's lock. */
+		boolean freed;
+
+		Entry(Bucket data, String mimeType, long size, LinkRecorder links) {
+			this.data = data;
+			this.mimeType = mimeType;
+			this.size = size;
+			if(links == null) {
+				uris = null;
+				inline = null;
+				finishedPage = false;
+			} else {
+				synchronized(links) {
+					uris = links.uris.toArray(new FreenetURI[links.uris.size()]);
+					inline = new boolean[uris.length];
+					for(int i=0;i<inline.length;i++)
+						inline[i] = links.inline.get(i);
+					finishedPage = links.finishedPage;
+				}
+			}
+		}
+
+		/** Call the hook as the content filter did when the data was filtered. */
+		void replayLinks(FoundURICallback hook) {
+			if(uris == null) return;
+			for(int i=0;i<uris.length;i++) {
+				hook.foundURI(uris[i]);
+				hook.foundURI(uris[i], inline[i]);
+			}
+			if(finishedPage)
+				hook.onFinishedPage();
+		}
+	}
+
+	public static final class CacheKey {
+		private final String finalKey;
+		private final String uri;
+		private final String mimeType;
+		private final String charset;
+		private final String schemeHostAndPort;
+		private final String filterSettings;
+		private final int hashCode;
+
+		private CacheKey(String finalKey, String uri, String mimeType, String charset,
+				String schemeHostAndPort, String filterSettings) {
+			this.finalKey = finalKey;
+			this.uri = uri;
+			this.mimeType = mimeType;
+			this.charset = charset;
+			this.schemeHostAndPort = schemeHostAndPort;
+			this.filterSettings = filterSettings;
+			int h = finalKey.hashCode();
+			h = h * 31 + uri.hashCode();
+			h = h * 31 + mimeType.hashCode();
+			h = h * 31 + (charset == null ? 0 : charset.hashCode());
+			h = h * 31 + (schemeHostAndPort == null ? 0 : schemeHostAndPort.hashCode());
+			h = h * 31 + (filterSettings == null ? 0 : filterSettings.hashCode());
+			this.hashCode = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(o == this) return true;
+			if(!(o instanceof CacheKey)) return false;
+			CacheKey k = (CacheKey) o;
+			return hashCode == k.hashCode && finalKey.equals(k.finalKey) && uri.equals(k.uri) &&
+				mimeType.equals(k.mimeType) && equals(charset, k.charset) &&
+				equals(schemeHostAndPort, k.schemeHostAndPort) && equals(filterSettings, k.filterSettings);
+		}
+
+		private static boolean equals(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+
+		@Override
+		public String toString() {
+			return finalKey+" for "+uri+" as "+mimeType;
+		}
+	}
+
+}
@@ -0,0 +1,312 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import freenet.client.InsertContext;
+import freenet.crypt.SHA256;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.HexUtil;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+
+/**
+ * Remembers the metadata produced when a file in a site was inserted, keyed by the hash of
+ * the file's content and every insert setting which affects the resulting CHK. When the next
+ * edition of the site is inserted, files which have not changed can reuse their old metadata
+ * instead of being compressed, encrypted and FEC encoded all over again. See
+ * InsertContext.UnchangedFiles.
+ * <p>
+ * Entries are only added once the file has been fully inserted. Each entry is kept in memory
+ * and, if there is a directory, in a file named after the hex of the key, so the cache survives
+ * a restart. The total size of the metadata is bounded and the least recently used entries are
+ * dropped first.
+ * </p><p>
+ * The cache records which files have been inserted by this node, and the files are not
+ * encrypted, so it is off by default, and NodeClientCore keeps it in memory only when the
+ * physical security level is HIGH or MAXIMUM.
+ * </p>
+ */
+public class InsertedFileCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(InsertedFileCache.class);
+	}
+
+	/** Bump when the key format changes, so old entries are never matched. */
+	private static final String KEY_VERSION = "1";
+
+	private final LRUMap<ByteArrayWrapper, byte[]> entries;
+	/** Held while writing or deleting entry files, so a file is never written after its entry
+	 * has been dropped and the file deleted. Taken before the lock on this, never after. */
+	private final Object diskLock = new Object();
+	private File dir;
+	private long maxSize;
+	private long size;
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param dir The directory to keep the entries in, or null to keep them in memory only. If it
+	 * contains entries from a previous run they are loaded, most recently written first.
+	 * @param maxSize The maximum total size of the cached metadata, in bytes. 0 disables the cache.
+	 */
+	public InsertedFileCache(File dir, long maxSize) {
+		entries = new LRUMap<ByteArrayWrapper, byte[]>();
+		this.maxSize = maxSize;
+		this.dir = dir;
+		if(dir != null && maxSize > 0)
+			load();
+	}
+
+	/**
+	 * Compute the cache key for a file.
+	 * @param contentHash SHA-256 of the data.
+	 * @param mimeType The MIME type which will go in the metadata, or null.
+	 * @param ctx The insert settings. Compression, splitfile segment sizes and the compatibility
+	 * mode all change the resulting CHK.
+	 * @param cryptoAlgorithm The splitfile crypto algorithm.
+	 * @param cryptoKeyMode Describes the crypto key: "none" if it is derived from the content,
+	 * "random" if a new random key is used for each insert (so any earlier insert will do), or
+	 * a hash of the forced key.
+	 */
+	public static byte[] makeKey(byte[] contentHash, String mimeType, InsertContext ctx, byte cryptoAlgorithm, String cryptoKeyMode) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(KEY_VERSION).append('\n');
+		sb.append(HexUtil.bytesToHex(contentHash)).append('\n');
+		sb.append(mimeType).append('\n');
+		sb.append(ctx.dontCompress ? "" : ctx.compressorDescriptor).append('\n');
+		sb.append(ctx.dontCompress).append('\n');
+		sb.append(ctx.getCompatibilityMode().name()).append('\n');
+		sb.append(ctx.getSplitfileAlgorithm().name()).append('\n');
+		sb.append(ctx.splitfileSegmentDataBlocks).append('/').append(ctx.splitfileSegmentCheckBlocks).append('\n');
+		sb.append(cryptoAlgorithm).append('\n');
+		sb.append(cryptoKeyMode);
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			return md.digest(sb.toString().getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new Error(e); // Impossible
+		} finally {
+			SHA256.returnMessageDigest(md);
+		}
+	}
+
+	/** Describe a forced crypto key for makeKey() without putting the key itself in the cache. */
+	public static String forcedKeyMode(byte[] forceCryptoKey) {
+		return "key:"+HexUtil.bytesToHex(SHA256.digest(forceCryptoKey));
+	}
+
+	/** @return The serialized metadata of an earlier insert with the same key, or null. */
+	public synchronized byte[] get(byte[] key) {
+		if(maxSize == 0) return null;
+		ByteArrayWrapper k = new ByteArrayWrapper(key);
+		byte[] metadata = entries.get(k);
+		if(metadata == null) {
+			misses++;
+			return null;
+		}
+		entries.push(k, metadata);
+		hits++;
+		return metadata;
+	}
+
+	/** Record the metadata of a file which has been inserted successfully. */
+	public void put(byte[] key, byte[] metadata) {
+		ByteArrayWrapper k = new ByteArrayWrapper(key);
+		File[] toDelete;
+		synchronized(this) {
+			if(maxSize == 0 || metadata.length > maxSize) return;
+			byte[] old = entries.get(k);
+			if(old != null) {
+				if(Arrays.equals(old, metadata)) {
+					entries.push(k, old);
+					return;
+				}
+				size -= old.length;
+			}
+			entries.push(k, metadata);
+			size += metadata.length;
+			toDelete = shrink();
+		}
+		synchronized(diskLock) {
+			delete(toDelete);
+			File toWrite;
+			synchronized(this) {
+				// Another put() may have dropped or replaced the entry since. If so it will
+				// delete or write the file, now or once we release diskLock.
+				if(dir == null || entries.get(k) != metadata) return;
+				toWrite = fileFor(dir, key);
+			}
+			write(toWrite, metadata);
+		}
+	}
+
+	/** Drop the least recently used entries until we are within the limit.
+	 * @return The files to delete, if any. Caller must delete them outside the lock, with
+	 * deleteFiles() or while holding diskLock. */
+	private File[] shrink() {
+		if(size <= maxSize) return null;
+		File[] toDelete = null;
+		int count = 0;
+		while(size > maxSize) {
+			ByteArrayWrapper k = entries.peekKey();
+			byte[] metadata = entries.popValue();
+			size -= metadata.length;
+			if(dir != null) {
+				if(toDelete == null) toDelete = new File[entries.size()+1];
+				toDelete[count++] = fileFor(dir, k.get());
+			}
+		}
+		return toDelete;
+	}
+
+	public void setMaxSize(long maxSize) {
+		if(maxSize < 0) throw new IllegalArgumentException();
+		File[] toDelete;
+		boolean load;
+		synchronized(this) {
+			load = this.maxSize == 0 && maxSize > 0 && dir != null;
+			this.maxSize = maxSize;
+			toDelete = shrink();
+		}
+		deleteFiles(toDelete);
+		if(load) load();
+	}
+
+	/** Stop writing entries to disk and delete the ones already written. The entries stay in
+	 * memory. Used when the physical security level is HIGH or MAXIMUM. */
+	public void forgetOnDisk() {
+		File oldDir;
+		synchronized(this) {
+			oldDir = dir;
+			dir = null;
+		}
+		if(oldDir == null) return;
+		synchronized(diskLock) {
+			File[] files = oldDir.listFiles();
+			if(files != null) delete(files);
+		}
+	}
+
+	private void load() {
+		if(!dir.exists() && !dir.mkdirs()) {
+			Logger.error(this, "Unable to create the inserted file cache directory "+dir);
+			return;
+		}
+		File[] files = dir.listFiles();
+		if(files == null) return;
+		// Oldest first, so the most recently written end up at the top of the LRU.
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		int loaded = 0;
+		for(File f : files) {
+			byte[] key;
+			try {
+				key = HexUtil.hexToBytes(f.getName());
+			} catch (NumberFormatException e) {
+				continue;
+			} catch (IndexOutOfBoundsException e) {
+				continue;
+			}
+			long length = f.length();
+			if(key.length != 32 || length <= 0 || length > maxSize) continue;
+			byte[] metadata = new byte[(int) length];
+			DataInputStream dis = null;
+			try {
+				dis = new DataInputStream(new FileInputStream(f));
+				dis.readFully(metadata);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to read "+f+" : "+e, e);
+				continue;
+			} finally {
+				Closer.close(dis);
+			}
+			File[] toDelete;
+			synchronized(this) {
+				ByteArrayWrapper k = new ByteArrayWrapper(key);
+				if(entries.containsKey(k)) continue;
+				entries.push(k, metadata);
+				size += metadata.length;
+				toDelete = shrink();
+			}
+			deleteFiles(toDelete);
+			loaded++;
+		}
+		if(logMINOR) Logger.minor(this, "Loaded "+loaded+" inserted file cache entries from "+dir);
+	}
+
+	private static File fileFor(File dir, byte[] key) {
+		return new File(dir, HexUtil.bytesToHex(key));
+	}
+
+	private void write(File f, byte[] metadata) {
+		File tmp = new File(f.getPath()+".tmp");
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(tmp);
+			fos.write(metadata);
+			fos.close();
+			fos = null;
+			if(!FileUtil.renameTo(tmp, f))
+				Logger.error(this, "Unable to rename "+tmp+" to "+f);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write "+f+" : "+e, e);
+			tmp.delete();
+		} finally {
+			Closer.close(fos);
+		}
+	}
+
+	private void deleteFiles(File[] files) {
+		if(files == null) return;
+		synchronized(diskLock) {
+			delete(files);
+		}
+	}
+
+	/** Caller must hold diskLock. */
+	private static void delete(File[] files) {
+		if(files == null) return;
+		for(File f : files)
+			if(f != null) f.delete();
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+}
@@ -184,6 +184,12 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		this.topCompatibilityMode = fetcher.topCompatibilityMode;
 	}
 
+	/** @return The key the data was fetched from, including any meta strings used to find it
+	 * within a manifest or container. */
+	FreenetURI getThisKey() {
+		return thisKey;
+	}
+
 	// Process the completed data. May result in us going to a
 	// splitfile, or another SingleFileFetcher, etc.
 	@Override
@@ -942,6 +948,7 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		}
 
 		private void innerSuccess(Bucket data, ClientContext context) {
+			boolean handedOver = false;
 			try {
 				if(hashes != null) {
 					InputStream is = null;
@@ -966,6 +973,8 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 						Closer.close(is);
 					}
 				}
+				// The ArchiveManager frees the data, or keeps it as an indexed container.
+				handedOver = true;
 				ah.extractToCache(data, actx, element, callback, context.archiveManager, context);
 			} catch (ArchiveFailureException e) {
 				SingleFileFetcher.this.onFailure(new FetchException(e), false, context);
@@ -974,7 +983,7 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				SingleFileFetcher.this.onFailure(new FetchException(e), false, context);
 				return;
 			} finally {
-				data.free();
+				if(!handedOver) data.free();
 			}
 			if(callback != null) return;
 			innerWrapHandleMetadata(true, context);
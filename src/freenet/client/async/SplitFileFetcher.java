@@ -92,6 +92,9 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
     final long token;
     /** Storage doesn't have a ClientContext so we need one here. */
     private transient ClientContext context;
+    /** The key the splitfile metadata came from. Only used by the filtered content cache, which
+     * doesn't cache persistent downloads, so it doesn't need to survive a restart. */
+    private transient FreenetURI thisKey;
     /** Does the actual requests. 
      * Created in onResume() or in the constructor, so must be volatile. */
     private transient volatile SplitFileFetcherGet getter;
@@ -107,6 +110,7 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
             ClientContext context) 
             throws FetchException, MetadataParseException {
         this.persistent = persistent;
+        this.thisKey = thisKey;
         this.cb = rcb;
         this.parent = parent;
         this.realTimeFlag = realTimeFlag;
@@ -233,6 +237,11 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         return token;
     }
 
+    /** @return The key the splitfile metadata came from, or null after a restart. */
+    FreenetURI getThisKey() {
+        return thisKey;
+    }
+
     /** The splitfile download succeeded. Generate a stream and send it to the 
      * GetCompletionCallback. See bug #6063 for a better way that probably is too much complexity
      * for the benefit. */
@@ -270,6 +279,13 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         }
     }
     
+    @Override
+    public void onProgressiveData() {
+        if(parent instanceof ClientGetter) {
+            ((ClientGetter)parent).onProgressiveData(storage.progressiveData(), context);
+        }
+    }
+
     @Override
     public void onClosed() {
         // Don't need to do anything.
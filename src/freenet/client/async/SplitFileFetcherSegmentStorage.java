@@ -100,6 +100,8 @@ public class SplitFileFetcherSegmentStorage {
     private final SplitFileFetcherCrossSegmentStorage[] crossSegmentsByBlock;
     private SoftReference<SplitFileSegmentKeys> keysCache;
     private boolean tryDecode;
+    /** True once the data blocks have been decoded and checked during this run. */
+    private boolean decoded;
     private int crossDataBlocksAllocated;
     private int crossCheckBlocksAllocated;
     /** Number of blocks we've given up on. */
@@ -331,6 +333,7 @@ public class SplitFileFetcherSegmentStorage {
             }
             
         });
+        parent.startedDecode();
         return true;
     }
     
@@ -504,8 +507,12 @@ public class SplitFileFetcherSegmentStorage {
         writeAllDataBlocks(dataBlocks);
         // Report success if we are not verifying decoded keys, but if we *are*, we need to wait
         // until FEC encoding completes.
-        if(!checkDecodedKeys)
+        if(!checkDecodedKeys) {
+            synchronized(this) {
+                decoded = true;
+            }
             parent.finishedSuccess(this);
+        }
         triggerAllCrossSegmentCallbacks();
         parent.fecCodec.encode(dataBlocks, checkBlocks, checkBlocksPresent, CHKBlock.DATA_LENGTH);
         // Check these *after* we complete, to reduce the critical path.
@@ -520,6 +527,9 @@ public class SplitFileFetcherSegmentStorage {
                 parent.fail(new FetchException(FetchExceptionMode.SPLITFILE_DECODE_ERROR, "Encoded blocks do not match metadata"));
                 return;
             }
+            synchronized(this) {
+                decoded = true;
+            }
             parent.finishedSuccess(this);
         }
         queueHeal(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent);
@@ -919,21 +929,34 @@ public class SplitFileFetcherSegmentStorage {
     public synchronized boolean hasSucceeded() {
         return succeeded;
     }
+    
+    /** @return True if the data blocks can be written out: we have decoded them, or we had 
+     * already decoded them before a restart. Unlike hasSucceeded(), this waits for the decoded
+     * blocks to be checked against the keys when they are checked. */
+    synchronized boolean hasDecoded() {
+        return decoded || (succeeded && !tryDecode);
+    }
 
     /** Write content to an OutputStream. We already have raf.lock(). 
      * @throws IOException */
     void writeToInner(OutputStream os) throws IOException {
         // FIXME if we use readAllBlocks() we'll need to run on the memory limited queue???
         for(int i=0;i<dataBlocks;i++) { // Don't include cross-check blocks.
-            byte[] buf = readBlock(i);
-            if(i == dataBlocks-1 && this.segNo == parent.segments.length-1) {
-                int length = (int) (parent.finalLength % CHKBlock.DATA_LENGTH);
-                if(length == 0) length = CHKBlock.DATA_LENGTH;
-                os.write(buf, 0, length);
-            } else {
-                os.write(buf);
-            }
+            os.write(readDataBlock(i));
+        }
+    }
+
+    /** Read one of the decoded data blocks. The last block of the file is truncated to the 
+     * length of the data. We already have raf.lock().
+     * @throws IOException If an error occurred reading the data from disk. */
+    byte[] readDataBlock(int blockNo) throws IOException {
+        if(blockNo >= dataBlocks) throw new IllegalArgumentException();
+        byte[] buf = readBlock(blockNo);
+        if(blockNo == dataBlocks-1 && this.segNo == parent.segments.length-1) {
+            int length = (int) (parent.finalLength % CHKBlock.DATA_LENGTH);
+            if(length != 0) buf = Arrays.copyOf(buf, length);
         }
+        return buf;
     }
 
     /** Read a single block from a specific slot, which could be any block number. 
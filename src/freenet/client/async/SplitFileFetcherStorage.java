@@ -8,6 +8,7 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -52,6 +53,7 @@ import freenet.support.io.ArrayBucketFactory;
 import freenet.support.io.BucketTools;
 import freenet.support.io.FileRandomAccessBufferFactory;
 import freenet.support.io.NativeThread;
+import freenet.support.io.ResumeFailedException;
 import freenet.support.io.StorageFormatException;
 import freenet.support.math.MersenneTwister;
 
@@ -173,6 +175,18 @@ public class SplitFileFetcherStorage {
     private boolean finishedEncoding;
     private boolean cancelled;
     private boolean succeeded;
+    /** Set when we fail, so that a stream waiting for a segment to decode can give up. */
+    private boolean failing;
+    /** If true, fetch the segments in order, so the start of the file is available first. See
+     * FetchContext.fetchInOrder. Not persisted. */
+    final boolean fetchInOrder;
+    /** If true, the data can be read via progressiveData() before the download has finished. */
+    final boolean progressive;
+    /** Number of streams open on progressiveData(). close() waits for them to be closed. */
+    private int progressiveReaders;
+    /** Set when close() has been called. If there are progressive readers, the last one to
+     * finish closes the storage. */
+    private boolean closing;
     
     /** Errors. For now, this is not persisted (FIXME). */
     private FailureCodeTracker errors;
@@ -287,6 +301,10 @@ public class SplitFileFetcherStorage {
         this.checksumLength = checker.checksumLength();
         this.persistent = persistent;
         this.completeViaTruncation = (storageFile != null);
+        this.fetchInOrder = origFetchContext.fetchInOrder;
+        // The blocks on disk must be the final data, so we can hand them out as they are decoded.
+        this.progressive = fetchInOrder && isFinalFetch && !persistent && !completeViaTruncation &&
+            decompressors.isEmpty();
         if(decompressors.size() > 1) {
             Logger.error(this, "Multiple decompressors: "+decompressors.size()+" - this is almost certainly a bug", new Exception("debug"));
         }
@@ -634,6 +652,8 @@ public class SplitFileFetcherStorage {
         this.cooldownLength = origContext.getCooldownTime();
         this.errors = new FailureCodeTracker(false); // FIXME persist???
         this.completeViaTruncation = completeViaTruncation;
+        this.fetchInOrder = false;
+        this.progressive = false;
         // FIXME this is hideous! Rewrite the writing/parsing code here in a less ugly way. However, it works...
         rafLength = raf.size();
         if(raf.size() < 8 /* FIXME more! */)
@@ -1131,10 +1151,52 @@ public class SplitFileFetcherStorage {
      * @throws PersistenceDisabledException */
     public void finishedSuccess(SplitFileFetcherSegmentStorage segment) {
         if(logMINOR) Logger.minor(this, "finishedSuccess on "+this+" from "+segment+" for "+fetcher, new Exception("debug"));
+        synchronized(this) {
+            // Wake up the stream if it is waiting for this segment.
+            notifyAll();
+        }
+        if(progressive && segment.segNo == 0)
+            fetcher.onProgressiveData();
         if(!(completeViaTruncation || fetcher.wantBinaryBlob()))
             maybeComplete();
     }
     
+    /** Called when a segment has queued a decode. For a transient download, once every segment
+     * is decoding or decoded we don't need any more blocks, so we can succeed straight away and
+     * let the data flow out segment by segment as each one is decoded. This overlaps FEC decoding
+     * of the later segments with decompressing and filtering the earlier ones. We don't do this
+     * for persistent downloads because the stream would hold up checkpointing while it waits. The 
+     * cost is that if a decode fails due to data corruption we fail rather than refetching. */
+    void startedDecode() {
+        if(persistent || completeViaTruncation || fetcher.wantBinaryBlob()) return;
+        for(SplitFileFetcherSegmentStorage segment : segments) {
+            if(!(segment.hasSucceeded() || segment.isDecoding())) return;
+        }
+        synchronized(this) {
+            if(succeeded || cancelled || failing) return;
+        }
+        if(logMINOR) Logger.minor(this, "All segments decoding, streaming early for "+this);
+        callSuccessOffThread();
+    }
+    
+    /** Wait until a segment has been decoded, so we can write it to the stream.
+     * @param fetching If true, the segment may still be fetching, so wait for that too.
+     * @throws IOException If the segment could not be decoded, or the download has failed. */
+    private synchronized void waitForSegment(SplitFileFetcherSegmentStorage segment, boolean fetching) throws IOException {
+        while(true) {
+            if(cancelled || failing)
+                throw new IOException("Splitfile failed while streaming segment "+segment.segNo);
+            if(segment.hasDecoded()) return;
+            if(!(segment.isDecoding() || (fetching && !segment.hasFailed())))
+                throw new IOException("Segment "+segment.segNo+" failed to decode");
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Ignore.
+            }
+        }
+    }
+    
     private void maybeComplete() {
         if(allSucceeded()) {
             callSuccessOffThread();
@@ -1178,9 +1240,15 @@ public class SplitFileFetcherStorage {
                 LockableRandomAccessBuffer.RAFLock lock = raf.lockOpen();
                 try {
                     for(SplitFileFetcherSegmentStorage segment : segments) {
+                        // Later segments may still be decoding, see startedDecode().
+                        waitForSegment(segment, false);
                         segment.writeToInner(os);
                     }
                     os.close();
+                } catch (IOException e) {
+                    // Don't close the stream, the client must not think it has all the data.
+                    Logger.error(this, "Failed to write stream: "+e, e);
+                    throw e;
                 } catch (Throwable t) {
                     Logger.error(this, "Failed to write stream: "+t, t);
                 } finally {
@@ -1196,6 +1264,171 @@ public class SplitFileFetcherStorage {
         };
     }
 
+    /** Get the data while it is still being fetched, e.g. so media can be played before the whole
+     * file has been downloaded. Reads block until the segment they are in has been decoded, and
+     * throw if the download fails or is cancelled. Streams must be closed, as the storage will not
+     * be freed until they are. Only valid if progressive is true.
+     * @return A read-only bucket. Freeing it does nothing; opening a stream will fail once the 
+     * download has finished and the storage is being closed. */
+    public Bucket progressiveData() {
+        if(!progressive) throw new IllegalStateException();
+        return new ProgressiveBucket();
+    }
+
+    private class ProgressiveBucket implements Bucket {
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Read only");
+        }
+
+        @Override
+        public OutputStream getOutputStreamUnbuffered() throws IOException {
+            throw new IOException("Read only");
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            // Already reads a block at a time.
+            return getInputStreamUnbuffered();
+        }
+
+        @Override
+        public InputStream getInputStreamUnbuffered() throws IOException {
+            synchronized(SplitFileFetcherStorage.this) {
+                if(closing) throw new IOException("Download has finished");
+                progressiveReaders++;
+            }
+            try {
+                return new ProgressiveInputStream(raf.lockOpen());
+            } catch (IOException e) {
+                closedProgressiveReader();
+                throw e;
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "Progressive data for "+SplitFileFetcherStorage.this;
+        }
+
+        @Override
+        public long size() {
+            return finalLength;
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        @Override
+        public void setReadOnly() {
+            // Already read only.
+        }
+
+        @Override
+        public void free() {
+            // Owned by the storage.
+        }
+
+        @Override
+        public Bucket createShadow() {
+            return null;
+        }
+
+        @Override
+        public void onResume(ClientContext context) throws ResumeFailedException {
+            throw new UnsupportedOperationException(); // Not persistent.
+        }
+
+        @Override
+        public void storeTo(DataOutputStream dos) throws IOException {
+            throw new UnsupportedOperationException(); // Not persistent.
+        }
+
+    }
+
+    private void closedProgressiveReader() {
+        synchronized(this) {
+            progressiveReaders--;
+            if(!(closing && progressiveReaders == 0)) return;
+        }
+        // close() was called while we were reading.
+        close();
+    }
+
+    /** Reads the data a block at a time, waiting for each segment to be decoded. */
+    private class ProgressiveInputStream extends InputStream {
+
+        private final RAFLock lock;
+        private long offset;
+        /** The block containing offset, or null. */
+        private byte[] block;
+        private long blockOffset;
+        private boolean closed;
+
+        ProgressiveInputStream(RAFLock lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buf = new byte[1];
+            if(read(buf, 0, 1) < 0) return -1;
+            return buf[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if(closed) throw new IOException("Closed");
+            if(len == 0) return 0;
+            if(offset >= finalLength) return -1;
+            if(block == null || offset < blockOffset || offset >= blockOffset + block.length)
+                readBlock();
+            int start = (int) (offset - blockOffset);
+            len = Math.min(len, block.length - start);
+            System.arraycopy(block, start, buf, off, len);
+            offset += len;
+            return len;
+        }
+
+        private void readBlock() throws IOException {
+            long segmentOffset = 0;
+            for(SplitFileFetcherSegmentStorage segment : segments) {
+                long segmentLength = (long)segment.dataBlocks * CHKBlock.DATA_LENGTH;
+                if(offset < segmentOffset + segmentLength) {
+                    int blockNo = (int) ((offset - segmentOffset) / CHKBlock.DATA_LENGTH);
+                    waitForSegment(segment, true);
+                    block = segment.readDataBlock(blockNo);
+                    blockOffset = segmentOffset + (long)blockNo * CHKBlock.DATA_LENGTH;
+                    return;
+                }
+                segmentOffset += segmentLength;
+            }
+            throw new IOException("Offset "+offset+" is past the last segment");
+        }
+
+        @Override
+        public long skip(long n) {
+            if(n <= 0) return 0;
+            n = Math.min(n, finalLength - offset);
+            offset += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            synchronized(this) {
+                if(closed) return;
+                closed = true;
+            }
+            lock.unlock();
+            closedProgressiveReader();
+        }
+
+    }
+
     static final long LAZY_WRITE_METADATA_DELAY = TimeUnit.MINUTES.toMillis(5);
     
     private final PersistentJob writeMetadataJob = new PersistentJob() {
@@ -1312,6 +1545,10 @@ public class SplitFileFetcherStorage {
     /** Shutdown and free resources. CONCURRENCY: Caller is responsible for making sure this is 
      * not called on a MemoryLimitedJob thread. */
     void close() {
+        synchronized(this) {
+            closing = true;
+            if(progressiveReaders > 0) return;
+        }
         if(logMINOR) Logger.minor(this, "Finishing "+this+" for "+fetcher, new Exception("debug"));
         raf.close();
         raf.free();
@@ -1324,6 +1561,9 @@ public class SplitFileFetcherStorage {
      * finished. */
     void finishedEncoding(SplitFileFetcherSegmentStorage segment) {
         if(logMINOR) Logger.minor(this, "Successfully decoded "+segment+" for "+this+" for "+fetcher);
+        synchronized(this) {
+            notifyAll();
+        }
         if(!allFinished()) return;
         finishedEncoding();
     }
@@ -1357,6 +1597,7 @@ public class SplitFileFetcherStorage {
      */
     public void fail(final FetchException e) {
         if(logMINOR) Logger.minor(this, "Failing "+this+" with error "+e+" and codes "+errors);
+        setFailing();
         jobRunner.queueNormalOrDrop(new PersistentJob() {
             
             @Override
@@ -1376,8 +1617,14 @@ public class SplitFileFetcherStorage {
         fail(new FetchException(FetchExceptionMode.SPLITFILE_ERROR, errors));
     }
 
+    private synchronized void setFailing() {
+        failing = true;
+        notifyAll();
+    }
+
     public void failOnDiskError(final IOException e) {
         Logger.error(this, "Failing on disk error: "+e, e);
+        setFailing();
         jobRunner.queueNormalOrDrop(new PersistentJob() {
 
             @Override
@@ -1391,6 +1638,7 @@ public class SplitFileFetcherStorage {
 
     public void failOnDiskError(final ChecksumFailedException e) {
         Logger.error(this, "Failing on unrecoverable corrupt data: "+e, e);
+        setFailing();
         jobRunner.queueNormalOrDrop(new PersistentJob() {
 
             @Override
@@ -1494,6 +1742,17 @@ public class SplitFileFetcherStorage {
         synchronized(this) {
             if(finishedFetcher) return null;
         }
+        if(fetchInOrder) {
+            // Take keys from the first segment which has any left to fetch, so we work on a 
+            // sliding window at the start of the file rather than on the whole file at once.
+            for(SplitFileFetcherSegmentStorage segment : segments) {
+                int ret = segment.chooseRandomKey();
+                if (ret != -1) {
+                    return new MyKey(ret, segment.segNo, this);
+                }
+            }
+            return null;
+        }
         // Generally segments are fairly well balanced, so we can usually pick a random segment 
         // then a random key from it.
         // FIXME OPT SCALABILITY A simpler option might be just to have one SplitFileFetcherGet per
@@ -1515,6 +1774,7 @@ public class SplitFileFetcherStorage {
     void cancel() {
         synchronized(this) {
             cancelled = true;
+            notifyAll();
         }
         for(SplitFileFetcherSegmentStorage segment : segments)
             segment.cancel();
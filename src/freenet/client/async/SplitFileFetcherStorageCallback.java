@@ -24,6 +24,11 @@ public interface SplitFileFetcherStorageCallback {
      * storage and call close() here. */
     void onSuccess();
     
+    /** Called when the first segment has been decoded, if the data can be read before the whole
+     * file has been fetched. See SplitFileFetcherStorage.progressiveData(). LOCKING: Called on 
+     * the decode thread. */
+    void onProgressiveData();
+    
     /** Get the priority class of the request. Needed for e.g. FEC decoding scheduling. */
     short getPriorityClass();
 
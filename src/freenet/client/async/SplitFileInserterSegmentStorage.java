@@ -5,7 +5,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import freenet.client.FECCodec;
@@ -16,6 +18,7 @@ import freenet.crypt.ChecksumChecker;
 import freenet.crypt.ChecksumFailedException;
 import freenet.keys.CHKBlock;
 import freenet.keys.CHKEncodeException;
+import freenet.keys.CHKVerifyException;
 import freenet.keys.ClientCHK;
 import freenet.keys.ClientCHKBlock;
 import freenet.node.KeysFetchingLocally;
@@ -472,11 +475,55 @@ public class SplitFileInserterSegmentStorage {
         }
     }
 
-    /** Generate keys for each block and record them. 
+    /** Memory used by a thread encoding a block: the encrypted copy, plus the padded copy and 
+     * the buffers used by the cipher. */
+    private static final long ENCODE_THREAD_MEMORY = 3 * CHKBlock.DATA_LENGTH;
+
+    /** Generate keys for each block and record them. Encryption is split across the threads 
+     * the MemoryLimitedJobRunner can spare. If the parent keeps the encoded blocks, write them 
+     * too, so we don't need to encrypt them again when inserting them.
      * @throws IOException */
-    private void generateKeys(byte[][] dataBlocks, int offset) throws IOException {
+    private void generateKeys(final byte[][] dataBlocks, final int offset) throws IOException {
+        final ClientCHK[] keys = new ClientCHK[dataBlocks.length];
+        final boolean storeEncodedBlocks = parent.hasEncodedBlocks();
+        List<Runnable> tasks = new ArrayList<Runnable>(dataBlocks.length);
         for(int i=0;i<dataBlocks.length;i++) {
-            setKey(i + offset, encodeBlock(dataBlocks[i]).getClientKey());
+            final int blockNo = i;
+            tasks.add(new Runnable() {
+
+                @Override
+                public void run() {
+                    ClientCHKBlock block = encodeBlock(dataBlocks[blockNo]);
+                    keys[blockNo] = block.getClientKey();
+                    if(storeEncodedBlocks) {
+                        try {
+                            parent.writeSegmentEncodedBlock(segNo, blockNo + offset, block.getBlock());
+                        } catch (IOException e) {
+                            throw new EncodedBlockWriteException(e);
+                        }
+                    }
+                }
+                
+            });
+        }
+        try {
+            parent.memoryLimitedJobRunner.runParallel(tasks, ENCODE_THREAD_MEMORY);
+        } catch (EncodedBlockWriteException e) {
+            throw e.getCause();
+        }
+        for(int i=0;i<keys.length;i++)
+            setKey(i + offset, keys[i]);
+    }
+    
+    /** Wraps an IOException thrown by a block encoding task. */
+    private static class EncodedBlockWriteException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        EncodedBlockWriteException(IOException e) {
+            super(e);
+        }
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
         }
     }
 
@@ -519,10 +566,33 @@ public class SplitFileInserterSegmentStorage {
                 throw new IOException("Already inserted block "+blockNo+" for "+this+" for "+parent);
             }
         }
+        if(parent.hasEncodedBlocks() && isFinishedEncoding()) {
+            ClientCHKBlock block = readEncodedBlock(blockNo);
+            if(block != null) return block;
+        }
         byte[] buf = readBlock(blockNo);
         return encodeBlock(buf);
     }
 
+    /** Read a block encrypted and stored when the segment was encoded.
+     * @return The block, or null if it can't be used and must be encrypted again. */
+    private ClientCHKBlock readEncodedBlock(int blockNo) throws IOException {
+        byte[] headers = new byte[CHKBlock.TOTAL_HEADERS_LENGTH];
+        byte[] data = new byte[CHKBlock.DATA_LENGTH];
+        parent.readSegmentEncodedBlock(segNo, blockNo, headers, data);
+        try {
+            // Verifying is just a hash, much cheaper than encrypting, and the blocks aren't 
+            // checksummed on disk.
+            return new ClientCHKBlock(data, headers, readKey(blockNo), true);
+        } catch (MissingKeyException e) {
+            Logger.error(this, "Missing key for encoded block "+blockNo+" on "+this);
+            return null;
+        } catch (CHKVerifyException e) {
+            Logger.error(this, "Stored encoded block "+blockNo+" is corrupt on "+this+", encrypting it again");
+            return null;
+        }
+    }
+
     private byte[] readBlock(int blockNo) throws IOException {
         assert(blockNo >= 0 && blockNo < totalBlockCount);
         if(blockNo < dataBlockCount)
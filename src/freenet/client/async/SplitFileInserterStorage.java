@@ -31,6 +31,7 @@ import freenet.crypt.HashResult;
 import freenet.crypt.MasterSecret;
 import freenet.keys.CHKBlock;
 import freenet.keys.ClientCHK;
+import freenet.keys.KeyBlock;
 import freenet.node.KeysFetchingLocally;
 import freenet.support.HexUtil;
 import freenet.support.Logger;
@@ -218,6 +219,9 @@ public class SplitFileInserterStorage {
     private final long[] offsetSegmentStatus;
     private final long[] offsetCrossSegmentStatus;
     private final long[] offsetSegmentKeys;
+    /** If not null, we keep the encrypted blocks for each segment here once it has been 
+     * encoded, so we don't need to encrypt them again to insert them. */
+    private final long[] offsetSegmentEncodedBlocks;
 
     private final int overallStatusLength;
     
@@ -436,6 +440,10 @@ public class SplitFileInserterStorage {
         offsetSegmentCheckBlocks = new long[segments.length];
         
         offsetSegmentKeys = new long[segments.length];
+        if(ctx.cacheEncodedBlocks)
+            offsetSegmentEncodedBlocks = new long[segments.length];
+        else
+            offsetSegmentEncodedBlocks = null;
         if(persistent) {
             offsetSegmentStatus = new long[segments.length];
         } else {
@@ -527,6 +535,13 @@ public class SplitFileInserterStorage {
             offsetSegmentKeys[i] = ptr;
             ptr += segments[i].storedKeysLength();
         }
+        
+        if (offsetSegmentEncodedBlocks != null) {
+            for (int i = 0; i < segments.length; i++) {
+                offsetSegmentEncodedBlocks[i] = ptr;
+                ptr += (long)segments[i].totalBlockCount * ENCODED_BLOCK_LENGTH;
+            }
+        }
 
         rafLength = ptr;
         this.raf = rafFactory.makeRAF(ptr);
@@ -625,7 +640,7 @@ public class SplitFileInserterStorage {
         InputStream is = checker.checksumReaderWithLength(ois, new ArrayBucketFactory(), maxLength);
         dis = new DataInputStream(is);
         int version = dis.readInt();
-        if(version != VERSION)
+        if(version != VERSION && version != VERSION_ENCODED_BLOCKS)
             throw new StorageFormatException("Bad version");
         LockableRandomAccessBuffer rafOrig = BucketTools.restoreRAFFrom(dis, persistentFG, persistentFileTracker, masterKey);
         if(originalData == null) {
@@ -773,6 +788,13 @@ public class SplitFileInserterStorage {
         offsetSegmentKeys = new long[segmentCount];
         for(int i=0;i<segmentCount;i++)
             offsetSegmentKeys[i] = readOffset(dis, rafLength, "segment keys offset");
+        if(version == VERSION_ENCODED_BLOCKS) {
+            offsetSegmentEncodedBlocks = new long[segmentCount];
+            for(int i=0;i<segmentCount;i++)
+                offsetSegmentEncodedBlocks[i] = readOffset(dis, rafLength, "segment encoded blocks offset");
+        } else {
+            offsetSegmentEncodedBlocks = null;
+        }
         dis.close();
         // Set up segments...
         underlyingOffsetDataSegments = new long[segmentCount];
@@ -909,7 +931,8 @@ public class SplitFileInserterStorage {
             dos.writeInt(checker.getChecksumTypeID());
             OutputStream os = checker.checksumWriterWithLength(baos, new ArrayBucketFactory());
             dos = new DataOutputStream(os);
-            dos.writeInt(VERSION);
+            // Only use the new version if we need to, so older builds can still resume.
+            dos.writeInt(offsetSegmentEncodedBlocks == null ? VERSION : VERSION_ENCODED_BLOCKS);
             originalData.storeTo(dos);
             dos.writeInt(totalDataBlocks);
             dos.writeInt(totalCheckBlocks);
@@ -986,6 +1009,10 @@ public class SplitFileInserterStorage {
             }
             for(long l : offsetSegmentKeys)
                 dos.writeLong(l);
+            if(offsetSegmentEncodedBlocks != null) {
+                for(long l : offsetSegmentEncodedBlocks)
+                    dos.writeLong(l);
+            }
             dos.close();
             return baos.toByteArray();
         } catch (IOException e) {
@@ -1289,6 +1316,10 @@ public class SplitFileInserterStorage {
 
     static final long MAGIC = 0x4d2a3f596bbf5de5L;
     static final int VERSION = 1;
+    /** Same as VERSION but with the encoded blocks stored after the keys. */
+    static final int VERSION_ENCODED_BLOCKS = 2;
+    /** Length of an encoded block as stored: headers followed by data. */
+    static final int ENCODED_BLOCK_LENGTH = CHKBlock.TOTAL_HEADERS_LENGTH + CHKBlock.DATA_LENGTH;
 
     public boolean hasSplitfileKey() {
         return splitfileCryptoKey != null;
@@ -1373,6 +1404,31 @@ public class SplitFileInserterStorage {
         return buf;
     }
     
+    /** Do we keep the encrypted blocks? See InsertContext.cacheEncodedBlocks. */
+    boolean hasEncodedBlocks() {
+        return offsetSegmentEncodedBlocks != null;
+    }
+    
+    void writeSegmentEncodedBlock(int segNo, int blockNo, KeyBlock block) throws IOException {
+        assert (segNo >= 0 && segNo < segments.length);
+        assert (blockNo >= 0 && blockNo < segments[segNo].totalBlockCount);
+        byte[] headers = block.getRawHeaders();
+        byte[] data = block.getRawData();
+        assert (headers.length == CHKBlock.TOTAL_HEADERS_LENGTH);
+        assert (data.length == CHKBlock.DATA_LENGTH);
+        long offset = offsetSegmentEncodedBlocks[segNo] + (long)blockNo * ENCODED_BLOCK_LENGTH;
+        raf.pwrite(offset, headers, 0, headers.length);
+        raf.pwrite(offset + headers.length, data, 0, data.length);
+    }
+    
+    void readSegmentEncodedBlock(int segNo, int blockNo, byte[] headers, byte[] data) throws IOException {
+        assert (segNo >= 0 && segNo < segments.length);
+        assert (blockNo >= 0 && blockNo < segments[segNo].totalBlockCount);
+        long offset = offsetSegmentEncodedBlocks[segNo] + (long)blockNo * ENCODED_BLOCK_LENGTH;
+        raf.pread(offset, headers, 0, headers.length);
+        raf.pread(offset + headers.length, data, 0, data.length);
+    }
+    
     /** Encode the Metadata. The caller must ensure that all segments have encoded keys first.
      * @throws MissingKeyException This indicates disk corruption or a bug (e.g. not all segments
      * had encoded keys). Since we don't checksum the blocks, there isn't much point in trying to
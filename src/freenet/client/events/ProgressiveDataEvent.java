@@ -0,0 +1,29 @@
+package freenet.client.events;
+
+import freenet.support.api.Bucket;
+
+/** The data of a download which can be read before it has finished, e.g. so media can be played
+ * while it is still downloading. See FetchContext.fetchInOrder. The data is not filtered. Reads
+ * block until the data they need has been fetched and decoded, and fail if the download fails.
+ * Streams must be closed promptly. The bucket belongs to the download and must not be freed. */
+public class ProgressiveDataEvent implements ClientEvent {
+
+	public final Bucket data;
+
+	static final int CODE = 0x11;
+
+	public ProgressiveDataEvent(Bucket data) {
+		this.data = data;
+	}
+
+	@Override
+	public int getCode() {
+		return CODE;
+	}
+
+	@Override
+	public String getDescription() {
+		return "Progressive data: "+data.size()+" bytes";
+	}
+
+}
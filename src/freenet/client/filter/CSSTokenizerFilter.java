@@ -56,6 +56,13 @@ class CSSTokenizerFilter {
 		Logger.registerClass(CSSTokenizerFilter.class);
 	}
 
+	/** Characters parse() has to look at one at a time in each state. Anything else just goes
+	 * into the buffer (or is dropped, in a comment), so is copied a run at a time. */
+	private static final boolean[] STOPS_SELECTOR = CharWindowReader.stopChars("{,}\"'*");
+	private static final boolean[] STOPS_PROPERTY = CharWindowReader.stopChars(":;{}\"'*");
+	private static final boolean[] STOPS_QUOTE = CharWindowReader.stopChars("\"'\n\f\r");
+	private static final boolean[] STOPS_COMMENT = CharWindowReader.stopChars("/");
+
 	CSSTokenizerFilter(){
 		passedCharset = "UTF-8";
 		stopAtDetectedCharset = false;
@@ -1975,6 +1982,8 @@ class CSSTokenizerFilter {
 		char currentQuote='"';
 		int stateBeforeComment=0;
 		int currentState=1;
+		// The state the last character was handled in
+		int charState=0;
 		boolean isState1Present=false;
 		String elements[]=null;
 		StringBuilder filteredTokens=new StringBuilder();
@@ -2001,16 +2010,39 @@ class CSSTokenizerFilter {
 			currentState = STATE3;
 		}
 
+		// Most of what we parse is short inline styles, so start with a small window.
+		CharWindowReader in = new CharWindowReader(r, 128, CharWindowReader.DEFAULT_WINDOW_SIZE);
+
 		while(true)
 		{
-			try
-			{
-				x=r.read();
-			}
-			catch(IOException e)
-			{
-				throw e;
+			if(charState == currentState && !logDEBUG && !stopAtDetectedCharset) {
+				// Having handled a character in this state, we have done whatever entering it
+				// involves, so the rest of a run of ordinary characters can be copied in one go.
+				boolean[] stops = null;
+				switch(currentState) {
+				case STATE2:
+				case STATE2INQUOTE:
+				case STATE1INQUOTE:
+				case STATE3INQUOTE:
+					stops = currentState == STATE2 ? STOPS_SELECTOR : STOPS_QUOTE;
+					break;
+				case STATE3:
+					stops = STOPS_PROPERTY;
+					break;
+				case STATECOMMENT:
+					stops = STOPS_COMMENT;
+					break;
+				}
+				if(stops != null) {
+					int run = in.appendRun(currentState == STATECOMMENT ? null : buffer, stops);
+					if(run > 0) {
+						// prevc is only looked at after reading the next character.
+						c = in.lastChar(1);
+						continue;
+					}
+				}
 			}
+			x=in.read();
 
 			if(x==-1)
 			{
@@ -2047,6 +2079,7 @@ class CSSTokenizerFilter {
 			}
 			if(c == 0)
 				continue; // Strip nulls
+			charState = currentState;
 			switch(currentState)
 			{
 			case STATE1:
@@ -2328,8 +2361,7 @@ class CSSTokenizerFilter {
 					buffer.append(c);
 				if(!isState1Present)
 				{
-					String s = buffer.toString().trim();
-					if(!(s.equals("") || s.equals("/") || s.equals("<") || s.equals("<!") || s.equals("<!-") || s.equals("<!--")))
+					if(!maybeBeforeSelector(buffer))
 						currentState=STATE2;
 				}
 				if(logDEBUG) Logger.debug(this, "STATE1 default CASE: "+c);
@@ -2418,7 +2450,7 @@ class CSSTokenizerFilter {
 					}
 
 					openBraces++;
-					if(!buffer.toString().trim().equals(""))
+					if(!HTMLFilter.isBlank(buffer))
 					{
 						String filtered=recursiveSelectorVerifier(buffer.toString());
 						if(filtered!=null && !"".equals(filtered))
@@ -2501,7 +2533,7 @@ class CSSTokenizerFilter {
 					}
 
 
-					String filtered=recursiveSelectorVerifier(buffer.toString().trim());
+					String filtered=recursiveSelectorVerifier(trimFrom(buffer, 0));
 					if(logDEBUG) Logger.debug(this, "STATE2 CASE , filtered elements"+filtered);
 					if(filtered!=null && !"".equals(filtered))
 					{
@@ -2635,7 +2667,7 @@ class CSSTokenizerFilter {
 					}
 					if(logDEBUG) Logger.debug(this, "Appending whitespace: "+buffer.substring(0,i));
 					whitespaceBeforeProperty = buffer.substring(0, i);
-					propertyName=buffer.delete(0, i).toString().trim();
+					propertyName=trimFrom(buffer, i);
 					if(logDEBUG) Logger.debug(this, "Property name: "+propertyName);
 					buffer.setLength(0);
 					if(logDEBUG) Logger.debug(this, "STATE3 CASE :: "+c);
@@ -2663,7 +2695,7 @@ class CSSTokenizerFilter {
 					}
 					if(logDEBUG) Logger.debug(this, "Appending whitespace after colon: \""+buffer.substring(0,i)+"\"");
 					whitespaceAfterColon = buffer.substring(0, i);
-					propertyValue=buffer.delete(0, i).toString().trim();
+					propertyValue=trimFrom(buffer, i);
 					if(logDEBUG) Logger.debug(this, "Property value: "+propertyValue);
 					buffer.setLength(0);
 
@@ -2730,9 +2762,8 @@ class CSSTokenizerFilter {
 						}
 						if(logDEBUG) Logger.debug(this, "Appending whitespace after colon (}): "+buffer.substring(0,i));
 						whitespaceAfterColon = buffer.substring(0, i);
-						buffer.delete(0, i);
 
-						propertyValue=buffer.toString().trim();
+						propertyValue=trimFrom(buffer, i);
 						if(logDEBUG) Logger.debug(this, "Property value: "+propertyValue);
 						buffer.setLength(0);
 
@@ -2917,6 +2948,30 @@ class CSSTokenizerFilter {
 
 	}
 
+	/** Equivalent to buffer.substring(start).trim(), copying the characters once. */
+	static String trimFrom(StringBuilder buffer, int start) {
+		int end = buffer.length();
+		while(start < end && buffer.charAt(start) <= ' ') start++;
+		while(end > start && buffer.charAt(end-1) <= ' ') end--;
+		return buffer.substring(start, end);
+	}
+
+	/** @return True if the buffer, trimmed, is empty, "/" or the start of "&lt;!--", in which
+	 * case we don't know yet whether a selector has started. */
+	static boolean maybeBeforeSelector(StringBuilder buffer) {
+		int start = 0;
+		int end = buffer.length();
+		while(start < end && buffer.charAt(start) <= ' ') start++;
+		while(end > start && buffer.charAt(end-1) <= ' ') end--;
+		int length = end - start;
+		if(length == 1 && buffer.charAt(start) == '/') return true;
+		if(length > 4) return false;
+		for(int i=0;i<length;i++) {
+			if(buffer.charAt(start+i) != "<!--".charAt(i)) return false;
+		}
+		return true;
+	}
+
 	private String reconstruct(ParsedWord[] words) {
 		StringBuilder sb = new StringBuilder();
 		boolean first = true;
@@ -0,0 +1,154 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Unsynchronized character window over a {@link Reader}, used by the HTML and CSS tokenizers.
+ * <p>
+ * Both tokenizers consume their input one character at a time. Going through
+ * {@link java.io.BufferedReader#read()} costs a lock acquisition per character, so instead we
+ * pull the input in blocks into a private <code>char[]</code> and hand characters out of that.
+ * {@link #appendTextRun(StringBuilder, char)} and {@link #appendRun(StringBuilder, boolean[])}
+ * additionally let the caller copy a whole run of uninteresting characters in one go rather than
+ * looping over them.
+ * </p><p>
+ * Not thread-safe: each instance belongs to a single parse.
+ * </p>
+ */
+final class CharWindowReader {
+
+	/** Same granularity as the BufferedReader this replaces, so charset detection reads
+	 * exactly as far into the data as it used to. */
+	static final int DEFAULT_WINDOW_SIZE = 4096;
+
+	private final Reader in;
+	private char[] buf;
+	private final int maxSize;
+	/** Index of the next character to return */
+	private int pos;
+	/** Number of valid characters in buf */
+	private int limit;
+	private boolean eof;
+
+	CharWindowReader(Reader in) {
+		this(in, DEFAULT_WINDOW_SIZE, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param initialSize Size of the window to start with. It doubles, up to maxSize, each time
+	 * a refill fills it completely, so parsing a short string (e.g. an inline style attribute)
+	 * doesn't have to allocate a full size window.
+	 * @param maxSize Largest window to use.
+	 */
+	CharWindowReader(Reader in, int initialSize, int maxSize) {
+		if(initialSize < 4 || maxSize < initialSize)
+			throw new IllegalArgumentException("Bad window size: "+initialSize+" max "+maxSize);
+		this.in = in;
+		this.buf = new char[initialSize];
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Read a single character.
+	 * @return The character, or -1 at the end of the stream.
+	 */
+	int read() throws IOException {
+		if(pos == limit && !fill()) return -1;
+		return buf[pos++];
+	}
+
+	/**
+	 * Copy characters from the current window into <code>sb</code>, stopping before
+	 * <code>stop</code>, a null or a byte order mark, or at the end of the window. Never reads
+	 * from the underlying stream, so the caller must fall back to {@link #read()} when this
+	 * returns 0.
+	 * @return The number of characters consumed.
+	 */
+	int appendTextRun(StringBuilder sb, char stop) {
+		int start = pos;
+		int i = start;
+		int end = limit;
+		char[] b = buf;
+		while(i < end) {
+			char c = b[i];
+			if(c == stop || c == 0 || c == 0xFEFF) break;
+			i++;
+		}
+		int count = i - start;
+		if(count > 0) {
+			sb.append(b, start, count);
+			pos = i;
+		}
+		return count;
+	}
+
+	/**
+	 * Copy characters from the current window into <code>sb</code>, stopping before any ASCII
+	 * character flagged in <code>stops</code>, a null or a byte order mark, or at the end of the
+	 * window. Never reads from the underlying stream, so the caller must fall back to
+	 * {@link #read()} when this returns 0.
+	 * @param sb Where to append the characters, or null to skip them.
+	 * @param stops Indexed by character, 128 entries.
+	 * @return The number of characters consumed.
+	 */
+	int appendRun(StringBuilder sb, boolean[] stops) {
+		int start = pos;
+		int i = start;
+		int end = limit;
+		char[] b = buf;
+		while(i < end) {
+			char c = b[i];
+			if(c < 128 ? stops[c] : c == 0xFEFF) break;
+			i++;
+		}
+		int count = i - start;
+		if(count > 0) {
+			if(sb != null) sb.append(b, start, count);
+			pos = i;
+		}
+		return count;
+	}
+
+	/**
+	 * Build a table of stop characters for {@link #appendRun(StringBuilder, boolean[])}. Null
+	 * is always a stop character.
+	 */
+	static boolean[] stopChars(String chars) {
+		boolean[] stops = new boolean[128];
+		stops[0] = true;
+		for(int i=0;i<chars.length();i++)
+			stops[chars.charAt(i)] = true;
+		return stops;
+	}
+
+	/**
+	 * @param back How far back to look, 1 being the last character consumed. Only valid for
+	 * characters consumed since the last time the window was refilled, e.g. those just
+	 * returned by {@link #appendRun(StringBuilder, boolean[])}.
+	 */
+	char lastChar(int back) {
+		return buf[pos - back];
+	}
+
+	private boolean fill() throws IOException {
+		if(eof) return false;
+		if(limit == buf.length && buf.length < maxSize)
+			buf = new char[Math.min(buf.length * 2, maxSize)];
+		int read;
+		do {
+			read = in.read(buf, 0, buf.length);
+		} while(read == 0);
+		if(read < 0) {
+			eof = true;
+			return false;
+		}
+		pos = 0;
+		limit = read;
+		return true;
+	}
+
+}
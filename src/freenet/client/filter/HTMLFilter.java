@@ -76,12 +76,11 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		if(logMINOR) Logger.minor(this, "readFilter(): charset="+charset);
 		Reader r = null;
 		Writer w = null;
-		InputStreamReader isr = null;
 		OutputStreamWriter osw = null;
 		try {
-			isr = new InputStreamReader(input, charset);
+			// HTMLParseContext does its own buffering.
+			r = new InputStreamReader(input, charset);
 			osw = new OutputStreamWriter(output, charset);
-			r = new BufferedReader(isr, 4096);
 			w = new BufferedWriter(osw, 4096);
 		} catch(UnsupportedEncodingException e) {
 			throw UnknownCharsetException.create(e, charset);
@@ -102,7 +101,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		Writer w = new NullWriter();
 		Reader r;
 		try {
-			r = new BufferedReader(new InputStreamReader(strm, parseCharset), 4096);
+			r = new InputStreamReader(strm, parseCharset);
 		} catch (UnsupportedEncodingException e) {
 			strm.close();
 			throw e;
@@ -203,6 +202,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			char prevC = 0;
 			char c = 0;
 			mode = INTEXT;
+			CharWindowReader in = new CharWindowReader(r);
 
 			// No text before <html>
 			boolean textAllowed = false;
@@ -216,10 +216,30 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				// If detecting charset, and found it, stop afterwards.
 				if(onlyDetectingCharset && detectedCharset != null)
 					return;
+				if(mode == INTEXT) {
+					// Plain text is the bulk of most pages: copy it straight out of the window
+					// up to the next '<', rather than going round the loop for every character.
+					int run = in.appendTextRun(b, '<');
+					if(run > 0) {
+						if(run == 1) {
+							pprevC = prevC;
+							prevC = c;
+						} else if(run == 2) {
+							pprevC = c;
+							prevC = in.lastChar(2);
+						} else {
+							pprevC = in.lastChar(3);
+							prevC = in.lastChar(2);
+						}
+						c = in.lastChar(1);
+						firstChar = false;
+						continue;
+					}
+				}
 				int x;
 
 				try {
-					x = r.read();
+					x = in.read();
 				}
 				/**
 				 * libgcj up to at least 4.2.2 has a bug: InputStreamReader.refill() throws this exception when BufferedInputReader.refill() returns false for EOF. See:
@@ -240,7 +260,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 							if(textAllowed) {
 								saveText(b, currentTag, w, this);
 							} else {
-								if(!b.toString().trim().equals(""))
+								if(!isBlank(b))
 									throwFilterException(l10n("textBeforeHTML"));
 							}
 							break;
@@ -292,7 +312,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								if(textAllowed) {
 									saveText(b, currentTag, w, this);
 								} else {
-									if(!b.toString().trim().equals(""))
+									if(!isBlank(b))
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 								b.setLength(0);
@@ -314,7 +334,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								if(textAllowed) {
 									saveText(b, currentTag, w, this);
 								} else {
-									if(!b.toString().trim().equals(""))
+									if(!isBlank(b))
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 
@@ -452,7 +472,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								if(textAllowed) {
 									saveText(b, currentTag, w, this);
 								} else {
-									if(!b.toString().trim().equals(""))
+									if(!isBlank(b))
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 								balt.setLength(0);
@@ -523,6 +543,14 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 	}
 
 
+	/** Equivalent to s.toString().trim().isEmpty(), without copying. */
+	static boolean isBlank(CharSequence s) {
+		for(int i=0;i<s.length();i++) {
+			if(s.charAt(i) > ' ') return false;
+		}
+		return true;
+	}
+
 	void saveText(StringBuilder s, String tagName, Writer w, HTMLParseContext pc)
 		throws IOException {
 
@@ -76,7 +76,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	private final Bucket initialMetadata;
 
 	// Verbosity bitmasks
-	private static final int VERBOSITY_SPLITFILE_PROGRESS = 1;
+	static final int VERBOSITY_SPLITFILE_PROGRESS = 1;
 	private static final int VERBOSITY_SENT_TO_NETWORK = 2;
 	private static final int VERBOSITY_COMPATIBILITY_MODE = 4;
 	private static final int VERBOSITY_EXPECTED_HASHES = 8;
@@ -589,6 +589,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			        cache.updateStatus(identifier, (progressPending).getEvent());
 			    }
 			}
+			notifyProgress();
             if((verbosity & verbosityMask) == 0)
                 return;
 		} else if(ce instanceof SendingToNetworkEvent) {
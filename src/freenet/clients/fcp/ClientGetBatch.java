@@ -0,0 +1,111 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.support.Ticker;
+
+/**
+ * The requests started by a {@link ClientGetBatchMessage}, for sending the client a
+ * {@link ClientGetBatchProgressMessage} every so often. The counts are collected by looking at
+ * the requests when it is time to send one, so progress events cost nothing extra, and a message
+ * is only sent if something has changed.
+ *
+ * Not persistent: if the connection is closed or the node restarts, the progress messages stop,
+ * and the requests carry on like any others.
+ */
+class ClientGetBatch implements Runnable {
+
+	private final FCPConnectionHandler handler;
+	private final Ticker ticker;
+	private final String identifier;
+	private final boolean global;
+	private final long interval;
+	private final int total;
+	/** Synchronized on this. */
+	private final List<ClientGet> requests;
+	private int rejected;
+	private ClientGetBatchProgressMessage lastSent;
+
+	ClientGetBatch(FCPConnectionHandler handler, Ticker ticker, ClientGetBatchMessage message) {
+		this.handler = handler;
+		this.ticker = ticker;
+		this.identifier = message.identifier;
+		this.global = message.global;
+		this.interval = message.progressInterval;
+		this.total = message.gets.size() + message.invalid.size();
+		this.requests = new ArrayList<ClientGet>(message.gets.size());
+		this.rejected = message.invalid.size();
+	}
+
+	synchronized void add(ClientGet request) {
+		requests.add(request);
+	}
+
+	synchronized void rejected() {
+		rejected++;
+	}
+
+	/** Called once every request has been added or rejected. Sends the first progress message,
+	 * and schedules the rest. */
+	void allStarted() {
+		run();
+	}
+
+	@Override
+	public void run() {
+		if(handler.isClosed()) return;
+		ClientGetBatchProgressMessage progress = getProgress();
+		boolean send;
+		boolean finished;
+		synchronized(this) {
+			send = !progress.sameAs(lastSent);
+			if(send) lastSent = progress;
+			// If unchanged, the final message has already been sent.
+			finished = progress.isFinished();
+		}
+		if(send)
+			handler.send(progress);
+		if(!finished)
+			ticker.queueTimedJob(this, interval);
+	}
+
+	private ClientGetBatchProgressMessage getProgress() {
+		ClientGet[] reqs;
+		int rejected;
+		synchronized(this) {
+			reqs = requests.toArray(new ClientGet[requests.size()]);
+			rejected = this.rejected;
+		}
+		int succeeded = 0;
+		int failed = 0;
+		long totalBlocks = 0;
+		long requiredBlocks = 0;
+		long fetchedBlocks = 0;
+		long failedBlocks = 0;
+		long fatallyFailedBlocks = 0;
+		boolean finalizedTotal = true;
+		for(ClientGet req : reqs) {
+			if(req.hasFinished()) {
+				if(req.hasSucceeded())
+					succeeded++;
+				else
+					failed++;
+			} else if(!req.isTotalFinalized()) {
+				finalizedTotal = false;
+			}
+			totalBlocks += (long) req.getTotalBlocks();
+			requiredBlocks += (long) req.getMinBlocks();
+			fetchedBlocks += (long) req.getFetchedBlocks();
+			failedBlocks += (long) req.getFailedBlocks();
+			fatallyFailedBlocks += (long) req.getFatalyFailedBlocks();
+		}
+		return new ClientGetBatchProgressMessage(identifier, global, total, reqs.length, rejected,
+				succeeded, failed, totalBlocks, requiredBlocks, fetchedBlocks, failedBlocks,
+				fatallyFailedBlocks, finalizedTotal);
+	}
+
+}
@@ -0,0 +1,135 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Start many downloads at once. They are all registered and started in a single persistent job,
+ * and instead of per-request progress messages the client gets a periodic
+ * {@link ClientGetBatchProgressMessage} for the whole batch. Requests still report
+ * completion individually (DataFound, GetFailed, etc).
+ *
+ * Any field other than Identifier and ProgressInterval is a default for every request, and can
+ * be overridden per request, except for Persistence and Global, which apply to the whole batch.
+ * The progress bit of Verbosity is ignored, as progress is reported for the batch. Initial
+ * metadata is not supported.
+ *
+ * <pre>
+ * ClientGetBatch
+ * Identifier=Batch One // identifies the batch in progress messages
+ * ProgressInterval=10000 // milliseconds between progress messages, 0 for none
+ * Persistence=forever
+ * Global=true
+ * ReturnType=disk
+ * PriorityClass=4
+ * Get.0.URI=CHK@...
+ * Get.0.Identifier=Request Number One
+ * Get.0.Filename=/home/toad/one.txt
+ * Get.1.URI=KSK@sample.txt
+ * Get.1.Identifier=Request Number Two
+ * Get.1.Filename=/home/toad/two.txt
+ * Get.1.PriorityClass=2
+ * EndMessage
+ * </pre>
+ */
+public class ClientGetBatchMessage extends FCPMessage {
+
+	public final static String NAME = "ClientGetBatch";
+	static final long DEFAULT_PROGRESS_INTERVAL = 10 * 1000;
+	static final long MIN_PROGRESS_INTERVAL = 1000;
+
+	final String identifier;
+	final boolean global;
+	final Persistence persistence;
+	/** 0 means no progress messages. */
+	final long progressInterval;
+	final List<ClientGetMessage> gets;
+	/** Requests that could not be parsed, to be reported individually. */
+	final List<MessageInvalidException> invalid;
+
+	public ClientGetBatchMessage(SimpleFieldSet fs) throws MessageInvalidException {
+		identifier = fs.get("Identifier");
+		global = fs.getBoolean("Global", false);
+		if(identifier == null)
+			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "No Identifier", null, global);
+		persistence = Persistence.parseOrThrow(fs.get("Persistence"), identifier, global);
+		long interval = fs.getLong("ProgressInterval", DEFAULT_PROGRESS_INTERVAL);
+		if(interval < 0)
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "ProgressInterval must not be negative", identifier, global);
+		if(interval > 0 && interval < MIN_PROGRESS_INTERVAL)
+			interval = MIN_PROGRESS_INTERVAL;
+		progressInterval = interval;
+		SimpleFieldSet requests = fs.subset("Get");
+		if(requests == null)
+			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "Missing Get section", identifier, global);
+		SimpleFieldSet defaults = new SimpleFieldSet(fs);
+		defaults.removeSubset("Get");
+		defaults.removeValue("Identifier");
+		defaults.removeValue("ProgressInterval");
+		List<ClientGetMessage> gets = new ArrayList<ClientGetMessage>();
+		List<MessageInvalidException> invalid = new ArrayList<MessageInvalidException>();
+		for(int i=0;;i++) {
+			SimpleFieldSet subset = requests.subset(Integer.toString(i));
+			if(subset == null) break;
+			subset.removeValue("Persistence");
+			subset.removeValue("Global");
+			SimpleFieldSet merged = new SimpleFieldSet(defaults);
+			merged.putAllOverwrite(subset);
+			clearProgressVerbosity(merged);
+			try {
+				ClientGetMessage get = new ClientGetMessage(merged);
+				if(get.dataLength() != 0)
+					throw new MessageInvalidException(ProtocolErrorMessage.NOT_SUPPORTED, "Initial metadata is not supported in a batch", get.identifier, global);
+				gets.add(get);
+			} catch (MessageInvalidException e) {
+				invalid.add(e);
+			}
+		}
+		if(gets.isEmpty() && invalid.isEmpty())
+			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "Missing Get section", identifier, global);
+		this.gets = Collections.unmodifiableList(gets);
+		this.invalid = Collections.unmodifiableList(invalid);
+	}
+
+	private static void clearProgressVerbosity(SimpleFieldSet fs) {
+		String verbosity = fs.get("Verbosity");
+		if(verbosity == null) return;
+		try {
+			int value = Integer.parseInt(verbosity, 10) & ~ClientGet.VERBOSITY_SPLITFILE_PROGRESS;
+			fs.putOverwrite("Verbosity", Integer.toString(value));
+		} catch (NumberFormatException e) {
+			// ClientGetMessage will reject it.
+		}
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Global", global);
+		fs.putSingle("Persistence", persistence.toString().toLowerCase());
+		fs.put("ProgressInterval", progressInterval);
+		for(int i=0;i<gets.size();i++)
+			fs.put("Get."+i, gets.get(i).getFieldSet());
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) {
+		handler.startClientGetBatch(this);
+	}
+
+}
@@ -0,0 +1,100 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Progress of all the requests in a {@link ClientGetBatchMessage}, sent periodically while
+ * anything changes, and once more when they have all finished. Block counts are summed over the
+ * requests, like those in SimpleProgress.
+ */
+public class ClientGetBatchProgressMessage extends FCPMessage {
+
+	public final static String NAME = "ClientGetBatchProgress";
+
+	final String identifier;
+	final boolean global;
+	/** Number of requests in the batch. */
+	final int total;
+	/** Requests that were registered and started. */
+	final int started;
+	/** Requests that were invalid, collided with an existing identifier, or could not start. */
+	final int rejected;
+	final int succeeded;
+	final int failed;
+	final long totalBlocks;
+	final long requiredBlocks;
+	final long fetchedBlocks;
+	final long failedBlocks;
+	final long fatallyFailedBlocks;
+	/** True if every running request knows how many blocks it needs. */
+	final boolean finalizedTotal;
+
+	ClientGetBatchProgressMessage(String identifier, boolean global, int total, int started,
+			int rejected, int succeeded, int failed, long totalBlocks, long requiredBlocks,
+			long fetchedBlocks, long failedBlocks, long fatallyFailedBlocks, boolean finalizedTotal) {
+		this.identifier = identifier;
+		this.global = global;
+		this.total = total;
+		this.started = started;
+		this.rejected = rejected;
+		this.succeeded = succeeded;
+		this.failed = failed;
+		this.totalBlocks = totalBlocks;
+		this.requiredBlocks = requiredBlocks;
+		this.fetchedBlocks = fetchedBlocks;
+		this.failedBlocks = failedBlocks;
+		this.fatallyFailedBlocks = fatallyFailedBlocks;
+		this.finalizedTotal = finalizedTotal;
+	}
+
+	/** True if every request in the batch has been started or rejected, and has finished. */
+	boolean isFinished() {
+		return rejected + succeeded + failed == total;
+	}
+
+	/** True if there is nothing new to tell the client. */
+	boolean sameAs(ClientGetBatchProgressMessage other) {
+		return other != null && started == other.started && rejected == other.rejected &&
+				succeeded == other.succeeded && failed == other.failed &&
+				totalBlocks == other.totalBlocks && requiredBlocks == other.requiredBlocks &&
+				fetchedBlocks == other.fetchedBlocks && failedBlocks == other.failedBlocks &&
+				fatallyFailedBlocks == other.fatallyFailedBlocks &&
+				finalizedTotal == other.finalizedTotal;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Global", global);
+		fs.put("Total", total);
+		fs.put("Started", started);
+		fs.put("Rejected", rejected);
+		fs.put("Succeeded", succeeded);
+		fs.put("Failed", failed);
+		fs.put("Running", started - succeeded - failed);
+		fs.put("TotalBlocks", totalBlocks);
+		fs.put("RequiredBlocks", requiredBlocks);
+		fs.put("FetchedBlocks", fetchedBlocks);
+		fs.put("FailedBlocks", failedBlocks);
+		fs.put("FatallyFailedBlocks", fatallyFailedBlocks);
+		fs.put("FinalizedTotal", finalizedTotal);
+		fs.put("Finished", isFinished());
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME+" goes from server to client not the other way around", identifier, global);
+	}
+
+}
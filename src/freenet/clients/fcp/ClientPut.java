@@ -161,6 +161,7 @@ public class ClientPut extends ClientPutBase {
 		String salt = null;
 		byte[] saltedHash = null;
 		binaryBlob = message.binaryBlob;
+		ctx.cacheEncodedBlocks = message.cacheEncodedBlocks;
 		
 		if(message.uploadFromType == UploadFrom.DISK) {
 			if(!handler.server.core.allowUploadFrom(message.origFilename))
@@ -301,6 +301,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 					cache.updateStatus(identifier, (SplitfileProgressEvent)ce);
 				}
 			}
+			notifyProgress();
 		} else if(ce instanceof StartedCompressionEvent) {
 			if((verbosity & VERBOSITY_COMPRESSION_START_END) == VERBOSITY_COMPRESSION_START_END) {
 				StartedCompressionMessage msg =
@@ -33,6 +33,8 @@ import freenet.support.compress.InvalidCompressionCodecException;
  * ClientToken=<ClientToken as ClientPut>
  * Persistence=<Persistence as ClientPut>
  * Global=<Global as ClientPut>
+ * UnchangedFiles=<INSERT (default), SKIP or HEAL: what to do with files which the node has
+ *  inserted before with the same settings, see InsertContext.UnchangedFiles>
  */
 public abstract class ClientPutDirMessage extends BaseDataCarryingMessage {
 	// Some subtypes of this (ClientPutComplexDirMessage) may carry a payload.
@@ -60,6 +62,7 @@ public abstract class ClientPutDirMessage extends BaseDataCarryingMessage {
 	final boolean realTimeFlag;
 	final String targetFilename;
 	final boolean ignoreUSKDatehints;
+	final InsertContext.UnchangedFiles unchangedFiles;
 	
 	public ClientPutDirMessage(SimpleFieldSet fs) throws MessageInvalidException {
 		identifier = fs.get("Identifier");
@@ -172,6 +175,16 @@ public abstract class ClientPutDirMessage extends BaseDataCarryingMessage {
 		extraInsertsSplitfileHeaderBlock = fs.getInt("ExtraInsertsSplitfileHeaderBlock", HighLevelSimpleClientImpl.EXTRA_INSERTS_SPLITFILE_HEADER);
 		realTimeFlag = fs.getBoolean("RealTimeFlag", false);
 		ignoreUSKDatehints = fs.getBoolean("IgnoreUSKDatehints", false);
+		s = fs.get("UnchangedFiles");
+		if(s == null)
+			unchangedFiles = InsertContext.UnchangedFiles.INSERT;
+		else {
+			try {
+				unchangedFiles = InsertContext.UnchangedFiles.valueOf(s.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Invalid UnchangedFiles (must be INSERT, SKIP or HEAL)", identifier, global);
+			}
+		}
 	}
 
 	@Override
@@ -42,6 +42,9 @@ import freenet.support.io.FileBucket;
  * FileHash=021349568329403123
  * Data
  * 
+ * CacheEncodedBlocks=true // keep encrypted splitfile blocks on disk rather than 
+ *                          // encrypting them again to insert them (default false)
+ * 
  * Neither IgnoreDS nor DSOnly make sense for inserts.
  */
 public class ClientPutMessage extends DataCarryingMessage {
@@ -72,6 +75,7 @@ public class ClientPutMessage extends DataCarryingMessage {
 	/** Filename (hint for the final filename) */
 	final String targetFilename;
 	final boolean earlyEncode;
+	final boolean cacheEncodedBlocks;
 	final boolean binaryBlob;
 	final boolean canWriteClientCache;
 	final String compressorDescriptor;
@@ -240,6 +244,7 @@ public class ClientPutMessage extends DataCarryingMessage {
 		else
 			targetFilename = null;
 		earlyEncode = fs.getBoolean("EarlyEncode", false);
+		cacheEncodedBlocks = fs.getBoolean("CacheEncodedBlocks", false);
 		String codecs = fs.get("Codecs");
 		if (codecs != null) {
 			COMPRESSOR_TYPE[] ca;
@@ -256,6 +256,16 @@ public abstract class ClientRequest implements Serializable {
 			origHandler.finishedClientRequest(this);
 		else
 			client.finishedClientRequest(this);
+		notifyProgress();
+	}
+
+	/** Tell clients subscribed to progress (SubscribeProgress) that the request has changed. They
+	 * look at the counters later, so this is cheap. */
+	protected void notifyProgress() {
+		if(persistence == Persistence.CONNECTION)
+			origHandler.notifyProgress(this);
+		else if(client != null)
+			client.notifyProgress(this);
 	}
 
 	public abstract double getSuccessFraction();
@@ -414,6 +424,7 @@ public abstract class ClientRequest implements Serializable {
 	 * If the request is in the database, delete it.
 	 */
 	public void requestWasRemoved(ClientContext context) {
+		notifyProgress();
 		if(persistence != Persistence.FOREVER) return;
 	}
 
@@ -10,15 +10,24 @@ public class EndListPersistentRequestsMessage extends FCPMessage {
 
 	static final String name = "EndListPersistentRequests";
 	private final String listRequestIdentifier;
+	/** For a paged listing, the number of matching requests, otherwise -1. */
+	private final int total;
 
 	public EndListPersistentRequestsMessage(String listRequestIdentifier) {
+		this(listRequestIdentifier, -1);
+	}
+
+	public EndListPersistentRequestsMessage(String listRequestIdentifier, int total) {
 		this.listRequestIdentifier = listRequestIdentifier;
+		this.total = total;
 	}
 
 	@Override
 	public SimpleFieldSet getFieldSet() {
 		SimpleFieldSet simpleFieldSet = new SimpleFieldSet(true);
 		simpleFieldSet.putSingle("Identifier", listRequestIdentifier);
+		if(total >= 0)
+			simpleFieldSet.put("Total", total);
 		return simpleFieldSet;
 	}
 
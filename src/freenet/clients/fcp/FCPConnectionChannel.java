@@ -0,0 +1,324 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.BufferedChannelOutputStream;
+
+/**
+ * The non-blocking side of a multiplexed FCP connection (see {@link FCPSelector}). Incoming
+ * bytes are read by the selector into a buffer. When it holds a complete message header the
+ * {@link FCPConnectionInputHandler} is run on the executor, and takes headers from the buffer
+ * with {@link #takeHeader()} until there are no more complete ones. Attached data is read through
+ * {@link #getInputStream()}, which waits for the selector to read more.
+ *
+ * Back-pressure: the selector stops reading while the buffer is full and a message is being
+ * handled, so a client sending faster than we handle its messages fills its own socket buffer
+ * rather than our heap. A header that doesn't fit in {@link #MAX_HEADER_LENGTH} closes the
+ * connection.
+ *
+ * Output is written straight to the channel by the {@link FCPConnectionOutputHandler}; when the
+ * socket is full it waits for the selector to say it is writable again.
+ */
+class FCPConnectionChannel {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+	/** The blocking handler has no limit, and messages listing many requests can be big. The
+	 * buffer only grows this far if a client sends such a message. */
+	static final int MAX_HEADER_LENGTH = 16 * 1024 * 1024;
+
+	final SocketChannel channel;
+	private final FCPSelector selector;
+	/** Run on the executor when a complete header or EOF has arrived. */
+	private final Runnable inputHandler;
+	/** Bytes read but not yet consumed, from 0 to position(). Synchronized on this. */
+	private ByteBuffer in;
+	/** Looks for the end of the header at the start of in. */
+	private final HeaderScanner scanner = new HeaderScanner();
+	/** The other side has closed its end, or reading failed. */
+	private boolean eof;
+	/** The input handler is running, or has been scheduled. */
+	private boolean processing;
+	/** The output handler is waiting for the socket to become writable. */
+	private boolean waitingToWrite;
+
+	FCPConnectionChannel(SocketChannel channel, FCPSelector selector, Runnable inputHandler) {
+		this.channel = channel;
+		this.selector = selector;
+		this.inputHandler = inputHandler;
+		this.in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	}
+
+	/** Switch to non-blocking mode and start reading. The socket's streams can't be used after
+	 * this. */
+	void register() throws IOException {
+		channel.configureBlocking(false);
+		selector.update(this);
+	}
+
+	/** Called on the selector thread. */
+	synchronized int interestOps() {
+		int ops = 0;
+		if(!eof && (in.hasRemaining() || (!processing && in.capacity() < MAX_HEADER_LENGTH)))
+			ops |= SelectionKey.OP_READ;
+		if(waitingToWrite)
+			ops |= SelectionKey.OP_WRITE;
+		return ops;
+	}
+
+	/** Called on the selector thread when the channel is ready. */
+	void onSelected(int readyOps) {
+		boolean schedule = false;
+		synchronized(this) {
+			if((readyOps & SelectionKey.OP_WRITE) != 0 && waitingToWrite) {
+				waitingToWrite = false;
+				notifyAll();
+			}
+			if((readyOps & SelectionKey.OP_READ) != 0 && !eof) {
+				if(!in.hasRemaining()) {
+					if(in.capacity() >= MAX_HEADER_LENGTH) return;
+					ByteBuffer grown = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_HEADER_LENGTH));
+					in.flip();
+					grown.put(in);
+					in = grown;
+				}
+				try {
+					if(channel.read(in) < 0) eof = true;
+				} catch (IOException e) {
+					if(logMINOR) Logger.minor(this, "Caught "+e+" reading from "+this, e);
+					eof = true;
+				}
+				if(!processing && !eof && !in.hasRemaining() && in.capacity() >= MAX_HEADER_LENGTH
+						&& scanner.find(in.array(), in.position()) < 0) {
+					Logger.normal(this, "FCP message header too long from "+channel.socket().getRemoteSocketAddress()+", disconnecting");
+					eof = true;
+				}
+				// Wake up anyone reading attached data.
+				notifyAll();
+				if(!processing && (eof || scanner.find(in.array(), in.position()) >= 0)) {
+					processing = true;
+					schedule = true;
+				}
+			}
+		}
+		if(schedule)
+			selector.executor.execute(inputHandler, "FCP input handler for "+channel.socket().getRemoteSocketAddress());
+	}
+
+	/** Take the next complete message header from the buffer, including its end marker line.
+	 * @return The header, or null if there isn't a complete one yet. If the connection isn't
+	 * at EOF, the input handler must then return, and will be run again when there is one. */
+	synchronized byte[] takeHeader() {
+		boolean wasFull = !in.hasRemaining();
+		int end = scanner.find(in.array(), in.position());
+		if(end < 0) {
+			if(!eof) {
+				processing = false;
+				// May need to grow the buffer.
+				selector.update(this);
+			}
+			return null;
+		}
+		byte[] header = Arrays.copyOfRange(in.array(), scanner.nameStart(), end);
+		consume(end);
+		if(wasFull) selector.update(this);
+		return header;
+	}
+
+	/** True if the other side has closed the connection. Any remaining incomplete header is
+	 * ignored. */
+	synchronized boolean isEOF() {
+		return eof;
+	}
+
+	/** Drop the first length bytes of the buffer. */
+	private void consume(int length) {
+		in.flip();
+		in.position(length);
+		in.compact();
+		scanner.reset();
+	}
+
+	/** A blocking stream for reading data attached to a message, after its header has been
+	 * taken. Only valid while the input handler is running. */
+	InputStream getInputStream() {
+		return new InputStream() {
+
+			@Override
+			public int read() throws IOException {
+				byte[] buf = new byte[1];
+				int read = read(buf, 0, 1);
+				if(read <= 0) return -1;
+				return buf[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] buf, int offset, int length) throws IOException {
+				if(length == 0) return 0;
+				synchronized(FCPConnectionChannel.this) {
+					while(in.position() == 0) {
+						if(eof) return -1;
+						if(!channel.isOpen()) throw new IOException("Closed");
+						try {
+							FCPConnectionChannel.this.wait(1000);
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+					}
+					boolean wasFull = !in.hasRemaining();
+					int read = Math.min(length, in.position());
+					System.arraycopy(in.array(), 0, buf, offset, read);
+					consume(read);
+					if(wasFull) selector.update(FCPConnectionChannel.this);
+					return read;
+				}
+			}
+
+			@Override
+			public int available() {
+				synchronized(FCPConnectionChannel.this) {
+					return in.position();
+				}
+			}
+
+		};
+	}
+
+	/** Wait until the selector says the channel is writable. */
+	void awaitWritable() throws IOException {
+		synchronized(this) {
+			waitingToWrite = true;
+			selector.update(this);
+			while(waitingToWrite) {
+				if(!channel.isOpen()) throw new IOException("Closed");
+				try {
+					wait(1000);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+
+	/** A buffered stream writing to the non-blocking channel, for the output handler. */
+	OutputStream getOutputStream(int bufferSize) {
+		OutputStream os = new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] buf, int offset, int length) throws IOException {
+				ByteBuffer bb = ByteBuffer.wrap(buf, offset, length);
+				while(bb.hasRemaining()) {
+					if(channel.write(bb) == 0)
+						awaitWritable();
+				}
+			}
+
+		};
+		return new BufferedChannelOutputStream(os, channel, bufferSize) {
+
+			@Override
+			protected void awaitWritable() throws IOException {
+				FCPConnectionChannel.this.awaitWritable();
+			}
+
+		};
+	}
+
+	/** Finds the end of a message header: the message name, then any number of field, comment
+	 * or blank lines, then the end marker, which is any other line. This is the format
+	 * SimpleFieldSet reads. Blank lines before the name are skipped, as the blocking handler does.
+	 * Remembers how far it got, so each byte is only looked at once however many reads the header
+	 * takes to arrive. */
+	static class HeaderScanner {
+
+		/** Start of the line being scanned. */
+		private int lineStart;
+		/** Where to continue looking for a newline. */
+		private int searchFrom;
+		/** Start of the message name line, or -1 if not found yet. */
+		private int nameStart = -1;
+		/** The end of the header, or -1 if not found yet. */
+		private int headerEnd = -1;
+
+		/** @return The offset after the end marker's newline, or -1 if the header isn't complete.
+		 * @param buf The buffer, starting with the header, which must not change between calls
+		 * except by adding bytes at the end.
+		 * @param end The number of bytes in the buffer. */
+		int find(byte[] buf, int end) {
+			if(headerEnd >= 0) return headerEnd;
+			for(int i=searchFrom;i<end;i++) {
+				if(buf[i] != '\n') continue;
+				int start = lineStart;
+				lineStart = i + 1;
+				if(isBlank(buf, start, i)) continue;
+				if(nameStart < 0) {
+					nameStart = start;
+				} else if(buf[start] != '#' && indexOf(buf, (byte)'=', start, i) < 0) {
+					headerEnd = lineStart;
+					return headerEnd;
+				}
+			}
+			searchFrom = end;
+			return -1;
+		}
+
+		/** The start of the message name, once find() has found the end. */
+		int nameStart() {
+			return nameStart;
+		}
+
+		/** Start again, after bytes have been removed from the buffer. */
+		void reset() {
+			lineStart = 0;
+			searchFrom = 0;
+			nameStart = -1;
+			headerEnd = -1;
+		}
+
+	}
+
+	/** An empty line, possibly ending in a CR, which LineReadingInputStream strips. */
+	private static boolean isBlank(byte[] buf, int start, int lineEnd) {
+		return lineEnd == start || (lineEnd == start + 1 && buf[start] == '\r');
+	}
+
+	private static int indexOf(byte[] buf, byte b, int start, int end) {
+		for(int i=start;i<end;i++)
+			if(buf[i] == b) return i;
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+" for "+channel.socket().getRemoteSocketAddress();
+	}
+
+}
@@ -69,8 +69,12 @@ public class FCPConnectionHandler implements Closeable {
 
 	final FCPServer server;
 	final Socket sock;
+	/** Non-null if the connection is multiplexed by the server's {@link FCPSelector} rather than
+	 * having its own input and output threads. */
+	final FCPConnectionChannel channel;
 	final FCPConnectionInputHandler inputHandler;
 	final Map<String, SubscribeUSK> uskSubscriptions;
+	final Map<String, ProgressSubscription> progressSubscriptions;
 	public final FCPConnectionOutputHandler outputHandler;
 	private boolean isClosed;
 	private boolean inputClosed;
@@ -143,7 +147,12 @@ public class FCPConnectionHandler implements Closeable {
 		this.bf = server.core.tempBucketFactory;
 		requestsByIdentifier = new HashMap<String, ClientRequest>();
 		uskSubscriptions = new HashMap<String, SubscribeUSK>();
+		progressSubscriptions = new HashMap<String, ProgressSubscription>();
 		this.inputHandler = new FCPConnectionInputHandler(this);
+		if(s != null && s.getChannel() != null && server.selector != null)
+			this.channel = new FCPConnectionChannel(s.getChannel(), server.selector, inputHandler);
+		else
+			this.channel = null;
 		this.outputHandler = new FCPConnectionOutputHandler(this);
 		
 		byte[] identifier = new byte[16];
@@ -170,7 +179,7 @@ public class FCPConnectionHandler implements Closeable {
         outputHandler.queue(message);
     }
 
-	void start() {
+	void start() throws IOException {
 		inputHandler.start();
 		outputHandler.start();
 	}
@@ -184,6 +193,7 @@ public class FCPConnectionHandler implements Closeable {
 			foreverClient.onLostConnection(this);
 		boolean dupe;
 		SubscribeUSK[] uskSubscriptions2;
+		ProgressSubscription[] progressSubscriptions2;
 		synchronized(this) {
 			if(isClosed) {
 				// This is normal, both input and output handlers will call close().
@@ -194,12 +204,16 @@ public class FCPConnectionHandler implements Closeable {
 			requests = requestsByIdentifier.values().toArray(requests);
 			requestsByIdentifier.clear();
 			uskSubscriptions2 = uskSubscriptions.values().toArray(new SubscribeUSK[uskSubscriptions.size()]);
+			progressSubscriptions2 = progressSubscriptions.values().toArray(new ProgressSubscription[progressSubscriptions.size()]);
+			progressSubscriptions.clear();
 			dupe = killedDupe;
 		}
 		for(ClientRequest req : requests)
 			req.onLostConnection(server.core.clientContext);
 		for(SubscribeUSK sub : uskSubscriptions2)
 			sub.unsubscribe();
+		for(ProgressSubscription sub : progressSubscriptions2)
+			sub.unsubscribe();
 		if(!dupe) {
 		    try {
 		        server.core.clientContext.jobRunner.queue(new PersistentJob() {
@@ -387,6 +401,82 @@ public class FCPConnectionHandler implements Closeable {
 		}
 	}
 
+	/**
+	 * Start all the requests in a ClientGetBatch. Persistent ones are created, registered and
+	 * started in a single persistent job. Collisions and invalid requests are reported
+	 * individually, as for ClientGet.
+	 */
+	public void startClientGetBatch(final ClientGetBatchMessage message) {
+		synchronized(this) {
+			if(isClosed) return;
+		}
+		for(MessageInvalidException e : message.invalid)
+			outputHandler.queue(new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global));
+		final ClientGetBatch batch = message.progressInterval > 0 ?
+				new ClientGetBatch(this, server.core.clientContext.ticker, message) : null;
+		if(message.persistence == Persistence.FOREVER) {
+			try {
+				server.core.clientContext.jobRunner.queue(new PersistentJob() {
+
+					@Override
+					public boolean run(ClientContext context) {
+						startBatchedGets(message, batch, context);
+						return true;
+					}
+
+				}, NativeThread.HIGH_PRIORITY-1);
+			} catch (PersistenceDisabledException e) {
+				outputHandler.queue(new ProtocolErrorMessage(ProtocolErrorMessage.PERSISTENCE_DISABLED, false, "Persistence is disabled", message.identifier, message.global));
+			}
+		} else {
+			startBatchedGets(message, batch, server.core.clientContext);
+		}
+	}
+
+	private void startBatchedGets(ClientGetBatchMessage message, ClientGetBatch batch, ClientContext context) {
+		for(ClientGetMessage get : message.gets) {
+			ClientGet getter = startBatchedGet(get, context);
+			if(batch == null) continue;
+			if(getter != null)
+				batch.add(getter);
+			else
+				batch.rejected();
+		}
+		if(batch != null)
+			batch.allStarted();
+	}
+
+	/** Create, register and start one request from a batch. Unlike startClientGet(), doesn't tell
+	 * the client about the request when registering it, as it will hear about it when it starts.
+	 * @return The request, or null if it could not be started, in which case the client has been
+	 * told why. */
+	private ClientGet startBatchedGet(ClientGetMessage message, ClientContext context) {
+		ClientGet getter;
+		try {
+			if(message.persistence == Persistence.CONNECTION) {
+				synchronized(this) {
+					if(isClosed) return null;
+					if(requestsByIdentifier.containsKey(message.identifier))
+						throw new IdentifierCollisionException();
+					getter = new ClientGet(this, message, server.core);
+					requestsByIdentifier.put(message.identifier, getter);
+				}
+			} else {
+				getter = new ClientGet(this, message, server.core);
+				getter.register(true);
+			}
+		} catch (IdentifierCollisionException e) {
+			Logger.normal(this, "Identifier collision on "+this);
+			outputHandler.queue(new IdentifierCollisionMessage(message.identifier, message.global));
+			return null;
+		} catch (MessageInvalidException e) {
+			outputHandler.queue(new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global));
+			return null;
+		}
+		getter.start(context);
+		return getter;
+	}
+
 	public void startClientPut(final ClientPutMessage message) {
 		if(logMINOR)
 			Logger.minor(this, "Starting insert ID=\""+message.identifier+ '"');
@@ -907,6 +997,31 @@ public class FCPConnectionHandler implements Closeable {
 		sub.unsubscribe();
 	}
 
+	synchronized void addProgressSubscription(ProgressSubscription sub) throws IdentifierCollisionException {
+		if(progressSubscriptions.containsKey(sub.identifier)) throw new IdentifierCollisionException();
+		progressSubscriptions.put(sub.identifier, sub);
+	}
+
+	public void unsubscribeProgress(String identifier) throws MessageInvalidException {
+		ProgressSubscription sub;
+		synchronized(this) {
+			sub = progressSubscriptions.remove(identifier);
+			if(sub == null) throw new MessageInvalidException(ProtocolErrorMessage.NO_SUCH_IDENTIFIER, "No such identifier unsubscribing", identifier, false);
+		}
+		sub.unsubscribe();
+	}
+
+	/** One of the client's own requests, or one of the connection's, has made progress. */
+	void notifyProgress(ClientRequest req) {
+		ProgressSubscription[] subs;
+		synchronized(this) {
+			if(progressSubscriptions.isEmpty()) return;
+			subs = progressSubscriptions.values().toArray(new ProgressSubscription[progressSubscriptions.size()]);
+		}
+		for(ProgressSubscription sub : subs)
+			sub.changed(req);
+	}
+
 	public RequestClient connectionRequestClient(boolean realTime) {
 		if(realTime)
 			return connectionRequestClientRT;
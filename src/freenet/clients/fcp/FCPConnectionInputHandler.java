@@ -4,8 +4,10 @@
 package freenet.clients.fcp;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.tanukisoftware.wrapper.WrapperManager;
 
@@ -16,6 +18,8 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.io.Closer;
 import freenet.support.io.LineReadingInputStream;
 import freenet.support.io.TooLongException;
+import freenet.support.metrics.Histogram;
+import freenet.support.metrics.MetricsRegistry;
 
 public class FCPConnectionInputHandler implements Runnable {
 	private static volatile boolean logMINOR;
@@ -31,15 +35,36 @@ public class FCPConnectionInputHandler implements Runnable {
 		});
 	}
 
+	/** Time taken to handle each type of message, by message name. */
+	private static final ConcurrentHashMap<String, Histogram> runTimes = new ConcurrentHashMap<String, Histogram>();
+
+	private static Histogram runTime(String messageName) {
+		Histogram histogram = runTimes.get(messageName);
+		if(histogram == null) {
+			histogram = MetricsRegistry.getDefault().histogram("freenet_fcp_message_seconds", 
+					"Time taken to handle an FCP message from a client, not including reading any attached data", 
+					1e-9, "message", messageName);
+			runTimes.put(messageName, histogram);
+		}
+		return histogram;
+	}
+
 	final FCPConnectionHandler handler;
+	/** Only accessed by whichever thread is running this handler. */
+	private boolean firstMessage = true;
 
 	FCPConnectionInputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
 	}
 
-	void start() {
+	void start() throws IOException {
 		if (handler.sock == null)
 			return;
+		if (handler.channel != null) {
+			// The selector will run us when a message arrives.
+			handler.channel.register();
+			return;
+		}
 		handler.server.node.executor.execute(this, "FCP input handler for "+handler.sock.getRemoteSocketAddress());
 	}
 
@@ -47,7 +72,12 @@ public class FCPConnectionInputHandler implements Runnable {
 	public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
 		try {
-			realRun();
+			if(handler.channel != null) {
+				if(!realRunChannel())
+					return; // Wait for the next message.
+			} else {
+				realRun();
+			}
 		} catch (TooLongException e) {
 			Logger.normal(this, "Caught "+e.getMessage(), e);
 		} catch (IOException e) {
@@ -65,8 +95,6 @@ public class FCPConnectionInputHandler implements Runnable {
 		InputStream is = new BufferedInputStream(handler.sock.getInputStream(), 4096);
 		LineReadingInputStream lis = new LineReadingInputStream(is);
 
-		boolean firstMessage = true;
-
 		while(true) {
 			SimpleFieldSet fs;
 			if(WrapperManager.hasShutdownHookBeenTriggered()) {
@@ -85,69 +113,101 @@ public class FCPConnectionInputHandler implements Runnable {
 				continue;
 			fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
 
-			// check for valid endmarker
-			if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
-				handler.send(err);
-				continue;
+			if(!handleMessage(messageType, fs, lis)) {
+				Closer.close(is);
+				return;
 			}
+		}
+	}
 
-			FCPMessage msg;
-			try {
-				if(logDEBUG)
-					Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
-				msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
-				if(msg == null) continue;
-			} catch (MessageInvalidException e) {
-				if(firstMessage) {
-					FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
-					handler.send(err);
-					handler.close();
-					Closer.close(is);
-					return;
-				} else {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.send(err);
-				}
-				continue;
+	/** Handle messages already read by the selector, on a multiplexed connection.
+	 * @return True if the connection should be closed, false if there is no complete message
+	 * left and we will be run again when there is. */
+	private boolean realRunChannel() throws IOException {
+		FCPConnectionChannel channel = handler.channel;
+		while(true) {
+			if(WrapperManager.hasShutdownHookBeenTriggered()) {
+				FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
+				handler.send(msg);
+				return true;
 			}
-			if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+			byte[] header = channel.takeHeader();
+			if(header == null)
+				return channel.isEOF();
+			LineReadingInputStream lis = new LineReadingInputStream(new ByteArrayInputStream(header));
+			String messageType = lis.readLine(128, 128, true);
+			SimpleFieldSet fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
+			if(!handleMessage(messageType, fs, channel.getInputStream()))
+				return true;
+		}
+	}
+
+	/** Create and run a message.
+	 * @param data The stream to read any attached data from.
+	 * @return False if the connection should be closed. */
+	private boolean handleMessage(String messageType, SimpleFieldSet fs, InputStream data) throws IOException {
+		// check for valid endmarker
+		if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
+			handler.send(err);
+			return true;
+		}
+
+		FCPMessage msg;
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
+			msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
+			if(msg == null) return true;
+		} catch (MessageInvalidException e) {
+			if(firstMessage) {
 				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
 				handler.send(err);
 				handler.close();
-				Closer.close(is);
-				return;
-			}
-			if(msg instanceof BaseDataCarryingMessage) {
-				// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
-				try {
-					((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.server);
-				} catch (MessageInvalidException e) {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.send(err);
-					continue;
-				}
-			}
-			if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+				return false;
+			} else {
+				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.send(err);
-				continue;
 			}
+			return true;
+		}
+		if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
+			handler.send(err);
+			handler.close();
+			return false;
+		}
+		if(msg instanceof BaseDataCarryingMessage) {
+			// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
 			try {
-				if(logDEBUG)
-					Logger.debug(this, "Parsed message: "+msg+" for "+handler);
-				msg.run(handler, handler.server.node);
+				((BaseDataCarryingMessage)msg).readFrom(data, handler.bf, handler.server);
 			} catch (MessageInvalidException e) {
 				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.send(err);
-				continue;
+				return true;
 			}
-			firstMessage = false;
-			if(handler.isClosed()) {
-				Closer.close(is);
-				return;
+		}
+		if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+			handler.send(err);
+			return true;
+		}
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Parsed message: "+msg+" for "+handler);
+			long startTime = System.nanoTime();
+			try {
+				msg.run(handler, handler.server.node);
+			} finally {
+				runTime(msg.getName()).recordSince(startTime);
 			}
+		} catch (MessageInvalidException e) {
+			FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
+			handler.send(err);
+			return true;
 		}
+		firstMessage = false;
+		return !handler.isClosed();
 	}
 
 }
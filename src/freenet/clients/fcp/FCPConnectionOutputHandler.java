@@ -3,7 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.fcp;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayDeque;
@@ -13,6 +12,7 @@ import freenet.support.LogThresholdCallback;
 
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.io.BufferedChannelOutputStream;
 
 public class FCPConnectionOutputHandler implements Runnable {
 
@@ -20,6 +20,11 @@ public class FCPConnectionOutputHandler implements Runnable {
 	final Deque<FCPMessage> outQueue;
 	// Synced on outQueue
 	private boolean closedOutputQueue;
+	/** On a multiplexed connection, whether a job is running to write the queue. Synced on
+	 * outQueue. */
+	private boolean writerRunning;
+	/** On a multiplexed connection, the stream the writer jobs share. */
+	private final OutputStream channelStream;
 
         private static volatile boolean logMINOR;
         private static volatile boolean logDEBUG;
@@ -36,19 +41,26 @@ public class FCPConnectionOutputHandler implements Runnable {
 	public FCPConnectionOutputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
 		this.outQueue = new ArrayDeque<FCPMessage>();
+		this.channelStream = handler.channel == null ? null : handler.channel.getOutputStream(4096);
 	}
 
 	void start() {
 		if (handler.sock == null)
 			return;
+		if (handler.channel != null)
+			return; // Started by queue() when there is something to send.
 		handler.server.node.executor.execute(this, "FCP output handler for "+handler.sock.getRemoteSocketAddress()+ ':' +handler.sock.getPort());
 	}
 	
 	@Override
 	public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
+		boolean finished = true;
 		try {
-			realRun();
+			if(handler.channel != null)
+				finished = realRunChannel();
+			else
+				realRun();
 		} catch (IOException e) {
 			if(logMINOR)
 				Logger.minor(this, "Caught "+e, e);
@@ -58,16 +70,20 @@ public class FCPConnectionOutputHandler implements Runnable {
 			// Set the closed flag so that onClosed(), both on this thread and the input thread, doesn't wait forever.
 			// This happens in realRun() on a healthy exit, but we must do it here too to handle an exceptional exit.
 			// I.e. the other side closed the connection, and we threw an IOException.
-			synchronized(outQueue) {
-				closedOutputQueue = true;
+			if(finished) {
+				synchronized(outQueue) {
+					closedOutputQueue = true;
+				}
 			}
 		}
+		if(!finished) return;
 		handler.close();
 		handler.closedOutput();
 	}
  
 	private void realRun() throws IOException {
-		OutputStream os = new BufferedOutputStream(handler.sock.getOutputStream(), 4096);
+		// If the socket has a channel, data carrying messages can send files with transferTo().
+		OutputStream os = new BufferedChannelOutputStream(handler.sock.getOutputStream(), handler.sock.getChannel(), 4096);
 		while(true) {
 			boolean closed;
 			FCPMessage msg = null;
@@ -119,6 +135,50 @@ public class FCPConnectionOutputHandler implements Runnable {
 		}
 	}
 
+	/** Write the queue to a multiplexed connection, and return once it is empty, rather than
+	 * keeping a thread waiting for more messages.
+	 * @return True if the connection has been closed and so has the output. */
+	private boolean realRunChannel() throws IOException {
+		OutputStream os = channelStream;
+		while(true) {
+			FCPMessage msg;
+			synchronized(outQueue) {
+				msg = outQueue.pollFirst();
+			}
+			if(msg != null) {
+				if(logMINOR) Logger.minor(this, "Sending "+msg);
+				msg.send(os);
+				continue;
+			}
+			os.flush();
+			boolean closed = handler.isClosed();
+			synchronized(outQueue) {
+				if(!outQueue.isEmpty()) continue;
+				if(closed) {
+					closedOutputQueue = true;
+					outQueue.notifyAll();
+				} else {
+					writerRunning = false;
+					return false;
+				}
+			}
+			os.close();
+			return true;
+		}
+	}
+
+	/** On a multiplexed connection, start a writer job if there isn't one. Caller must hold the
+	 * lock on outQueue. */
+	private boolean needWriter() {
+		if(handler.channel == null || writerRunning) return false;
+		writerRunning = true;
+		return true;
+	}
+
+	private void startWriter() {
+		handler.server.node.executor.execute(this, "FCP output handler for "+handler.sock.getRemoteSocketAddress());
+	}
+
     /**
      * @deprecated
      *     Use {@link FCPConnectionHandler#send(FCPMessage)} instead of using public access to the
@@ -139,6 +199,7 @@ public class FCPConnectionOutputHandler implements Runnable {
 		if(msg == null) throw new NullPointerException();
 		boolean neverDropAMessage = handler.server.neverDropAMessage();
 		int MAX_QUEUE_LENGTH = handler.server.maxMessageQueueLength();
+		boolean startWriter;
 		synchronized(outQueue) {
 			if(closedOutputQueue) {
 				Logger.error(this, "Closed already: "+this+" queueing message "+msg);
@@ -155,10 +216,18 @@ public class FCPConnectionOutputHandler implements Runnable {
 			}
 			outQueue.add(msg);
 			outQueue.notifyAll();
+			startWriter = needWriter();
 		}
+		if(startWriter) startWriter();
 	}
 
 	public void onClosed() {
+		// A multiplexed connection needs a writer job to notice and close the output.
+		boolean startWriter;
+		synchronized(outQueue) {
+			startWriter = !closedOutputQueue && needWriter();
+		}
+		if(startWriter) startWriter();
 		synchronized(outQueue) {
 			outQueue.notifyAll();
 			// Give a chance to the output handler to flush
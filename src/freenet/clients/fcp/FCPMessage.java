@@ -77,6 +77,8 @@ public abstract class FCPMessage {
 			return new AddPeer(fs);
 		if(name.equals(ClientGetMessage.NAME))
 			return new ClientGetMessage(fs);
+		if(name.equals(ClientGetBatchMessage.NAME))
+			return new ClientGetBatchMessage(fs);
 		if(name.equals(ClientHelloMessage.NAME))
 			return new ClientHelloMessage(fs);
 		if(name.equals(ClientPutComplexDirMessage.NAME))
@@ -142,6 +144,10 @@ public abstract class FCPMessage {
 			return new WatchFeedsMessage(fs);
 		if(name.equals(UnsubscribeUSKMessage.NAME))
 			return new UnsubscribeUSKMessage(fs);
+		if(name.equals(SubscribeProgressMessage.NAME))
+			return new SubscribeProgressMessage(fs);
+		if(name.equals(UnsubscribeProgressMessage.NAME))
+			return new UnsubscribeProgressMessage(fs);
 		if(name.equals(TestDDARequestMessage.NAME))
 			return new TestDDARequestMessage(fs);
 		if(name.equals(TestDDAResponseMessage.NAME))
@@ -0,0 +1,124 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Watches all multiplexed FCP connections from one thread. Reads are done here, into each
+ * connection's buffer; once a whole message header has arrived the connection's
+ * {@link FCPConnectionInputHandler} is run on the executor to parse and run it. So an idle
+ * connection doesn't use a thread at all. Writes are done by the
+ * {@link FCPConnectionOutputHandler}, which only asks to be woken up here when the socket is
+ * full.
+ *
+ * Interest ops are only changed on this thread: other threads call {@link #update(
+ * FCPConnectionChannel)}, which queues the connection and wakes up the selector.
+ */
+class FCPSelector implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	final Executor executor;
+	private final Selector selector;
+	/** Connections to register or whose interest ops have changed. Synchronized on itself. */
+	private final ArrayDeque<FCPConnectionChannel> pending = new ArrayDeque<FCPConnectionChannel>();
+
+	FCPSelector(Executor executor) throws IOException {
+		this.executor = executor;
+		this.selector = Selector.open();
+	}
+
+	void start() {
+		executor.execute(this, "FCP selector");
+	}
+
+	/** Stop the selector thread. Connections are not closed. */
+	void close() throws IOException {
+		selector.close();
+	}
+
+	/** Register a new connection, or tell the selector that a connection's interest ops have
+	 * changed. */
+	void update(FCPConnectionChannel conn) {
+		synchronized(pending) {
+			pending.add(conn);
+		}
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+	    freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				selector.select();
+				processPending();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					FCPConnectionChannel conn = (FCPConnectionChannel) key.attachment();
+					try {
+						conn.onSelected(key.readyOps());
+						key.interestOps(conn.interestOps());
+					} catch (CancelledKeyException e) {
+						// Closed.
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				return;
+			} catch (IOException e) {
+				Logger.error(this, "Caught "+e, e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+			}
+		}
+	}
+
+	private void processPending() {
+		while(true) {
+			FCPConnectionChannel conn;
+			synchronized(pending) {
+				conn = pending.poll();
+			}
+			if(conn == null) return;
+			SelectionKey key = conn.channel.keyFor(selector);
+			try {
+				if(key == null) {
+					if(logMINOR) Logger.minor(this, "Registering "+conn);
+					conn.channel.register(selector, conn.interestOps(), conn);
+				} else {
+					key.interestOps(conn.interestOps());
+				}
+			} catch (ClosedChannelException e) {
+				// Closed already.
+			} catch (CancelledKeyException e) {
+				// Closed already.
+			}
+		}
+	}
+
+}
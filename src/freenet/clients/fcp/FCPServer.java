@@ -28,11 +28,17 @@ import freenet.client.async.PersistentJob;
 import freenet.clients.fcp.ClientGet.ReturnType;
 import freenet.clients.fcp.ClientRequest.Persistence;
 import freenet.clients.fcp.FCPPluginConnection.SendDirection;
+import freenet.clients.fcp.RequestStatusIndex.Category;
+import freenet.clients.fcp.RequestStatusIndex.Entry;
+import freenet.clients.fcp.RequestStatusIndex.Filter;
+import freenet.clients.fcp.RequestStatusIndex.SortBy;
 import freenet.config.Config;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
+import freenet.io.ChannelNetworkInterface;
 import freenet.io.NetworkInterface;
 import freenet.io.SSLNetworkInterface;
 import freenet.keys.FreenetURI;
@@ -68,6 +74,10 @@ public class FCPServer implements Runnable, DownloadCache {
 	final Node node;
 	final int port;
 	private static boolean ssl = false;
+	/** Serve connections from one selector thread instead of two threads each. */
+	private static boolean multiplexed = false;
+	/** Non-null if multiplexed connections are being served. */
+	FCPSelector selector;
 	public final boolean enabled;
 	String bindTo;
 	private String allowedHosts;
@@ -122,18 +132,42 @@ public class FCPServer implements Runnable, DownloadCache {
 		try {
 			if(ssl) {
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+			} else if(multiplexed && openSelector()) {
+				tempNetworkInterface = ChannelNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			} else {
 				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			}
 		} catch (IOException be) {
 			Logger.error(this, "Couldn't bind to FCP Port "+bindTo+ ':' +port+". FCP Server not started.", be);
 			System.out.println("Couldn't bind to FCP Port "+bindTo+ ':' +port+". FCP Server not started.");
+			if(selector != null) {
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// Ignore.
+				}
+				selector = null;
+			}
 		}
 
 		this.networkInterface = tempNetworkInterface;
 
 	}
 
+	/** @return True if we have a selector for multiplexed connections. If we can't open one, the
+	 * FCP server uses ordinary sockets with a thread each instead, as if multiplexed was off:
+	 * channel-backed sockets must not be used without a selector. */
+	private boolean openSelector() {
+		if(selector != null) return true;
+		try {
+			selector = new FCPSelector(node.executor);
+			return true;
+		} catch (IOException e) {
+			Logger.error(this, "Unable to open selector for FCP, not multiplexing connections: "+e, e);
+			return false;
+		}
+	}
+
 	public void maybeStart() {
 		if (this.enabled) {
 			maybeGetNetworkInterface();
@@ -142,6 +176,8 @@ public class FCPServer implements Runnable, DownloadCache {
 			System.out.println("Starting FCP server on "+bindTo+ ':' +port+ '.');
 
 			if (this.networkInterface != null) {
+				if (selector != null)
+					selector.start();
 				Thread t = new Thread(this, "FCP server");
 				t.setDaemon(true);
 				t.start();
@@ -264,6 +300,22 @@ public class FCPServer implements Runnable, DownloadCache {
 		}
 	}
 
+	static class FCPMultiplexedCallback extends BooleanCallback {
+
+		@Override
+		public Boolean get() {
+			return multiplexed;
+		}
+
+		@Override
+		public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+			if (get().equals(val))
+				return;
+			multiplexed = val;
+			throw new NodeNeedRestartException("fcp.multiplexed");
+		}
+	}
+
 	// FIXME: Consider moving everything except enabled into constructor
 	// Actually we could move enabled in too with an exception???
 
@@ -427,7 +479,8 @@ public class FCPServer implements Runnable, DownloadCache {
 		short sortOrder = 0;
 		fcpConfig.register("enabled", true, sortOrder++, true, false, "FcpServer.isEnabled", "FcpServer.isEnabledLong", new FCPEnabledCallback(core));
 		fcpConfig.register("ssl", false, sortOrder++, true, true, "FcpServer.ssl", "FcpServer.sslLong", new FCPSSLCallback());
-		fcpConfig.register("port", FCPServer.DEFAULT_FCP_PORT /* anagram of 1984, and 1000 up from old number */, 2, true, true, "FcpServer.portNumber", "FcpServer.portNumberLong", new FCPPortNumberCallback(core), false);
+		fcpConfig.register("multiplexed", false, sortOrder++, true, false, "FcpServer.multiplexed", "FcpServer.multiplexedLong", new FCPMultiplexedCallback());
+		fcpConfig.register("port", FCPServer.DEFAULT_FCP_PORT /* anagram of 1984, and 1000 up from old number */, sortOrder++, true, true, "FcpServer.portNumber", "FcpServer.portNumberLong", new FCPPortNumberCallback(core), false);
 		fcpConfig.register("bindTo", NetworkInterface.DEFAULT_BIND_TO, sortOrder++, true, true, "FcpServer.bindTo", "FcpServer.bindToLong", new FCPBindtoCallback(core));
 		fcpConfig.register("allowedHosts", NetworkInterface.DEFAULT_BIND_TO, sortOrder++, true, true, "FcpServer.allowedHosts", "FcpServer.allowedHostsLong", new FCPAllowedHostsCallback(core));
 		fcpConfig.register("allowedHostsFullAccess", NetworkInterface.DEFAULT_BIND_TO, sortOrder++, true, true, "FcpServer.allowedHostsFullAccess", "FcpServer.allowedHostsFullAccessLong", new FCPAllowedHostsFullAccessCallback(core));
@@ -444,6 +497,7 @@ public class FCPServer implements Runnable, DownloadCache {
 		if(SSL.available()) {
 			ssl = fcpConfig.getBoolean("ssl");
 		}
+		multiplexed = fcpConfig.getBoolean("multiplexed");
 
 		FCPServer fcp = new FCPServer(fcpConfig.getString("bindTo"), fcpConfig.getString("allowedHosts"), fcpConfig.getString("allowedHostsFullAccess"), fcpConfig.getInt("port"), node, core, fcpConfig.getBoolean("enabled"), fcpConfig.getBoolean("assumeDownloadDDAIsAllowed"), fcpConfig.getBoolean("assumeUploadDDAIsAllowed"), fcpConfig.getBoolean("neverDropAMessage"), fcpConfig.getInt("maxMessageQueueLength"), root);
 
@@ -623,6 +677,69 @@ public class FCPServer implements Runnable, DownloadCache {
 		return v.toArray(new RequestStatus[v.size()]);
 	}
 
+	/** @return The number of requests on the global queue in the given category. */
+	public int countGlobalRequests(Category category) throws PersistenceDisabledException {
+		if(core.killedDatabase()) throw new PersistenceDisabledException();
+		int count = globalRebootClient.getRequestStatusCache().count(category);
+		if(globalForeverClient != null)
+			count += globalForeverClient.getRequestStatusCache().count(category);
+		return count;
+	}
+
+	/** @return The total size of the requests on the global queue in the given category, where
+	 * known. */
+	public long getGlobalDataSize(Category category) throws PersistenceDisabledException {
+		if(core.killedDatabase()) throw new PersistenceDisabledException();
+		long size = globalRebootClient.getRequestStatusCache().getDataSize(category);
+		if(globalForeverClient != null)
+			size += globalForeverClient.getRequestStatusCache().getDataSize(category);
+		return size;
+	}
+
+	/** @return The most urgent priority class of any request on the global queue in the given
+	 * category, or -1 if there are none. */
+	public short getGlobalMostUrgentPriority(Category category) throws PersistenceDisabledException {
+		if(core.killedDatabase()) throw new PersistenceDisabledException();
+		short prio = globalRebootClient.getRequestStatusCache().getMostUrgentPriority(category);
+		if(globalForeverClient != null) {
+			short p = globalForeverClient.getRequestStatusCache().getMostUrgentPriority(category);
+			if(prio == -1 || (p != -1 && p < prio)) prio = p;
+		}
+		return prio;
+	}
+
+	/**
+	 * Get one page of the global queue, sorted, without copying the rest of it. Unlike
+	 * getGlobalRequests() this is cheap even on a queue with tens of thousands of requests.
+	 * @param filter If not null, only list matching requests.
+	 * @param offset The number of matching requests to skip.
+	 * @param limit The maximum number of requests to return.
+	 * @param out Copies of the requests on the page are added to this.
+	 * @return The total number of matching requests in the category.
+	 */
+	public int getGlobalRequests(Category category, SortBy sortBy, boolean reversed, Filter filter, int offset, int limit, List<RequestStatus> out) throws PersistenceDisabledException {
+		if(core.killedDatabase()) throw new PersistenceDisabledException();
+		RequestStatusCache rebootCache = globalRebootClient.getRequestStatusCache();
+		if(globalForeverClient == null)
+			return rebootCache.getPage(category, sortBy, reversed, filter, offset, limit, out);
+		RequestStatusCache foreverCache = globalForeverClient.getRequestStatusCache();
+		if(rebootCache.count(category) == 0)
+			return foreverCache.getPage(category, sortBy, reversed, filter, offset, limit, out);
+		// Both have requests in this category, so take the first offset + limit from each, merge,
+		// and only copy the requests on the page.
+		int end = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+		List<Entry> reboot = new ArrayList<Entry>();
+		List<Entry> forever = new ArrayList<Entry>();
+		int total = rebootCache.getEntries(category, sortBy, reversed, filter, 0, end, reboot);
+		total += foreverCache.getEntries(category, sortBy, reversed, filter, 0, end, forever);
+		List<Entry> page = new ArrayList<Entry>();
+		RequestStatusIndex.merge(reboot, forever, sortBy, reversed, offset, limit, page);
+		// The global queues are split by persistence, so this tells us which cache to lock.
+		for(Entry e : page)
+			out.add((e.status.isPersistentForever() ? foreverCache : rebootCache).copy(e));
+		return total;
+	}
+
 	public boolean removeGlobalRequestBlocking(final String identifier) throws MessageInvalidException, PersistenceDisabledException {
 		if(!globalRebootClient.removeByIdentifier(identifier, true, this, core.clientContext)) {
 			final CountDownLatch done = new CountDownLatch(1);
@@ -3,20 +3,97 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.fcp;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
 import freenet.client.async.ClientContext;
 import freenet.client.async.PersistenceDisabledException;
 import freenet.client.async.PersistentJob;
+import freenet.clients.fcp.RequestStatusIndex.Category;
+import freenet.clients.fcp.RequestStatusIndex.Filter;
+import freenet.clients.fcp.RequestStatusIndex.SortBy;
 import freenet.node.Node;
 import freenet.support.SimpleFieldSet;
 import freenet.support.io.NativeThread;
 
+/**
+ * List the client's persistent requests, and the global queue's if it is watching it.
+ *
+ * If MaxResults is given, instead list one page of the global queue, from its sorted index, so
+ * a client can show a large queue without fetching all of it. Optional fields are Offset (the
+ * number of requests to skip), SortBy (Priority, Identifier, Name, Progress, Size, LastActivity
+ * or LastFailure), Reversed, Category (e.g. DownloadRunning, see RequestStatusIndex.Category;
+ * default all, one after another) and Search (only list requests whose identifier, filename or
+ * URI contains it). The EndListPersistentRequests then includes Total, the number of matching
+ * requests.
+ */
 public class ListPersistentRequestsMessage extends FCPMessage {
 
 	static final String NAME = "ListPersistentRequests";
+	static final int MAX_RESULTS = 1000;
 	private final String identifier;
+	/** If true, list one page of the global queue, and the following fields are used. */
+	private final boolean paged;
+	private final int offset;
+	private final int maxResults;
+	private final SortBy sortBy;
+	private final boolean reversed;
+	/** Null to list all categories. */
+	private final Category category;
+	private final Filter filter;
 
-	public ListPersistentRequestsMessage(SimpleFieldSet fs) {
+	public ListPersistentRequestsMessage(SimpleFieldSet fs) throws MessageInvalidException {
 		identifier = fs.get("Identifier");
+		paged = fs.get("MaxResults") != null;
+		if(paged) {
+			maxResults = parseInt(fs, "MaxResults", 0);
+			if(maxResults < 1 || maxResults > MAX_RESULTS)
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "MaxResults must be between 1 and "+MAX_RESULTS, identifier, false);
+			offset = parseInt(fs, "Offset", 0);
+			if(offset < 0)
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Offset must not be negative", identifier, false);
+			String s = fs.get("SortBy");
+			try {
+				sortBy = s == null ? SortBy.PRIORITY : SortBy.valueOf(toEnumName(s));
+				s = fs.get("Category");
+				category = s == null ? null : Category.valueOf(toEnumName(s));
+			} catch (IllegalArgumentException e) {
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Unknown value "+s, identifier, false);
+			}
+			reversed = fs.getBoolean("Reversed", false);
+			String search = fs.get("Search");
+			filter = search == null || search.isEmpty() ? null : RequestStatusIndex.matching(search);
+		} else {
+			maxResults = 0;
+			offset = 0;
+			sortBy = null;
+			reversed = false;
+			category = null;
+			filter = null;
+		}
+	}
+
+	private int parseInt(SimpleFieldSet fs, String name, int defaultValue) throws MessageInvalidException {
+		String s = fs.get(name);
+		if(s == null) return defaultValue;
+		try {
+			return Integer.parseInt(s, 10);
+		} catch (NumberFormatException e) {
+			throw new MessageInvalidException(ProtocolErrorMessage.ERROR_PARSING_NUMBER, "Error parsing "+name+" field: "+e.getMessage(), identifier, false);
+		}
+	}
+
+	/** LastActivity -> LAST_ACTIVITY */
+	private static String toEnumName(String s) {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			if(i > 0 && Character.isUpperCase(c) && !Character.isUpperCase(s.charAt(i-1)))
+				sb.append('_');
+			sb.append(c);
+		}
+		return sb.toString().toUpperCase(Locale.ENGLISH);
 	}
 	
 	@Override
@@ -136,6 +213,11 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 	public void run(final FCPConnectionHandler handler, Node node)
 			throws MessageInvalidException {
 		
+		if(paged) {
+			runPaged(handler, node);
+			return;
+		}
+		
 		PersistentRequestClient rebootClient = handler.getRebootClient();
 
 		TransientListJob job = new TransientListJob(rebootClient, handler.outputHandler, node.clientCore.clientContext, identifier) {
@@ -207,4 +289,46 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 		job.run();
 	}
 
+	private void runPaged(final FCPConnectionHandler handler, Node node) {
+		final FCPServer server = handler.server;
+		final List<RequestStatus> page = new ArrayList<RequestStatus>();
+		final int total;
+		try {
+			total = getPage(server, page);
+			// Persistent requests can only be used on the database thread, so send the whole
+			// page from there to keep it in order.
+			node.clientCore.clientContext.jobRunner.queue(new PersistentJob() {
+
+				@Override
+				public boolean run(ClientContext context) {
+					for(RequestStatus status : page) {
+						PersistentRequestClient client = status.isPersistentForever() ?
+								server.globalForeverClient : server.globalRebootClient;
+						ClientRequest req = client.getRequest(status.getIdentifier());
+						// May have been removed since we got the page.
+						if(req != null)
+							req.sendPendingMessages(handler.outputHandler, identifier, false, false);
+					}
+					handler.outputHandler.queue(new EndListPersistentRequestsMessage(identifier, total));
+					return false;
+				}
+
+			}, NativeThread.HIGH_PRIORITY-1);
+		} catch (PersistenceDisabledException e) {
+			handler.send(new EndListPersistentRequestsMessage(identifier));
+		}
+	}
+
+	private int getPage(FCPServer server, List<RequestStatus> out) throws PersistenceDisabledException {
+		if(category != null)
+			return server.getGlobalRequests(category, sortBy, reversed, filter, offset, maxResults, out);
+		// All of them, one category after another.
+		int total = 0;
+		for(Category c : Category.values()) {
+			int skip = Math.max(0, offset - total);
+			total += server.getGlobalRequests(c, sortBy, reversed, filter, skip, maxResults - out.size(), out);
+		}
+		return total;
+	}
+
 }
@@ -75,6 +75,9 @@ public class PersistentRequestClient {
 	/** FCPClients watching us. Lazy init, sync on clientsWatchingLock */
 	private transient LinkedList<PersistentRequestClient> clientsWatching;
 	private final Object clientsWatchingLock = new Object();
+	/** Subscriptions to the progress of all our requests, from clients other than our own.
+	 * Only used on the global queue. Lazy init, sync on clientsWatchingLock */
+	private transient List<ProgressSubscription> progressSubscriptions;
 	private RequestClient lowLevelClient;
 	private RequestClient lowLevelClientRT;
 	private transient List<RequestCompletionCallback> completionCallbacks;
@@ -407,6 +410,38 @@ public class PersistentRequestClient {
 		}
 	}
 
+	void addProgressSubscription(ProgressSubscription sub) {
+		if(!isGlobalQueue) return;
+		synchronized(clientsWatchingLock) {
+			if(progressSubscriptions == null)
+				progressSubscriptions = new ArrayList<ProgressSubscription>();
+			progressSubscriptions.add(sub);
+		}
+	}
+
+	void removeProgressSubscription(ProgressSubscription sub) {
+		if(!isGlobalQueue) return;
+		synchronized(clientsWatchingLock) {
+			if(progressSubscriptions != null)
+				progressSubscriptions.remove(sub);
+		}
+	}
+
+	/** Tell anyone subscribed to progress that one of our requests has changed. */
+	void notifyProgress(ClientRequest req) {
+		FCPConnectionHandler conn = getConnection();
+		if(conn != null)
+			conn.notifyProgress(req);
+		if(!isGlobalQueue) return;
+		ProgressSubscription[] subs;
+		synchronized(clientsWatchingLock) {
+			if(progressSubscriptions == null || progressSubscriptions.isEmpty()) return;
+			subs = progressSubscriptions.toArray(new ProgressSubscription[progressSubscriptions.size()]);
+		}
+		for(ProgressSubscription sub : subs)
+			sub.changed(req);
+	}
+
 	public synchronized ClientRequest getRequest(String identifier) {
 		ClientRequest req = clientRequestsByIdentifier.get(identifier);
 		return req;
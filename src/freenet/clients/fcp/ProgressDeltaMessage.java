@@ -0,0 +1,141 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.Collections;
+import java.util.List;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Sent to a client that has sent a {@link SubscribeProgressMessage}. Lists the requests whose
+ * progress has changed since the last one, with only the fields that changed. The first time a
+ * request is listed, all its fields are included. Once a request is listed with Finished=true, it
+ * is not listed again unless it is restarted.
+ *
+ * <pre>
+ * ProgressDelta
+ * Identifier=monitor // the subscription
+ * Count=2
+ * Request.0.Identifier=Request Number One
+ * Request.0.Global=true
+ * Request.0.Succeeded=512
+ * Request.0.Failed=3
+ * Request.1.Identifier=Request Number Two
+ * Request.1.Global=false
+ * Request.1.Finished=true
+ * Request.1.Successful=true
+ * EndMessage
+ * </pre>
+ */
+public class ProgressDeltaMessage extends FCPMessage {
+
+	public static final String NAME = "ProgressDelta";
+
+	final String identifier;
+	final List<SimpleFieldSet> requests;
+
+	ProgressDeltaMessage(String identifier, List<SimpleFieldSet> requests) {
+		this.identifier = identifier;
+		this.requests = Collections.unmodifiableList(requests);
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Count", requests.size());
+		SimpleFieldSet list = new SimpleFieldSet(true);
+		for(int i=0;i<requests.size();i++)
+			list.put(Integer.toString(i), requests.get(i));
+		if(!requests.isEmpty())
+			fs.put("Request", list);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME+" goes from server to client not the other way around", identifier, false);
+	}
+
+	/** The progress of one request, as last sent to the client. */
+	static final class RequestProgress {
+
+		final String identifier;
+		final boolean global;
+		final int total;
+		final int required;
+		final int succeeded;
+		final int failed;
+		final int fatallyFailed;
+		final boolean finalizedTotal;
+		final boolean finished;
+		final boolean successful;
+
+		RequestProgress(String identifier, boolean global, int total, int required, int succeeded,
+				int failed, int fatallyFailed, boolean finalizedTotal, boolean finished, boolean successful) {
+			this.identifier = identifier;
+			this.global = global;
+			this.total = total;
+			this.required = required;
+			this.succeeded = succeeded;
+			this.failed = failed;
+			this.fatallyFailed = fatallyFailed;
+			this.finalizedTotal = finalizedTotal;
+			this.finished = finished;
+			this.successful = successful;
+		}
+
+		/**
+		 * @param prev What was last sent for this request, or null. Some requests forget their
+		 * block counts when they finish, so a finished request keeps the previous counts.
+		 */
+		static RequestProgress of(ClientRequest req, RequestProgress prev) {
+			boolean finished = req.hasFinished();
+			boolean successful = finished && req.hasSucceeded();
+			if(finished && prev != null)
+				return new RequestProgress(prev.identifier, prev.global, prev.total, prev.required,
+						prev.succeeded, prev.failed, prev.fatallyFailed, prev.finalizedTotal, true, successful);
+			return new RequestProgress(req.getIdentifier(), req.global, blocks(req.getTotalBlocks()),
+					blocks(req.getMinBlocks()), blocks(req.getFetchedBlocks()), blocks(req.getFailedBlocks()),
+					blocks(req.getFatalyFailedBlocks()), req.isTotalFinalized(), finished, successful);
+		}
+
+		/** The getters return -1 if there has been no progress yet. */
+		private static int blocks(double d) {
+			return d < 0 ? 0 : (int) d;
+		}
+
+		/**
+		 * The fields that have changed.
+		 * @param prev What was last sent for this request, or null to include everything.
+		 * @return Null if nothing has changed.
+		 */
+		SimpleFieldSet delta(RequestProgress prev) {
+			SimpleFieldSet fs = new SimpleFieldSet(true);
+			if(prev == null || total != prev.total) fs.put("Total", total);
+			if(prev == null || required != prev.required) fs.put("Required", required);
+			if(prev == null || succeeded != prev.succeeded) fs.put("Succeeded", succeeded);
+			if(prev == null || failed != prev.failed) fs.put("Failed", failed);
+			if(prev == null || fatallyFailed != prev.fatallyFailed) fs.put("FatallyFailed", fatallyFailed);
+			if(prev == null || finalizedTotal != prev.finalizedTotal) fs.put("FinalizedTotal", finalizedTotal);
+			if(prev == null || finished != prev.finished) {
+				fs.put("Finished", finished);
+				if(finished) fs.put("Successful", successful);
+			}
+			if(fs.isEmpty()) return null;
+			fs.putSingle("Identifier", identifier);
+			fs.put("Global", global);
+			return fs;
+		}
+
+	}
+
+}
@@ -0,0 +1,121 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import freenet.clients.fcp.ProgressDeltaMessage.RequestProgress;
+import freenet.support.SimpleFieldSet;
+import freenet.support.Ticker;
+
+/**
+ * A client's subscription to the progress of requests, see {@link SubscribeProgressMessage}.
+ * Requests only tell us that they have changed, which just adds them to a set. Their progress is
+ * looked at once per interval, compared with what the client was last told, and any differences
+ * are sent in a single {@link ProgressDeltaMessage}.
+ */
+class ProgressSubscription implements Runnable {
+
+	final String identifier;
+	final boolean global;
+	private final long interval;
+	private final FCPConnectionHandler handler;
+	private final Ticker ticker;
+	/** Requests that have changed since the last update. Synchronized on this. */
+	private final Set<ClientRequest> changed;
+	/** True if run() is queued or running. Synchronized on this. */
+	private boolean scheduled;
+	private boolean unsubscribed;
+	/** What the client was last told about each unfinished request. Only used by takeDelta(),
+	 * from run(), which never runs twice at once. */
+	private final Map<ClientRequest, RequestProgress> sent;
+
+	ProgressSubscription(SubscribeProgressMessage message, FCPConnectionHandler handler, Ticker ticker) {
+		this.identifier = message.identifier;
+		this.global = message.global;
+		this.interval = message.interval;
+		this.handler = handler;
+		this.ticker = ticker;
+		this.changed = new LinkedHashSet<ClientRequest>();
+		this.sent = new HashMap<ClientRequest, RequestProgress>();
+	}
+
+	void subscribe() throws IdentifierCollisionException {
+		handler.addProgressSubscription(this);
+		if(global) {
+			handler.server.globalRebootClient.addProgressSubscription(this);
+			if(handler.server.globalForeverClient != null)
+				handler.server.globalForeverClient.addProgressSubscription(this);
+		}
+	}
+
+	/** Called by the handler when it is closed or the client unsubscribes. */
+	void unsubscribe() {
+		synchronized(this) {
+			unsubscribed = true;
+			changed.clear();
+		}
+		if(global) {
+			handler.server.globalRebootClient.removeProgressSubscription(this);
+			if(handler.server.globalForeverClient != null)
+				handler.server.globalForeverClient.removeProgressSubscription(this);
+		}
+	}
+
+	/** A request's progress or status has changed. Cheap, so it can be called on every event. */
+	void changed(ClientRequest req) {
+		synchronized(this) {
+			if(unsubscribed) return;
+			changed.add(req);
+			if(scheduled) return;
+			scheduled = true;
+		}
+		ticker.queueTimedJob(this, interval);
+	}
+
+	@Override
+	public void run() {
+		ProgressDeltaMessage msg = takeDelta();
+		if(msg != null)
+			handler.send(msg);
+		boolean again;
+		synchronized(this) {
+			// Anything that changed while we were sending waits for the next interval.
+			again = !changed.isEmpty() && !unsubscribed;
+			scheduled = again;
+		}
+		if(again)
+			ticker.queueTimedJob(this, interval);
+	}
+
+	/** @return What has changed since the last call, or null if nothing has. */
+	ProgressDeltaMessage takeDelta() {
+		ClientRequest[] reqs;
+		synchronized(this) {
+			if(unsubscribed) return null;
+			reqs = changed.toArray(new ClientRequest[changed.size()]);
+			changed.clear();
+		}
+		List<SimpleFieldSet> deltas = new ArrayList<SimpleFieldSet>();
+		for(ClientRequest req : reqs) {
+			RequestProgress prev = sent.get(req);
+			RequestProgress progress = RequestProgress.of(req, prev);
+			if(progress.finished)
+				sent.remove(req);
+			else
+				sent.put(req, progress);
+			SimpleFieldSet delta = progress.delta(prev);
+			if(delta != null)
+				deltas.add(delta);
+		}
+		if(deltas.isEmpty()) return null;
+		return new ProgressDeltaMessage(identifier, deltas);
+	}
+
+}
@@ -130,6 +130,16 @@ public abstract class RequestStatus implements Cloneable {
 		return latestFailure != null ? (Date)latestFailure.clone() : null;
 	}
 
+	/** For sorting, without copying the Date. 0 if never. */
+	long getLastSuccessTime() {
+		return latestSuccess != null ? latestSuccess.getTime() : 0;
+	}
+
+	/** For sorting, without copying the Date. 0 if never. */
+	long getLastFailureTime() {
+		return latestFailure != null ? latestFailure.getTime() : 0;
+	}
+
 	/** Get the original URI for a fetch or the final URI for an insert. */
 	public abstract FreenetURI getURI();
 
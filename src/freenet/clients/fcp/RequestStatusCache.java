@@ -11,6 +11,10 @@ import freenet.client.InsertException.InsertExceptionMode;
 import freenet.client.async.CacheFetchResult;
 import freenet.client.events.SplitfileProgressEvent;
 import freenet.clients.fcp.ClientPut.COMPRESS_STATE;
+import freenet.clients.fcp.RequestStatusIndex.Category;
+import freenet.clients.fcp.RequestStatusIndex.Entry;
+import freenet.clients.fcp.RequestStatusIndex.Filter;
+import freenet.clients.fcp.RequestStatusIndex.SortBy;
 import freenet.keys.FreenetURI;
 import freenet.support.Logger;
 import freenet.support.MultiValueTable;
@@ -31,6 +35,7 @@ public class RequestStatusCache {
 	private final HashMap<String, RequestStatus> requestsByIdentifier;
 	private final MultiValueTable<FreenetURI, RequestStatus> downloadsByURI;
 	private final MultiValueTable<FreenetURI, RequestStatus> uploadsByFinalURI;
+	private final RequestStatusIndex index;
 	
 	RequestStatusCache() {
 		downloads = new ArrayList<RequestStatus>();
@@ -38,6 +43,7 @@ public class RequestStatusCache {
 		requestsByIdentifier = new HashMap<String, RequestStatus>();
 		downloadsByURI = new MultiValueTable<FreenetURI, RequestStatus>();
 		uploadsByFinalURI = new MultiValueTable<FreenetURI, RequestStatus>();
+		index = new RequestStatusIndex();
 	}
 	
 	synchronized void addDownload(DownloadRequestStatus status) {
@@ -45,10 +51,13 @@ public class RequestStatusCache {
 			requestsByIdentifier.put(status.getIdentifier(), status);
 		if(logMINOR) Logger.minor(this, "Starting download "+status.getIdentifier());
 		if(old == status) return;
-		if(old != null)
+		if(old != null) {
 		    downloads.remove(old);
+		    index.remove(old);
+		}
 		downloads.add(status);
 		downloadsByURI.put(status.getURI(), status);
+		index.update(status);
 	}
 	
 	synchronized void addUpload(UploadRequestStatus status) {
@@ -56,12 +65,15 @@ public class RequestStatusCache {
 			requestsByIdentifier.put(status.getIdentifier(), status);
 		if(old == status) return;
 		if(logMINOR) Logger.minor(this, "Starting upload "+status.getIdentifier());
-		if(old != null)
+		if(old != null) {
 		    uploads.remove(old);
+		    index.remove(old);
+		}
 		uploads.add(status);
 		FreenetURI uri = status.getURI();
 		if(uri != null)
 			uploadsByFinalURI.put(uri, status);
+		index.update(status);
 	}
 	
 	synchronized void finishedDownload(String identifier, boolean success, long dataSize, 
@@ -70,6 +82,7 @@ public class RequestStatusCache {
 		if(status == null) return; // Can happen during cancel etc.
 		status.setFinished(success, dataSize, mimeType, failureCode, failureReasonLong,
 				failureReasonShort, dataShadow, filtered);
+		index.update(status);
 	}
 	
 	synchronized void gotFinalURI(String identifier, FreenetURI finalURI) {
@@ -79,6 +92,7 @@ public class RequestStatusCache {
 			// No final URI set yet, put into the index.
 			uploadsByFinalURI.put(finalURI, status);
 		status.setFinalURI(finalURI);
+		index.update(status);
 	}
 	
 	synchronized void finishedUpload(String identifier, boolean success,  
@@ -90,12 +104,14 @@ public class RequestStatusCache {
 			// No final URI set yet, put into the index.
 			uploadsByFinalURI.put(finalURI, status);
 		status.setFinished(success, finalURI, failureCode, failureReasonShort, failureReasonLong);
+		index.update(status);
 	}
 	
 	synchronized void updateStatus(String identifier, SplitfileProgressEvent event) {
 		RequestStatus status = requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateStatus(event);
+		index.update(status);
 	}
 	
 	synchronized void updateDetectedCompatModes(String identifier, InsertContext.CompatibilityMode[] compatModes, byte[] splitfileKey, boolean dontCompress) {
@@ -108,6 +124,7 @@ public class RequestStatusCache {
 	synchronized void removeByIdentifier(String identifier) {
 		RequestStatus status = requestsByIdentifier.remove(identifier);
 		if(status == null) return;
+		index.remove(status);
 		if(status instanceof DownloadRequestStatus) {
 			downloads.remove(status);
 			FreenetURI uri = status.getURI();
@@ -127,6 +144,7 @@ public class RequestStatusCache {
 		requestsByIdentifier.clear();
 		downloadsByURI.clear();
 		uploadsByFinalURI.clear();
+		index.clear();
 	}
 
 	public void updateCompressionStatus(String identifier,
@@ -153,12 +171,14 @@ public class RequestStatusCache {
 		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateExpectedDataLength(expectedDataLength);
+		index.update(status);
 	}
 
-	public void setPriority(String identifier, short newPriorityClass) {
+	public synchronized void setPriority(String identifier, short newPriorityClass) {
 		RequestStatus status = requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.setPriority(newPriorityClass);
+		index.update(status);
 	}
 	
 	/** Restart a request. Caller should call ,false first, at which point we setStarted,
@@ -174,6 +194,7 @@ public class RequestStatusCache {
 		else
 			// Already restarted, just set started = true.
 			status.setStarted(started);
+		index.update(status);
 	}
 	
 	/** Restart a download. Caller should call ,false first, at which point we setStarted,
@@ -189,6 +210,43 @@ public class RequestStatusCache {
 			status.redirect(redirect);
 			downloadsByURI.put(redirect, status);
 		}
+		index.update(status);
+	}
+
+	/** @return The number of requests in the category. */
+	public synchronized int count(Category category) {
+		return index.count(category);
+	}
+
+	/** @return The total size of the requests in the category, where known. */
+	public synchronized long getDataSize(Category category) {
+		return index.getDataSize(category);
+	}
+
+	/** @return The most urgent priority class of any request in the category, or -1 if it is
+	 * empty. */
+	public synchronized short getMostUrgentPriority(Category category) {
+		return index.getMostUrgentPriority(category);
+	}
+
+	/** Add clones of one page of a category, in order, to a list, without copying or sorting
+	 * the rest of the category.
+	 * @see RequestStatusIndex#getPage(Category, SortBy, boolean, Filter, int, int, List)
+	 * @return The number of requests in the category which match the filter. */
+	public synchronized int getPage(Category category, SortBy sortBy, boolean reversed, Filter filter, int offset, int limit, List<RequestStatus> out) {
+		return index.getPage(category, sortBy, reversed, filter, offset, limit, out);
+	}
+
+	/** Like getPage(), but adds the index entries rather than clones of the requests, so the
+	 * pages of several caches can be merged before copying.
+	 * @see #copy(Entry) */
+	synchronized int getEntries(Category category, SortBy sortBy, boolean reversed, Filter filter, int offset, int limit, List<Entry> out) {
+		return index.getEntries(category, sortBy, reversed, filter, offset, limit, out);
+	}
+
+	/** @return A clone of the request an entry from getEntries() refers to. */
+	synchronized RequestStatus copy(Entry entry) {
+		return entry.status.clone();
 	}
 
 	public synchronized CacheFetchResult getShadowBucket(FreenetURI key, boolean noFilter) {
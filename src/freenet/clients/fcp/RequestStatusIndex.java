@@ -0,0 +1,348 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.keys.FreenetURI;
+import freenet.node.RequestStarter;
+import freenet.support.Fields;
+
+/**
+ * Sorted views of the requests in a RequestStatusCache, so that the queue page and FCP can show
+ * one page of a large queue without copying and sorting the whole thing. Requests are split into
+ * categories by type and state, and each category can be sorted several ways. A sorted view is
+ * only built the first time it is asked for, and from then on is kept up to date as requests
+ * change, so a page costs O(offset + count) rather than O(n log n).
+ *
+ * Each request is indexed by a snapshot of its sort keys, taken when it is added or updated, so
+ * the sorted sets stay consistent even though RequestStatus is mutable. Not thread-safe: the
+ * RequestStatusCache calls it with its own lock held, and must call update() after every change
+ * to a status.
+ */
+public class RequestStatusIndex {
+
+	public enum Category {
+		DOWNLOAD_RUNNING,
+		DOWNLOAD_FAILED,
+		/** Downloads which failed because the content filter didn't know or didn't accept the
+		 * MIME type. These can be fetched anyway, so the queue page lists them separately. */
+		DOWNLOAD_FAILED_MIME,
+		DOWNLOAD_SUCCEEDED_TO_TEMP,
+		DOWNLOAD_SUCCEEDED_TO_DISK,
+		UPLOAD_RUNNING,
+		UPLOAD_FAILED,
+		UPLOAD_SUCCEEDED,
+		DIR_UPLOAD_RUNNING,
+		DIR_UPLOAD_FAILED,
+		DIR_UPLOAD_SUCCEEDED;
+
+		static Category of(RequestStatus status) {
+			if(status instanceof DownloadRequestStatus) {
+				DownloadRequestStatus download = (DownloadRequestStatus) status;
+				if(download.hasSucceeded())
+					return download.toTempSpace() ? DOWNLOAD_SUCCEEDED_TO_TEMP : DOWNLOAD_SUCCEEDED_TO_DISK;
+				if(!download.hasFinished())
+					return DOWNLOAD_RUNNING;
+				FetchExceptionMode code = download.getFailureCode();
+				if(code == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME ||
+						code == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME)
+					return DOWNLOAD_FAILED_MIME;
+				return DOWNLOAD_FAILED;
+			} else if(status instanceof UploadDirRequestStatus) {
+				if(status.hasSucceeded()) return DIR_UPLOAD_SUCCEEDED;
+				return status.hasFinished() ? DIR_UPLOAD_FAILED : DIR_UPLOAD_RUNNING;
+			} else {
+				if(status.hasSucceeded()) return UPLOAD_SUCCEEDED;
+				return status.hasFinished() ? UPLOAD_FAILED : UPLOAD_RUNNING;
+			}
+		}
+	}
+
+	/** Sort orders. All of them fall back to the identifier, so the order is total. */
+	public enum SortBy {
+		/** Most urgent first, the default for the queue page. */
+		PRIORITY,
+		IDENTIFIER,
+		/** The preferred filename, ignoring case. */
+		NAME,
+		/** Least progress first; requests whose total size is known come after those where it
+		 * isn't. */
+		PROGRESS,
+		/** Total number of blocks. */
+		SIZE,
+		LAST_ACTIVITY,
+		LAST_FAILURE;
+
+		final Comparator<Entry> comparator = new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				if(a == b) return 0;
+				int result = 0;
+				switch(SortBy.this) {
+				case PRIORITY:
+					result = Fields.compare(a.priority, b.priority);
+					if(result == 0)
+						return a.identifier.compareTo(b.identifier);
+					return result;
+				case IDENTIFIER:
+					break;
+				case NAME:
+					result = a.name.compareTo(b.name);
+					break;
+				case PROGRESS:
+					if(a.finalized != b.finalized)
+						result = a.finalized ? 1 : -1;
+					else
+						result = Fields.compare(a.progress, b.progress);
+					break;
+				case SIZE:
+					result = Fields.compare(a.totalBlocks, b.totalBlocks);
+					break;
+				case LAST_ACTIVITY:
+					result = Fields.compare(a.lastSuccess, b.lastSuccess);
+					break;
+				case LAST_FAILURE:
+					result = Fields.compare(a.lastFailure, b.lastFailure);
+					break;
+				}
+				if(result != 0) return result;
+				result = a.identifier.compareToIgnoreCase(b.identifier);
+				if(result != 0) return result;
+				return a.identifier.compareTo(b.identifier);
+			}
+		};
+	}
+
+	/** Selects which requests in a category to list, e.g. to search the queue. Called with the
+	 * RequestStatusCache locked, on the live status, so must not keep a reference to it. */
+	public interface Filter {
+		boolean matches(RequestStatus status);
+	}
+
+	/** @return A filter matching requests whose identifier, preferred filename or URI contains
+	 * the given text, ignoring case. */
+	public static Filter matching(String text) {
+		final String search = text.toLowerCase(Locale.ENGLISH);
+		return new Filter() {
+
+			@Override
+			public boolean matches(RequestStatus status) {
+				if(status.getIdentifier().toLowerCase(Locale.ENGLISH).contains(search))
+					return true;
+				String name = status.getPreferredFilename();
+				if(name != null && name.toLowerCase(Locale.ENGLISH).contains(search))
+					return true;
+				FreenetURI uri = status.getURI();
+				return uri != null && uri.toString().toLowerCase(Locale.ENGLISH).contains(search);
+			}
+
+		};
+	}
+
+	/** The sort keys of a request when it was last indexed. */
+	static final class Entry {
+		final RequestStatus status;
+		final Category category;
+		final String identifier;
+		final short priority;
+		final String name;
+		final boolean finalized;
+		final double progress;
+		final int totalBlocks;
+		final long lastSuccess;
+		final long lastFailure;
+		final long dataSize;
+
+		Entry(RequestStatus status) {
+			this.status = status;
+			category = Category.of(status);
+			identifier = status.getIdentifier();
+			priority = status.getPriority();
+			String filename = status.getPreferredFilename();
+			name = filename == null ? "" : filename.toLowerCase(Locale.ENGLISH);
+			finalized = status.isTotalFinalized();
+			progress = ((double) status.getFetchedBlocks()) / ((double) status.getMinBlocks());
+			totalBlocks = status.getTotalBlocks();
+			lastSuccess = status.getLastSuccessTime();
+			lastFailure = status.getLastFailureTime();
+			dataSize = status.getDataSize();
+		}
+
+		boolean sameKeys(Entry e) {
+			return category == e.category && priority == e.priority && name.equals(e.name) &&
+				finalized == e.finalized && Fields.compare(progress, e.progress) == 0 &&
+				totalBlocks == e.totalBlocks && lastSuccess == e.lastSuccess &&
+				lastFailure == e.lastFailure && dataSize == e.dataSize;
+		}
+	}
+
+	private static final int CATEGORIES = Category.values().length;
+	private static final int SORTS = SortBy.values().length;
+
+	private final HashMap<RequestStatus, Entry> entries = new HashMap<RequestStatus, Entry>();
+	/** [category][sort order], null until first used. */
+	@SuppressWarnings("unchecked")
+	private final TreeSet<Entry>[][] sorted = (TreeSet<Entry>[][]) new TreeSet<?>[CATEGORIES][SORTS];
+	private final int[] counts = new int[CATEGORIES];
+	private final long[] dataSizes = new long[CATEGORIES];
+	private final int[][] countsByPriority = new int[CATEGORIES][RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+
+	/** Add a status, or re-index it after it has changed. */
+	void update(RequestStatus status) {
+		Entry entry = new Entry(status);
+		Entry old = entries.get(status);
+		if(old != null) {
+			if(old.sameKeys(entry)) return;
+			unindex(old);
+		}
+		entries.put(status, entry);
+		int c = entry.category.ordinal();
+		counts[c]++;
+		if(entry.dataSize > 0) dataSizes[c] += entry.dataSize;
+		countsByPriority[c][priorityIndex(entry.priority)]++;
+		for(TreeSet<Entry> set : sorted[c])
+			if(set != null) set.add(entry);
+	}
+
+	void remove(RequestStatus status) {
+		Entry old = entries.remove(status);
+		if(old != null) unindex(old);
+	}
+
+	private void unindex(Entry old) {
+		int c = old.category.ordinal();
+		counts[c]--;
+		if(old.dataSize > 0) dataSizes[c] -= old.dataSize;
+		countsByPriority[c][priorityIndex(old.priority)]--;
+		for(TreeSet<Entry> set : sorted[c])
+			if(set != null) set.remove(old);
+	}
+
+	private static int priorityIndex(short priority) {
+		return Math.max(RequestStarter.MAXIMUM_PRIORITY_CLASS,
+				Math.min(RequestStarter.PAUSED_PRIORITY_CLASS, priority));
+	}
+
+	void clear() {
+		entries.clear();
+		for(int i=0;i<CATEGORIES;i++) {
+			for(int j=0;j<SORTS;j++)
+				sorted[i][j] = null;
+			counts[i] = 0;
+			dataSizes[i] = 0;
+			for(int j=0;j<countsByPriority[i].length;j++)
+				countsByPriority[i][j] = 0;
+		}
+	}
+
+	int count(Category category) {
+		return counts[category.ordinal()];
+	}
+
+	/** @return The total size of the data, where known, for requests in the category. */
+	long getDataSize(Category category) {
+		return dataSizes[category.ordinal()];
+	}
+
+	/** @return The most urgent (lowest) priority class of any request in the category, or -1
+	 * if it is empty. */
+	short getMostUrgentPriority(Category category) {
+		int[] byPriority = countsByPriority[category.ordinal()];
+		for(short i=0;i<byPriority.length;i++)
+			if(byPriority[i] > 0) return i;
+		return -1;
+	}
+
+	private TreeSet<Entry> getSorted(Category category, SortBy sortBy) {
+		int c = category.ordinal();
+		TreeSet<Entry> set = sorted[c][sortBy.ordinal()];
+		if(set == null) {
+			set = new TreeSet<Entry>(sortBy.comparator);
+			for(Entry e : entries.values())
+				if(e.category == category) set.add(e);
+			sorted[c][sortBy.ordinal()] = set;
+		}
+		return set;
+	}
+
+	/**
+	 * Copy one page of a category, in order, to a list.
+	 * @param filter If not null, only list matching requests.
+	 * @param offset The number of matching requests to skip.
+	 * @param limit The maximum number of requests to add.
+	 * @param out Clones of the requests are added to this.
+	 * @return The total number of matching requests in the category.
+	 */
+	int getPage(Category category, SortBy sortBy, boolean reversed, Filter filter, int offset, int limit, List<RequestStatus> out) {
+		List<Entry> page = new ArrayList<Entry>();
+		int total = getEntries(category, sortBy, reversed, filter, offset, limit, page);
+		for(Entry e : page)
+			out.add(e.status.clone());
+		return total;
+	}
+
+	/**
+	 * Like getPage(), but adds the entries rather than clones of the requests, so pages from
+	 * several indexes can be merged before anything is copied. The entries refer to the live
+	 * statuses, so they must only be copied with the RequestStatusCache locked.
+	 */
+	int getEntries(Category category, SortBy sortBy, boolean reversed, Filter filter, int offset, int limit, List<Entry> out) {
+		NavigableSet<Entry> set = getSorted(category, sortBy);
+		if(reversed) set = set.descendingSet();
+		if(filter == null) {
+			Iterator<Entry> it = set.iterator();
+			// FIXME skipping could be O(log n) with an order statistic tree.
+			for(int i=0;i<offset && it.hasNext();i++) it.next();
+			for(int i=0;i<limit && it.hasNext();i++)
+				out.add(it.next());
+			return set.size();
+		}
+		int matched = 0;
+		for(Entry e : set) {
+			if(!filter.matches(e.status)) continue;
+			if(matched >= offset && matched - offset < limit)
+				out.add(e);
+			matched++;
+		}
+		return matched;
+	}
+
+	/** Merge the first offset + limit of two pages sorted the same way, as returned by
+	 * getEntries() from two indexes, and add the requested page of the result to out. Compares
+	 * the snapshots taken when the requests were indexed, so nothing is copied. */
+	static void merge(List<Entry> first, List<Entry> second, SortBy sortBy, boolean reversed, int offset, int limit, List<Entry> out) {
+		int i = 0, j = 0;
+		for(long n=0;n<(long)offset+limit;n++) {
+			Entry a = i < first.size() ? first.get(i) : null;
+			Entry b = j < second.size() ? second.get(j) : null;
+			if(a == null && b == null) return;
+			int cmp;
+			if(a == null) cmp = 1;
+			else if(b == null) cmp = -1;
+			else {
+				cmp = sortBy.comparator.compare(a, b);
+				if(reversed) cmp = -cmp;
+			}
+			Entry next;
+			if(cmp <= 0) {
+				next = a;
+				i++;
+			} else {
+				next = b;
+				j++;
+			}
+			if(n >= offset) out.add(next);
+		}
+	}
+
+}
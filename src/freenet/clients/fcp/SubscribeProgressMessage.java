@@ -0,0 +1,71 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Sent by a client to be told about the progress of its requests by {@link ProgressDeltaMessage}s,
+ * rather than a SimpleProgress for every event on every request. Changes are collected for
+ * Interval milliseconds and sent together, with only the fields that changed, so a client watching
+ * many requests gets at most one message per interval, and none while nothing is happening.
+ * Cancelled with UnsubscribeProgress, or by closing the connection.
+ *
+ * SubscribeProgress
+ * Identifier=monitor
+ * Interval=5000 // optional, minimum milliseconds between ProgressDelta messages
+ * Global=true // optional, include the global queue as well as the client's own requests
+ * EndMessage
+ */
+public class SubscribeProgressMessage extends FCPMessage {
+
+	public static final String NAME = "SubscribeProgress";
+	static final long DEFAULT_INTERVAL = 5 * 1000;
+	static final long MIN_INTERVAL = 1000;
+
+	final String identifier;
+	final long interval;
+	final boolean global;
+
+	public SubscribeProgressMessage(SimpleFieldSet fs) throws MessageInvalidException {
+		identifier = fs.get("Identifier");
+		if(identifier == null)
+			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "No Identifier!", null, false);
+		String s = fs.get("Interval");
+		if(s != null) {
+			try {
+				interval = Math.max(MIN_INTERVAL, Long.parseLong(s));
+			} catch (NumberFormatException e) {
+				throw new MessageInvalidException(ProtocolErrorMessage.ERROR_PARSING_NUMBER, e.toString(), identifier, false);
+			}
+		} else
+			interval = DEFAULT_INTERVAL;
+		global = fs.getBoolean("Global", false);
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Interval", interval);
+		fs.put("Global", global);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		try {
+			new ProgressSubscription(this, handler, node.clientCore.clientContext.ticker).subscribe();
+		} catch (IdentifierCollisionException e) {
+			handler.send(new IdentifierCollisionMessage(identifier, false));
+		}
+	}
+
+}
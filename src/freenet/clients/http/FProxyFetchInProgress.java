@@ -26,10 +26,13 @@ import freenet.client.events.ClientEvent;
 import freenet.client.events.ClientEventListener;
 import freenet.client.events.ExpectedFileSizeEvent;
 import freenet.client.events.ExpectedMIMEEvent;
+import freenet.client.events.ProgressiveDataEvent;
 import freenet.client.events.SendingToNetworkEvent;
 import freenet.client.events.SplitfileProgressEvent;
 import freenet.client.filter.ContentFilter;
 import freenet.client.filter.FilterMIMEType;
+import freenet.client.filter.MP3Filter;
+import freenet.client.filter.OggFilter;
 import freenet.client.filter.UnknownContentTypeException;
 import freenet.keys.FreenetURI;
 import freenet.keys.USK;
@@ -83,6 +86,8 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	private final List<FProxyFetchListener> listener=Collections.synchronizedList(new ArrayList<FProxyFetchListener>());
 	/** The data, if we have it */
 	private Bucket data;
+	/** The unfiltered data while it is still downloading, if it is media we can stream. */
+	private Bucket progressiveData;
 	/** Creation time */
 	private final long timeStarted;
 	/** Finished? */
@@ -162,7 +167,8 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 			res = new FProxyFetchResult(this, data, mimeType, timeStarted, goneToNetwork, getETA(), hasWaited);
 		else {
 			res = new FProxyFetchResult(this, mimeType, size, timeStarted, goneToNetwork,
-					totalBlocks, requiredBlocks, fetchedBlocks, failedBlocks, fatallyFailedBlocks, finalizedBlocks, failed, getETA(), hasWaited);
+					totalBlocks, requiredBlocks, fetchedBlocks, failedBlocks, fatallyFailedBlocks, finalizedBlocks, failed, getETA(), hasWaited,
+					failed == null ? progressiveData : null);
 		}
 		results.add(res);
 		if(data != null || failed != null) {
@@ -354,6 +360,16 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 					this.size = ((ExpectedFileSizeEvent)ce).expectedSize;
 				}
 				if(!goneToNetwork) return;
+			} else if(ce instanceof ProgressiveDataEvent) {
+				FProxyFetchWaiter[] waiting;
+				synchronized(this) {
+					if(!canStreamProgressively(mimeType)) return;
+					progressiveData = ((ProgressiveDataEvent)ce).data;
+					waiting = waiters.toArray(new FProxyFetchWaiter[waiters.size()]);
+				}
+				for(FProxyFetchWaiter w : waiting)
+					w.wakeUpProgressive();
+				return;
 			} else return;
 			wakeWaiters(false);
 		}finally{
@@ -408,6 +424,20 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		return data != null;
 	}
 
+	/** @return True if we can send the data before it has finished downloading. */
+	synchronized boolean hasProgressiveData() {
+		return progressiveData != null && data == null && failed == null;
+	}
+
+	/** Media can be played while it is downloading, as OggFilter and MP3Filter work through the
+	 * data a page or frame at a time, so can filter it as it arrives. Other filters may need to
+	 * see the whole file, and nobody wants half a web page anyway. */
+	static boolean canStreamProgressively(String mimeType) {
+		FilterMIMEType type = ContentFilter.getMIMEType(mimeType);
+		if(type == null) return false;
+		return type.readFilter instanceof OggFilter || type.readFilter instanceof MP3Filter;
+	}
+
 	public synchronized boolean finished() {
 		return finished;
 	}
@@ -21,6 +21,10 @@ public class FProxyFetchResult {
 	
 	/** If we have fetched the data */
 	final Bucket data;
+
+	/** If we have not fetched the data yet but can send what we have so far. Unfiltered. See
+	 * FProxyFetchInProgress.canStreamProgressively(). */
+	final Bucket progressiveData;
 	
 	/** If we have not fetched the data */
 	/** Creation time */
@@ -58,6 +62,7 @@ public class FProxyFetchResult {
 	FProxyFetchResult(FProxyFetchInProgress parent, Bucket data, String mimeType, long timeStarted, boolean goneToNetwork, long eta, boolean hasWaited) {
 		assert(data != null);
 		this.data = data;
+		this.progressiveData = null;
 		this.mimeType = mimeType;
 		this.size = data.size();
 		this.timeStarted = timeStarted;
@@ -72,8 +77,9 @@ public class FProxyFetchResult {
 	}
 
 	/** Constructor when we are not returning the data, because it is still running or it failed */
-	FProxyFetchResult(FProxyFetchInProgress parent, String mimeType, long size, long timeStarted, boolean goneToNetwork, int totalBlocks, int requiredBlocks, int fetchedBlocks, int failedBlocks, int fatallyFailedBlocks, boolean finalizedBlocks, FetchException failed, long eta, boolean hasWaited) {
+	FProxyFetchResult(FProxyFetchInProgress parent, String mimeType, long size, long timeStarted, boolean goneToNetwork, int totalBlocks, int requiredBlocks, int fetchedBlocks, int failedBlocks, int fatallyFailedBlocks, boolean finalizedBlocks, FetchException failed, long eta, boolean hasWaited, Bucket progressiveData) {
 		this.data = null;
+		this.progressiveData = progressiveData;
 		this.mimeType = mimeType;
 		this.size = size;
 		this.timeStarted = timeStarted;
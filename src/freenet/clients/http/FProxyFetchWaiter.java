@@ -6,6 +6,7 @@ public class FProxyFetchWaiter {
 	public FProxyFetchWaiter(FProxyFetchInProgress progress2) {
 		this.progress = progress2;
 		if(progress.finished()) finished = true;
+		if(progress.hasProgressiveData()) progressive = true;
 		hasWaited = progress.hasWaited();
 	}
 
@@ -14,6 +15,8 @@ public class FProxyFetchWaiter {
 	private boolean hasWaited;
 	private boolean finished;
 	private boolean awoken;
+	/** The data can be sent before the fetch has finished. Makes getResult(true) return once. */
+	private boolean progressive;
 	
 	public FProxyFetchResult getResult() {
 		return getResult(false);
@@ -24,7 +27,7 @@ public class FProxyFetchWaiter {
 		synchronized(this) {
 			if(waitForever) {
 				// FIXME findbugs thinks this will never exit. It should given wakeUp().
-				while(!finished) {
+				while(!(finished || progressive)) {
 					try {
 						wait();
 						hasWaited = true;
@@ -32,6 +35,7 @@ public class FProxyFetchWaiter {
 						// Ignore
 					}
 				}
+				progressive = false;
 			} else {
 				/* Wait for 5 seconds or until something happens. The
 				 * most common something other than finishing is a callback
@@ -75,6 +79,11 @@ public class FProxyFetchWaiter {
 		notifyAll();
 	}
 	
+	synchronized void wakeUpProgressive() {
+		this.progressive = true;
+		notifyAll();
+	}
+
 	public boolean hasWaited() {
 		return hasWaited;
 	}
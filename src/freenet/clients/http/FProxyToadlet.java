@@ -75,6 +75,7 @@ import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NoFreeBucket;
+import freenet.support.metrics.MetricsRegistry;
 
 public final class FProxyToadlet extends Toadlet implements RequestClient {
 
@@ -300,6 +301,70 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 	}
 
+	/**
+	 * Send media while it is still being fetched, so it can be played after the first segment
+	 * rather than after the whole file. Reads block until the segment they need has been decoded,
+	 * see FetchContext.fetchInOrder. When filtering we don't know how long the output will be
+	 * until we have filtered all of it, so we ignore any Range header and close the connection
+	 * at the end. Unfiltered data can be sent with a length, so ranges work.
+	 */
+	private void sendProgressiveData(final ToadletContext ctx, FreenetURI key, InputStream is, long size, String mimeType, boolean filterData) throws ToadletContextClosedException, IOException {
+		MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+		retHdr.put("Content-Encoding", "identity");
+		retHdr.put("X-Content-Type-Options", "nosniff");
+		OutputStream os = new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] buf, int offset, int length) throws IOException {
+				try {
+					ctx.writeData(buf, offset, length);
+				} catch (ToadletContextClosedException e) {
+					throw new IOException(e);
+				}
+			}
+
+		};
+		if(filterData) {
+			ctx.forceDisconnect();
+			ctx.sendReplyHeadersFProxy(200, "OK", retHdr, mimeType, -1);
+			try {
+				ContentFilter.filter(is, os, mimeType, key.toURI("/"), getSchemeHostAndPort(ctx), null, null, null, core.getLinkFilterExceptionProvider());
+			} catch (UnsafeContentTypeException e) {
+				// Checked when we got the MIME type, see FProxyFetchInProgress.canStreamProgressively().
+				Logger.error(this, "Unable to filter "+key+" : "+e, e);
+			} catch (URISyntaxException e) {
+				Logger.error(this, "Unable to filter "+key+" : "+e, e);
+			}
+			return;
+		}
+		String rangeStr = ctx.getHeaders().get("range");
+		if(rangeStr != null) {
+			long range[];
+			try {
+				range = parseRange(rangeStr);
+			} catch (HTTPRangeException e) {
+				ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
+				return;
+			}
+			if (range[1] == -1 || range[1] >= size) {
+				range[1] = size - 1;
+			}
+			retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+			ctx.sendReplyHeadersFProxy(206, "Partial content", retHdr, mimeType, range[1] - range[0] + 1);
+			if (range[0] > 0)
+				FileUtil.skipFully(is, range[0]);
+			FileUtil.copy(is, os, range[1] - range[0] + 1);
+		} else {
+			ctx.sendReplyHeadersFProxy(200, "OK", retHdr, mimeType, size);
+			FileUtil.copy(is, os, size);
+		}
+	}
+
 	static final HTMLNode DOWNLOADS_LINK = QueueToadlet.DOWNLOADS_LINK;
 
 	private static void addDownloadOptions(ToadletContext ctx, HTMLNode optionList, FreenetURI key, String mimeType,
@@ -456,7 +521,11 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		final boolean canSendProgress =
 			isBrowser(ua) && !ctx.disableProgressPage() && (accept == null || accept.indexOf("text/html") > -1) && !httprequest.isParameterSet("forcedownload");
 
-		long defaultMaxSize = canSendProgress ? MAX_LENGTH_WITH_PROGRESS : MAX_LENGTH_NO_PROGRESS;
+		// Audio and video elements and media players can start playing before the whole file
+		// has been fetched, see sendProgressiveData().
+		final boolean acceptsMedia = accept != null && (accept.startsWith("audio/") || accept.startsWith("video/"));
+
+		long defaultMaxSize = (canSendProgress || acceptsMedia) ? MAX_LENGTH_WITH_PROGRESS : MAX_LENGTH_NO_PROGRESS;
 
 		// max-retries
 		// Less than -1 = use default.
@@ -585,6 +654,11 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		FetchContext fctx = getFetchContext(maxSize, getSchemeHostAndPort(ctx));
 		// max-size=-1 => use default
 		maxSize = fctx.maxOutputLength;
+		// Only media is worth fetching in order: it can be played before it has all arrived.
+		String typeHint = httprequest.getParam("type", null);
+		final boolean wantsMedia = acceptsMedia || (typeHint != null &&
+				(typeHint.startsWith("audio/") || typeHint.startsWith("video/")));
+		fctx.fetchInOrder = wantsMedia;
 
 		//We should run the ContentFilter by default
 		String forceString = httprequest.getParam("force");
@@ -670,6 +744,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 
 
 		FProxyFetchResult fr = null;
+		boolean progressiveFinished = false;
 
 			FProxyFetchWaiter fetch = null;
 			try {
@@ -706,6 +781,25 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				fe = fr.failed;
 				fetch.close(); // Not waiting any more, but still locked the results until sent
 				break;
+			} else if(wantsMedia && fr.progressiveData != null && !progressiveFinished && !httprequest.isParameterSet("forcedownload")) {
+				if(logMINOR) Logger.minor(this, "Sending data while still fetching");
+				InputStream is;
+				try {
+					is = fr.progressiveData.getInputStream();
+				} catch (IOException e) {
+					// Finished in the meantime, wait for the final data.
+					progressiveFinished = true;
+					fr.close();
+					continue;
+				}
+				fetch.close();
+				try {
+					sendProgressiveData(ctx, key, is, fr.progressiveData.size(), fr.mimeType, fctx.filterData);
+				} finally {
+					Closer.close(is);
+					fr.close(); // Keeps the fetch running until now.
+				}
+				return;
 			} else if(canSendProgress) {
 				if(logMINOR) Logger.minor(this, "Still in progress");
 				// Still in progress
@@ -1245,6 +1339,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		server.register(diagnosticToadlet, "FProxyToadlet.categoryStatus", "/diagnostic/", true,
 		        "FProxyToadlet.diagnosticTitle", "FProxyToadlet.diagnostic", true, null);
 
+		MetricsToadlet metricsToadlet = new MetricsToadlet(client, MetricsRegistry.getDefault());
+		server.register(metricsToadlet, null, MetricsToadlet.TOADLET_URL, true, false);
+
 		ConnectivityToadlet connectivityToadlet = new ConnectivityToadlet(client, node);
 		server.register(connectivityToadlet, "FProxyToadlet.categoryStatus", "/connectivity/", true,
 		        "ConnectivityToadlet.connectivityTitle", "ConnectivityToadlet.connectivity", true, null);
@@ -0,0 +1,43 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.net.URI;
+
+import freenet.client.HighLevelSimpleClient;
+import freenet.support.api.HTTPRequest;
+import freenet.support.metrics.MetricsRegistry;
+
+/**
+ * Serves the node's metrics in the Prometheus text format, for monitoring systems to scrape.
+ * Like the other status pages this needs full access, so the scraper must be on an address
+ * allowed by fproxy.allowedHostsFullAccess.
+ */
+public class MetricsToadlet extends Toadlet {
+
+	public static final String TOADLET_URL = "/metrics/";
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final MetricsRegistry registry;
+
+	MetricsToadlet(HighLevelSimpleClient client, MetricsRegistry registry) {
+		super(client);
+		this.registry = registry;
+	}
+
+	public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
+		if(!ctx.checkFullAccess(this))
+			return;
+		StringBuilder sb = new StringBuilder(16384);
+		registry.writePrometheus(sb);
+		writeReply(ctx, 200, CONTENT_TYPE, "OK", sb.toString());
+	}
+
+	@Override
+	public String path() {
+		return TOADLET_URL;
+	}
+
+}
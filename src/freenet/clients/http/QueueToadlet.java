@@ -21,9 +21,8 @@ import java.net.URISyntaxException;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -61,6 +60,10 @@ import freenet.clients.fcp.MessageInvalidException;
 import freenet.clients.fcp.NotAllowedException;
 import freenet.clients.fcp.RequestCompletionCallback;
 import freenet.clients.fcp.RequestStatus;
+import freenet.clients.fcp.RequestStatusIndex;
+import freenet.clients.fcp.RequestStatusIndex.Category;
+import freenet.clients.fcp.RequestStatusIndex.Filter;
+import freenet.clients.fcp.RequestStatusIndex.SortBy;
 import freenet.clients.fcp.UploadDirRequestStatus;
 import freenet.clients.fcp.UploadFileRequestStatus;
 import freenet.clients.fcp.UploadRequestStatus;
@@ -73,7 +76,6 @@ import freenet.node.RequestStarter;
 import freenet.node.SecurityLevels.PHYSICAL_THREAT_LEVEL;
 import freenet.node.useralerts.StoringUserEvent;
 import freenet.node.useralerts.UserAlert;
-import freenet.support.Fields;
 import freenet.support.HTMLNode;
 import freenet.support.HexUtil;
 import freenet.support.LogThresholdCallback;
@@ -82,6 +84,7 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.MultiValueTable;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
+import freenet.support.URLEncoder;
 import freenet.support.api.HTTPRequest;
 import freenet.support.api.HTTPUploadedFile;
 import freenet.support.api.RandomAccessBucket;
@@ -111,27 +114,145 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	}
 
 	private enum QueueType {
-		CompletedDownloadToTemp(true, false, false),
-		CompletedDownloadToDisk(true, false, false),
-		CompletedUpload(true, false, true),
-		CompletedDirUpload(true, false, true),
-		FailedDownload(false, true, false),
-		FailedUpload(false, true, true),
-		FailedDirUpload(false, true, true),
-		FailedBadMIMEType(false, true, false),
-		FailedUnknownMIMEType(false, true, false),
-		UncompletedDownload(false, false, false),
-		UncompletedUpload(false, false, true),
-		UncompletedDirUpload(false, false, true);
+		CompletedDownloadToTemp(true, false, false, Category.DOWNLOAD_SUCCEEDED_TO_TEMP),
+		CompletedDownloadToDisk(true, false, false, Category.DOWNLOAD_SUCCEEDED_TO_DISK),
+		CompletedUpload(true, false, true, Category.UPLOAD_SUCCEEDED),
+		CompletedDirUpload(true, false, true, Category.DIR_UPLOAD_SUCCEEDED),
+		FailedDownload(false, true, false, Category.DOWNLOAD_FAILED),
+		FailedUpload(false, true, true, Category.UPLOAD_FAILED),
+		FailedDirUpload(false, true, true, Category.DIR_UPLOAD_FAILED),
+		FailedBadMIMEType(false, true, false, Category.DOWNLOAD_FAILED_MIME),
+		FailedUnknownMIMEType(false, true, false, Category.DOWNLOAD_FAILED_MIME),
+		UncompletedDownload(false, false, false, Category.DOWNLOAD_RUNNING),
+		UncompletedUpload(false, false, true, Category.UPLOAD_RUNNING),
+		UncompletedDirUpload(false, false, true, Category.DIR_UPLOAD_RUNNING);
 
 		final boolean isCompleted;
 		final boolean isFailed;
 		final boolean isUpload;
+		/** Where the requests are in the global queue's index. */
+		final Category category;
 
-		private QueueType(boolean isCompleted, boolean isFailed, boolean isUpload) {
+		private QueueType(boolean isCompleted, boolean isFailed, boolean isUpload, Category category) {
 			this.isCompleted = isCompleted;
 			this.isFailed = isFailed;
 			this.isUpload = isUpload;
+			this.category = category;
+		}
+
+		/** The MIME failure sections are split up by type rather than being one list. */
+		boolean isMIMEFailure() {
+			return category == Category.DOWNLOAD_FAILED_MIME;
+		}
+	}
+
+	/** Default number of requests to show in each section of the queue page. */
+	static final int DEFAULT_PAGE_SIZE = 100;
+	static final int MAX_PAGE_SIZE = 10000;
+
+	/**
+	 * The sort order, search and page asked for in the query string of the queue page, so links
+	 * can keep them. By default every section is shown, each from the start. Following a "next
+	 * page" link shows only that section, from the given offset.
+	 */
+	private static class PageQuery {
+		/** As in the query string, or null for the default order by priority. */
+		final String sortByParam;
+		final SortBy sortBy;
+		final boolean reversed;
+		/** Search text, empty if none. */
+		final String search;
+		final Filter filter;
+		final int pageSize;
+		/** The only section to show, or null to show them all. */
+		final QueueType section;
+		/** For the MIME failure sections, which type. */
+		final String mimeType;
+		final int offset;
+
+		PageQuery(HTTPRequest request) {
+			String param = request.isParameterSet("sortBy") ? request.getParam("sortBy") : null;
+			SortBy sort = parseSortBy(param);
+			sortByParam = sort == SortBy.PRIORITY ? null : param;
+			sortBy = sort;
+			reversed = request.isParameterSet("reversed");
+			search = request.getParam("search").trim();
+			filter = search.isEmpty() ? null : RequestStatusIndex.matching(search);
+			pageSize = Math.max(1, Math.min(MAX_PAGE_SIZE, request.getIntParam("pageSize", DEFAULT_PAGE_SIZE)));
+			QueueType type = null;
+			try {
+				if(request.isParameterSet("section"))
+					type = QueueType.valueOf(request.getParam("section"));
+			} catch (IllegalArgumentException e) {
+				// Ignore, show everything.
+			}
+			section = type;
+			mimeType = type != null && type.isMIMEFailure() ? request.getParam("mimeType") : null;
+			offset = type == null ? 0 : Math.max(0, request.getIntParam("offset", 0));
+		}
+
+		private static SortBy parseSortBy(String sortBy) {
+			if(sortBy == null) return SortBy.PRIORITY;
+			if(sortBy.equals("id")) return SortBy.IDENTIFIER;
+			if(sortBy.equals("name")) return SortBy.NAME;
+			if(sortBy.equals("size")) return SortBy.SIZE;
+			if(sortBy.equals("progress")) return SortBy.PROGRESS;
+			if(sortBy.equals("lastActivity")) return SortBy.LAST_ACTIVITY;
+			if(sortBy.equals("lastFailure")) return SortBy.LAST_FAILURE;
+			return SortBy.PRIORITY;
+		}
+
+		boolean shows(QueueType type) {
+			return section == null || section == type;
+		}
+
+		boolean shows(QueueType type, String mime) {
+			return section == null || (section == type && mime.equals(mimeType));
+		}
+
+		int offset(QueueType type) {
+			return section == type ? offset : 0;
+		}
+
+		/** @return The part of a MIME failure group to show. */
+		<T> List<T> page(List<T> group, QueueType type, String mime) {
+			int start = shows(type, mime) && section != null ? Math.min(offset, group.size()) : 0;
+			return group.subList(start, Math.min(group.size(), start + pageSize));
+		}
+
+		String href(String sortBy, boolean reversed, QueueType section, String mimeType, int offset) {
+			StringBuilder sb = new StringBuilder("?");
+			if(sortBy != null)
+				sb.append("sortBy=").append(sortBy).append('&');
+			if(reversed)
+				sb.append("reversed&");
+			if(!search.isEmpty())
+				sb.append("search=").append(URLEncoder.encode(search, false)).append('&');
+			if(pageSize != DEFAULT_PAGE_SIZE)
+				sb.append("pageSize=").append(pageSize).append('&');
+			if(section != null) {
+				sb.append("section=").append(section.name()).append('&');
+				if(mimeType != null)
+					sb.append("mimeType=").append(URLEncoder.encode(mimeType, false)).append('&');
+				if(offset > 0)
+					sb.append("offset=").append(offset).append('&');
+			}
+			// Drop the trailing separator, but keep a lone "?" so the link clears the query.
+			if(sb.length() > 1)
+				sb.setLength(sb.length() - 1);
+			return sb.toString();
+		}
+
+		/** @return A link to sort by the given column, in the opposite order to now, staying in
+		 * the same section if only one is shown. */
+		String sortHref(String column) {
+			return href(column, !reversed, section, mimeType, 0);
+		}
+
+		/** @return A link to a section of the full queue page. */
+		String anchorHref(String anchor) {
+			if(section == null) return "#"+anchor;
+			return href(sortByParam, reversed, null, null, 0)+"#"+anchor;
 		}
 	}
 
@@ -158,7 +279,6 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		this.fiw = fiw;
 	}
 
-	private boolean isReversed = false;
 	private final boolean uploads;
 
     private static final String KEY_LIST_LOCATION = "listKeys.txt";
@@ -283,7 +403,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 					new String[] { "type", "name", "value" },
 					new String[] { "submit", "cancel", NodeL10n.getBase().getString("Toadlet.no") });
 
-				this.writeHTMLReply(ctx, 200, "OK", page.outer.generate());
+				this.writeHTMLReply(ctx, 200, "OK", page.outer);
 				return;
 			} else if(request.isPartSet("remove_request") && (request.getPartAsStringFailsafe("remove_request", 128).length() > 0)) {
 				// Remove all requested (i.e. selected) requests from the queue, regardless of
@@ -531,7 +651,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				}
 				alertContent.addChild("a", "href", path(),
 					NodeL10n.getBase().getString("Toadlet.returnToQueuepage"));
-				writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+				writeHTMLReply(ctx, 200, "OK", pageNode);
 				return;
 			} else if (request.isPartSet("change_priority_top")) {
 				handleChangePriority(request, ctx, "_top");
@@ -914,7 +1034,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 					new String[]{"type", "name", "value"},
 					new String[]{"submit", "recommend_uri", l10n("recommend")});
 
-				this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+				this.writeHTMLReply(ctx, 200, "OK", pageNode);
 				return;
 			} else if(request.isPartSet("recommend_uri")) {
 				String description = request.getPartAsStringFailsafe("description", 32768);
@@ -975,7 +1095,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		alert.addChild("ul", l10n("downloadDisallowed", "directory", downloadPath));
 		alert.addChild("a", "href", path(),
 			NodeL10n.getBase().getString("Toadlet.returnToQueuepage"));
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private File getDownloadsDir (String downloadPath) throws NotAllowedException {
@@ -1016,7 +1136,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		else
 			content.addChild("p").addChild("a", "href", path(), l10n("backToDownloadsPage"));
 
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void sendPersistenceDisabledError(ToadletContext ctx) throws ToadletContextClosedException, IOException {
@@ -1032,7 +1152,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 			addHomepageLink(infoboxContent);
 
-			writeHTMLReply(ctx, 500, "Internal Server Error", pageNode.generate());
+			writeHTMLReply(ctx, 500, "Internal Server Error", pageNode);
 			return;
 
 		}
@@ -1066,7 +1186,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			NodeL10n.getBase().addL10nSubstitution(infoboxContent.addChild("div"), "QueueToadlet.returnToQueuePage", new String[] { "link" }, new HTMLNode[] { HTMLNode.link(path()) });
 		else if(returnToInsertPage)
 			NodeL10n.getBase().addL10nSubstitution(infoboxContent.addChild("div"), "QueueToadlet.tryAgainUploadFilePage", new String[] { "link" }, new HTMLNode[] { HTMLNode.link(FileInsertWizardToadlet.PATH) });
-		writeHTMLReply(context, 400, "Bad request", pageNode.generate());
+		writeHTMLReply(context, 400, "Bad request", pageNode);
 	}
 
 	public void handleMethodGET(URI uri, final HTTPRequest request, final ToadletContext ctx)
@@ -1111,10 +1231,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		
 		if(!(count || keys)) {
 			try {
-				RequestStatus[] reqs = fcp.getGlobalRequests();
 				MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
-				HTMLNode pageNode = handleGetInner(pageMaker, reqs, core.clientContext, request, ctx);
-				writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
+				HTMLNode pageNode = handleGetInner(pageMaker, core.clientContext, request, ctx);
+				writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode);
 				return;
 			} catch (PersistenceDisabledException e) {
 				sendPersistenceDisabledError(ctx);
@@ -1193,7 +1312,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 		MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
 		if(pageNode != null)
-			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
+			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode);
 		else if(plainText != null)
 			this.writeReply(ctx, 200, "text/plain", "OK", plainText);
 		else {
@@ -1228,215 +1347,125 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return sb.toString();
 	}
 
-	private HTMLNode handleGetInner(PageMaker pageMaker, RequestStatus[] reqs, ClientContext context, final HTTPRequest request, ToadletContext ctx) throws PersistenceDisabledException {
-
-		// First, get the queued requests, and separate them into different types.
-		LinkedList<DownloadRequestStatus> completedDownloadToDisk = new LinkedList<DownloadRequestStatus>();
-		LinkedList<DownloadRequestStatus> completedDownloadToTemp = new LinkedList<DownloadRequestStatus>();
-		LinkedList<UploadFileRequestStatus> completedUpload = new LinkedList<UploadFileRequestStatus>();
-		LinkedList<UploadDirRequestStatus> completedDirUpload = new LinkedList<UploadDirRequestStatus>();
-
-		LinkedList<DownloadRequestStatus> failedDownload = new LinkedList<DownloadRequestStatus>();
-		LinkedList<UploadFileRequestStatus> failedUpload = new LinkedList<UploadFileRequestStatus>();
-		LinkedList<UploadDirRequestStatus> failedDirUpload = new LinkedList<UploadDirRequestStatus>();
-
-		LinkedList<DownloadRequestStatus> uncompletedDownload = new LinkedList<DownloadRequestStatus>();
-		LinkedList<UploadFileRequestStatus> uncompletedUpload = new LinkedList<UploadFileRequestStatus>();
-		LinkedList<UploadDirRequestStatus> uncompletedDirUpload = new LinkedList<UploadDirRequestStatus>();
+	private HTMLNode handleGetInner(PageMaker pageMaker, ClientContext context, final HTTPRequest request, ToadletContext ctx) throws PersistenceDisabledException {
+
+		final PageQuery query = new PageQuery(request);
+
+		// Only fetch the page of each section we are going to show, and the total for the rest.
+		// The global queue can have tens of thousands of requests, so copying and sorting all of
+		// them for every page view is far too slow.
+		Map<QueueType, List<RequestStatus>> pages = new EnumMap<QueueType, List<RequestStatus>>(QueueType.class);
+		Map<QueueType, Integer> totals = new EnumMap<QueueType, Integer>(QueueType.class);
+		boolean anyRequests = false;
+		for(QueueType type : QueueType.values()) {
+			if(type.isUpload != uploads || type.isMIMEFailure()) continue;
+			List<RequestStatus> page = new ArrayList<RequestStatus>();
+			int total;
+			if(query.shows(type))
+				total = fcp.getGlobalRequests(type.category, query.sortBy, query.reversed, query.filter, query.offset(type), query.pageSize, page);
+			else
+				total = fcp.getGlobalRequests(type.category, query.sortBy, query.reversed, query.filter, 0, 0, page);
+			pages.put(type, page);
+			totals.put(type, total);
+			if(fcp.countGlobalRequests(type.category) > 0)
+				anyRequests = true;
+		}
 
+		// Failures due to the MIME type are grouped by type, so fetch them all. There are usually
+		// only a few.
 		Map<String, LinkedList<DownloadRequestStatus>> failedUnknownMIMEType = new HashMap<String, LinkedList<DownloadRequestStatus>>();
 		Map<String, LinkedList<DownloadRequestStatus>> failedBadMIMEType = new HashMap<String, LinkedList<DownloadRequestStatus>>();
 
-		if(logMINOR)
-			Logger.minor(this, "Request count: "+reqs.length);
-
-		if(reqs.length < 1){
-		    return sendEmptyQueuePage(ctx, pageMaker);
-		}
-
-		short lowestQueuedPrio = RequestStarter.PAUSED_PRIORITY_CLASS;
-
-		long totalQueuedDownloadSize = 0;
-		long totalQueuedUploadSize = 0;
-
-		boolean added = false;
-		for(RequestStatus req: reqs) {
-			if(req instanceof DownloadRequestStatus && !uploads) {
+		if(!uploads) {
+			List<RequestStatus> mimeFailures = new ArrayList<RequestStatus>();
+			fcp.getGlobalRequests(Category.DOWNLOAD_FAILED_MIME, query.sortBy, query.reversed, query.filter, 0, Integer.MAX_VALUE, mimeFailures);
+			if(fcp.countGlobalRequests(Category.DOWNLOAD_FAILED_MIME) > 0)
+				anyRequests = true;
+			for(RequestStatus req : mimeFailures) {
 				DownloadRequestStatus download = (DownloadRequestStatus)req;
-				if(download.hasSucceeded()) {
-					if(download.toTempSpace())
-						completedDownloadToTemp.add(download);
-					else // to disk
-						completedDownloadToDisk.add(download);
-				} else if(download.hasFinished()) {
-				    FetchExceptionMode failureCode = download.getFailureCode();
-					String mimeType = download.getMIMEType();
-					if(mimeType == null && (failureCode == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME || failureCode == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME)) {
-						Logger.error(this, "MIME type is null but failure code is "+FetchException.getMessage(failureCode)+" for "+download.getIdentifier()+" : "+download.getURI());
-						mimeType = DefaultMIMETypes.DEFAULT_MIME_TYPE;
+				FetchExceptionMode failureCode = download.getFailureCode();
+				String mimeType = download.getMIMEType();
+				if(mimeType == null) {
+					Logger.error(this, "MIME type is null but failure code is "+FetchException.getMessage(failureCode)+" for "+download.getIdentifier()+" : "+download.getURI());
+					mimeType = DefaultMIMETypes.DEFAULT_MIME_TYPE;
+				}
+				if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME) {
+					mimeType = ContentFilter.stripMIMEType(mimeType);
+					LinkedList<DownloadRequestStatus> list = failedUnknownMIMEType.get(mimeType);
+					if(list == null) {
+						list = new LinkedList<DownloadRequestStatus>();
+						failedUnknownMIMEType.put(mimeType, list);
 					}
-					if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME) {
-						mimeType = ContentFilter.stripMIMEType(mimeType);
-						LinkedList<DownloadRequestStatus> list = failedUnknownMIMEType.get(mimeType);
+					list.add(download);
+				} else {
+					mimeType = ContentFilter.stripMIMEType(mimeType);
+					FilterMIMEType type = ContentFilter.getMIMEType(mimeType);
+					LinkedList<DownloadRequestStatus> list;
+					if(type == null) {
+						Logger.error(this, "Bad MIME failure code yet MIME is "+mimeType+" which does not have a handler!");
+						list = failedUnknownMIMEType.get(mimeType);
 						if(list == null) {
 							list = new LinkedList<DownloadRequestStatus>();
 							failedUnknownMIMEType.put(mimeType, list);
 						}
-						list.add(download);
-					} else if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME) {
-						mimeType = ContentFilter.stripMIMEType(mimeType);
-						FilterMIMEType type = ContentFilter.getMIMEType(mimeType);
-						LinkedList<DownloadRequestStatus> list;
-						if(type == null) {
-							Logger.error(this, "Bad MIME failure code yet MIME is "+mimeType+" which does not have a handler!");
-							list = failedUnknownMIMEType.get(mimeType);
-							if(list == null) {
-								list = new LinkedList<DownloadRequestStatus>();
-								failedUnknownMIMEType.put(mimeType, list);
-							}
-						} else {
-							list = failedBadMIMEType.get(mimeType);
-							if(list == null) {
-								list = new LinkedList<DownloadRequestStatus>();
-								failedBadMIMEType.put(mimeType, list);
-							}
-						}
-						list.add(download);
 					} else {
-						failedDownload.add(download);
+						list = failedBadMIMEType.get(mimeType);
+						if(list == null) {
+							list = new LinkedList<DownloadRequestStatus>();
+							failedBadMIMEType.put(mimeType, list);
+						}
 					}
-				} else {
-					short prio = download.getPriority();
-					if(prio < lowestQueuedPrio)
-						lowestQueuedPrio = prio;
-					uncompletedDownload.add(download);
-					long size = download.getDataSize();
-					if(size > 0)
-						totalQueuedDownloadSize += size;
-				}
-				added = true;
-			} else if(req instanceof UploadFileRequestStatus && uploads) {
-				UploadFileRequestStatus upload = (UploadFileRequestStatus)req;
-				if(upload.hasSucceeded()) {
-					completedUpload.add(upload);
-				} else if(upload.hasFinished()) {
-					failedUpload.add(upload);
-				} else {
-					short prio = upload.getPriority();
-					if(prio < lowestQueuedPrio)
-						lowestQueuedPrio = prio;
-					uncompletedUpload.add(upload);
-				}
-				long size = upload.getDataSize();
-				if(size > 0)
-					totalQueuedUploadSize += size;
-				added = true;
-			} else if(req instanceof UploadDirRequestStatus && uploads) {
-				UploadDirRequestStatus upload = (UploadDirRequestStatus)req;
-				if(upload.hasSucceeded()) {
-					completedDirUpload.add(upload);
-				} else if(upload.hasFinished()) {
-					failedDirUpload.add(upload);
-				} else {
-					short prio = upload.getPriority();
-					if(prio < lowestQueuedPrio)
-						lowestQueuedPrio = prio;
-					uncompletedDirUpload.add(upload);
+					list.add(download);
 				}
-				long size = upload.getTotalDataSize();
-				if(size > 0)
-					totalQueuedUploadSize += size;
-		added = true;
 			}
 		}
-		if(!added) {
+
+		if(!anyRequests) {
 		    return sendEmptyQueuePage(ctx, pageMaker);
 		}
-		Logger.minor(this, "Total queued downloads: "+SizeUtil.formatSize(totalQueuedDownloadSize));
-		Logger.minor(this, "Total queued uploads: "+SizeUtil.formatSize(totalQueuedUploadSize));
-
-		Comparator<RequestStatus> jobComparator = new Comparator<RequestStatus>() {
-			@Override
-			public int compare(RequestStatus firstRequest, RequestStatus secondRequest) {
-				
-				if(firstRequest == secondRequest) return 0; // Short cut.
-				
-				int result = 0;
-				boolean isSet = true;
-
-				if(request.isParameterSet("sortBy")){
-					final String sortBy = request.getParam("sortBy");
-
-					if(sortBy.equals("id")){
-						result = firstRequest.getIdentifier().compareToIgnoreCase(secondRequest.getIdentifier());
-						if(result == 0)
-							result = firstRequest.getIdentifier().compareTo(secondRequest.getIdentifier());
-					}else if(sortBy.equals("size")){
-						result = Fields.compare(firstRequest.getTotalBlocks(), secondRequest.getTotalBlocks());
-					}else if(sortBy.equals("progress")){
-						boolean firstFinalized = firstRequest.isTotalFinalized();
-						boolean secondFinalized = secondRequest.isTotalFinalized();
-						if(firstFinalized && !secondFinalized)
-							result = 1;
-						else if(secondFinalized && !firstFinalized)
-							result = -1;
-						else {
-							double firstProgress = ((double)firstRequest.getFetchedBlocks()) / ((double)firstRequest.getMinBlocks());
-							double secondProgress = ((double)secondRequest.getFetchedBlocks()) / ((double)secondRequest.getMinBlocks());
-							result = Fields.compare(firstProgress, secondProgress);
-						}
-					} else if (sortBy.equals("lastActivity")) {
-			result = Fields.compare(firstRequest.getLastSuccess(),
-						secondRequest.getLastSuccess());
-		    } else if (sortBy.equals("lastFailure")) {
-			result = Fields.compare(firstRequest.getLastFailure(),
-						secondRequest.getLastFailure());
-					}else
-						isSet=false;
-				}else
-					isSet=false;
-
-				if(!isSet){
-					result = Fields.compare(firstRequest.getPriority(), secondRequest.getPriority());
-					if(result == 0)
-						result = firstRequest.getIdentifier().compareTo(secondRequest.getIdentifier());
-				}
 
-				if(result == 0){
-					return 0;
-				}else if(request.isParameterSet("reversed")){
-					isReversed = true;
-					return result > 0 ? -1 : 1;
-				}else{
-					isReversed = false;
-					return result < 0 ? -1 : 1;
-				}
-			}
-		};
+		short lowestQueuedPrio = RequestStarter.PAUSED_PRIORITY_CLASS;
+		for(QueueType type : QueueType.values()) {
+			if(type.isUpload != uploads || type.isCompleted || type.isFailed) continue;
+			short prio = fcp.getGlobalMostUrgentPriority(type.category);
+			if(prio != -1 && prio < lowestQueuedPrio)
+				lowestQueuedPrio = prio;
+		}
 
-		Collections.sort(completedDownloadToDisk, jobComparator);
-		Collections.sort(completedDownloadToTemp, jobComparator);
-		Collections.sort(completedUpload, jobComparator);
-		Collections.sort(completedDirUpload, jobComparator);
-		Collections.sort(failedDownload, jobComparator);
-		Collections.sort(failedUpload, jobComparator);
-		Collections.sort(failedDirUpload, jobComparator);
-		Collections.sort(uncompletedDownload, jobComparator);
-		Collections.sort(uncompletedUpload, jobComparator);
-		Collections.sort(uncompletedDirUpload, jobComparator);
+		long totalQueuedDownloadSize = 0;
+		long totalQueuedUploadSize = 0;
+		if(uploads) {
+			// Includes finished uploads, as it always has.
+			for(QueueType type : QueueType.values())
+				if(type.isUpload) totalQueuedUploadSize += fcp.getGlobalDataSize(type.category);
+		} else {
+			totalQueuedDownloadSize = fcp.getGlobalDataSize(Category.DOWNLOAD_RUNNING);
+		}
+		Logger.minor(this, "Total queued downloads: "+SizeUtil.formatSize(totalQueuedDownloadSize));
+		Logger.minor(this, "Total queued uploads: "+SizeUtil.formatSize(totalQueuedUploadSize));
 
+		List<RequestStatus> completedDownloadToDisk = pages.get(QueueType.CompletedDownloadToDisk);
+		List<RequestStatus> completedDownloadToTemp = pages.get(QueueType.CompletedDownloadToTemp);
+		List<RequestStatus> completedUpload = pages.get(QueueType.CompletedUpload);
+		List<RequestStatus> completedDirUpload = pages.get(QueueType.CompletedDirUpload);
+		List<RequestStatus> failedDownload = pages.get(QueueType.FailedDownload);
+		List<RequestStatus> failedUpload = pages.get(QueueType.FailedUpload);
+		List<RequestStatus> failedDirUpload = pages.get(QueueType.FailedDirUpload);
+		List<RequestStatus> uncompletedDownload = pages.get(QueueType.UncompletedDownload);
+		List<RequestStatus> uncompletedUpload = pages.get(QueueType.UncompletedUpload);
+		List<RequestStatus> uncompletedDirUpload = pages.get(QueueType.UncompletedDirUpload);
 		String pageName;
 		if(uploads)
 			pageName =
-				"(" + (uncompletedDirUpload.size() + uncompletedUpload.size()) +
-				'/' + (failedDirUpload.size() + failedUpload.size()) +
-				'/' + (completedDirUpload.size() + completedUpload.size()) +
+				"(" + (total(totals, QueueType.UncompletedDirUpload) + total(totals, QueueType.UncompletedUpload)) +
+				'/' + (total(totals, QueueType.FailedDirUpload) + total(totals, QueueType.FailedUpload)) +
+				'/' + (total(totals, QueueType.CompletedDirUpload) + total(totals, QueueType.CompletedUpload)) +
 				") "+l10n("titleUploads");
 		else
 			pageName =
-				"(" + uncompletedDownload.size() +
-				'/' + failedDownload.size() +
-				'/' + (completedDownloadToDisk.size() + completedDownloadToTemp.size()) +
+				"(" + total(totals, QueueType.UncompletedDownload) +
+				'/' + total(totals, QueueType.FailedDownload) +
+				'/' + (total(totals, QueueType.CompletedDownloadToDisk) + total(totals, QueueType.CompletedDownloadToTemp)) +
 				") "+l10n("titleDownloads");
 
 		PageNode page = pageMaker.getPageNode(pageName, ctx);
@@ -1452,32 +1481,32 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		HTMLNode navigationBar = infobox.outer;
 		HTMLNode navigationContent = infobox.content.addChild("ul");
 		boolean includeNavigationBar = false;
-		if (!completedDownloadToTemp.isEmpty()) {
-			navigationContent.addChild("li").addChild("a", "href", "#completedDownloadToTemp", l10n("completedDtoTemp", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToTemp.size()) }));
+		if (total(totals, QueueType.CompletedDownloadToTemp) > 0) {
+			navigationContent.addChild("li").addChild("a", "href", query.anchorHref("completedDownloadToTemp"), l10n("completedDtoTemp", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.CompletedDownloadToTemp)) }));
 			includeNavigationBar = true;
 		}
-		if (!completedDownloadToDisk.isEmpty()) {
-			navigationContent.addChild("li").addChild("a", "href", "#completedDownloadToDisk", l10n("completedDtoDisk", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToDisk.size()) }));
+		if (total(totals, QueueType.CompletedDownloadToDisk) > 0) {
+			navigationContent.addChild("li").addChild("a", "href", query.anchorHref("completedDownloadToDisk"), l10n("completedDtoDisk", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.CompletedDownloadToDisk)) }));
 			includeNavigationBar = true;
 		}
-		if (!completedUpload.isEmpty()) {
-			navigationContent.addChild("li").addChild("a", "href", "#completedUpload", l10n("completedU", new String[]{ "size" }, new String[]{ String.valueOf(completedUpload.size()) }));
+		if (total(totals, QueueType.CompletedUpload) > 0) {
+			navigationContent.addChild("li").addChild("a", "href", query.anchorHref("completedUpload"), l10n("completedU", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.CompletedUpload)) }));
 			includeNavigationBar = true;
 		}
-		if (!completedDirUpload.isEmpty()) {
-			navigationContent.addChild("li").addChild("a", "href", "#completedDirUpload", l10n("completedDU", new String[]{ "size" }, new String[]{ String.valueOf(completedDirUpload.size()) }));
+		if (total(totals, QueueType.CompletedDirUpload) > 0) {
+			navigationContent.addChild("li").addChild("a", "href", query.anchorHref("completedDirUpload"), l10n("completedDU", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.CompletedDirUpload)) }));
 			includeNavigationBar = true;
 		}
-		if (!failedDownload.isEmpty()) {
-			navigationContent.addChild("li").addChild("a", "href", "#failedDownload", l10n("failedD", new String[]{ "size" }, new String[]{ String.valueOf(failedDownload.size()) }));
+		if (total(totals, QueueType.FailedDownload) > 0) {
+			navigationContent.addChild("li").addChild("a", "href", query.anchorHref("failedDownload"), l10n("failedD", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.FailedDownload)) }));
 			includeNavigationBar = true;
 		}
-		if (!failedUpload.isEmpty()) {
-			navigationContent.addChild("li").addChild("a", "href", "#failedUpload", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedUpload.size()) }));
+		if (total(totals, QueueType.FailedUpload) > 0) {
+			navigationContent.addChild("li").addChild("a", "href", query.anchorHref("failedUpload"), l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.FailedUpload)) }));
 			includeNavigationBar = true;
 		}
-		if (!failedDirUpload.isEmpty()) {
-			navigationContent.addChild("li").addChild("a", "href", "#failedDirUpload", l10n("failedDU", new String[]{ "size" }, new String[]{ String.valueOf(failedDirUpload.size()) }));
+		if (total(totals, QueueType.FailedDirUpload) > 0) {
+			navigationContent.addChild("li").addChild("a", "href", query.anchorHref("failedDirUpload"), l10n("failedDU", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.FailedDirUpload)) }));
 			includeNavigationBar = true;
 		}
 		if (failedUnknownMIMEType.size() > 0) {
@@ -1485,7 +1514,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			Arrays.sort(types);
 			for(String type : types) {
 				String atype = type.replace("-", "--").replace('/', '-');
-				navigationContent.addChild("li").addChild("a", "href", "#failedDownload-unknowntype-"+atype, l10n("failedDUnknownMIME", new String[]{ "size", "type" }, new String[]{ String.valueOf(failedUnknownMIMEType.get(type).size()), type }));
+				navigationContent.addChild("li").addChild("a", "href", query.anchorHref("failedDownload-unknowntype-"+atype), l10n("failedDUnknownMIME", new String[]{ "size", "type" }, new String[]{ String.valueOf(failedUnknownMIMEType.get(type).size()), type }));
 			}
 		}
 		if (failedBadMIMEType.size() > 0) {
@@ -1493,19 +1522,19 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			Arrays.sort(types);
 			for(String type : types) {
 				String atype = type.replace("-", "--").replace('/', '-');
-				navigationContent.addChild("li").addChild("a", "href", "#failedDownload-badtype-"+atype, l10n("failedDBadMIME", new String[]{ "size", "type" }, new String[]{ String.valueOf(failedBadMIMEType.get(type).size()), type }));
+				navigationContent.addChild("li").addChild("a", "href", query.anchorHref("failedDownload-badtype-"+atype), l10n("failedDBadMIME", new String[]{ "size", "type" }, new String[]{ String.valueOf(failedBadMIMEType.get(type).size()), type }));
 			}
 		}
-		if (!uncompletedDownload.isEmpty()) {
-			navigationContent.addChild("li").addChild("a", "href", "#uncompletedDownload", l10n("DinProgress", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedDownload.size()) }));
+		if (total(totals, QueueType.UncompletedDownload) > 0) {
+			navigationContent.addChild("li").addChild("a", "href", query.anchorHref("uncompletedDownload"), l10n("DinProgress", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.UncompletedDownload)) }));
 			includeNavigationBar = true;
 		}
-		if (!uncompletedUpload.isEmpty()) {
-			navigationContent.addChild("li").addChild("a", "href", "#uncompletedUpload", l10n("UinProgress", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedUpload.size()) }));
+		if (total(totals, QueueType.UncompletedUpload) > 0) {
+			navigationContent.addChild("li").addChild("a", "href", query.anchorHref("uncompletedUpload"), l10n("UinProgress", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.UncompletedUpload)) }));
 			includeNavigationBar = true;
 		}
-		if (!uncompletedDirUpload.isEmpty()) {
-			navigationContent.addChild("li").addChild("a", "href", "#uncompletedDirUpload", l10n("DUinProgress", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedDirUpload.size()) }));
+		if (total(totals, QueueType.UncompletedDirUpload) > 0) {
+			navigationContent.addChild("li").addChild("a", "href", query.anchorHref("uncompletedDirUpload"), l10n("DUinProgress", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.UncompletedDirUpload)) }));
 			includeNavigationBar = true;
 		}
 		if (totalQueuedDownloadSize > 0) {
@@ -1524,6 +1553,8 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild(navigationBar);
 		}
 
+		contentNode.addChild(createSearchBox(pageMaker, query, totals, failedBadMIMEType, failedUnknownMIMEType));
+
 		final String[] priorityClasses = new String[] {
 				l10n("priority0"),
 				l10n("priority1"),
@@ -1566,73 +1597,73 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			QueueColumn.REASON,
 			QueueColumn.KEY };
 
-		if (!completedDownloadToTemp.isEmpty()) {
+		if (query.shows(QueueType.CompletedDownloadToTemp) && total(totals, QueueType.CompletedDownloadToTemp) > 0) {
 			contentNode.addChild("a", "id", "completedDownloadToTemp");
-			HTMLNode completedDownloadsToTempContent = pageMaker.getInfobox("completed_requests", l10n("completedDinTempDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToTemp.size()) }), contentNode, "request-completed", false);
+			HTMLNode completedDownloadsToTempContent = pageMaker.getInfobox("completed_requests", l10n("completedDinTempDirectory", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.CompletedDownloadToTemp)) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp, query, total(totals, QueueType.CompletedDownloadToTemp)));
 			} else {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp, query, total(totals, QueueType.CompletedDownloadToTemp)));
 			}
 		}
 
-		if (!completedDownloadToDisk.isEmpty()) {
+		if (query.shows(QueueType.CompletedDownloadToDisk) && total(totals, QueueType.CompletedDownloadToDisk) > 0) {
 			contentNode.addChild("a", "id", "completedDownloadToDisk");
-			HTMLNode completedToDiskInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedDinDownloadDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToDisk.size()) }), contentNode, "request-completed", false);
+			HTMLNode completedToDiskInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedDinDownloadDirectory", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.CompletedDownloadToDisk)) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk, query, total(totals, QueueType.CompletedDownloadToDisk)));
 			} else {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk, query, total(totals, QueueType.CompletedDownloadToDisk)));
 			}
 		}
 
-		if (!completedUpload.isEmpty()) {
+		if (query.shows(QueueType.CompletedUpload) && total(totals, QueueType.CompletedUpload) > 0) {
 			contentNode.addChild("a", "id", "completedUpload");
-			HTMLNode completedUploadInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedU", new String[]{ "size" }, new String[]{ String.valueOf(completedUpload.size()) }), contentNode, "download-completed", false);
+			HTMLNode completedUploadInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedU", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.CompletedUpload)) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload, query, total(totals, QueueType.CompletedUpload)));
 			} else {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload, query, total(totals, QueueType.CompletedUpload)));
 			}
 		}
 
-		if (!completedDirUpload.isEmpty()) {
+		if (query.shows(QueueType.CompletedDirUpload) && total(totals, QueueType.CompletedDirUpload) > 0) {
 			contentNode.addChild("a", "id", "completedDirUpload");
-			HTMLNode completedUploadDirContent = pageMaker.getInfobox("completed_requests", l10n("completedUDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDirUpload.size()) }), contentNode, "download-completed", false);
+			HTMLNode completedUploadDirContent = pageMaker.getInfobox("completed_requests", l10n("completedUDirectory", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.CompletedDirUpload)) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload, query, total(totals, QueueType.CompletedDirUpload)));
 			} else {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload, query, total(totals, QueueType.CompletedDirUpload)));
 			}
 		}
 
-		if (!failedDownload.isEmpty()) {
+		if (query.shows(QueueType.FailedDownload) && total(totals, QueueType.FailedDownload) > 0) {
 			contentNode.addChild("a", "id", "failedDownload");
-			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedD", new String[]{ "size" }, new String[]{ String.valueOf(failedDownload.size()) }), contentNode, "download-failed", false);
+			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedD", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.FailedDownload)) }), contentNode, "download-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload, query, total(totals, QueueType.FailedDownload)));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload, query, total(totals, QueueType.FailedDownload)));
 			}
 		}
 
-		if (!failedUpload.isEmpty()) {
+		if (query.shows(QueueType.FailedUpload) && total(totals, QueueType.FailedUpload) > 0) {
 			contentNode.addChild("a", "id", "failedUpload");
-			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedUpload.size()) }), contentNode, "upload-failed", false);
+			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.FailedUpload)) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload, query, total(totals, QueueType.FailedUpload)));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload, query, total(totals, QueueType.FailedUpload)));
 			}
 		}
 
-		if (!failedDirUpload.isEmpty()) {
+		if (query.shows(QueueType.FailedDirUpload) && total(totals, QueueType.FailedDirUpload) > 0) {
 			contentNode.addChild("a", "id", "failedDirUpload");
-			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedDirUpload.size()) }), contentNode, "upload-failed", false);
+			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.FailedDirUpload)) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload, query, total(totals, QueueType.FailedDirUpload)));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload, query, total(totals, QueueType.FailedDirUpload)));
 			}
 		}
 
@@ -1640,6 +1671,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			String[] types = failedBadMIMEType.keySet().toArray(new String[failedBadMIMEType.size()]);
 			Arrays.sort(types);
 			for(String type : types) {
+				if(!query.shows(QueueType.FailedBadMIMEType, type)) continue;
 				LinkedList<DownloadRequestStatus> getters = failedBadMIMEType.get(type);
 				String atype = type.replace("-", "--").replace('/', '-');
 				contentNode.addChild("a", "id", "failedDownload-badtype-"+atype);
@@ -1655,11 +1687,10 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 						list.addChild("li", s);
 				}
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
-				Collections.sort(getters, jobComparator);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, query.page(getters, QueueType.FailedBadMIMEType, type), new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType, query, getters.size()));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, query.page(getters, QueueType.FailedBadMIMEType, type), new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType, query, getters.size()));
 				}
 			}
 		}
@@ -1668,6 +1699,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			String[] types = failedUnknownMIMEType.keySet().toArray(new String[failedUnknownMIMEType.size()]);
 			Arrays.sort(types);
 			for(String type : types) {
+				if(!query.shows(QueueType.FailedUnknownMIMEType, type)) continue;
 				LinkedList<DownloadRequestStatus> getters = failedUnknownMIMEType.get(type);
 				String atype = type.replace("-", "--").replace('/', '-');
 				contentNode.addChild("a", "id", "failedDownload-unknowntype-"+atype);
@@ -1675,19 +1707,18 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				// FIXME add a class for easier styling.
 				failedContent.addChild("p", NodeL10n.getBase().getString("UnknownContentTypeException.explanation", "type", type));
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
-				Collections.sort(getters, jobComparator);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, query.page(getters, QueueType.FailedUnknownMIMEType, type), new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType, query, getters.size()));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, query.page(getters, QueueType.FailedUnknownMIMEType, type), new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType, query, getters.size()));
 				}
 			}
 
 		}
 
-		if (!uncompletedDownload.isEmpty()) {
+		if (query.shows(QueueType.UncompletedDownload) && total(totals, QueueType.UncompletedDownload) > 0) {
 			contentNode.addChild("a", "id", "uncompletedDownload");
-			HTMLNode uncompletedContent = pageMaker.getInfobox("requests_in_progress", l10n("wipD", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedDownload.size()) }), contentNode, "download-progressing", false);
+			HTMLNode uncompletedContent = pageMaker.getInfobox("requests_in_progress", l10n("wipD", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.UncompletedDownload)) }), contentNode, "download-progressing", false);
 			if (advancedModeEnabled) {
 		uncompletedContent.addChild(
 		    createRequestTable(
@@ -1705,16 +1736,16 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			    QueueColumn.PERSISTENCE, QueueColumn.FILENAME,
 			    QueueColumn.KEY, QueueColumn.COMPAT_MODE },
 			priorityClasses, advancedModeEnabled, "uncompleted-download",
-			QueueType.UncompletedDownload)
+			QueueType.UncompletedDownload, query, total(totals, QueueType.UncompletedDownload))
 		);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDownload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-download", QueueType.UncompletedDownload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDownload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-download", QueueType.UncompletedDownload, query, total(totals, QueueType.UncompletedDownload)));
 			}
 		}
 
-		if (!uncompletedUpload.isEmpty()) {
+		if (query.shows(QueueType.UncompletedUpload) && total(totals, QueueType.UncompletedUpload) > 0) {
 			contentNode.addChild("a", "id", "uncompletedUpload");
-			HTMLNode uncompletedContent = pageMaker.getInfobox("requests_in_progress", l10n("wipU", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedUpload.size()) }), contentNode, "upload-progressing", false);
+			HTMLNode uncompletedContent = pageMaker.getInfobox("requests_in_progress", l10n("wipU", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.UncompletedUpload)) }), contentNode, "upload-progressing", false);
 			if (advancedModeEnabled) {
 		uncompletedContent.addChild(
 		    createRequestTable(
@@ -1732,16 +1763,16 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			    QueueColumn.PERSISTENCE, QueueColumn.FILENAME,
 			    QueueColumn.KEY },
 			priorityClasses, advancedModeEnabled, "uncompleted-upload-file",
-			QueueType.UncompletedUpload)
+			QueueType.UncompletedUpload, query, total(totals, QueueType.UncompletedUpload))
 		);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-file", QueueType.UncompletedUpload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-file", QueueType.UncompletedUpload, query, total(totals, QueueType.UncompletedUpload)));
 			}
 		}
 
-		if (!uncompletedDirUpload.isEmpty()) {
+		if (query.shows(QueueType.UncompletedDirUpload) && total(totals, QueueType.UncompletedDirUpload) > 0) {
 			contentNode.addChild("a", "id", "uncompletedDirUpload");
-			HTMLNode uncompletedContent = pageMaker.getInfobox("requests_in_progress", l10n("wipDU", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedDirUpload.size()) }), contentNode, "download-progressing upload-progressing", false);
+			HTMLNode uncompletedContent = pageMaker.getInfobox("requests_in_progress", l10n("wipDU", new String[]{ "size" }, new String[]{ String.valueOf(total(totals, QueueType.UncompletedDirUpload)) }), contentNode, "download-progressing upload-progressing", false);
 			if (advancedModeEnabled) {
 		uncompletedContent.addChild(
 		    createRequestTable(
@@ -1758,10 +1789,10 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			    // QueueColumn.LAST_FAILURE,
 			    QueueColumn.PERSISTENCE, QueueColumn.KEY },
 			priorityClasses, advancedModeEnabled, "uncompleted-upload-dir",
-			QueueType.UncompletedDirUpload)
+			QueueType.UncompletedDirUpload, query, total(totals, QueueType.UncompletedDirUpload))
 		);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDirUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-dir", QueueType.UncompletedDirUpload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDirUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-dir", QueueType.UncompletedDirUpload, query, total(totals, QueueType.UncompletedDirUpload)));
 			}
 		}
 
@@ -2093,11 +2124,65 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	return lastFailureCell;
     }
 
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, QueueType queueType) {
-		return createRequestTable(pageMaker, ctx, requests, columns, priorityClasses, advancedModeEnabled, id, null, queueType);
+	private static int total(Map<QueueType, Integer> totals, QueueType type) {
+		Integer total = totals.get(type);
+		return total == null ? 0 : total;
+	}
+
+	/** A search box for the queue page, with a note if nothing matched. */
+	private HTMLNode createSearchBox(PageMaker pageMaker, PageQuery query, Map<QueueType, Integer> totals,
+			Map<String, LinkedList<DownloadRequestStatus>> failedBadMIMEType, Map<String, LinkedList<DownloadRequestStatus>> failedUnknownMIMEType) {
+		HTMLNode searchDiv = new HTMLNode("div", "class", "queue-search");
+		HTMLNode form = searchDiv.addChild("form", new String[] { "action", "method" }, new String[] { path(), "get" });
+		if(query.sortByParam != null)
+			form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "sortBy", query.sortByParam });
+		if(query.reversed)
+			form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "reversed", "true" });
+		if(query.pageSize != DEFAULT_PAGE_SIZE)
+			form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "pageSize", Integer.toString(query.pageSize) });
+		form.addChild("#", l10n("search")+' ');
+		form.addChild("input", new String[] { "type", "name", "value", "size" }, new String[] { "text", "search", query.search, "40" });
+		form.addChild("input", new String[] { "type", "value" }, new String[] { "submit", l10n("searchButton") });
+		if(!query.search.isEmpty() || query.section != null) {
+			searchDiv.addChild("#", " ");
+			searchDiv.addChild("a", "href", "?", l10n("showAll"));
+		}
+		if(query.filter != null) {
+			int matched = failedBadMIMEType.size() + failedUnknownMIMEType.size();
+			for(Integer total : totals.values())
+				matched += total;
+			if(matched == 0)
+				searchDiv.addChild("p", l10n("noMatches", "search", query.search));
+		}
+		return searchDiv;
+	}
+
+	/** Links to the previous and next pages of a section, if it doesn't fit on one page. */
+	private void addPager(HTMLNode parent, PageQuery query, QueueType queueType, String mimeType, int shown, int total) {
+		int offset = query.shows(queueType, mimeType) && query.section != null ? Math.min(query.offset, total) : 0;
+		if(offset == 0 && total <= query.pageSize) return;
+		HTMLNode pager = parent.addChild("p", "class", "queue-pager");
+		pager.addChild("#", l10n("pageShowing", new String[] { "from", "to", "total" },
+				new String[] { Integer.toString(shown == 0 ? offset : offset + 1), Integer.toString(offset + shown), Integer.toString(total) }));
+		if(offset > 0) {
+			pager.addChild("#", " ");
+			pager.addChild("a", "href", query.href(query.sortByParam, query.reversed, queueType, mimeType, Math.max(0, offset - query.pageSize)), l10n("pagePrevious"));
+		}
+		if(offset + shown < total) {
+			pager.addChild("#", " ");
+			pager.addChild("a", "href", query.href(query.sortByParam, query.reversed, queueType, mimeType, offset + query.pageSize), l10n("pageNext"));
+		}
+	}
+
+	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, QueueType queueType, PageQuery query, int total) {
+		return createRequestTable(pageMaker, ctx, requests, columns, priorityClasses, advancedModeEnabled, id, null, queueType, query, total);
 	}
 	
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, String mimeType, QueueType queueType) {
+	/**
+	 * @param requests The page of requests to show.
+	 * @param total The number of requests in the section, for the links to other pages.
+	 */
+	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, String mimeType, QueueType queueType, PageQuery query, int total) {
 		boolean hasFriends = core.node.getDarknetConnections().length > 0;
 		long now = System.currentTimeMillis();
 		
@@ -2116,10 +2201,10 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		for (QueueColumn column : columns) {
 			switch (column) {
 				case IDENTIFIER:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=id" : "?sortBy=id&reversed")).addChild("#", l10n("identifier"));
+					headerRow.addChild("th").addChild("a", "href", query.sortHref("id")).addChild("#", l10n("identifier"));
 					break;
 				case SIZE:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=size" : "?sortBy=size&reversed")).addChild("#", l10n("size"));
+					headerRow.addChild("th").addChild("a", "href", query.sortHref("size")).addChild("#", l10n("size"));
 					break;
 				case MIME_TYPE:
 					headerRow.addChild("th", l10n("mimeType"));
@@ -2131,7 +2216,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 					headerRow.addChild("th", l10n("key"));
 					break;
 				case FILENAME:
-					headerRow.addChild("th", l10n("fileName"));
+					headerRow.addChild("th").addChild("a", "href", query.sortHref("name"), l10n("fileName"));
 					break;
 				case PRIORITY:
 					headerRow.addChild("th", l10n("priority"));
@@ -2143,17 +2228,17 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 					headerRow.addChild("th", l10n("totalSize"));
 					break;
 				case PROGRESS:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=progress" : "?sortBy=progress&reversed")).addChild("#", l10n("progress"));
+					headerRow.addChild("th").addChild("a", "href", query.sortHref("progress")).addChild("#", l10n("progress"));
 					break;
 				case REASON:
 					headerRow.addChild("th", l10n("reason"));
 					break;
 				case LAST_ACTIVITY:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=lastActivity" : "?sortBy=lastActivity&reversed"), l10n("lastActivity"));
+					headerRow.addChild("th").addChild("a", "href", query.sortHref("lastActivity"), l10n("lastActivity"));
 					break;
 		case LAST_FAILURE:
 		    headerRow.addChild("th").addChild("a", "href",
-			    (isReversed ? "?sortBy=lastFailure" : "?sortBy=lastFailure&reversed"),
+			    query.sortHref("lastFailure"),
 			    l10n("lastFailure"));
 		    break;
 				case COMPAT_MODE:
@@ -2252,6 +2337,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			}
 		}
 		createRequestTableButtons(form, pageMaker, ctx, mimeType, hasFriends, advancedModeEnabled, priorityClasses, false, queueType);
+		addPager(formDiv, query, queueType, mimeType, requests.size(), total);
 		return formDiv;
 	}
 
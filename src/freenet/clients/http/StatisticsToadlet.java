@@ -17,6 +17,8 @@ import java.util.Locale;
 import java.util.Map;
 
 import freenet.client.async.ClientRequester;
+import freenet.client.async.DatastoreChecker;
+import freenet.client.async.FilteredContentCache;
 import freenet.client.HighLevelSimpleClient;
 import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
@@ -41,6 +43,7 @@ import freenet.node.stats.DataStoreInstanceType;
 import freenet.node.stats.DataStoreStats;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreAccessStats;
+import freenet.store.BlockReadCache;
 import freenet.support.BandwidthStatsContainer;
 import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
@@ -202,6 +205,20 @@ public class StatisticsToadlet extends Toadlet {
 		
 		drawJVMStatsBox(jvmStatsInfobox, advancedMode);
 		
+		if(core.filteredContentCache != null) {
+			HTMLNode filterCacheInfobox = nextTableCell.addChild("div", "class", "infobox");
+			drawFilteredContentCacheBox(filterCacheInfobox);
+		}
+		
+		// datastore checker box
+		HTMLNode storeCheckerInfobox = nextTableCell.addChild("div", "class", "infobox");
+		drawStoreCheckerBox(storeCheckerInfobox);
+
+		if(node.getReadCache().getMaxSize() > 0) {
+			HTMLNode readCacheInfobox = nextTableCell.addChild("div", "class", "infobox");
+			drawReadCacheBox(readCacheInfobox);
+		}
+
 		// Statistic gathering box
 		HTMLNode statGatheringContent = ctx.getPageMaker().getInfobox("#", l10n("statisticGatheringTitle"), nextTableCell, "statistics-generating", true);
 		// Generate a Thread-Dump
@@ -525,7 +542,7 @@ public class StatisticsToadlet extends Toadlet {
 		
 		}
 
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void showRequesters(HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
@@ -534,7 +551,7 @@ public class StatisticsToadlet extends Toadlet {
 		HTMLNode contentNode = page.content;
 
 		drawClientRequestersBox(contentNode);
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void drawLoadBalancingBox(HTMLNode loadStatsInfobox, boolean realTime) {
@@ -627,6 +644,50 @@ public class StatisticsToadlet extends Toadlet {
 		}
 	}
 	
+	private void drawFilteredContentCacheBox(HTMLNode filterCacheInfobox) {
+		FilteredContentCache cache = core.filteredContentCache;
+		filterCacheInfobox.addChild("div", "class", "infobox-header", l10n("filteredContentCacheTitle"));
+		HTMLNode filterCacheInfoboxContent = filterCacheInfobox.addChild("div", "class", "infobox-content");
+		HTMLNode filterCacheList = filterCacheInfoboxContent.addChild("ul");
+
+		long hits = cache.getHits();
+		long lookups = hits + cache.getMisses();
+		double rate = lookups == 0 ? 0.0 : ((double) hits) / lookups;
+		filterCacheList.addChild("li", l10n("filteredContentCacheHits", new String[] { "hits", "lookups", "rate" },
+				new String[] { thousandPoint.format(hits), thousandPoint.format(lookups), fix3p1pct.format(rate) }));
+		filterCacheList.addChild("li", l10n("filteredContentCacheSize", new String[] { "count", "size", "max" },
+				new String[] { thousandPoint.format(cache.getEntryCount()), SizeUtil.formatSize(cache.getSize(), true),
+						SizeUtil.formatSize(cache.getMaxSize(), true) }));
+		filterCacheList.addChild("li", l10n("filteredContentCacheEvictions", "count", thousandPoint.format(cache.getEvictions())));
+	}
+
+	private void drawReadCacheBox(HTMLNode readCacheInfobox) {
+		BlockReadCache cache = node.getReadCache();
+		readCacheInfobox.addChild("div", "class", "infobox-header", l10n("readCacheTitle"));
+		HTMLNode readCacheInfoboxContent = readCacheInfobox.addChild("div", "class", "infobox-content");
+		HTMLNode readCacheList = readCacheInfoboxContent.addChild("ul");
+
+		long hits = cache.getHits();
+		long lookups = hits + cache.getMisses();
+		double rate = lookups == 0 ? 0.0 : ((double) hits) / lookups;
+		readCacheList.addChild("li", l10n("readCacheHits", new String[] { "hits", "lookups", "rate" },
+				new String[] { thousandPoint.format(hits), thousandPoint.format(lookups), fix3p1pct.format(rate) }));
+		readCacheList.addChild("li", l10n("readCacheSize", new String[] { "count", "size", "max" },
+				new String[] { thousandPoint.format(cache.getBlockCount()), SizeUtil.formatSize(cache.getSize(), true),
+						SizeUtil.formatSize(cache.getMaxSize(), true) }));
+		readCacheList.addChild("li", l10n("readCacheRejected", "count", thousandPoint.format(cache.getRejected())));
+	}
+
+	private void drawStoreCheckerBox(HTMLNode storeCheckerInfobox) {
+		DatastoreChecker checker = core.storeChecker;
+		storeCheckerInfobox.addChild("div", "class", "infobox-header", l10n("storeCheckerTitle"));
+		HTMLNode storeCheckerInfoboxContent = storeCheckerInfobox.addChild("div", "class", "infobox-content");
+		HTMLNode storeCheckerList = storeCheckerInfoboxContent.addChild("ul");
+		storeCheckerList.addChild("li", l10n("storeCheckerKeys", new String[] { "count", "rate" },
+				new String[] { thousandPoint.format(checker.getKeysChecked()), fix1p1.format(checker.getKeysCheckedPerSecond()) }));
+		storeCheckerList.addChild("li", l10n("storeCheckerQueued", "count", thousandPoint.format(checker.getQueuedRequests())));
+	}
+
 	private void drawThreadPriorityStatsBox(HTMLNode node) {
 		
 		node.addChild("div", "class", "infobox-header", l10n("threadsByPriority"));
@@ -1277,13 +1338,15 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectRequestRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKRequestRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKRequestRT())+" (SSK)");
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
-		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
+		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getOwnRamLimit())
+				+ " (borrowed " + SizeUtil.formatSize(core.tempBucketFactory.getRamBorrowed()) + ", on heap " + SizeUtil.formatSize(core.tempBucketFactory.getRamOnHeap()) + ")");
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
 		long[] decoded = IncomingPacketFilterImpl.getDecodedPackets();
 		if(decoded != null) {
 			overviewList.addChild("li", "packetsDecoded:\u00a0"+fix3p1pct.format(((double)decoded[0])/((double)decoded[1]))+"\u00a0("+decoded[1]+")");
 		}
+		overviewList.addChild("li", "authPacketsDropped:\u00a0" + node.getDroppedAuthPackets());
 		
 	}
 
@@ -3,10 +3,13 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.http;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.Method;
 import java.net.URI;
 
@@ -296,6 +299,42 @@ public abstract class Toadlet {
 		writeReply(ctx, code, "text/html; charset=utf-8", desc, headers, reply, forceDisableJavascript);
 	}
 
+	/**
+	 * Write an HTTP response as HTML, rendering the page straight to the connection instead of
+	 * building it as a String first. This avoids holding several copies of large pages in memory.
+	 * @param ctx The specific request to reply to.
+	 * @param code The HTTP reply code to use.
+	 * @param desc The HTTP response description for the code.
+	 * @param page The HTML page.
+	 */
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, HTMLNode page) throws ToadletContextClosedException, IOException {
+		writeHTMLReply(ctx, code, desc, null, page);
+	}
+
+	/**
+	 * Write an HTTP response as HTML, possibly with custom headers, rendering the page straight
+	 * to the connection instead of building it as a String first.
+	 * @param ctx The specific request to reply to.
+	 * @param code The HTTP reply code to use.
+	 * @param desc The HTTP response description for the code.
+	 * @param headers The additional HTTP headers to send.
+	 * @param page The HTML page.
+	 */
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, MultiValueTable<String, String> headers, HTMLNode page) throws ToadletContextClosedException, IOException {
+		Writer w = new BufferedWriter(new OutputStreamWriter(
+				ctx.sendReplyHeadersChunked(code, desc, headers, "text/html; charset=utf-8", false), "UTF-8"));
+		boolean success = false;
+		try {
+			page.generate(w);
+			w.close();
+			success = true;
+		} finally {
+			// Headers have already been sent, so we can't send an error page on the same
+			// connection, and the client can't tell where a half-sent body ends.
+			if(!success) ctx.forceDisconnect();
+		}
+	}
+
 	/**
 	 * Write an HTTP response as plain text, possibly with custom headers, for example, we may want
 	 * to send a redirect, or a file with a specified filename.
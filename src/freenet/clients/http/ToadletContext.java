@@ -1,6 +1,7 @@
 package freenet.clients.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.text.ParseException;
 import java.util.Date;
@@ -76,6 +77,20 @@ public interface ToadletContext {
 	 */
 	void sendReplyHeadersFProxy(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, long length) throws ToadletContextClosedException, IOException;
 
+	/**
+	 * Write reply headers for generated content whose length is not known in advance, and return
+	 * a stream for the body. HTTP/1.1 clients get chunked transfer encoding, so the connection
+	 * can be kept alive; for HTTP/1.0 clients the connection is closed after the reply. The
+	 * caller must close the stream when done, which does not close the connection.
+	 * @param code HTTP code.
+	 * @param desc HTTP code description.
+	 * @param mvt Any extra headers. Can be null.
+	 * @param mimeType The MIME type of the reply.
+	 * @param forceDisableJavascript Disable javascript even if it is enabled for the web interface
+	 * as a whole.
+	 */
+	OutputStream sendReplyHeadersChunked(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, boolean forceDisableJavascript) throws ToadletContextClosedException, IOException;
+
 	/**
 	 * Write data. Note you must send reply headers first.
 	 */
@@ -1,6 +1,7 @@
 package freenet.clients.http;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -40,8 +41,10 @@ import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
+import freenet.support.io.ChunkedOutputStream;
 import freenet.support.io.FileUtil;
 import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.NoCloseProxyOutputStream;
 import freenet.support.io.TooLongException;
 
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -64,6 +67,8 @@ public class ToadletContextImpl implements ToadletContext {
 	private static final String METHODS_MUST_HAVE_DATA = "POST";
 	private static final String METHODS_CANNOT_HAVE_DATA = "GET";
 	private static final String METHODS_RESTRICTED_MODE = "GET POST";
+	/** Bytes buffered per chunk when streaming a reply of unknown length. */
+	private static final int CHUNK_SIZE = 16384;
 	
 	private final MultiValueTable<String,String> headers;
 	private ArrayList<ReceivedCookie> cookies; // Null until the first time the user queries us for a ReceivedCookie.
@@ -100,6 +105,8 @@ public class ToadletContextImpl implements ToadletContext {
 	 */
 	private boolean closed;
 	private boolean shouldDisconnect;
+	/** Is the client using HTTP/1.0? If so it can't handle chunked replies. */
+	private boolean isHTTP10;
 	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) throws IOException {
 		this.headers = headers;
@@ -209,6 +216,21 @@ public class ToadletContextImpl implements ToadletContext {
 	    sendReplyHeaders(replyCode, replyDescription, mvt, mimeType, contentLength, null, false, true, enableJavascript);
 	}
 	
+	@Override
+	public OutputStream sendReplyHeadersChunked(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, boolean forceDisableJavascript) throws ToadletContextClosedException, IOException {
+		if(isHTTP10) {
+			// No chunked encoding, so the end of the connection marks the end of the body.
+			shouldDisconnect = true;
+			sendReplyHeaders(code, desc, mvt, mimeType, -1, forceDisableJavascript);
+			return new NoCloseProxyOutputStream(new BufferedOutputStream(sockOutputStream, CHUNK_SIZE));
+		}
+		if(mvt == null)
+			mvt = new MultiValueTable<String,String>();
+		mvt.put("transfer-encoding", "chunked");
+		sendReplyHeaders(code, desc, mvt, mimeType, -1, forceDisableJavascript);
+		return new ChunkedOutputStream(sockOutputStream, CHUNK_SIZE);
+	}
+
 	private void sendReplyHeaders(int replyCode, String replyDescription, MultiValueTable<String,String> mvt, String mimeType, long contentLength, Date mTime, boolean isOutlinkConfirmationPage, boolean allowFrames, boolean enableJavascript) throws ToadletContextClosedException, IOException {
 		if(closed) throw new ToadletContextClosedException();
 		if(firstReplySendingException != null) {
@@ -564,13 +586,15 @@ public class ToadletContextImpl implements ToadletContext {
 					headers.put(before, after);
 				}
 				
-				boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
+				boolean isHTTP10 = split[2].equals("HTTP/1.0");
+				boolean disconnect = shouldDisconnectAfterHandled(isHTTP10, headers) || !container.enablePersistentConnections();
 
 				boolean allowPost = container.allowPosts();
 				BucketFactory bf = container.getBucketFactory();
 				
 				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
 				ctx.shouldDisconnect = disconnect;
+				ctx.isHTTP10 = isHTTP10;
 				
 				/*
 				 * copy the data into a bucket now,
@@ -2,9 +2,11 @@ package freenet.clients.http.updateableelements;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import freenet.support.Logger;
 import freenet.support.Ticker;
@@ -32,6 +34,12 @@ public class PushDataManager {
 	
 	private Map<String, Boolean>						isFirstKeepaliveReceived		= new HashMap<String, Boolean>();
 
+	/** When each element was last pushed */
+	private Map<String, Long>							lastUpdated				= new HashMap<String, Long>();
+
+	/** Elements that changed too soon after being pushed, and will be pushed when the interval is up */
+	private Set<String>									delayedUpdates			= new HashSet<String>();
+
 	/** The Cleaner that runs periodically and cleanes the failing requests */
 	private Ticker										cleaner;
 
@@ -46,15 +54,41 @@ public class PushDataManager {
 	}
 
 	/**
-	 * An element is updated and needs to be pushed to all requests.
+	 * An element is updated and needs to be pushed to all requests. An element is pushed at most
+	 * once per {@link UpdaterConstants#MIN_UPDATE_INTERVAL_MS}, updates in between are merged.
 	 * 
 	 * @param id
 	 *            - The id of the element that changed
 	 */
-	public synchronized void updateElement(String id) {
+	public synchronized void updateElement(final String id) {
 		if (logMINOR) {
 			Logger.minor(this, "Element updated id:" + id);
 		}
+		if (delayedUpdates.contains(id)) {
+			// Already waiting to be pushed
+			return;
+		}
+		Long last = lastUpdated.get(id);
+		long now = System.currentTimeMillis();
+		if (last != null && now - last < UpdaterConstants.MIN_UPDATE_INTERVAL_MS && now >= last) {
+			delayedUpdates.add(id);
+			cleaner.queueTimedJob(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (PushDataManager.this) {
+						if (delayedUpdates.remove(id)) {
+							pushElement(id);
+						}
+					}
+				}
+			}, "Delayed push", last + UpdaterConstants.MIN_UPDATE_INTERVAL_MS - now, false, false);
+			return;
+		}
+		pushElement(id);
+	}
+
+	/** Adds an UpdateEvent for the element to every notification list */
+	private void pushElement(String id) {
 		boolean needsUpdate = false;
 		if(elements.containsKey(id)==false){
 			if(logMINOR){
@@ -82,6 +116,7 @@ public class PushDataManager {
 			needsUpdate = true;
 		}
 		if (needsUpdate) {
+			lastUpdated.put(id, System.currentTimeMillis());
 			if(logMINOR){
 				Logger.minor(this, "Waking up notification polls");
 			}
@@ -276,6 +311,8 @@ public class PushDataManager {
 			elements.get(id).remove(requestId);
 			if (elements.get(id).size() == 0) {
 				elements.remove(id);
+				lastUpdated.remove(id);
+				delayedUpdates.remove(id);
 			}
 			element.dispose();
 			// Delete all notification originated from the deleted element
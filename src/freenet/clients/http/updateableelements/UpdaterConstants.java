@@ -27,6 +27,10 @@ public class UpdaterConstants {
 	
 	public static final int		KEEPALIVE_INTERVAL_SECONDS	= 600;
 
+	/** An element is pushed at most this often. Updates in between are merged into one, so a fast
+	 * download doesn't make every open page refetch its progress on every block. */
+	public static final int		MIN_UPDATE_INTERVAL_MS		= 1000;
+
 	public static final String	SUCCESS						= "SUCCESS";
 
 	public static final String	FAILURE						= "FAILURE";
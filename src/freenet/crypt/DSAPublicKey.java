@@ -23,6 +23,8 @@ public class DSAPublicKey extends CryptoKey implements StorableBlock {
 	/** Null means use Global.DSAgroupBigA. This makes persistence simpler. */
 	private final DSAGroup group;
 	private byte[] fingerprint = null;
+	/** Cached by DSAVerifier, so keys which are verified repeatedly get faster. */
+	transient volatile DSAVerifier.KeyState verifierState;
 	
 	public DSAPublicKey(DSAGroup g, BigInteger y) {
 		if(y.signum() != 1)
@@ -0,0 +1,224 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+
+/**
+ * Fast DSA signature verification for {@link Global#DSAgroupBigA}, the group used by SSKs.
+ * <p>
+ * Verifying a signature means computing g^u1 * y^u2 mod p. Doing that with two calls to
+ * {@link BigInteger#modPow(BigInteger, BigInteger)} (which is what BouncyCastle's DSASigner
+ * does, after a third one to check that y is in the group) costs hundreds of modular squarings
+ * every time. Here instead:
+ * <ul>
+ * <li>g is fixed, so we precompute a Lim-Lee comb for it once, and g^u1 costs only a handful of
+ * squarings.</li>
+ * <li>The same public keys (popular USKs, message boards) are verified over and over, so once a
+ * {@link DSAPublicKey} has been used more than once we keep a smaller comb for its y alongside it.
+ * The keys cached in memory by the node therefore carry their precomputation with them.</li>
+ * <li>The two exponentiations are interleaved so they share one chain of squarings.</li>
+ * <li>Whether y is in the group is checked once per key rather than once per signature.</li>
+ * </ul>
+ * The result is exactly the same as DSASigner.verifySignature(), including the way it truncates
+ * long hashes.
+ * </p>
+ */
+public final class DSAVerifier {
+
+	private static final DSAGroup GROUP = Global.DSAgroupBigA;
+	private static final BigInteger P = GROUP.getP();
+	private static final BigInteger Q = GROUP.getQ();
+	private static final BigInteger TWO = BigInteger.valueOf(2);
+	/** Exponents are reduced mod q so never have more bits than this. */
+	private static final int EXPONENT_BITS = Q.bitLength();
+	private static final BarrettReducer REDUCER = new BarrettReducer(P);
+
+	/** Precompute the comb for y after this many verifications with the same key object. Building
+	 * it costs about as much as a slow verification, so it isn't worth it for keys used once. */
+	static final int PRECOMPUTE_AFTER_USES = 2;
+
+	private DSAVerifier() {}
+
+	/** Created on first use, takes a few milliseconds and 256KB. 8 squarings per exponentiation. */
+	private static class GHolder {
+		static final Comb G_COMB = new Comb(GROUP.getG(), 8, 4);
+	}
+
+	/**
+	 * Verify a DSA signature made with {@link Global#DSAgroupBigA}.
+	 * @param key The public key. Only its y is used; the group is assumed to be DSAgroupBigA.
+	 * @param r The first half of the signature.
+	 * @param s The second half of the signature.
+	 * @param hashes The hash(es) the signature might be for.
+	 * @return True if the signature is valid for any of the hashes.
+	 */
+	public static boolean verify(DSAPublicKey key, BigInteger r, BigInteger s, byte[]... hashes) {
+		if(r.signum() <= 0 || Q.compareTo(r) <= 0) return false;
+		if(s.signum() <= 0 || Q.compareTo(s) <= 0) return false;
+		KeyState state = getState(key);
+		if(!state.inGroup) return false;
+		BigInteger w = s.modInverse(Q);
+		BigInteger u2 = r.multiply(w).mod(Q);
+		Comb yComb = state.comb;
+		BigInteger yPart = null;
+		for(byte[] hash : hashes) {
+			BigInteger u1 = calculateE(hash).multiply(w).mod(Q);
+			BigInteger v;
+			if(yComb != null) {
+				v = Comb.multiExp(new Comb[] { GHolder.G_COMB, yComb }, new BigInteger[] { u1, u2 });
+			} else {
+				if(yPart == null) yPart = key.getY().modPow(u2, P);
+				v = REDUCER.multiply(GHolder.G_COMB.pow(u1), yPart);
+			}
+			if(v.mod(Q).equals(r)) return true;
+		}
+		return false;
+	}
+
+	/** Same as DSASigner: if the hash is longer than q, use its leftmost bytes. */
+	private static BigInteger calculateE(byte[] message) {
+		if(EXPONENT_BITS >= message.length * 8)
+			return new BigInteger(1, message);
+		byte[] trunc = new byte[EXPONENT_BITS / 8];
+		System.arraycopy(message, 0, trunc, 0, trunc.length);
+		return new BigInteger(1, trunc);
+	}
+
+	private static KeyState getState(DSAPublicKey key) {
+		KeyState state = key.verifierState;
+		if(state == null) {
+			// Same check as BouncyCastle's DSAPublicKeyParameters.
+			BigInteger y = key.getY();
+			boolean inGroup = TWO.compareTo(y) <= 0 && P.subtract(TWO).compareTo(y) >= 0 &&
+				BigInteger.ONE.equals(y.modPow(Q, P));
+			state = new KeyState(inGroup);
+			key.verifierState = state;
+		}
+		if(state.inGroup && state.comb == null && ++state.uses >= PRECOMPUTE_AFTER_USES) {
+			// Racy, but the worst that can happen is we build it twice.
+			// 32 squarings per exponentiation, 8KB per key.
+			state.comb = new Comb(key.getY(), 4, 2);
+		}
+		return state;
+	}
+
+	/** Per-key state, kept in a transient field on the DSAPublicKey. */
+	static final class KeyState {
+		final boolean inGroup;
+		/** Not exact, it is only used to decide when to build the comb. */
+		int uses;
+		volatile Comb comb;
+
+		KeyState(boolean inGroup) {
+			this.inGroup = inGroup;
+		}
+	}
+
+	/**
+	 * Lim-Lee comb for a fixed base. The exponent is split into h*v pieces of a bits each, and we
+	 * precompute base^(2^(i*a)) for each piece, and every product of h of those at a time (v
+	 * tables of 2^h entries). An exponentiation then costs a squarings and at most a*v
+	 * multiplications.
+	 */
+	static final class Comb {
+		/** Bits per piece, i.e. the number of squarings. */
+		private final int a;
+		/** Bases per table. */
+		private final int h;
+		/** tables[j][mask] = product over set bits i of mask of base^(2^((j*h+i)*a)) */
+		private final BigInteger[][] tables;
+
+		Comb(BigInteger base, int h, int v) {
+			this.h = h;
+			this.a = (EXPONENT_BITS + h * v - 1) / (h * v);
+			BigInteger[] pieces = new BigInteger[h * v];
+			BigInteger x = base.mod(P);
+			for(int i=0;i<pieces.length;i++) {
+				if(i > 0)
+					for(int k=0;k<a;k++)
+						x = REDUCER.multiply(x, x);
+				pieces[i] = x;
+			}
+			tables = new BigInteger[v][1 << h];
+			for(int j=0;j<v;j++) {
+				BigInteger[] table = tables[j];
+				table[0] = BigInteger.ONE;
+				for(int mask=1;mask<table.length;mask++) {
+					int low = Integer.numberOfTrailingZeros(mask);
+					int rest = mask & (mask - 1);
+					BigInteger piece = pieces[j * h + low];
+					table[mask] = rest == 0 ? piece : REDUCER.multiply(table[rest], piece);
+				}
+			}
+		}
+
+		BigInteger pow(BigInteger exponent) {
+			return multiExp(new Comb[] { this }, new BigInteger[] { exponent });
+		}
+
+		/**
+		 * Compute the product of combs[i].base ^ exponents[i] mod p, sharing the squarings.
+		 * @param exponents Must be non-negative and less than q.
+		 */
+		static BigInteger multiExp(Comb[] combs, BigInteger[] exponents) {
+			int maxA = 0;
+			for(Comb c : combs)
+				maxA = Math.max(maxA, c.a);
+			BigInteger acc = null;
+			for(int bit=maxA-1;bit>=0;bit--) {
+				if(acc != null)
+					acc = REDUCER.multiply(acc, acc);
+				for(int c=0;c<combs.length;c++) {
+					Comb comb = combs[c];
+					if(bit >= comb.a) continue;
+					BigInteger e = exponents[c];
+					for(int j=0;j<comb.tables.length;j++) {
+						int mask = 0;
+						for(int i=0;i<comb.h;i++) {
+							if(e.testBit((j * comb.h + i) * comb.a + bit))
+								mask |= 1 << i;
+						}
+						if(mask == 0) continue;
+						BigInteger t = comb.tables[j][mask];
+						acc = acc == null ? t : REDUCER.multiply(acc, t);
+					}
+				}
+			}
+			return acc == null ? BigInteger.ONE : acc;
+		}
+	}
+
+	/**
+	 * Barrett reduction for a fixed modulus. BigInteger.mod() does a full long division, which
+	 * is several times slower than the two multiplications this needs.
+	 */
+	static final class BarrettReducer {
+		private final BigInteger modulus;
+		private final int k;
+		/** floor(2^(2k) / modulus) */
+		private final BigInteger mu;
+
+		BarrettReducer(BigInteger modulus) {
+			this.modulus = modulus;
+			this.k = modulus.bitLength();
+			this.mu = BigInteger.ONE.shiftLeft(2 * k).divide(modulus);
+		}
+
+		/** @return x*y mod modulus, for x and y already reduced. */
+		BigInteger multiply(BigInteger x, BigInteger y) {
+			return reduce(x.multiply(y));
+		}
+
+		/** @param x Must be non-negative and less than modulus^2. */
+		BigInteger reduce(BigInteger x) {
+			BigInteger q = x.shiftRight(k - 1).multiply(mu).shiftRight(k + 1);
+			BigInteger r = x.subtract(q.multiply(modulus));
+			while(r.compareTo(modulus) >= 0)
+				r = r.subtract(modulus);
+			return r;
+		}
+	}
+
+}
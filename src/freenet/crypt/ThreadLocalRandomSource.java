@@ -0,0 +1,213 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * A {@link RandomSource} which gives each thread its own generator, seeded from a master
+ * RandomSource (normally {@link Yarrow}).
+ * <p>
+ * Yarrow is synchronized, and does its rekeying inline, so on a busy node every thread which
+ * needs a random number (request UIDs, routing, padding, salts...) queues up on one lock. Here
+ * each thread instead has an AES-256 counter mode generator which needs no locking at all. Each
+ * generator rekeys itself from its own output every time it refills its buffer, so a later
+ * compromise of its state doesn't reveal earlier output, and periodically mixes in fresh output
+ * from the master so that it benefits from any entropy added since it was created.
+ * </p><p>
+ * Entropy is passed through to the master, and so is {@link #write_seed(boolean)} if the master
+ * supports it, so this can be used anywhere the master could.
+ * </p>
+ */
+@SuppressWarnings("serial")
+public class ThreadLocalRandomSource extends RandomSource implements PersistentRandomSource {
+
+	/** Reseed a thread's generator from the master after this many bytes of output... */
+	static final long RESEED_BYTES = 1024 * 1024;
+	/** ... or after this long, whichever comes first. */
+	static final long RESEED_INTERVAL = MINUTES.toNanos(10);
+	private static final int KEY_SIZE = 32;
+	private static final int BUFFER_SIZE = 512;
+
+	private final RandomSource master;
+	private final transient ThreadLocal<Generator> generators = new ThreadLocal<Generator>() {
+		@Override
+		protected Generator initialValue() {
+			return new Generator();
+		}
+	};
+
+	public ThreadLocalRandomSource(RandomSource master) {
+		this.master = master;
+	}
+
+	public RandomSource getMaster() {
+		return master;
+	}
+
+	@Override
+	protected int next(int bits) {
+		return generators.get().nextInt() >>> (32 - bits);
+	}
+
+	@Override
+	public void nextBytes(byte[] bytes) {
+		generators.get().nextBytes(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public int acceptEntropy(EntropySource source, long data, int entropyGuess) {
+		return master.acceptEntropy(source, data, entropyGuess);
+	}
+
+	@Override
+	public int acceptTimerEntropy(EntropySource timer) {
+		return master.acceptTimerEntropy(timer);
+	}
+
+	@Override
+	public int acceptTimerEntropy(EntropySource fnpTimingSource, double bias) {
+		return master.acceptTimerEntropy(fnpTimingSource, bias);
+	}
+
+	@Override
+	public int acceptEntropyBytes(EntropySource myPacketDataSource, byte[] buf, int offset, int length, double bias) {
+		return master.acceptEntropyBytes(myPacketDataSource, buf, offset, length, bias);
+	}
+
+	@Override
+	public void waitForEntropy(int bits) {
+		master.waitForEntropy(bits);
+	}
+
+	@Override
+	public void close() {
+		master.close();
+	}
+
+	@Override
+	public void write_seed(boolean force) {
+		if(master instanceof PersistentRandomSource)
+			((PersistentRandomSource) master).write_seed(force);
+	}
+
+	/** Get a key from the master, mixed with the old key if there is one. */
+	private byte[] masterKey(byte[] oldKey) {
+		byte[] seed = new byte[KEY_SIZE];
+		master.nextBytes(seed);
+		if(oldKey == null) return seed;
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			md.update(oldKey);
+			md.update(seed);
+			return md.digest();
+		} finally {
+			SHA256.returnMessageDigest(md);
+			Arrays.fill(seed, (byte) 0);
+		}
+	}
+
+	/**
+	 * AES-256 in counter mode, with a new key (taken from its own output) for every buffer full.
+	 * Only ever used by one thread.
+	 */
+	private class Generator {
+
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private final byte[] zeros = new byte[BUFFER_SIZE];
+		private final byte[] iv = new byte[16];
+		/** Index of the next unused byte in buffer */
+		private int pos;
+		private byte[] key;
+		private long bytesSinceReseed;
+		private long lastReseed;
+		private final Cipher jcaCipher;
+
+		Generator() {
+			Cipher c = null;
+			if(Rijndael.AesCtrProvider != null) {
+				try {
+					c = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+				} catch (GeneralSecurityException e) {
+					// Use Rijndael.
+				}
+			}
+			jcaCipher = c;
+			reseed();
+		}
+
+		int nextInt() {
+			if(pos > BUFFER_SIZE - 4) refill();
+			byte[] b = buffer;
+			int p = pos;
+			int val = ((b[p] & 0xff) << 24) | ((b[p+1] & 0xff) << 16) | ((b[p+2] & 0xff) << 8) | (b[p+3] & 0xff);
+			Arrays.fill(b, p, p + 4, (byte) 0);
+			pos = p + 4;
+			return val;
+		}
+
+		void nextBytes(byte[] out, int offset, int length) {
+			while(length > 0) {
+				if(pos == BUFFER_SIZE) refill();
+				int count = Math.min(length, BUFFER_SIZE - pos);
+				System.arraycopy(buffer, pos, out, offset, count);
+				Arrays.fill(buffer, pos, pos + count, (byte) 0);
+				pos += count;
+				offset += count;
+				length -= count;
+			}
+		}
+
+		private void reseed() {
+			byte[] newKey = masterKey(key);
+			if(key != null) Arrays.fill(key, (byte) 0);
+			key = newKey;
+			bytesSinceReseed = 0;
+			lastReseed = System.nanoTime();
+			generate();
+		}
+
+		private void refill() {
+			bytesSinceReseed += BUFFER_SIZE - KEY_SIZE;
+			if(bytesSinceReseed >= RESEED_BYTES || System.nanoTime() - lastReseed >= RESEED_INTERVAL)
+				reseed();
+			else
+				generate();
+		}
+
+		/** Fill the buffer with keystream, then take the start of it as the next key. */
+		private void generate() {
+			try {
+				if(jcaCipher != null) {
+					jcaCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+					jcaCipher.doFinal(zeros, 0, BUFFER_SIZE, buffer, 0);
+				} else {
+					Rijndael aes = new Rijndael(256, 128);
+					aes.initialize(key);
+					CTRBlockCipher ctr = new CTRBlockCipher(aes);
+					ctr.init(iv);
+					ctr.processBytes(zeros, 0, BUFFER_SIZE, buffer, 0);
+				}
+			} catch (GeneralSecurityException e) {
+				throw new Error("AES failed: "+e, e);
+			} catch (UnsupportedCipherException e) {
+				throw new Error("AES failed: "+e, e);
+			}
+			System.arraycopy(buffer, 0, key, 0, KEY_SIZE);
+			Arrays.fill(buffer, 0, KEY_SIZE, (byte) 0);
+			pos = KEY_SIZE;
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import freenet.io.comm.IncomingPacketFilter.DECODED;
+import freenet.node.PeerNode;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.LRUMap;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread.PriorityLevel;
+
+/**
+ * Packets which didn't match the peer they came from, waiting to be tried against our other
+ * peers, in case one has changed its address, and then as auth packets (JFK connection setup).
+ * This is done off the receive thread, because it means trying to decrypt the packet once for
+ * every peer, so a burst of handshakes doesn't delay the packets of peers which are already
+ * connected. Packets from the address of an existing peer are tried first, and each address may
+ * only send so many.
+ */
+class AuthPacketQueue {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, AuthPacketQueue.class);
+			}
+		});
+	}
+
+	/** Maximum number of packets waiting to be tried as auth packets, for each priority. */
+	static final int MAX_QUEUED_AUTH_PACKETS = 256;
+	/** Maximum number of threads trying packets as auth packets. Trying a packet means
+	 * decrypting it with the setup key of every peer, and the JFK messages which are found are
+	 * then handled on FNPPacketMangler's auth handler thread. */
+	static final int AUTH_PACKET_THREADS = 2;
+	/** Number of auth packets we will accept from one address in a burst. */
+	static final int AUTH_PACKET_BURST = 32;
+	/** After a burst, accept one auth packet from an address every this many milliseconds. */
+	static final long AUTH_PACKET_INTERVAL = 100;
+	/** Maximum number of addresses to remember for rate limiting. */
+	static final int AUTH_PACKET_SOURCES = 1024;
+
+	/** Tries a queued packet against our peers and as an auth packet. */
+	interface Processor {
+		DECODED process(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now);
+	}
+
+	private final Executor executor;
+	private final Processor processor;
+	private final String name;
+	/** Packets from the address of one of our peers, i.e. a peer reconnecting or rekeying. */
+	private final ArrayDeque<QueuedAuthPacket> knownSourceAuthPackets = new ArrayDeque<QueuedAuthPacket>();
+	/** Packets from anywhere else: new opennet peers, announcements to a seednode, peers
+	 * which have changed their address. */
+	private final ArrayDeque<QueuedAuthPacket> unknownSourceAuthPackets = new ArrayDeque<QueuedAuthPacket>();
+	/** Everything below is protected by synchronization on this. */
+	private final LRUMap<Peer, AuthPacketAllowance> authPacketAllowances = new LRUMap<Peer, AuthPacketAllowance>();
+	private int runningAuthPacketThreads;
+	private long droppedAuthPackets;
+
+	AuthPacketQueue(Executor executor, String name, Processor processor) {
+		this.executor = executor;
+		this.name = name;
+		this.processor = processor;
+	}
+
+	private static class QueuedAuthPacket {
+		final byte[] buf;
+		final Peer peer;
+		final PeerNode opn;
+		final long now;
+
+		QueuedAuthPacket(byte[] buf, Peer peer, PeerNode opn, long now) {
+			this.buf = buf;
+			this.peer = peer;
+			this.opn = opn;
+			this.now = now;
+		}
+	}
+
+	/** Token bucket limiting how many packets from one address are tried as auth packets. */
+	private static class AuthPacketAllowance {
+		private int tokens = AUTH_PACKET_BURST;
+		private long lastRefill;
+
+		AuthPacketAllowance(long now) {
+			lastRefill = now;
+		}
+
+		boolean take(long now) {
+			long refill = (now - lastRefill) / AUTH_PACKET_INTERVAL;
+			if(refill > 0) {
+				if(tokens + refill >= AUTH_PACKET_BURST) {
+					tokens = AUTH_PACKET_BURST;
+					lastRefill = now;
+				} else {
+					tokens += refill;
+					lastRefill += refill * AUTH_PACKET_INTERVAL;
+				}
+			}
+			if(tokens == 0) return false;
+			tokens--;
+			return true;
+		}
+	}
+
+	/**
+	 * Queue a packet to be tried as an auth packet.
+	 * @param opn The peer whose address the packet came from, or null.
+	 * @return QUEUED, or DROPPED if the queue is full or the address has sent too many.
+	 */
+	DECODED queue(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now) {
+		ArrayDeque<QueuedAuthPacket> queue = opn != null ? knownSourceAuthPackets : unknownSourceAuthPackets;
+		boolean startThread = false;
+		synchronized(this) {
+			AuthPacketAllowance allowance = authPacketAllowances.get(peer);
+			if(allowance == null)
+				allowance = new AuthPacketAllowance(now);
+			authPacketAllowances.push(peer, allowance);
+			while(authPacketAllowances.size() > AUTH_PACKET_SOURCES)
+				authPacketAllowances.popKey();
+			if(queue.size() >= MAX_QUEUED_AUTH_PACKETS || !allowance.take(now)) {
+				droppedAuthPackets++;
+				if(logMINOR) Logger.minor(this, "Dropping possible auth packet from "+peer+
+						" (queued: "+queue.size()+", dropped so far: "+droppedAuthPackets+")");
+				return DECODED.DROPPED;
+			}
+			queue.add(new QueuedAuthPacket(Arrays.copyOfRange(buf, offset, offset+length), peer, opn, now));
+			if(runningAuthPacketThreads < AUTH_PACKET_THREADS) {
+				runningAuthPacketThreads++;
+				startThread = true;
+			}
+		}
+		if(startThread)
+			executor.execute(authPacketHandler, "Auth packet handler for "+name);
+		return DECODED.QUEUED;
+	}
+
+	private final PrioRunnable authPacketHandler = new PrioRunnable() {
+
+		@Override
+		public void run() {
+			while(true) {
+				QueuedAuthPacket packet;
+				synchronized(AuthPacketQueue.this) {
+					packet = knownSourceAuthPackets.poll();
+					if(packet == null)
+						packet = unknownSourceAuthPackets.poll();
+					if(packet == null) {
+						runningAuthPacketThreads--;
+						return;
+					}
+				}
+				try {
+					processor.process(packet.buf, 0, packet.buf.length, packet.peer, packet.opn, packet.now);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" processing auth packet from "+packet.peer, t);
+				}
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return PriorityLevel.HIGH_PRIORITY.value;
+		}
+
+	};
+
+	/** @return The number of packets which have not been tried as auth packets because of the
+	 * rate limits. */
+	synchronized long getDroppedAuthPackets() {
+		return droppedAuthPackets;
+	}
+
+	synchronized int getRunningAuthPacketThreads() {
+		return runningAuthPacketThreads;
+	}
+
+}
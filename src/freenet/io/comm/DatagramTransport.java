@@ -0,0 +1,32 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+
+/**
+ * The datagram socket underneath a UdpSocketHandler. Normally a real UDP socket, but simulations
+ * use a VirtualNetwork so that thousands of nodes can run in one JVM without binding any ports.
+ * The methods behave like the same methods on java.net.DatagramSocket.
+ */
+public interface DatagramTransport {
+
+	/** Wait for a packet and copy it into the given DatagramPacket, truncating it if necessary.
+	 * @throws IOException If the transport has been closed. */
+	void receive(DatagramPacket packet) throws IOException;
+
+	/** Send a packet to the address and port set on it. Does not block waiting for it to be
+	 * delivered. */
+	void send(DatagramPacket packet) throws IOException;
+
+	int getLocalPort();
+
+	InetAddress getLocalAddress();
+
+	/** Close the transport. Any thread blocked in receive() will get an IOException. */
+	void close();
+
+}
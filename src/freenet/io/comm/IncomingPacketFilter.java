@@ -13,7 +13,13 @@ public interface IncomingPacketFilter {
 		DECODED,
 		NOT_DECODED,
 		DIDNT_WANT_OPENNET,
-		SHUTTING_DOWN
+		SHUTTING_DOWN,
+		/** Didn't match any established session, so it has been handed to another thread to
+		 * be tried as a connection setup packet. */
+		QUEUED,
+		/** Didn't match any established session, and was dropped because too many packets from
+		 * the same address, or in total, are waiting to be tried as connection setup packets. */
+		DROPPED
 	}
 	
     /**
@@ -30,12 +30,28 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 	private NodeCrypto crypto;
 	private Node node;
 	private final EntropySource fnpTimingSource;
+	private final AuthPacketQueue authPackets;
 
 	public IncomingPacketFilterImpl(FNPPacketMangler mangler, Node node, NodeCrypto crypto) {
 		this.mangler = mangler;
 		this.node = node;
 		this.crypto = crypto;
 		fnpTimingSource = new EntropySource();
+		authPackets = new AuthPacketQueue(node.executor, mangler.toString(), new AuthPacketQueue.Processor() {
+
+			@Override
+			public DECODED process(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now) {
+				DECODED decoded = processUnmatched(buf, offset, length, peer, opn, now);
+				if(logMINOR) {
+					if(decoded == DECODED.DECODED)
+						successfullyDecodedPackets.incrementAndGet();
+					else
+						failedDecodePackets.incrementAndGet();
+				}
+				return decoded;
+			}
+
+		});
 	}
 
 	@Override
@@ -68,22 +84,27 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		} else {
 			Logger.normal(this, "Got packet from unknown address");
 		}
-		DECODED decoded = mangler.process(buf, offset, length, peer, opn, now);
-		if(decoded == DECODED.DECODED) {
-			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
-		} else if(decoded == DECODED.NOT_DECODED) {
-			
-			for(PeerNode pn : crypto.getPeerNodes()) {
-				if(pn == opn) continue;
-				if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
-					if(logMINOR) successfullyDecodedPackets.incrementAndGet();
-					return DECODED.DECODED;
-				}
-			}
-			
-			if(logMINOR) failedDecodePackets.incrementAndGet();
+		if(node.isStopping()) return DECODED.SHUTTING_DOWN;
+		// Trying the packet against every peer is expensive, so do it on the auth packet
+		// threads rather than holding up the packets of peers which are already connected.
+		return authPackets.queue(buf, offset, length, peer, opn, now);
+	}
+
+	/** Called on an auth packet thread for a packet which didn't match the peer it came from. */
+	private DECODED processUnmatched(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now) {
+		// A connected peer whose address has changed.
+		for(PeerNode pn : crypto.getPeerNodes()) {
+			if(pn == opn) continue;
+			if(pn.handleReceivedPacket(buf, offset, length, now, peer))
+				return DECODED.DECODED;
 		}
-		return decoded;
+		return mangler.process(buf, offset, length, peer, opn, now);
+	}
+
+	/** @return The number of packets which have not been tried as auth packets because of the
+	 * rate limits, see AuthPacketQueue. */
+	public long getDroppedAuthPackets() {
+		return authPackets.getDroppedAuthPackets();
 	}
 
 }
@@ -29,7 +29,7 @@ import freenet.support.transport.ip.IPUtil;
 
 public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
 
-	private final DatagramSocket _sock;
+	private final DatagramTransport _sock;
 	private final InetAddress _bindTo;
 	private final AddressTracker tracker;
 	private IncomingPacketFilter lowLevelFilter;
@@ -137,31 +137,81 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
-		int sz = _sock.getReceiveBufferSize();
+		DatagramSocket sock = new DatagramSocket(listenPort, bindto);
+		int sz = sock.getReceiveBufferSize();
 		if(sz < 65536) {
-			_sock.setReceiveBufferSize(65536);
+			sock.setReceiveBufferSize(65536);
 		}
 		try {
 			// Exit reasonably quickly
-			_sock.setReuseAddress(true);
+			sock.setReuseAddress(true);
 		} catch (SocketException e) {
 			throw new RuntimeException(e);
 		}
 		try {
-			_sock.setTrafficClass(node.getTrafficClass().value);
+			sock.setTrafficClass(node.getTrafficClass().value);
 		} catch (SocketException e) {
 			Logger.error(this, "Failed to setTrafficClass with "+node.getTrafficClass().value,e);
 		}
-		boolean r = socketOptions.setAddressPreference(_sock, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
+		boolean r = socketOptions.setAddressPreference(sock, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
 		if(logMINOR) Logger.minor(this, "Setting IPV6_PREFER_SRC_PUBLIC for port "+ listenPort + " is a "+(r ? "success" : "failure"));
 //		}
+		_sock = new SocketTransport(sock);
 		// Only used for debugging, no need to seed from Yarrow
 		dropRandom = node.fastWeakRandom;
 		tracker = AddressTracker.create(node.lastBootID, node.runDir(), listenPort);
 		tracker.startSend(startupTime);
 	}
 
+	/** Create a handler on some other transport, e.g. a VirtualNetwork for simulations. */
+	public UdpSocketHandler(DatagramTransport transport, Node node, long startupTime, String title, IOStatisticCollector collector) {
+		this.node = node;
+		this.collector = collector;
+		this.title = title;
+		_bindTo = transport.getLocalAddress();
+		listenPort = transport.getLocalPort();
+		_sock = transport;
+		dropRandom = node.fastWeakRandom;
+		tracker = AddressTracker.create(node.lastBootID, node.runDir(), listenPort);
+		tracker.startSend(startupTime);
+	}
+
+	/** A real UDP socket. */
+	private static class SocketTransport implements DatagramTransport {
+
+		private final DatagramSocket sock;
+
+		SocketTransport(DatagramSocket sock) {
+			this.sock = sock;
+		}
+
+		@Override
+		public void receive(DatagramPacket packet) throws IOException {
+			sock.receive(packet);
+		}
+
+		@Override
+		public void send(DatagramPacket packet) throws IOException {
+			sock.send(packet);
+		}
+
+		@Override
+		public int getLocalPort() {
+			return sock.getLocalPort();
+		}
+
+		@Override
+		public InetAddress getLocalAddress() {
+			return sock.getLocalAddress();
+		}
+
+		@Override
+		public void close() {
+			sock.close();
+		}
+
+	}
+
 	/** Must be called, or we will NPE in run() */
 	@Override
 	public void setLowLevelFilter(IncomingPacketFilter f) {
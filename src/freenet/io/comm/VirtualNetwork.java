@@ -0,0 +1,395 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import freenet.support.Logger;
+import freenet.support.VirtualTicker;
+import freenet.support.metrics.Histogram;
+import freenet.support.metrics.MetricsRegistry;
+
+/**
+ * An in-process network for simulations. Sockets are bound to a port number on the network, not
+ * to a real UDP port, so thousands of nodes can run in one JVM. Packets are delivered by port
+ * number alone; the address they are sent to is ignored, and they appear to come from the
+ * loopback address.
+ *
+ * Each packet is delayed by a fixed latency plus a random jitter, and by the time it takes to
+ * send it through the sending socket's uplink if a bandwidth limit is set. Packets may be lost
+ * at random, and are dropped if the receiver already has too many packets waiting. All the
+ * random choices come from a seeded Random, so given the same sequence of sends the network
+ * behaves the same way each time.
+ *
+ * By default the network runs in real time, with its own thread delivering packets. Give it a
+ * VirtualTicker instead and packets are delivered when the ticker is run, which together with
+ * IncomingPacketFilter's set on the sockets gives a fully deterministic simulation. Real nodes
+ * use System.currentTimeMillis() and their own threads, so they need the real time network.
+ *
+ * getReport() summarises what happened, for comparing runs.
+ */
+public class VirtualNetwork {
+
+	/** Like the receive buffer size UdpSocketHandler asks for. */
+	public static final int DEFAULT_MAX_QUEUED_PACKETS = 64;
+
+	private final Random random;
+	/** If not null, we run on simulated time. */
+	private final VirtualTicker ticker;
+	private final Map<Integer, VirtualSocket> sockets = new HashMap<Integer, VirtualSocket>();
+	/** Packets not yet delivered, in real time mode. */
+	private final PriorityQueue<InFlight> inFlight = new PriorityQueue<InFlight>();
+	private Thread deliveryThread;
+	private long sequence;
+
+	private long latency;
+	private long jitter;
+	private int bandwidth;
+	private double lossProbability;
+	private int maxQueuedPackets = DEFAULT_MAX_QUEUED_PACKETS;
+
+	private long packetsSent;
+	private long bytesSent;
+	private long packetsDelivered;
+	private long packetsLost;
+	private long packetsOverflowed;
+	private long packetsUndeliverable;
+	private final Histogram delay;
+
+	private static final InetAddress ADDRESS = InetAddress.getLoopbackAddress();
+
+	/** Create a network which runs in real time. */
+	public VirtualNetwork(long seed) {
+		this(seed, null);
+	}
+
+	/** @param ticker If not null, run on the ticker's simulated time, delivering packets when it
+	 * runs. */
+	public VirtualNetwork(long seed, VirtualTicker ticker) {
+		this.random = new Random(seed);
+		this.ticker = ticker;
+		delay = new MetricsRegistry().histogram("virtual_network_delay_seconds", "Delay from sending a packet to delivering it", 1e-3);
+	}
+
+	/** Set the one way latency of every link in milliseconds. */
+	public synchronized void setLatency(long latency) {
+		if(latency < 0) throw new IllegalArgumentException();
+		this.latency = latency;
+	}
+
+	/** Each packet is delayed by a further random amount up to this many milliseconds. Packets
+	 * can arrive out of order if this is more than the time between them. */
+	public synchronized void setJitter(long jitter) {
+		if(jitter < 0) throw new IllegalArgumentException();
+		this.jitter = jitter;
+	}
+
+	/** Set the upload bandwidth of each socket in bytes per second, or 0 for unlimited. Packets
+	 * queue in the sender's uplink until they can be sent. */
+	public synchronized void setBandwidth(int bytesPerSecond) {
+		if(bytesPerSecond < 0) throw new IllegalArgumentException();
+		this.bandwidth = bytesPerSecond;
+	}
+
+	/** Set the probability that any one packet is lost. */
+	public synchronized void setLossProbability(double probability) {
+		if(probability < 0.0 || probability > 1.0) throw new IllegalArgumentException();
+		this.lossProbability = probability;
+	}
+
+	/** Set how many packets can be waiting to be received on a socket before further packets
+	 * are dropped. */
+	public synchronized void setMaxQueuedPackets(int max) {
+		if(max <= 0) throw new IllegalArgumentException();
+		this.maxQueuedPackets = max;
+	}
+
+	/** Bind a socket to a port on the network.
+	 * @throws SocketException If the port is already in use. */
+	public synchronized VirtualSocket bind(int port) throws SocketException {
+		if(port <= 0 || port > 65535) throw new SocketException("Bad port "+port);
+		if(sockets.containsKey(port)) throw new SocketException("Port "+port+" already in use");
+		VirtualSocket socket = new VirtualSocket(port);
+		sockets.put(port, socket);
+		return socket;
+	}
+
+	private long now() {
+		return ticker == null ? System.currentTimeMillis() : ticker.currentTimeMillis();
+	}
+
+	private void send(VirtualSocket from, byte[] buf, int offset, int length, int toPort) {
+		InFlight packet;
+		synchronized(this) {
+			packetsSent++;
+			bytesSent += length;
+			long now = now();
+			long departure = now;
+			if(bandwidth > 0) {
+				// Keep the uplink in microseconds, so small packets on fast links add up.
+				long nowMicros = now * 1000;
+				long start = Math.max(nowMicros, from.uplinkFreeAt);
+				from.uplinkFreeAt = start + length * 1000000L / bandwidth;
+				departure = (from.uplinkFreeAt + 999) / 1000;
+			}
+			if(lossProbability > 0 && random.nextDouble() < lossProbability) {
+				packetsLost++;
+				return;
+			}
+			long arrival = departure + latency;
+			if(jitter > 0)
+				arrival += (long) (random.nextDouble() * (jitter + 1));
+			byte[] data = new byte[length];
+			System.arraycopy(buf, offset, data, 0, length);
+			packet = new InFlight(data, from.port, toPort, now, arrival, sequence++);
+			if(ticker == null) {
+				inFlight.add(packet);
+				if(deliveryThread == null) {
+					deliveryThread = new Thread(new Runnable() {
+
+						@Override
+						public void run() {
+							deliveryLoop();
+						}
+
+					}, "Virtual network delivery");
+					deliveryThread.setDaemon(true);
+					deliveryThread.start();
+				} else {
+					notify();
+				}
+				return;
+			}
+		}
+		ticker.queueTimedJobAbsolute(packet, "Virtual network delivery", packet.arrival, true, false);
+	}
+
+	private void deliveryLoop() {
+		while(true) {
+			InFlight packet;
+			synchronized(this) {
+				packet = inFlight.peek();
+				long now = System.currentTimeMillis();
+				if(packet == null || packet.arrival > now) {
+					try {
+						wait(packet == null ? 1000 : packet.arrival - now);
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+					continue;
+				}
+				inFlight.remove();
+			}
+			try {
+				deliver(packet);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" delivering packet", t);
+			}
+		}
+	}
+
+	private void deliver(InFlight packet) {
+		VirtualSocket to;
+		int max;
+		long now;
+		synchronized(this) {
+			to = sockets.get(packet.toPort);
+			if(to == null) {
+				packetsUndeliverable++;
+				return;
+			}
+			max = maxQueuedPackets;
+			now = now();
+		}
+		IncomingPacketFilter filter;
+		boolean overflowed = false;
+		synchronized(to) {
+			filter = to.filter;
+			if(filter == null) {
+				if(to.queue.size() >= max) {
+					overflowed = true;
+				} else {
+					to.queue.add(packet);
+					to.notifyAll();
+				}
+			}
+		}
+		synchronized(this) {
+			if(overflowed)
+				packetsOverflowed++;
+			else
+				packetsDelivered++;
+		}
+		if(overflowed) return;
+		delay.record(now - packet.sent);
+		if(filter != null)
+			filter.process(packet.data, 0, packet.data.length, new Peer(ADDRESS, packet.fromPort), now);
+	}
+
+	private synchronized void unbind(VirtualSocket socket) {
+		if(sockets.get(socket.port) == socket)
+			sockets.remove(socket.port);
+	}
+
+	/** @return A summary of the traffic so far. */
+	public synchronized String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Virtual network: ").append(sockets.size()).append(" sockets\n");
+		sb.append("Packets sent: ").append(packetsSent).append(" (").append(bytesSent).append(" bytes)\n");
+		sb.append("Packets delivered: ").append(packetsDelivered).append('\n');
+		sb.append("Packets lost: ").append(packetsLost).append('\n');
+		sb.append("Packets dropped, receiver too slow: ").append(packetsOverflowed).append('\n');
+		sb.append("Packets dropped, no socket on port: ").append(packetsUndeliverable).append('\n');
+		sb.append("Packets in flight: ").append(packetsSent - packetsLost - packetsDelivered - packetsOverflowed - packetsUndeliverable).append('\n');
+		sb.append("Delay (ms): mean ").append(delay.getCount() == 0 ? 0 : delay.getSum() / delay.getCount());
+		sb.append(" median ").append(delay.getValueAtPercentile(50));
+		sb.append(" 99th percentile ").append(delay.getValueAtPercentile(99));
+		sb.append(" max ").append(delay.getMax()).append('\n');
+		return sb.toString();
+	}
+
+	public synchronized long getPacketsSent() {
+		return packetsSent;
+	}
+
+	public synchronized long getPacketsDelivered() {
+		return packetsDelivered;
+	}
+
+	public synchronized long getPacketsLost() {
+		return packetsLost;
+	}
+
+	public synchronized long getPacketsOverflowed() {
+		return packetsOverflowed;
+	}
+
+	private final class InFlight implements Comparable<InFlight>, Runnable {
+		final byte[] data;
+		final int fromPort;
+		final int toPort;
+		final long sent;
+		final long arrival;
+		final long sequence;
+
+		InFlight(byte[] data, int fromPort, int toPort, long sent, long arrival, long sequence) {
+			this.data = data;
+			this.fromPort = fromPort;
+			this.toPort = toPort;
+			this.sent = sent;
+			this.arrival = arrival;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(InFlight o) {
+			if(arrival != o.arrival) return arrival < o.arrival ? -1 : 1;
+			if(sequence != o.sequence) return sequence < o.sequence ? -1 : 1;
+			return 0;
+		}
+
+		/** Called by the VirtualTicker, which runs jobs in the same order as compareTo(). */
+		@Override
+		public void run() {
+			deliver(this);
+		}
+	}
+
+	/** A socket bound to a port on a VirtualNetwork. Packets can either be received with
+	 * receive(), as UdpSocketHandler does, or passed straight to an IncomingPacketFilter as
+	 * they arrive, which is what deterministic simulations on a VirtualTicker should do. */
+	public class VirtualSocket implements DatagramTransport {
+
+		final int port;
+		private final ArrayDeque<InFlight> queue = new ArrayDeque<InFlight>();
+		private IncomingPacketFilter filter;
+		/** Protected by the network. In microseconds. */
+		private long uplinkFreeAt;
+		private boolean closed;
+
+		private VirtualSocket(int port) {
+			this.port = port;
+		}
+
+		/** Pass incoming packets directly to the filter, on the thread delivering them, rather
+		 * than queueing them for receive(). */
+		public synchronized void setLowLevelFilter(IncomingPacketFilter filter) {
+			this.filter = filter;
+		}
+
+		@Override
+		public void receive(DatagramPacket packet) throws IOException {
+			if(ticker != null) throw new IllegalStateException("Use setLowLevelFilter() on simulated time");
+			InFlight p;
+			synchronized(this) {
+				while(true) {
+					if(closed) throw new SocketException("Socket closed");
+					p = queue.poll();
+					if(p != null) break;
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+				}
+			}
+			int length = Math.min(p.data.length, packet.getData().length - packet.getOffset());
+			System.arraycopy(p.data, 0, packet.getData(), packet.getOffset(), length);
+			packet.setLength(length);
+			packet.setAddress(ADDRESS);
+			packet.setPort(p.fromPort);
+		}
+
+		@Override
+		public void send(DatagramPacket packet) throws IOException {
+			checkClosed();
+			VirtualNetwork.this.send(this, packet.getData(), packet.getOffset(), packet.getLength(), packet.getPort());
+		}
+
+		/** Send a packet without going through a DatagramPacket. */
+		public void send(byte[] data, int offset, int length, int toPort) throws IOException {
+			checkClosed();
+			VirtualNetwork.this.send(this, data, offset, length, toPort);
+		}
+
+		@Override
+		public int getLocalPort() {
+			return port;
+		}
+
+		@Override
+		public InetAddress getLocalAddress() {
+			return ADDRESS;
+		}
+
+		private synchronized void checkClosed() throws SocketException {
+			if(closed) throw new SocketException("Socket closed");
+		}
+
+		@Override
+		public void close() {
+			synchronized(this) {
+				closed = true;
+				queue.clear();
+				notifyAll();
+			}
+			unbind(this);
+		}
+
+		@Override
+		public String toString() {
+			return "virtual:"+port;
+		}
+
+	}
+
+}
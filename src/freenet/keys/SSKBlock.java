@@ -3,14 +3,12 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.keys;
 
-import org.bouncycastle.crypto.params.DSAPublicKeyParameters;
-import org.bouncycastle.crypto.signers.DSASigner;
-
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.util.Arrays;
 
 import freenet.crypt.DSAPublicKey;
+import freenet.crypt.DSAVerifier;
 import freenet.crypt.Global;
 import freenet.crypt.SHA256;
 import freenet.support.Fields;
@@ -157,15 +155,11 @@ public class SSKBlock implements KeyBlock {
 			// Now verify it
 			BigInteger r = new BigInteger(1, bufR);
 			BigInteger s = new BigInteger(1, bufS);
-			DSASigner dsa = new DSASigner();
-			dsa.init(false, new DSAPublicKeyParameters(pubKey.getY(), Global.getDSAgroupBigAParameters()));
 
 			// We probably don't need to try both here...
 			// but that's what the legacy code was doing...
 			// @see comments in Global before touching it
-			if(!(dsa.verifySignature(Global.truncateHash(overallHash), r, s) ||
-			     dsa.verifySignature(overallHash, r, s))
-			  ) {
+			if(!DSAVerifier.verify(pubKey, r, s, Global.truncateHash(overallHash), overallHash)) {
 				if (dontVerify)
 					Logger.error(this, "DSA verification failed with dontVerify!!!!");
 				throw new SSKVerifyException("Signature verification failed for node-level SSK");
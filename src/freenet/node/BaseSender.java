@@ -9,6 +9,8 @@ import freenet.io.comm.DisconnectedException;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageFilter;
 import freenet.io.comm.NotConnectedException;
+import freenet.io.comm.PeerContext;
+import freenet.io.comm.SlowAsyncMessageFilterCallback;
 import freenet.keys.Key;
 import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
@@ -19,6 +21,7 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.TimeUtil;
+import freenet.support.io.NativeThread.PriorityLevel;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
@@ -155,6 +158,11 @@ public abstract class BaseSender implements ByteCounter {
 		
         origTag.addRoutedTo(next, false);
         
+        if(waitForAcceptedAsync()) {
+        	sendRequestAsync(next, origTag, req);
+        	return;
+        }
+        
         try {
         	//This is the first contact to this node, it is more likely to timeout
 			/*
@@ -213,6 +221,164 @@ loadWaiterLoop:
         onAccepted(next);
 	}
     
+    /** Send the request as innerRouteRequestsOld() does, but without tying up a thread
+     * while it waits to be sent and acknowledged, and then wait for the Accepted on an
+     * AcceptedCallback. As with sendSync(), we only start the Accepted timeout once the
+     * peer has acknowledged the request. */
+    private void sendRequestAsync(final PeerNode next, final UIDTag origTag, final Message req) {
+    	startedAsyncWait();
+    	next.sendAcked(req, this, realTimeFlag, new PeerNode.SendAckedCallback() {
+
+			@Override
+			public void acknowledged() {
+				try {
+					next.reportRoutedTo(key.toNormalizedDouble(), source == null, realTimeFlag, source, nodesRoutedTo, htl);
+					node.peers.incrementSelectionSamples(System.currentTimeMillis(), next);
+					synchronized(BaseSender.this) {
+						hasForwarded = true;
+					}
+					new AcceptedCallback(next, origTag).schedule();
+				} finally {
+					finishedAsyncWait();
+				}
+			}
+
+			@Override
+			public void disconnected() {
+				try {
+					Logger.minor(this, "Not connected");
+					next.noLongerRoutingTo(origTag, false);
+					routeRequests();
+				} finally {
+					finishedAsyncWait();
+				}
+			}
+
+			@Override
+			public void waitedTooLong() {
+				try {
+					Logger.error(this, "Failed to send "+req+" to "+next+" in a reasonable time.");
+					next.noLongerRoutingTo(origTag, false);
+					// Try another node.
+					routeRequests();
+				} finally {
+					finishedAsyncWait();
+				}
+			}
+
+    	});
+    }
+    
+    /** Waits for the Accepted (or a rejection) after we have sent the request to a 
+     * peer, without tying up a thread. Does the same as the loop at the end of 
+     * innerRouteRequestsOld(): on Accepted, call onAccepted(), otherwise reroute. */
+    private class AcceptedCallback implements SlowAsyncMessageFilterCallback {
+    	
+    	private final PeerNode next;
+    	private final UIDTag origTag;
+    	
+    	AcceptedCallback(PeerNode next, UIDTag origTag) {
+    		this.next = next;
+    		this.origTag = origTag;
+    	}
+    	
+    	void schedule() {
+    		MessageFilter mf = makeAcceptedRejectedFilter(next, getAcceptedTimeout(), origTag);
+    		startedAsyncWait();
+    		try {
+    			node.usm.addAsyncFilter(mf, this, BaseSender.this);
+    		} catch (DisconnectedException e) {
+    			onDisconnect(next);
+    		}
+    	}
+
+		@Override
+		public void onMatched(Message msg) {
+			try {
+				if(logMINOR) Logger.minor(this, "first part got "+msg);
+				DO action = handleAcceptedRejected(msg, null, next, origTag);
+				if(action == null || action == DO.WAIT) {
+					// Not a final answer, keep waiting.
+					schedule();
+				} else if(action == DO.NEXT_PEER) {
+					routeRequests();
+				} else { // FINISHED => accepted
+					if(logMINOR) Logger.minor(this, "Got Accepted");
+					gotMessages = 0;
+					lastMessage = null;
+					onAccepted(next);
+				}
+			} finally {
+				finishedAsyncWait();
+			}
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return false;
+		}
+
+		@Override
+		public void onTimeout() {
+			try {
+				handleAcceptedTimeout(next, origTag);
+				routeRequests();
+			} finally {
+				finishedAsyncWait();
+			}
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+			try {
+				Logger.normal(this, "Disconnected from "+next+" while waiting for Accepted on "+uid);
+				next.noLongerRoutingTo(origTag, false);
+				routeRequests();
+			} finally {
+				finishedAsyncWait();
+			}
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+			onDisconnect(ctx);
+		}
+
+		@Override
+		public int getPriority() {
+			return PriorityLevel.NORM_PRIORITY.value;
+		}
+		
+		@Override
+		public String toString() {
+			return super.toString()+":"+next+":"+BaseSender.this;
+		}
+    	
+    }
+    
+    /** If true, innerRouteRequests() returns as soon as the request has been queued
+     * (old load management only), and waits for it to be acknowledged and then for 
+     * the Accepted on callbacks. The sender must then not assume that it has finished when
+     * routeRequests() returns: startedAsyncWait() and finishedAsyncWait() tell it 
+     * when callbacks are pending. */
+    protected boolean waitForAcceptedAsync() {
+    	return false;
+    }
+    
+    /** Called before registering an asynchronous wait on behalf of this sender.
+     * Each call is balanced by exactly one call to finishedAsyncWait(), after 
+     * the callback has run (or straight away if registering it failed). Note 
+     * that the callback may run, on another thread, before the thread that 
+     * registered it has returned. */
+    protected void startedAsyncWait() {
+    	// Do nothing.
+    }
+    
+    /** Called when a callback registered after startedAsyncWait() has finished. */
+    protected void finishedAsyncWait() {
+    	// Do nothing.
+    }
+    
     /** Limit the number of nodes that we route to that reject the request due to
      * looping, while waiting for a peer. This ensures that if there is a slow 
      * node, we don't route to all the other nodes and DNF, rather than waiting, 
@@ -616,85 +782,97 @@ loadWaiterLoop:
     		}
     		
     		if(msg == null) {
-    			if(logMINOR) Logger.minor(this, "Timeout waiting for Accepted for "+this);
-    			// Timeout waiting for Accepted
-    			next.localRejectedOverload("AcceptedTimeout", realTimeFlag);
-    			forwardRejectedOverload();
-    			int t = timeSinceSent();
-    			node.failureTable.onFailed(key, next, htl, t, t);
-    			synchronized(this) {
-    				rejectedLoops++;
-    			}
-    			// Try next node
-    			handleAcceptedRejectedTimeout(next, origTag);
-    			return DO.NEXT_PEER;
-    		}
-    		
-    		if(msg.getSpec() == DMT.FNPRejectedLoop) {
-    			if(logMINOR) Logger.minor(this, "Rejected loop");
-    			next.successNotOverload(realTimeFlag);
-    			int t = timeSinceSent();
-    			node.failureTable.onFailed(key, next, htl, t, t);
-    			// Find another node to route to
-    			next.noLongerRoutingTo(origTag, false);
+    			handleAcceptedTimeout(next, origTag);
     			return DO.NEXT_PEER;
     		}
     		
-    		if(msg.getSpec() == DMT.FNPRejectedOverload) {
-    			if(logMINOR) Logger.minor(this, "Rejected: overload");
-    			// Non-fatal - probably still have time left
-    			if (msg.getBoolean(DMT.IS_LOCAL)) {
-    				
-    				if(logMINOR) Logger.minor(this, "Is local");
+    		DO action = handleAcceptedRejected(msg, expectedAcceptState, next, origTag);
+    		if(action != null) return action;
+    	}
+    }
+    
+    /** Timed out waiting for Accepted. The caller must then try the next peer. */
+    private void handleAcceptedTimeout(PeerNode next, UIDTag origTag) {
+    	if(logMINOR) Logger.minor(this, "Timeout waiting for Accepted for "+this);
+    	// Timeout waiting for Accepted
+    	next.localRejectedOverload("AcceptedTimeout", realTimeFlag);
+    	forwardRejectedOverload();
+    	int t = timeSinceSent();
+    	node.failureTable.onFailed(key, next, htl, t, t);
+    	synchronized(this) {
+    		rejectedLoops++;
+    	}
+    	// Try next node
+    	handleAcceptedRejectedTimeout(next, origTag);
+    }
+    
+    /** Handle a reply to the request while waiting for Accepted.
+     * @return FINISHED if accepted, WAIT to try again (soft reject), NEXT_PEER to
+     * reroute, or null to keep waiting for the same peer. */
+    private DO handleAcceptedRejected(Message msg, RequestLikelyAcceptedState expectedAcceptState, PeerNode next, UIDTag origTag) {
+    	if(msg.getSpec() == DMT.FNPRejectedLoop) {
+    		if(logMINOR) Logger.minor(this, "Rejected loop");
+    		next.successNotOverload(realTimeFlag);
+    		int t = timeSinceSent();
+    		node.failureTable.onFailed(key, next, htl, t, t);
+    		// Find another node to route to
+    		next.noLongerRoutingTo(origTag, false);
+    		return DO.NEXT_PEER;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRejectedOverload) {
+    		if(logMINOR) Logger.minor(this, "Rejected: overload");
+    		// Non-fatal - probably still have time left
+    		if (msg.getBoolean(DMT.IS_LOCAL)) {
+    			
+    			if(logMINOR) Logger.minor(this, "Is local");
   
-					// FIXME soft rejects, only check then, but don't backoff if sane
-					// FIXME recalculate with broader check, allow a few percent etc.
-    				
-    				if(msg.getSubMessage(DMT.FNPRejectIsSoft) != null && expectedAcceptState != null) {
-    					if(logMINOR) Logger.minor(this, "Soft rejection, waiting to resend");
-    					if(expectedAcceptState == RequestLikelyAcceptedState.GUARANTEED)
-    						// Need to recalculate to be sure this is an error.
-    						Logger.normal(this, "Rejected overload yet expected state was "+expectedAcceptState);
-    					nodesRoutedTo.remove(next);
-    					next.noLongerRoutingTo(origTag, false);
-    					if(softRejectCount == null) softRejectCount = new HashMap<PeerNode, Integer>();
-    					Integer i = softRejectCount.get(next);
-    					if(i == null) softRejectCount.put(next, 1);
-    					else {
-    						softRejectCount.put(next, i+1);
-    						if(i > 3) {
-    							Logger.error(this, "Rejected repeatedly ("+i+") by "+next+" : "+this);
-    							next.outputLoadTracker(realTimeFlag).setDontSendUnlessGuaranteed();
-    						}
+				// FIXME soft rejects, only check then, but don't backoff if sane
+				// FIXME recalculate with broader check, allow a few percent etc.
+    			
+    			if(msg.getSubMessage(DMT.FNPRejectIsSoft) != null && expectedAcceptState != null) {
+    				if(logMINOR) Logger.minor(this, "Soft rejection, waiting to resend");
+    				if(expectedAcceptState == RequestLikelyAcceptedState.GUARANTEED)
+    					// Need to recalculate to be sure this is an error.
+    					Logger.normal(this, "Rejected overload yet expected state was "+expectedAcceptState);
+    				nodesRoutedTo.remove(next);
+    				next.noLongerRoutingTo(origTag, false);
+    				if(softRejectCount == null) softRejectCount = new HashMap<PeerNode, Integer>();
+    				Integer i = softRejectCount.get(next);
+    				if(i == null) softRejectCount.put(next, 1);
+    				else {
+    					softRejectCount.put(next, i+1);
+    					if(i > 3) {
+    						Logger.error(this, "Rejected repeatedly ("+i+") by "+next+" : "+this);
+    						next.outputLoadTracker(realTimeFlag).setDontSendUnlessGuaranteed();
     					}
-    					return DO.WAIT;
     				}
-    				
-        			forwardRejectedOverload();
-    				next.localRejectedOverload("ForwardRejectedOverload", realTimeFlag);
-    				int t = timeSinceSent();
-    				node.failureTable.onFailed(key, next, htl, t, t);
-    				if(logMINOR) Logger.minor(this, "Local RejectedOverload, moving on to next peer");
-    				// Give up on this one, try another
-    				next.noLongerRoutingTo(origTag, false);
-    				return DO.NEXT_PEER;
-    			} else {
-        			forwardRejectedOverload();
+    				return DO.WAIT;
     			}
-    			//Could be a previous rejection, the timeout to incur another ACCEPTED_TIMEOUT is minimal...
-    			continue;
-    		}
-    		
-    		if(!isAccepted(msg)) {
-    			Logger.error(this, "Unrecognized message: "+msg);
+    			
+    			forwardRejectedOverload();
+    			next.localRejectedOverload("ForwardRejectedOverload", realTimeFlag);
+    			int t = timeSinceSent();
+    			node.failureTable.onFailed(key, next, htl, t, t);
+    			if(logMINOR) Logger.minor(this, "Local RejectedOverload, moving on to next peer");
+    			// Give up on this one, try another
+    			next.noLongerRoutingTo(origTag, false);
     			return DO.NEXT_PEER;
+    		} else {
+    			forwardRejectedOverload();
     		}
-    		
-    		next.resetMandatoryBackoff(realTimeFlag);
-    		next.outputLoadTracker(realTimeFlag).clearDontSendUnlessGuaranteed();
-    		return DO.FINISHED;
-    		
+    		//Could be a previous rejection, the timeout to incur another ACCEPTED_TIMEOUT is minimal...
+    		return null;
     	}
+    	
+    	if(!isAccepted(msg)) {
+    		Logger.error(this, "Unrecognized message: "+msg);
+    		return DO.NEXT_PEER;
+    	}
+    	
+    	next.resetMandatoryBackoff(realTimeFlag);
+    	next.outputLoadTracker(realTimeFlag).clearDontSendUnlessGuaranteed();
+    	return DO.FINISHED;
 	}
 
 	protected abstract void handleAcceptedRejectedTimeout(final PeerNode next,
@@ -27,6 +27,7 @@ import freenet.keys.CHKVerifyException;
 import freenet.keys.NodeCHK;
 import freenet.support.Logger;
 import freenet.support.io.NativeThread;
+import freenet.support.io.NativeThread.PriorityLevel;
 
 public final class CHKInsertSender extends BaseSender implements PrioRunnable, AnyInsertSender, ByteCounter {
 	
@@ -111,7 +112,8 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 		}
 		
 		void start() {
-			node.executor.execute(this, "CHKInsert-BackgroundTransfer for "+uid+" to "+pn.getPeer());
+			// sendAsync() does not block, so there is no need for a separate thread.
+			run();
 		}
 		
 		@Override
@@ -142,6 +144,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 			if(!success) {
 				setTransferTimedOut();
 			}
+			checkBackgroundTransfers();
 		}
 		
 		/** @param timeout Whether this completion is the result of a timeout.
@@ -205,6 +208,8 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 					backgroundTransfers.notifyAll();
 				}
 			}
+			if(!gotFatalTimeout)
+				checkBackgroundTransfers();
 			if(timeout && gotFatalTimeout) {
 				Logger.error(this, "Second timeout waiting for final ack from "+pn+" on "+this);
 				pn.fatalTimeout(thisTag, false);
@@ -367,6 +372,16 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
     /** Have all transfers completed and all nodes reported completion status? */
     private boolean allTransfersCompleted;
     
+    /** Set when finish() is waiting for the background transfers. Protected by backgroundTransfers,
+     * as are the next three fields. */
+    private boolean waitingForTransfers;
+    /** The transfers that finish() is waiting for. */
+    private BackgroundTransfer[] transfersToWaitFor;
+    /** When to give up waiting for the background transfers. */
+    private long transfersDeadline;
+    /** The node we successfully inserted to, passed to finish(). */
+    private PeerNode successfulPeer;
+    
     /** Has a transfer timed out, either directly or downstream? */
     private volatile boolean transferTimedOut;
     
@@ -402,19 +417,45 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
         } catch (Throwable t) {
             Logger.error(this, "Caught "+t, t);
         } finally {
-        	// Always check: we ALWAYS set status, even if receiveFailed.
-            int myStatus;
-            synchronized (this) {
-				myStatus = status;
-			}
-            if(myStatus == NOT_FINISHED)
-            	finish(INTERNAL_ERROR, null);
-            origTag.finishedSender();
-        	if(forkedRequestTag != null)
-        		forkedRequestTag.finishedSender();
+        	finishedAsyncWait();
         }
     }
     
+    /** The number of callers that can still move the insert forward: the thread
+     * running run(), plus one for each pending callback (waiting for Accepted, for
+     * the InsertReply, or for the background transfers in finish()). When it reaches
+     * zero, the sender has finished and we can release the tags. */
+    private int pendingSteps = 1;
+    
+    @Override
+    protected void startedAsyncWait() {
+    	synchronized(this) {
+    		pendingSteps++;
+    	}
+    }
+    
+    @Override
+    protected void finishedAsyncWait() {
+    	synchronized(this) {
+    		if(--pendingSteps > 0) return;
+    	}
+    	// Always check: we ALWAYS set status, even if receiveFailed.
+    	int myStatus;
+    	synchronized (this) {
+    		myStatus = status;
+    	}
+    	if(myStatus == NOT_FINISHED) {
+    		// finish() may have to wait for the background transfers.
+    		startedAsyncWait();
+    		finish(INTERNAL_ERROR, null);
+    		finishedAsyncWait();
+    		return;
+    	}
+    	origTag.finishedSender();
+    	if(forkedRequestTag != null)
+    		forkedRequestTag.finishedSender();
+    }
+    
 	static final int MAX_HIGH_HTL_FAILURES = 5;
 	
 	@Override
@@ -777,8 +818,8 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 	}
     
     /**
-     * Finish the insert process. Will set status, wait for underlings to complete, and report success
-     * if appropriate.
+     * Finish the insert process. Will set status, wait (asynchronously) for underlings to complete, 
+     * and report success if appropriate.
      * @param code The status code to set. 
      * @param next The node we successfully inserted to.
      */
@@ -816,18 +857,28 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 				if(logMINOR) Logger.minor(this, "No background transfers");
 				failedRecv = receiveFailed;
 			} else {
+				if(waitingForTransfers) return; // Already called, will complete when the transfers do.
+				// We must presently be at such a stage that no more background transfers will be added.
 				mustWait = true;
+				waitingForTransfers = true;
+				transfersToWaitFor = backgroundTransfers.toArray(new BackgroundTransfer[backgroundTransfers.size()]);
+				// Generous deadline so we catch bugs more obviously
+				transfersDeadline = System.currentTimeMillis() + transferCompletionTimeout * 3;
+				successfulPeer = next;
 			}
 		}
-		if(mustWait) { 
-			waitForBackgroundTransferCompletions();
-			synchronized(backgroundTransfers) {
-				failedRecv = receiveFailed;
-			}
+		if(mustWait) {
+			if(logMINOR) Logger.minor(this, "Waiting for background transfer completions: "+this);
+			startedAsyncWait();
+			scheduleCheckBackgroundTransfers();
+			checkBackgroundTransfers();
+			return;
 		}
-        
+		onTransfersCompleted(failedRecv, next);
+    }
+    
+    private void onTransfersCompleted(boolean failedRecv, PeerNode next) {
 		synchronized(this) {
-			// waitForBackgroundTransferCompletions() may have already set it.
 			if(!allTransfersCompleted) {
 				if(failedRecv)
 					status = RECEIVE_FAILED;
@@ -885,7 +936,8 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
     		allTransfersCompleted = true;
     		notifyAll();
     	}
-    	// Do not call finish(), that can only be called on the main thread and it will block.
+    	// Do not call finish(), that can only be called on the main thread.
+    	checkBackgroundTransfers();
     }
 
     /**
@@ -915,93 +967,100 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 		return hasForwarded;
 	}
 		
-		private void waitForBackgroundTransferCompletions() {
-			try {
-				freenet.support.Logger.OSThread.logPID(this);
-				if(logMINOR) Logger.minor(this, "Waiting for background transfer completions: "+this);
-				
-				// We must presently be at such a stage that no more background transfers will be added.
-				
-				BackgroundTransfer[] transfers;
-				synchronized(backgroundTransfers) {
-					transfers = new BackgroundTransfer[backgroundTransfers.size()];
-					transfers = backgroundTransfers.toArray(transfers);
-				}
-				
-				// Wait for the outgoing transfers to complete.
-				if(!waitForBackgroundTransfers(transfers)) {
-					setTransferTimedOut();
-					return;
-				}
-			} finally {
-				synchronized(CHKInsertSender.this) {
-					allTransfersCompleted = true;
-					CHKInsertSender.this.notifyAll();
-				}
-			}
+	/** Called when the state of a background transfer changes, and periodically
+	 * while waiting. If finish() is waiting for the background transfers and they
+	 * have all completed (or failed, or we have given up on them), complete the
+	 * insert. */
+	private void checkBackgroundTransfers() {
+		boolean success;
+		boolean failedRecv;
+		PeerNode next;
+		synchronized(backgroundTransfers) {
+			if(!waitingForTransfers) return;
+			Boolean done = backgroundTransfersCompleted();
+			if(done == null) return;
+			success = done;
+			waitingForTransfers = false;
+			failedRecv = receiveFailed;
+			next = successfulPeer;
+			successfulPeer = null;
 		}
+		try {
+			if(!success) setTransferTimedOut();
+			onTransfersCompleted(failedRecv, next);
+		} finally {
+			finishedAsyncWait();
+		}
+	}
+	
+	/** Check again every so often, e.g. in case a peer becomes unroutable, and give
+	 * up after the deadline. */
+	private void scheduleCheckBackgroundTransfers() {
+		long delay;
+		synchronized(backgroundTransfers) {
+			if(!waitingForTransfers) return;
+			delay = Math.min(SECONDS.toMillis(100), transfersDeadline - System.currentTimeMillis() + 1);
+		}
+		node.getTicker().queueTimedJob(new Runnable() {
 
-		/**
-		 * Block until all transfers have reached a final-terminal state (success/failure). On success this means that a
-		 * successful 'received-notification' has been received.
-		 * @return True if all background transfers were successful.
-		 */
-		private boolean waitForBackgroundTransfers(BackgroundTransfer[] transfers) {
-			long start = System.currentTimeMillis();
-			// Generous deadline so we catch bugs more obviously
-			long deadline = start + transferCompletionTimeout * 3;
-			// MAYBE all done
-			while(true) {
-				if(System.currentTimeMillis() > deadline) {
-					// NORMAL priority because it is normally caused by a transfer taking too long downstream, and that doesn't usually indicate a bug.
-					Logger.normal(this, "Timed out waiting for background transfers! Probably caused by async filter not getting a timeout notification! DEBUG ME!");
-					return false;
-				}
-				//If we want to be sure to exit as-soon-as the transfers are done, then we must hold the lock while we check.
-				synchronized(backgroundTransfers) {
-					if(receiveFailed) return false;
-					
-					boolean noneRouteable = true;
-					boolean completedTransfers = true;
-					boolean completedNotifications = true;
-					boolean someFailed = false;
-					for(BackgroundTransfer transfer: transfers) {
-						if(!transfer.pn.isRoutable()) {
-							if(logMINOR)
-								Logger.minor(this, "Ignoring transfer to "+transfer.pn+" for "+this+" as not routable");
-							continue;
-						}
-						noneRouteable = false;
-						if(!transfer.completedTransfer) {
-							if(logMINOR)
-								Logger.minor(this, "Waiting for transfer completion to "+transfer.pn+" : "+transfer);
-							//must wait
-							completedTransfers = false;
-							break;
-						}
-						if (!transfer.receivedCompletionNotice) {
-							if(logMINOR)
-								Logger.minor(this, "Waiting for completion notice from "+transfer.pn+" : "+transfer);
-							//must wait
-							completedNotifications = false;
-							break;
-						}
-						if (!transfer.completionSucceeded)
-							someFailed = true;
-					}
-					if(noneRouteable) return false;
-					if(completedTransfers && completedNotifications) return !someFailed;
-					
-					if(logMINOR) Logger.minor(this, "Waiting: transfer completion=" + completedTransfers + " notification="+completedNotifications); 
-					try {
-						backgroundTransfers.wait(SECONDS.toMillis(100));
-					} catch (InterruptedException e) {
-						// Ignore
-					}
-				}				
+			@Override
+			public void run() {
+				checkBackgroundTransfers();
+				scheduleCheckBackgroundTransfers();
 			}
-		}
+			
+		}, Math.max(0, delay));
+	}
 
+	/**
+	 * Check whether all transfers have reached a final-terminal state (success/failure). On success 
+	 * this means that a successful 'received-notification' has been received. Caller must hold the
+	 * backgroundTransfers lock.
+	 * @return True if all background transfers were successful, false if any failed or we timed
+	 * out, or null if we must keep waiting.
+	 */
+	private Boolean backgroundTransfersCompleted() {
+		if(System.currentTimeMillis() > transfersDeadline) {
+			// NORMAL priority because it is normally caused by a transfer taking too long downstream, and that doesn't usually indicate a bug.
+			Logger.normal(this, "Timed out waiting for background transfers! Probably caused by async filter not getting a timeout notification! DEBUG ME!");
+			return false;
+		}
+		if(receiveFailed) return false;
+		
+		boolean noneRouteable = true;
+		boolean completedTransfers = true;
+		boolean completedNotifications = true;
+		boolean someFailed = false;
+		for(BackgroundTransfer transfer: transfersToWaitFor) {
+			if(!transfer.pn.isRoutable()) {
+				if(logMINOR)
+					Logger.minor(this, "Ignoring transfer to "+transfer.pn+" for "+this+" as not routable");
+				continue;
+			}
+			noneRouteable = false;
+			if(!transfer.completedTransfer) {
+				if(logMINOR)
+					Logger.minor(this, "Waiting for transfer completion to "+transfer.pn+" : "+transfer);
+				//must wait
+				completedTransfers = false;
+				break;
+			}
+			if (!transfer.receivedCompletionNotice) {
+				if(logMINOR)
+					Logger.minor(this, "Waiting for completion notice from "+transfer.pn+" : "+transfer);
+				//must wait
+				completedNotifications = false;
+				break;
+			}
+			if (!transfer.completionSucceeded)
+				someFailed = true;
+		}
+		if(noneRouteable) return false;
+		if(completedTransfers && completedNotifications) return !someFailed;
+		
+		if(logMINOR) Logger.minor(this, "Waiting: transfer completion=" + completedTransfers + " notification="+completedNotifications);
+		return null;
+	}
 
 	public synchronized boolean completed() {
 		return allTransfersCompleted;
@@ -1143,187 +1202,127 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
          * - FNPDataInsertRejected - the insert was invalid
          */
         
-        int searchTimeout = calculateTimeout(htl);
-        MessageFilter mfInsertReply = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPInsertReply);
-        MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRejectedOverload);
-        MessageFilter mfRouteNotFound = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRouteNotFound);
-        MessageFilter mfDataInsertRejected = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPDataInsertRejected);
-        MessageFilter mfTimeout = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRejectedTimeout);
-        
-        MessageFilter mf = mfInsertReply.or(mfRouteNotFound.or(mfDataInsertRejected.or(mfTimeout.or(mfRejectedOverload))));
+        final int searchTimeout = calculateTimeout(htl);
 
-        InsertTag thisTag = forkedRequestTag;
-        if(forkedRequestTag == null) thisTag = origTag;
+        final InsertTag thisTag = forkedRequestTag == null ? origTag : forkedRequestTag;
         
         if(logMINOR) Logger.minor(this, "Sending DataInsert");
-        try {
-			next.sendSync(dataInsert, this, realTimeFlag);
-		} catch (NotConnectedException e1) {
-			if(logMINOR) Logger.minor(this, "Not connected sending DataInsert: "+next+" for "+uid);
-			next.noLongerRoutingTo(thisTag, false);
-			routeRequests();
-			return;
-		} catch (SyncSendWaitedTooLongException e) {
-			Logger.error(this, "Unable to send "+dataInsert+" to "+next+" in a reasonable time");
-			// Other side will fail. No need to do anything.
-			next.noLongerRoutingTo(thisTag, false);
-			routeRequests();
-			return;
-		}
+        // The data must not be sent until the DataInsert has been acknowledged, but we don't
+        // need to hold a thread while we wait.
+        startedAsyncWait();
+        next.sendAcked(dataInsert, this, realTimeFlag, new PeerNode.SendAckedCallback() {
+
+			@Override
+			public void acknowledged() {
+				try {
+					sendData(next, thisTag, searchTimeout);
+				} finally {
+					finishedAsyncWait();
+				}
+			}
+
+			@Override
+			public void disconnected() {
+				try {
+					if(logMINOR) Logger.minor(this, "Not connected sending DataInsert: "+next+" for "+uid);
+					next.noLongerRoutingTo(thisTag, false);
+					routeRequests();
+				} finally {
+					finishedAsyncWait();
+				}
+			}
+
+			@Override
+			public void waitedTooLong() {
+				try {
+					Logger.error(this, "Unable to send DataInsert to "+next+" in a reasonable time for "+uid);
+					// Other side will fail. No need to do anything.
+					next.noLongerRoutingTo(thisTag, false);
+					routeRequests();
+				} finally {
+					finishedAsyncWait();
+				}
+			}
 
+        });
+	}
+	
+	/** Called once the DataInsert has been acknowledged: send the data and wait for the reply. */
+	private void sendData(PeerNode next, InsertTag thisTag, int searchTimeout) {
 		if(logMINOR) Logger.minor(this, "Sending data");
 		final BackgroundTransfer transfer = 
 			startBackgroundTransfer(next, prb, thisTag);
 		
 		// Once the transfer has started, we only unlock the tag after the transfer completes (successfully or not).
 		
-        while (true) {
-
-        	Message msg;
-        	
+		new InsertReplyCallback(next, thisTag, transfer, searchTimeout).schedule();
+	}
+	
+	private MessageFilter makeInsertReplyFilter(PeerNode next, int searchTimeout) {
+        MessageFilter mfInsertReply = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPInsertReply);
+        MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRejectedOverload);
+        MessageFilter mfRouteNotFound = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRouteNotFound);
+        MessageFilter mfDataInsertRejected = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPDataInsertRejected);
+        MessageFilter mfTimeout = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRejectedTimeout);
+        
+        return mfInsertReply.or(mfRouteNotFound.or(mfDataInsertRejected.or(mfTimeout.or(mfRejectedOverload))));
+	}
+	
+	/** Waits for the reply after we have sent the DataInsert: InsertReply, RouteNotFound,
+	 * DataInsertRejected, RejectedTimeout or RejectedOverload. After the first timeout,
+	 * we finish with TIMED_OUT, but keep waiting for the second (fatal) timeout. As when
+	 * that wait had its own thread, it doesn't keep the sender from finishing: it isn't
+	 * counted by startedAsyncWait(), and the background transfer holds the tag for next. */
+	private class InsertReplyCallback implements SlowAsyncMessageFilterCallback {
+		
+		private final PeerNode next;
+		private final InsertTag thisTag;
+		private final BackgroundTransfer transfer;
+		private final int searchTimeout;
+		/** We have had the first timeout and have finished the insert. */
+		private boolean waitingForSecondTimeout;
+		
+		InsertReplyCallback(PeerNode next, InsertTag thisTag, BackgroundTransfer transfer, int searchTimeout) {
+			this.next = next;
+			this.thisTag = thisTag;
+			this.transfer = transfer;
+			this.searchTimeout = searchTimeout;
+		}
+		
+		void schedule() {
 			if(failIfReceiveFailed(thisTag, next)) {
 				// The transfer has started, it will be cancelled.
 				transfer.onCompleted();
 				return;
 			}
-			
+			if(!waitingForSecondTimeout)
+				startedAsyncWait();
 			try {
-				msg = node.usm.waitFor(mf, this);
+				node.usm.addAsyncFilter(makeInsertReplyFilter(next, searchTimeout), this, CHKInsertSender.this);
 			} catch (DisconnectedException e) {
-				Logger.normal(this, "Disconnected from " + next
-						+ " while waiting for InsertReply on " + this);
-				transfer.onDisconnect(next);
-				break;
+				onDisconnect(next);
 			}
-			if(failIfReceiveFailed(thisTag, next)) {
-				// The transfer has started, it will be cancelled.
-				transfer.onCompleted();
-				return;
-			}
-			
-			if (msg == null) {
-				
-				Logger.warning(this, "Timeout on insert "+this+" to "+next);
-				
-				// First timeout.
-				// Could be caused by the next node, or could be caused downstream.
-				next.localRejectedOverload("AfterInsertAcceptedTimeout2", realTimeFlag);
-				forwardRejectedOverload();
+		}
 
-				synchronized(this) {
-					status = TIMED_OUT;
-					notifyAll();
+		@Override
+		public void onMatched(Message msg) {
+			boolean counted = !waitingForSecondTimeout;
+			try {
+				if(failIfReceiveFailed(thisTag, next)) {
+					// The transfer has started, it will be cancelled.
+					transfer.onCompleted();
+					return;
 				}
-				
-				// Wait for the second timeout off-thread.
-				// FIXME wait asynchronously.
-				
-				final InsertTag tag = thisTag;
-				final PeerNode waitingFor = next;
-				final short htl = this.htl;
-				
-				Runnable r = new Runnable() {
-
-					@Override
-					public void run() {
-						// We do not need to unlock the tag here.
-						// That will happen in the BackgroundTransfer, which has already started.
-						
-						// FIXME factor out
-				        int searchTimeout = calculateTimeout(htl);
-		                MessageFilter mfInsertReply = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPInsertReply);
-		                MessageFilter mfRejectedOverload = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRejectedOverload);
-		                MessageFilter mfRouteNotFound = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRouteNotFound);
-		                MessageFilter mfDataInsertRejected = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPDataInsertRejected);
-		                MessageFilter mfTimeout = MessageFilter.create().setSource(waitingFor).setField(DMT.UID, uid).setTimeout(searchTimeout).setType(DMT.FNPRejectedTimeout);
-		                
-		                MessageFilter mf = mfInsertReply.or(mfRouteNotFound.or(mfDataInsertRejected.or(mfTimeout.or(mfRejectedOverload))));
-
-			            while (true) {
-			            	
-			            	Message msg;
-
-			    			if(failIfReceiveFailed(tag, waitingFor)) {
-			    				transfer.onCompleted();
-			    				return;
-			    			}
-							
-							try {
-								msg = node.usm.waitFor(mf, CHKInsertSender.this);
-							} catch (DisconnectedException e) {
-								Logger.normal(this, "Disconnected from " + waitingFor
-										+ " while waiting for InsertReply on " + CHKInsertSender.this);
-								transfer.onDisconnect(waitingFor);
-								return;
-							}
-							
-			    			if(failIfReceiveFailed(tag, waitingFor)) {
-			    				transfer.onCompleted();
-			    				return;
-			    			}
-							
-							if(msg == null) {
-								// Second timeout.
-								// Definitely caused by the next node, fatal.
-								Logger.error(this, "Got second (local) timeout on "+CHKInsertSender.this+" from "+waitingFor);
-			    				transfer.onCompleted();
-								waitingFor.fatalTimeout();
-								return;
-							}
-							
-							if (msg.getSpec() == DMT.FNPRejectedTimeout) {
-								// Next node timed out awaiting our DataInsert.
-								// But we already sent it, so something is wrong. :(
-								handleRejectedTimeout(msg, waitingFor);
-								transfer.kill();
-								return;
-							}
-
-							if (msg.getSpec() == DMT.FNPRejectedOverload) {
-								if(handleRejectedOverload(msg, waitingFor, tag)) {
-									// Already set the status, and handle... will have unlocked the next node, so no need to call finished().
-									transfer.onCompleted();
-									return; // Don't try another node.
-								}
-								else continue;
-							}
-
-							if (msg.getSpec() == DMT.FNPRouteNotFound) {
-								transfer.onCompleted();
-								return; // Don't try another node.
-							}
-							
-							if (msg.getSpec() == DMT.FNPDataInsertRejected) {
-								handleDataInsertRejected(msg, waitingFor, tag);
-								transfer.kill();
-								return; // Don't try another node.
-							}
-							
-							if (msg.getSpec() != DMT.FNPInsertReply) {
-								Logger.error(this, "Unknown reply: " + msg);
-								transfer.onCompleted();
-								return;
-							} else {
-								// Our task is complete, one node (quite deep), has accepted the insert.
-								// The request will not be routed to any other nodes, this is where the data *should* be.
-								// We will removeRoutingTo() after the node has sent the transfer completion notice, which never happens before the InsertReply.
-								transfer.onCompleted();
-								return;
-							}
-			            }
-					}
-					
-				};
-				
-				// Wait for the timeout off-thread.
-				node.executor.execute(r);
-				// Meanwhile, finish() to update allTransfersCompleted and hence allow the CHKInsertHandler to send the message downstream.
-				// We have already set the status code, this is necessary in order to avoid race conditions.
-				// However since it is set to TIMED_OUT, we are allowed to set it again.
-				finish(TIMED_OUT, next);
-				return;
+				if(waitingForSecondTimeout)
+					handleReplyAfterTimeout(msg);
+				else
+					handleReply(msg);
+			} finally {
+				if(counted) finishedAsyncWait();
 			}
-
+		}
+		
+		private void handleReply(Message msg) {
 			if (msg.getSpec() == DMT.FNPRejectedTimeout) {
 				// Next node timed out awaiting our DataInsert.
 				// But we already sent it, so something is wrong. :(
@@ -1339,40 +1338,163 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 					// FIXME it might be less confusing and therefore less likely to cause problems
 					// if we had a different message sent post-accept???
 					transfer.onCompleted();
-					break;
-				}
-				else continue;
+					routeRequests();
+				} else
+					schedule();
+				return;
 			}
 
 			if (msg.getSpec() == DMT.FNPRouteNotFound) {
 				//RNF means that the HTL was not exhausted, but that the data will still be stored.
 				handleRNF(msg, next, thisTag);
 				transfer.onCompleted();
-				break;
+				routeRequests();
+				return;
 			}
 
 			//Can occur after reception of the entire chk block
 			if (msg.getSpec() == DMT.FNPDataInsertRejected) {
 				handleDataInsertRejected(msg, next, thisTag);
 				transfer.kill();
-				break;
+				routeRequests();
+				return;
 			}
 			
 			if (msg.getSpec() != DMT.FNPInsertReply) {
 				Logger.error(this, "Unknown reply: " + msg);
 				transfer.onCompleted();
 				finish(INTERNAL_ERROR, next);
-				return;
 			} else {
 				transfer.onCompleted();
 				// Our task is complete, one node (quite deep), has accepted the insert.
 				// The request will not be routed to any other nodes, this is where the data *should* be.
 				// We will removeRoutingTo() after the node has sent the transfer completion notice, which never happens before the InsertReply.
 				finish(SUCCESS, next);
+			}
+		}
+		
+		private void handleReplyAfterTimeout(Message msg) {
+			// We do not need to unlock the tag here.
+			// That will happen in the BackgroundTransfer, which has already started.
+			
+			if (msg.getSpec() == DMT.FNPRejectedTimeout) {
+				// Next node timed out awaiting our DataInsert.
+				// But we already sent it, so something is wrong. :(
+				handleRejectedTimeout(msg, next);
+				transfer.kill();
 				return;
 			}
+
+			if (msg.getSpec() == DMT.FNPRejectedOverload) {
+				if(handleRejectedOverload(msg, next, thisTag)) {
+					// Already set the status, and handle... will have unlocked the next node, so no need to call finished().
+					transfer.onCompleted();
+				} else
+					schedule();
+				return; // Don't try another node.
+			}
+
+			if (msg.getSpec() == DMT.FNPRouteNotFound) {
+				transfer.onCompleted();
+				return; // Don't try another node.
+			}
+			
+			if (msg.getSpec() == DMT.FNPDataInsertRejected) {
+				handleDataInsertRejected(msg, next, thisTag);
+				transfer.kill();
+				return; // Don't try another node.
+			}
+			
+			if (msg.getSpec() != DMT.FNPInsertReply)
+				Logger.error(this, "Unknown reply: " + msg);
+			// Our task is complete, one node (quite deep), has accepted the insert.
+			// The request will not be routed to any other nodes, this is where the data *should* be.
+			// We will removeRoutingTo() after the node has sent the transfer completion notice, which never happens before the InsertReply.
+			transfer.onCompleted();
 		}
-		routeRequests();
+
+		@Override
+		public boolean shouldTimeout() {
+			return false;
+		}
+
+		@Override
+		public void onTimeout() {
+			boolean counted = !waitingForSecondTimeout;
+			try {
+				if(failIfReceiveFailed(thisTag, next)) {
+					// The transfer has started, it will be cancelled.
+					transfer.onCompleted();
+					return;
+				}
+				
+				if(waitingForSecondTimeout) {
+					// Second timeout.
+					// Definitely caused by the next node, fatal.
+					Logger.error(this, "Got second (local) timeout on "+CHKInsertSender.this+" from "+next);
+					transfer.onCompleted();
+					next.fatalTimeout();
+					return;
+				}
+				
+				Logger.warning(this, "Timeout on insert "+CHKInsertSender.this+" to "+next);
+				
+				// First timeout.
+				// Could be caused by the next node, or could be caused downstream.
+				next.localRejectedOverload("AfterInsertAcceptedTimeout2", realTimeFlag);
+				forwardRejectedOverload();
+
+				synchronized(CHKInsertSender.this) {
+					status = TIMED_OUT;
+					CHKInsertSender.this.notifyAll();
+				}
+				
+				// Wait for the second timeout.
+				waitingForSecondTimeout = true;
+				schedule();
+				// Meanwhile, finish() to update allTransfersCompleted and hence allow the CHKInsertHandler to send the message downstream.
+				// We have already set the status code, this is necessary in order to avoid race conditions.
+				// However since it is set to TIMED_OUT, we are allowed to set it again.
+				finish(TIMED_OUT, next);
+			} finally {
+				if(counted) finishedAsyncWait();
+			}
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+			boolean counted = !waitingForSecondTimeout;
+			try {
+				Logger.normal(this, "Disconnected from " + next
+						+ " while waiting for InsertReply on " + CHKInsertSender.this);
+				transfer.onDisconnect(next);
+				if(!waitingForSecondTimeout)
+					routeRequests();
+			} finally {
+				if(counted) finishedAsyncWait();
+			}
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+			onDisconnect(ctx);
+		}
+
+		@Override
+		public int getPriority() {
+			return PriorityLevel.HIGH_PRIORITY.value;
+		}
+		
+		@Override
+		public String toString() {
+			return super.toString()+":"+next+":"+CHKInsertSender.this;
+		}
+		
+	}
+	
+	@Override
+	protected boolean waitForAcceptedAsync() {
+		return true;
 	}
 
 	@Override
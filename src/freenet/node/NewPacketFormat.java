@@ -97,6 +97,11 @@ public class NewPacketFormat implements PacketFormat {
 	private final Object sendBufferLock = new Object();
 	/** Lock protecting the size of the receive buffer. */
 	private final Object receiveBufferSizeLock = new Object();
+	/** Taken while decrypting a received packet and adding it to the receive buffers, which
+	 * are not otherwise locked. Packets are normally decoded on the socket's receive thread,
+	 * but a packet from a new address is matched on an auth packet thread, see
+	 * IncomingPacketFilterImpl. MUST BE TAKEN FIRST. */
+	private final Object receiveLock = new Object();
 	
 	private long timeLastSentPacket;
 	private long timeLastSentPayload;
@@ -122,32 +127,35 @@ public class NewPacketFormat implements PacketFormat {
 	public boolean handleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo) {
 		NPFPacket packet = null;
 		SessionKey s = null;
-		for(int i = 0; i < 3; i++) {
-			if(i == 0) {
-				s = pn.getCurrentKeyTracker();
-			} else if (i == 1) {
-				s = pn.getPreviousKeyTracker();
-			} else {
-				s = pn.getUnverifiedKeyTracker();
+		List<byte[]> finished;
+		synchronized(receiveLock) {
+			for(int i = 0; i < 3; i++) {
+				if(i == 0) {
+					s = pn.getCurrentKeyTracker();
+				} else if (i == 1) {
+					s = pn.getPreviousKeyTracker();
+				} else {
+					s = pn.getUnverifiedKeyTracker();
+				}
+				if(s == null) continue;
+				packet = tryDecipherPacket(buf, offset, length, s);
+				if(packet != null) {
+					if(logDEBUG) Logger.debug(this, "Decrypted packet with tracker " + i);
+					break;
+				}
 			}
-			if(s == null) continue;
-			packet = tryDecipherPacket(buf, offset, length, s);
-			if(packet != null) {
-				if(logDEBUG) Logger.debug(this, "Decrypted packet with tracker " + i);
-				break;
+			if(packet == null) {
+				if(logMINOR) Logger.minor(this, "Could not decrypt received packet");
+				return false;
 			}
-		}
-		if(packet == null) {
-			if(logMINOR) Logger.minor(this, "Could not decrypt received packet");
-			return false;
-		}
 
-		pn.receivedPacket(false, true);
-		pn.verified(s);
-		pn.maybeRekey();
-		pn.reportIncomingBytes(length);
+			pn.receivedPacket(false, true);
+			pn.verified(s);
+			pn.maybeRekey();
+			pn.reportIncomingBytes(length);
 
-		List<byte[]> finished = handleDecryptedPacket(packet, s);
+			finished = handleDecryptedPacket(packet, s);
+		}
 		if(logMINOR && !finished.isEmpty()) 
 			Logger.minor(this, "Decoded messages: "+finished.size());
 		DecodingMessageGroup group = pn.startProcessingDecryptedMessages(finished.size());
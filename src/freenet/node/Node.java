@@ -51,6 +51,7 @@ import freenet.crypt.ECDH;
 import freenet.crypt.MasterSecret;
 import freenet.crypt.PersistentRandomSource;
 import freenet.crypt.RandomSource;
+import freenet.crypt.ThreadLocalRandomSource;
 import freenet.crypt.Yarrow;
 import freenet.io.comm.DMT;
 import freenet.io.comm.DisconnectedException;
@@ -64,6 +65,7 @@ import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
 import freenet.io.comm.TrafficClass;
 import freenet.io.comm.UdpSocketHandler;
+import freenet.io.comm.VirtualNetwork;
 import freenet.io.xfer.PartiallyReceivedBlock;
 import freenet.keys.CHKBlock;
 import freenet.keys.CHKVerifyException;
@@ -99,6 +101,7 @@ import freenet.pluginmanager.ForwardPort;
 import freenet.pluginmanager.PluginDownLoaderOfficialHTTPS;
 import freenet.pluginmanager.PluginManager;
 import freenet.store.BlockMetadata;
+import freenet.store.BlockReadCache;
 import freenet.store.CHKStore;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
@@ -569,6 +572,10 @@ public class Node implements TimeSkewDetectorCallback {
 	private PubkeyStore pubKeySlashdotcache;
 	private SlashdotStore<DSAPublicKey> pubKeySlashdotcacheStore;
 
+	/** In-memory cache of popular CHK and SSK blocks read from the store and the cache, so they
+	 * can be served again without going to disk. */
+	private BlockReadCache readCache;
+
 	/** If false, only ULPRs will use the slashdot cache. If true, everything does. */
 	private boolean useSlashdotCache;
 	/** If true, we write stuff to the datastore even though we shouldn't because the HTL is
@@ -641,6 +648,8 @@ public class Node implements TimeSkewDetectorCallback {
 	// General stuff
 
 	public final Executor executor;
+	/** If not null, our sockets are on this simulated network. */
+	final VirtualNetwork virtualNetwork;
 	public final PacketSender ps;
 	public final PrioritizedTicker ticker;
 	final DNSRequester dnsr;
@@ -942,6 +951,17 @@ public class Node implements TimeSkewDetectorCallback {
 	 * @throws NodeInitException If the node initialization fails.
 	 */
 	 Node(PersistentConfig config, RandomSource r, RandomSource weakRandom, LoggingConfigHandler lc, NodeStarter ns, Executor executor) throws NodeInitException {
+		 this(config, r, weakRandom, lc, ns, executor, null);
+	 }
+
+	/**
+	 * Create a Node from a Config object.
+	 * @param virtualNetwork If not null, the node's UDP ports are bound on this simulated
+	 * network rather than on real sockets. Only for simulations.
+	 * @see #Node(PersistentConfig, RandomSource, RandomSource, LoggingConfigHandler, NodeStarter, Executor)
+	 */
+	 Node(PersistentConfig config, RandomSource r, RandomSource weakRandom, LoggingConfigHandler lc, NodeStarter ns, Executor executor, VirtualNetwork virtualNetwork) throws NodeInitException {
+		this.virtualNetwork = virtualNetwork;
 		this.shutdownHook = SemiOrderedShutdownHook.get();
 		// Easy stuff
 		String tmp = "Initializing Node using Freenet Build #"+Version.buildNumber()+" r"+Version.cvsRevision()+" and freenet-ext Build #"+NodeStarter.extBuildNumber+" r"+NodeStarter.extRevisionNumber+" with "+System.getProperty("java.vendor")+" JVM version "+System.getProperty("java.version")+" running on "+System.getProperty("os.arch")+' '+System.getProperty("os.name")+' '+System.getProperty("os.version");
@@ -1084,7 +1104,8 @@ public class Node implements TimeSkewDetectorCallback {
 			FileUtil.setOwnerRW(seed);
 			entropyGatheringThread.start();
 			// Can block.
-			this.random = new Yarrow(seed);
+			// Yarrow is synchronized, so give each thread its own generator seeded from it.
+			this.random = new ThreadLocalRandomSource(new Yarrow(seed));
 			// http://bugs.sun.com/view_bug.do;jsessionid=ff625daf459fdffffffffcd54f1c775299e0?bug_id=4705093
 			// This might block on /dev/random while doing new SecureRandom(). Once it's created, it won't block.
 			ECDH.blockingInit();
@@ -2463,6 +2484,27 @@ public class Node implements TimeSkewDetectorCallback {
 		sskSlashdotcache = new SSKStore(getPubKey);
 		sskSlashdotcacheStore = new SlashdotStore<SSKBlock>(sskSlashdotcache, maxSlashdotCacheKeys, slashdotCacheLifetime, PURGE_INTERVAL, ticker, this.clientCore.tempBucketFactory);
 
+		nodeConfig.register("readCacheSize", "0", sortOrder++, true, false, "Node.readCacheSize", "Node.readCacheSizeLong",
+				new LongCallback() {
+
+					@Override
+					public Long get() {
+						return readCache.getMaxSize();
+					}
+
+					@Override
+					public void set(Long val) throws InvalidConfigValueException {
+						if(val < 0)
+							throw new InvalidConfigValueException(l10n("readCacheSizeMustBePositive"));
+						readCache.setMaxSize(val);
+					}
+		}, true);
+
+		long readCacheSize = nodeConfig.getLong("readCacheSize");
+		if(readCacheSize < 0)
+			throw new NodeInitException(NodeInitException.EXIT_INVALID_STORE_SIZE, "Read cache size must not be negative");
+		readCache = new BlockReadCache(readCacheSize);
+
 		// MAXIMUM seclevel = no slashdot cache.
 
 		securityLevels.addNetworkThreatLevelListener(new SecurityLevelListener<NETWORK_THREAT_LEVEL>() {
@@ -3478,6 +3520,11 @@ public class Node implements TimeSkewDetectorCallback {
 	public SSKBlock fetch(NodeSSK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
 		double loc=key.toNormalizedDouble();
 		double dist=Location.distance(lm.getLocation(), loc);
+		SSKBlock cached = (SSKBlock) readCache.get(key);
+		if(cached != null) {
+			if(logDEBUG) Logger.debug(this, "Found key "+key+" in read cache");
+			return cached;
+		}
 		if(canReadClientCache) {
 			try {
 				SSKBlock block = sskClientcache.fetch(key, dontPromote || !canWriteClientCache, canReadClientCache, forULPR, false, meta);
@@ -3509,33 +3556,37 @@ public class Node implements TimeSkewDetectorCallback {
 		boolean ignoreOldBlocks = !writeLocalToDatastore;
 		if(canReadClientCache) ignoreOldBlocks = false;
 		if(logMINOR) dumpStoreHits();
+		// Old blocks must not be cached, see BlockMetadata.
+		BlockMetadata storeMeta = meta == null ? new BlockMetadata() : meta;
 		try {
 
 			nodeStats.avgRequestLocation.report(loc);
-			SSKBlock block = sskDatastore.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, meta);
+			SSKBlock block = sskDatastore.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, storeMeta);
 			if(block == null) {
 				SSKStore store = oldSSK;
 				if(store != null)
-					block = store.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, meta);
+					block = store.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, storeMeta);
 			}
 			if(block != null) {
 				nodeStats.avgStoreSSKSuccess.report(loc);
 				if (dist > nodeStats.furthestStoreSSKSuccess)
 					nodeStats.furthestStoreSSKSuccess=dist;
 				if(logDEBUG) Logger.debug(this, "Found key "+key+" in store");
+				if(!storeMeta.isOldBlock()) readCache.offer(block);
 				return block;
 			}
-			block=sskDatacache.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, meta);
+			block=sskDatacache.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, storeMeta);
 			if(block == null) {
 				SSKStore store = oldSSKCache;
 				if(store != null)
-					block = store.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, meta);
+					block = store.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, storeMeta);
 			}
 			if (block != null) {
 				nodeStats.avgCacheSSKSuccess.report(loc);
 				if (dist > nodeStats.furthestCacheSSKSuccess)
 					nodeStats.furthestCacheSSKSuccess=dist;
 				if(logDEBUG) Logger.debug(this, "Found key "+key+" in cache");
+				if(!storeMeta.isOldBlock()) readCache.offer(block);
 			}
 			return block;
 		} catch (IOException e) {
@@ -3547,6 +3598,8 @@ public class Node implements TimeSkewDetectorCallback {
 	public CHKBlock fetch(NodeCHK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
 		double loc=key.toNormalizedDouble();
 		double dist=Location.distance(lm.getLocation(), loc);
+		CHKBlock cached = (CHKBlock) readCache.get(key);
+		if(cached != null) return cached;
 		if(canReadClientCache) {
 			try {
 				CHKBlock block = chkClientcache.fetch(key, dontPromote || !canWriteClientCache, false, meta);
@@ -3576,30 +3629,34 @@ public class Node implements TimeSkewDetectorCallback {
 		boolean ignoreOldBlocks = !writeLocalToDatastore;
 		if(canReadClientCache) ignoreOldBlocks = false;
 		if(logMINOR) dumpStoreHits();
+		// Old blocks must not be cached, see BlockMetadata.
+		BlockMetadata storeMeta = meta == null ? new BlockMetadata() : meta;
 		try {
 			nodeStats.avgRequestLocation.report(loc);
-			CHKBlock block = chkDatastore.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, meta);
+			CHKBlock block = chkDatastore.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, storeMeta);
 			if(block == null) {
 				CHKStore store = oldCHK;
 				if(store != null)
-					block = store.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, meta);
+					block = store.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, storeMeta);
 			}
 			if (block != null) {
 				nodeStats.avgStoreCHKSuccess.report(loc);
 				if (dist > nodeStats.furthestStoreCHKSuccess)
 					nodeStats.furthestStoreCHKSuccess=dist;
+				if(!storeMeta.isOldBlock()) readCache.offer(block);
 				return block;
 			}
-			block=chkDatacache.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, meta);
+			block=chkDatacache.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, storeMeta);
 			if(block == null) {
 				CHKStore store = oldCHKCache;
 				if(store != null)
-					block = store.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, meta);
+					block = store.fetch(key, dontPromote || !canWriteDatastore, ignoreOldBlocks, storeMeta);
 			}
 			if (block != null) {
 				nodeStats.avgCacheCHKSuccess.report(loc);
 				if (dist > nodeStats.furthestCacheCHKSuccess)
 					nodeStats.furthestCacheCHKSuccess=dist;
+				if(!storeMeta.isOldBlock()) readCache.offer(block);
 			}
 			return block;
 		} catch (IOException e) {
@@ -3608,6 +3665,10 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	public BlockReadCache getReadCache() {
+		return readCache;
+	}
+
 	CHKStore getChkDatacache() {
 		return chkDatacache;
 	}
@@ -3755,6 +3816,8 @@ public class Node implements TimeSkewDetectorCallback {
 			// end up deleting the SSK data.
 			double loc = block.getKey().toNormalizedDouble();
 			getPubKey.cacheKey((block.getKey()).getPubKeyHash(), (block.getKey()).getPubKey(), deep, canWriteClientCache, canWriteDatastore, forULPR || useSlashdotCache, writeLocalToDatastore);
+			if(overwrite)
+				readCache.remove(block.getKey());
 			if(canWriteClientCache) {
 				sskClientcache.put(block, overwrite, false);
 				nodeStats.avgClientCacheSSKLocation.report(loc);
@@ -4311,6 +4374,16 @@ public class Node implements TimeSkewDetectorCallback {
 		return usm.getUnclaimedFIFOSize();
 	}
 
+	/** @return The number of packets which have not been tried as auth packets because of the
+	 * rate limits, on the darknet and opennet ports. */
+	public long getDroppedAuthPackets() {
+		long dropped = darknetCrypto.getDroppedAuthPackets();
+		OpennetManager om = opennet;
+		if(om != null)
+			dropped += om.crypto.getDroppedAuthPackets();
+		return dropped;
+	}
+
 	/**
 	 * Connect this node to another node (for purposes of testing)
 	 */
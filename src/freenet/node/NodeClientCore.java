@@ -16,7 +16,9 @@ import freenet.client.async.ClientContext;
 import freenet.client.async.ClientLayerPersister;
 import freenet.client.async.ClientRequestScheduler;
 import freenet.client.async.DatastoreChecker;
+import freenet.client.async.FilteredContentCache;
 import freenet.client.async.HealingQueue;
+import freenet.client.async.InsertedFileCache;
 import freenet.client.async.PersistentStatsPutter;
 import freenet.client.async.SimpleHealingQueue;
 import freenet.client.async.USKManager;
@@ -84,6 +86,7 @@ import freenet.support.io.NativeThread;
 import freenet.support.io.PersistentTempBucketFactory;
 import freenet.support.io.PooledFileRandomAccessBufferFactory;
 import freenet.support.io.TempBucketFactory;
+import freenet.support.metrics.MetricsRegistry;
 import freenet.support.plugins.helpers1.WebInterfaceToadlet;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -130,6 +133,9 @@ public class NodeClientCore implements Persistable {
 	public final FilenameGenerator tempFilenameGenerator;
 	public final FilenameGenerator persistentFilenameGenerator;
 	public final TempBucketFactory tempBucketFactory;
+	/** Caches content filter output for FProxy */
+	public final FilteredContentCache filteredContentCache;
+	public final InsertedFileCache insertedFileCache;
 	public final PersistentTempBucketFactory persistentTempBucketFactory;
 	private final DiskSpaceCheckingRandomAccessBufferFactory persistentDiskChecker;
 	public final MaybeEncryptedRandomAccessBufferFactory persistentRAFFactory;
@@ -383,7 +389,7 @@ public class NodeClientCore implements Persistable {
 					public Long get() {
 						return (tempBucketFactory == null ? 0
 										  : tempBucketFactory
-									.getMaxRamUsed());
+									.getOwnRamLimit());
 					}
 
 					@Override
@@ -392,7 +398,7 @@ public class NodeClientCore implements Persistable {
 						if (get().equals(val) || (tempBucketFactory
 									  == null))
 							return;
-						tempBucketFactory.setMaxRamUsed(val);
+						tempBucketFactory.setOwnRamLimit(val);
 						updatePersistentRAFSpaceLimit();
 					}
 				}, true);
@@ -418,6 +424,52 @@ public class NodeClientCore implements Persistable {
 					}
 				});
 
+		nodeConfig.register("filteredContentCacheSize", "16MiB", sortOrder++, true, false,
+				    "NodeClientCore.filteredContentCacheSize",
+				    "NodeClientCore.filteredContentCacheSizeLong", new LongCallback() {
+
+					@Override
+					public Long get() {
+						return (filteredContentCache == null ? 0
+										     : filteredContentCache
+									.getMaxSize());
+					}
+
+					@Override
+					public void set(Long val)
+							throws InvalidConfigValueException {
+						if (val < 0)
+							throw new InvalidConfigValueException(l10n("filteredContentCacheSizeMustBePositive"));
+						if (get().equals(val) || (filteredContentCache
+									  == null))
+							return;
+						filteredContentCache.setMaxSize(val);
+					}
+				}, true);
+
+		nodeConfig.register("insertedFileCacheSize", "0", sortOrder++, true, false,
+				    "NodeClientCore.insertedFileCacheSize",
+				    "NodeClientCore.insertedFileCacheSizeLong", new LongCallback() {
+
+					@Override
+					public Long get() {
+						return (insertedFileCache == null ? 0
+										  : insertedFileCache
+									.getMaxSize());
+					}
+
+					@Override
+					public void set(Long val)
+							throws InvalidConfigValueException {
+						if (val < 0)
+							throw new InvalidConfigValueException(l10n("insertedFileCacheSizeMustBePositive"));
+						if (get().equals(val) || (insertedFileCache
+									  == null))
+							return;
+						insertedFileCache.setMaxSize(val);
+					}
+				}, true);
+
 		initDiskSpaceLimits(nodeConfig, sortOrder);
 
 		cryptoSecretTransient = new MasterSecret();
@@ -428,6 +480,15 @@ public class NodeClientCore implements Persistable {
 						      node.fastWeakRandom,
 						      nodeConfig.getBoolean("encryptTempBuckets"),
 						      minDiskFreeShortTerm, cryptoSecretTransient);
+		filteredContentCache = new FilteredContentCache(tempBucketFactory,
+				nodeConfig.getLong("filteredContentCacheSize"));
+		// Which files we have inserted is sensitive. The cache files are not encrypted, so at HIGH
+		// and MAXIMUM, when the client layer is, only keep it in memory, and delete anything left
+		// over from running at a lower level.
+		insertedFileCache = new InsertedFileCache(node.userDir().file("inserted-file-cache"),
+				nodeConfig.getLong("insertedFileCacheSize"));
+		if(node.securityLevels.getPhysicalThreatLevel().compareTo(PHYSICAL_THREAT_LEVEL.HIGH) >= 0)
+			insertedFileCache.forgetOnDisk();
 
 		bandwidthStatsPutter = new PersistentStatsPutter();
 
@@ -497,7 +558,7 @@ public class NodeClientCore implements Persistable {
 											       .dir(),
 									       minDiskFreeLongTerm
 									       + tempBucketFactory
-											       .getMaxRamUsed());
+											       .getMaxRamIncludingBorrowed());
 		persistentRAFFactory =
 				new MaybeEncryptedRandomAccessBufferFactory(persistentDiskChecker,
 									    nodeConfig.getBoolean(
@@ -567,6 +628,7 @@ public class NodeClientCore implements Persistable {
 										 SizeUtil.formatSize(
 												 FECCodec.MIN_MEMORY_ALLOCATION)));
 						    memoryLimitedJobRunner.setCapacity(val);
+						    updatePersistentRAFSpaceLimit();
 					    }
 
 				    }, true);
@@ -576,6 +638,9 @@ public class NodeClientCore implements Persistable {
 						nodeConfig.getInt("memoryLimitedJobThreadLimit"),
 						node.executor,
 						RequestStarter.NUMBER_OF_PRIORITY_CLASSES);
+		tempBucketFactory.shareMemoryWith(memoryLimitedJobRunner);
+		updatePersistentRAFSpaceLimit();
+		memoryLimitedJobRunner.registerMetrics(MetricsRegistry.getDefault());
 		shutdownHook.addEarlyJob(
 				new NativeThread("Shutdown FEC", NativeThread.HIGH_PRIORITY, true) {
 
@@ -610,6 +675,8 @@ public class NodeClientCore implements Persistable {
 						  compressor, storeChecker, fcpPersistentRoot,
 						  cryptoSecretTransient, toadlets,
 						  defaultFetchContext, defaultInsertContext, config);
+		clientContext.setFilteredContentCache(filteredContentCache);
+		clientContext.setInsertedFileCache(insertedFileCache);
 		compressor.setClientContext(clientContext);
 		storeChecker.setContext(clientContext);
 		clientLayerPersister.start(clientContext);
@@ -670,6 +737,10 @@ public class NodeClientCore implements Persistable {
 							}
 							persistentRAFFactory.setEncryption(true);
 						}
+						if (newLevel == PHYSICAL_THREAT_LEVEL.HIGH
+								|| newLevel == PHYSICAL_THREAT_LEVEL.MAXIMUM) {
+							insertedFileCache.forgetOnDisk();
+						}
 						if (clientLayerPersister.hasLoaded()) {
 							// May need to change filenames for client.dat* or even create them.
 							try {
@@ -885,13 +956,14 @@ public class NodeClientCore implements Persistable {
 
 	protected void updatePersistentRAFSpaceLimit() {
 	    // The temp bucket factory may have to migrate everything to disk.
-	    // So we add the RAM limit for the temp factory to the disk limit for the persistent one.
+	    // So we add the RAM limit for the temp factory, including what it can borrow from the
+	    // MemoryLimitedJobRunner, to the disk limit for the persistent one.
         if(persistentRAFFactory != null) {
             long size;
             synchronized(this) {
                 size = minDiskFreeLongTerm;
             }
-            size += tempBucketFactory.getMaxRamUsed();
+            size += tempBucketFactory.getMaxRamIncludingBorrowed();
             persistentDiskChecker.setMinDiskSpace(size);
         }
     }
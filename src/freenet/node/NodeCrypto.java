@@ -7,6 +7,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.net.SocketException;
 import java.security.interfaces.ECPublicKey;
 import java.util.ArrayList;
 import java.util.zip.DeflaterOutputStream;
@@ -47,6 +48,8 @@ public class NodeCrypto {
 	/** The object which handles our specific UDP port, pulls messages from it, feeds them to the packet mangler for decryption etc */
 	final UdpSocketHandler socket;
 	public FNPPacketMangler packetMangler;
+	/** Set when we start. Decodes the packets from our socket. */
+	private volatile IncomingPacketFilterImpl packetFilter;
 	// FIXME: abstract out address stuff? Possibly to something like NodeReference?
 	final int portNumber;
 	/** @see PeerNode.identity */
@@ -104,7 +107,7 @@ public class NodeCrypto {
 			for(int i=0;i<200000;i++) {
 				int portNo = 1024 + random.nextInt(65535-1024);
 				try {
-					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.collector);
+					u = createSocket(portNo, bindto, startupTime);
 					port = u.getPortNumber();
 					break;
 				} catch (Exception e) {
@@ -118,7 +121,7 @@ public class NodeCrypto {
 				throw new NodeInitException(NodeInitException.EXIT_NO_AVAILABLE_UDP_PORTS, "Could not find an available UDP port number for FNP (none specified)");
 		} else {
 			try {
-				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+				u = createSocket(port, bindto, startupTime);
 			} catch (Exception e) {
 				Logger.error(this, "Caught "+e, e);
 				System.err.println(e);
@@ -163,6 +166,12 @@ public class NodeCrypto {
 		return "UDP " + (isOpennet ? "Opennet " : "Darknet ") + "port " + port;
 	}
 
+	private UdpSocketHandler createSocket(int port, FreenetInetAddress bindto, long startupTime) throws SocketException {
+		if(node.virtualNetwork != null)
+			return new UdpSocketHandler(node.virtualNetwork.bind(port), node, startupTime, getTitle(port), node.collector);
+		return new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+	}
+
 	/**
 	 * Read the cryptographic keys etc from a SimpleFieldSet
 	 * @param fs
@@ -263,11 +272,19 @@ public class NodeCrypto {
 
 	public void start() {
 		socket.calculateMaxPacketSize();
-		socket.setLowLevelFilter(new IncomingPacketFilterImpl(packetMangler, node, this));
+		packetFilter = new IncomingPacketFilterImpl(packetMangler, node, this);
+		socket.setLowLevelFilter(packetFilter);
 		packetMangler.start();
 		socket.start();
 	}
 
+	/** @return The number of packets on our port which have not been tried as auth packets
+	 * because of the rate limits. */
+	long getDroppedAuthPackets() {
+		IncomingPacketFilterImpl filter = packetFilter;
+		return filter == null ? 0 : filter.getDroppedAuthPackets();
+	}
+
 	public SimpleFieldSet exportPrivateFieldSet() {
 		SimpleFieldSet fs = exportPublicFieldSet(false, false, false);
 		addPrivateFields(fs);
@@ -20,6 +20,7 @@ import freenet.crypt.JceLoader;
 import freenet.crypt.RandomSource;
 import freenet.crypt.SSL;
 import freenet.crypt.Yarrow;
+import freenet.io.comm.VirtualNetwork;
 import freenet.support.Executor;
 import freenet.support.JVMVersion;
 import freenet.support.Logger;
@@ -433,6 +434,10 @@ public class NodeStarter implements WrapperListener {
         public String ipAddressOverride;
         public boolean enableFCP;
         public boolean enablePlugins;
+        /** If not null, the node's ports are bound on this simulated network instead of real UDP
+         * sockets, so the port numbers need only be unique on the network. This allows far more
+         * nodes in one JVM, with controlled latency, bandwidth and packet loss. */
+        public VirtualNetwork virtualNetwork;
     }
 
     /**
@@ -576,7 +581,7 @@ public class NodeStarter implements WrapperListener {
 
 		PersistentConfig config = new PersistentConfig(configFS);
 
-        Node node = new Node(config, params.random, params.random, null, null, params.executor);
+        Node node = new Node(config, params.random, params.random, null, null, params.executor, params.virtualNetwork);
 
 		//All testing environments connect the nodes as they want, even if the old setup is restored, it is not desired.
 		node.peers.removeAllPeers();
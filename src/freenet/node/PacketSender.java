@@ -17,6 +17,9 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.TimeUtil;
 import freenet.support.io.NativeThread;
 import freenet.support.math.MersenneTwister;
+import freenet.support.metrics.Counter;
+import freenet.support.metrics.Histogram;
+import freenet.support.metrics.MetricsRegistry;
 
 /**
  * @author amphibian
@@ -42,6 +45,13 @@ public class PacketSender implements Runnable {
 		});
 	}
 
+	private static final Histogram loopTime = MetricsRegistry.getDefault().histogram(
+			"freenet_packet_sender_loop_seconds", "Time taken by each pass of the packet sender, not counting sleeping", 1e-9);
+	private static final Counter packetsSent = MetricsRegistry.getDefault().counter(
+			"freenet_packet_sender_packets_total", "Packets sent by the packet sender", "type", "data");
+	private static final Counter ackOnlyPacketsSent = MetricsRegistry.getDefault().counter(
+			"freenet_packet_sender_packets_total", "Packets sent by the packet sender", "type", "ack_only");
+
 	/** Maximum time we will queue a message for in milliseconds */
 	static final long MAX_COALESCING_DELAY = MILLISECONDS.toMillis(100);
 	/** Maximum time we will queue a message for in milliseconds if it is bulk data.
@@ -146,6 +156,7 @@ public class PacketSender implements Runnable {
 	 * e.g. bulk f2f transfers, so we may need to reconsider this eventually...
 	 */
 	private void realRun() {
+		long startNanos = System.nanoTime();
 		long now = System.currentTimeMillis();
                 PeerManager pm;
 		PeerNode[] nodes;
@@ -351,6 +362,7 @@ public class PacketSender implements Runnable {
 		if(toSendPacket != null) {
 			try {
 				if(toSendPacket.maybeSendPacket(now, false)) {
+					packetsSent.increment();
 					// Round-robin over the loop to update nextActionTime appropriately
 					nextActionTime = now;
 				}
@@ -361,6 +373,7 @@ public class PacketSender implements Runnable {
 		} else if(toSendAckOnly != null) {
 			try {
 				if(toSendAckOnly.maybeSendPacket(now, true)) {
+					ackOnlyPacketsSent.increment();
                     // Round-robin over the loop to update nextActionTime appropriately
                     nextActionTime = now;
 				}
@@ -444,6 +457,7 @@ public class PacketSender implements Runnable {
 
 		// Send may have taken some time
 		now = System.currentTimeMillis();
+		loopTime.recordSince(startNanos);
 
 		if((now - oldNow) > SECONDS.toMillis(10))
 			Logger.error(this, "now is more than 10 seconds past oldNow (" + (now - oldNow) + ") in PacketSender");
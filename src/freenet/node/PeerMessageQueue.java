@@ -1,10 +1,12 @@
 package freenet.node;
 
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.TreeSet;
 
 import freenet.io.comm.DMT;
 import freenet.support.DoublyLinkedList;
@@ -65,12 +67,21 @@ public class PeerMessageQueue {
 			}
 			public void addLast(MessageItem item) {
 				items.addLast(item);
+				addedUrgent(item);
 			}
 			public void addFirst(MessageItem item) {
 				items.addFirst(item);
+				addedUrgent(item);
 			}
 			public boolean remove(MessageItem item) {
-				return items.remove(item);
+				if(!items.remove(item)) return false;
+				removedUrgent(item);
+				return true;
+			}
+			public MessageItem removeFirst() {
+				MessageItem item = items.removeFirst();
+				removedUrgent(item);
+				return item;
 			}
 			@Override
 			public String toString() {
@@ -97,7 +108,100 @@ public class PeerMessageQueue {
 		/** Non-urgent messages. Same order as in Items, so stuff to send first is at
 		 * the beginning. */
 		LinkedList<MessageItem> itemsNonUrgent;
+		/** Number of messages in itemsNonUrgent for each UID. Only used when round-robin'ing
+		 * between UIDs. */
+		Map<Long, Integer> nonUrgentCountByID;
+		/** Trackers which have sent something and have messages waiting in itemsNonUrgent,
+		 * ordered by timeLastSent. The first one is the next to become urgent, unless the
+		 * first message in itemsNonUrgent becomes urgent sooner. */
+		TreeSet<Items> waitingTrackers;
 		// Construct structures lazily, we're protected by the overall synchronized.
+		
+		/* Totals kept up to date as messages are added and removed, so the packet sender can 
+		 * check the size of the queue for every peer without walking every message. */
+		/** Messages in nonEmptyItemsWithID. */
+		int urgentCount;
+		long urgentBytes;
+		/** Messages in itemsNonUrgent. */
+		int nonUrgentCount;
+		long nonUrgentBytes;
+		
+		private void addedUrgent(MessageItem item) {
+			urgentCount++;
+			urgentBytes += item.getLength();
+		}
+		
+		private void removedUrgent(MessageItem item) {
+			urgentCount--;
+			urgentBytes -= item.getLength();
+		}
+		
+		private void addedNonUrgent(MessageItem item) {
+			nonUrgentCount++;
+			nonUrgentBytes += item.getLength();
+			if(!roundRobinBetweenUIDs) return;
+			long id = item.getID();
+			if(nonUrgentCountByID == null)
+				nonUrgentCountByID = new HashMap<Long, Integer>();
+			Integer count = nonUrgentCountByID.get(id);
+			nonUrgentCountByID.put(id, count == null ? 1 : count + 1);
+			if(count == null && itemsByID != null) {
+				Items tracker = itemsByID.get(id);
+				if(tracker != null) track(tracker);
+			}
+		}
+		
+		private void removedNonUrgent(MessageItem item) {
+			nonUrgentCount--;
+			nonUrgentBytes -= item.getLength();
+			if(!roundRobinBetweenUIDs) return;
+			long id = item.getID();
+			Integer count = nonUrgentCountByID == null ? null : nonUrgentCountByID.get(id);
+			if(count == null) {
+				Logger.error(this, "Removed non-urgent message but not counted for "+id+" : "+item);
+			} else if(count == 1) {
+				nonUrgentCountByID.remove(id);
+				if(itemsByID != null) {
+					Items tracker = itemsByID.get(id);
+					if(tracker != null) untrack(tracker);
+				}
+			} else {
+				nonUrgentCountByID.put(id, count - 1);
+			}
+		}
+		
+		/** Add to waitingTrackers if it has sent something and has messages in itemsNonUrgent. */
+		private void track(Items tracker) {
+			if(tracker.timeLastSent <= 0) return;
+			if(nonUrgentCountByID == null || !nonUrgentCountByID.containsKey(tracker.id)) return;
+			if(waitingTrackers == null)
+				waitingTrackers = new TreeSet<Items>(byTimeLastSent);
+			waitingTrackers.add(tracker);
+		}
+		
+		private void untrack(Items tracker) {
+			if(waitingTrackers != null)
+				waitingTrackers.remove(tracker);
+		}
+		
+		/** Must be used rather than setting timeLastSent directly, since it orders 
+		 * waitingTrackers. */
+		private void setTimeLastSent(Items tracker, long time) {
+			untrack(tracker);
+			tracker.timeLastSent = time;
+			track(tracker);
+		}
+		
+		private final Comparator<Items> byTimeLastSent = new Comparator<Items>() {
+
+			@Override
+			public int compare(Items a, Items b) {
+				if(a.timeLastSent != b.timeLastSent)
+					return a.timeLastSent < b.timeLastSent ? -1 : 1;
+				return Long.compare(a.id, b.id);
+			}
+			
+		};
 
 		/** Add a new message. For a normal priority level, we just add it to the end of the list.
 		 * It will be sent after the messages that are already queued, and its deadline is effectively
@@ -135,6 +239,7 @@ public class PeerMessageQueue {
 			while(true) {
 				if(!it.hasPrevious()) {
 					it.add(item);
+					addedNonUrgent(item);
 					if(logMINOR) checkOrder();
 					return;
 				}
@@ -142,6 +247,7 @@ public class PeerMessageQueue {
 				if(item.submitted >= prev.submitted) {
 					it.next();
 					it.add(item);
+					addedNonUrgent(item);
 					if(logMINOR) checkOrder();
 					return;
 				}
@@ -178,6 +284,7 @@ public class PeerMessageQueue {
 						list = new Items(id, item.submitted);
 						addToNonEmptyForward(list);
 						itemsByID.put(id, list);
+						track(list);
 						if(logMINOR) checkOrder();
 					} else {
 						if(list == null) {
@@ -186,6 +293,7 @@ public class PeerMessageQueue {
 								nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
 							addToNonEmptyForward(list);
 							itemsByID.put(id, list);
+							track(list);
 							if(logMINOR) checkOrder();
 						} else {
 							if(list.items.isEmpty()) {
@@ -204,8 +312,9 @@ public class PeerMessageQueue {
 							if(logMINOR) checkOrder();
 						}
 					}
-					list.addLast(item);
 					it.remove();
+					removedNonUrgent(item);
+					list.addLast(item);
 					moved++;
 					if(logMINOR) checkOrder();
 				} else if(!roundRobinBetweenUIDs)
@@ -296,6 +405,7 @@ public class PeerMessageQueue {
 				list = new Items(id, -1);
 				addToNonEmptyForward(list);
 				itemsByID.put(id, list);
+				track(list);
 			} else {
 				list = itemsByID.get(id);
 				if(list == null) {
@@ -304,6 +414,7 @@ public class PeerMessageQueue {
 						nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
 					nonEmptyItemsWithID.unshift(list);
 					itemsByID.put(id, list);
+					track(list);
 				} else {
 					if(list.items.isEmpty()) {
 						assert(list.getParent() == emptyItemsWithID);
@@ -319,13 +430,12 @@ public class PeerMessageQueue {
 		}
 
 		public int size() {
-			int size = 0;
-			if(nonEmptyItemsWithID != null)
-				for(Items items : nonEmptyItemsWithID)
-					size += items.items.size();
-			if(itemsNonUrgent != null)
-				size += itemsNonUrgent.size();
-			return size;
+			return urgentCount + nonUrgentCount;
+		}
+
+		/** @return The total length of the messages in this queue. */
+		public long bytes() {
+			return urgentBytes + nonUrgentBytes;
 		}
 
 		public int addTo(MessageItem[] output, int ptr) {
@@ -363,84 +473,81 @@ public class PeerMessageQueue {
 					prevItem = item;
 				}
 			}
+			checkTotals();
+		}
+		
+		/** Check that the cached totals are correct. 
+		 * LOCKING: Caller must synchronize on PeerMessageQueue.this. */
+		private void checkTotals() {
+			int count = 0;
+			long bytes = 0;
+			if(nonEmptyItemsWithID != null) {
+				for(Items items : nonEmptyItemsWithID) {
+					for(MessageItem item : items.items) {
+						count++;
+						bytes += item.getLength();
+					}
+				}
+			}
+			if(count != urgentCount || bytes != urgentBytes)
+				Logger.error(this, "Inconsistent urgent totals: "+urgentCount+" messages "+urgentBytes+" bytes but actually "+count+" messages "+bytes+" bytes", new Exception("error"));
+			count = 0;
+			bytes = 0;
+			if(itemsNonUrgent != null) {
+				for(MessageItem item : itemsNonUrgent) {
+					count++;
+					bytes += item.getLength();
+				}
+			}
+			if(count != nonUrgentCount || bytes != nonUrgentBytes)
+				Logger.error(this, "Inconsistent non-urgent totals: "+nonUrgentCount+" messages "+nonUrgentBytes+" bytes but actually "+count+" messages "+bytes+" bytes", new Exception("error"));
 		}
 
 		/** Note that this does NOT consider the length of the queue, which can trigger a
 		 * send. This is intentional, and is relied upon by the bulk-or-realtime logic in
 		 * addMessages().
+		 * 
+		 * This is called for every peer on every PacketSender loop, so it does not look at
+		 * each queued message: nonEmptyItemsWithID and waitingTrackers are both ordered by 
+		 * timeLastSent, and itemsNonUrgent by submitted time.
 		 * @param t The initial urgent time. What we return must be less than or 
 		 * equal to this. Convenient for chaining. 
 		 * @param stopIfBeforeTime If the next urgent time is <= to this time, 
 		 * return immediately.
 		 */
 		public long getNextUrgentTime(long t, long stopIfBeforeTime) {
+			if(itemsNonUrgent != null && !itemsNonUrgent.isEmpty()) {
+				t = Math.min(t, itemsNonUrgent.getFirst().submitted + timeout);
+				if(t <= stopIfBeforeTime) return t;
+			}
 			if(!roundRobinBetweenUIDs) {
-				if(itemsNonUrgent != null && !itemsNonUrgent.isEmpty()) {
-					t = Math.min(t, itemsNonUrgent.getFirst().submitted + timeout);
-					if(t <= stopIfBeforeTime) return t;
-				}
 				assert(nonEmptyItemsWithID == null);
 				assert(itemsByID == null);
 			} else {
 				if(nonEmptyItemsWithID != null) {
+					// Requeued items which haven't been sent yet come first, with timeLastSent = -1.
 					for(Items items : nonEmptyItemsWithID) {
 						if(items.items.size() == 0) continue;
 						if(items.timeLastSent > 0) {
+							// Everything after this was sent later.
 							t = Math.min(t, items.timeLastSent + timeout);
-							if(t <= stopIfBeforeTime) return t;
+							break;
 						} else {
 							// It is possible that something requeued isn't urgent, so check anyway.
 							t = Math.min(t, items.items.getFirst().submitted + timeout);
 							if(t <= stopIfBeforeTime) return t;
 						}
 					}
+					if(t <= stopIfBeforeTime) return t;
 				}
-				if(itemsNonUrgent != null && !itemsNonUrgent.isEmpty()) {
-					for(MessageItem item : itemsNonUrgent) {
-						long uid = item.getID();
-						Items items = itemsByID == null ? null : itemsByID.get(uid);
-						if(items != null && items.timeLastSent > 0) {
-							t = Math.min(t, items.timeLastSent + timeout);
-							if(t <= stopIfBeforeTime) return t;
-						} else {
-							t = Math.min(t, item.submitted + timeout);
-							if(t <= stopIfBeforeTime) return t;
-							if(itemsByID == null) break; // Only the first one matters, since none have been sent.
-						}
-					}
-				}
+				// A non-urgent message also becomes urgent when its UID was last sent long 
+				// enough ago, see moveToUrgent().
+				if(waitingTrackers != null && !waitingTrackers.isEmpty())
+					t = Math.min(t, waitingTrackers.first().timeLastSent + timeout);
 			}
 			return t;
 		}
 
-		/**
-		 * Add the size of messages in this queue to <code>length</code> until
-		 * length is larger than <code>maxSize</code>, or all messages have
-		 * been added.
-		 * @param length the starting length
-		 * @param maxSize the size at which to stop
-		 * @return the resulting length after adding messages
-		 */
-		public int addSize(int length, int maxSize) {
-			if(itemsNonUrgent != null) {
-				for(MessageItem item : itemsNonUrgent) {
-					int thisLen = item.getLength();
-					length += thisLen;
-					if(length > maxSize) return length;
-				}
-			}
-			if(nonEmptyItemsWithID != null) {
-				for(Items list : nonEmptyItemsWithID) {
-					for(MessageItem item : list.items) {
-						int thisLen = item.getLength();
-						length += thisLen;
-						if(length > maxSize) return length;
-					}
-				}
-			}
-			return length;
-		}
-		
 		private MessageItem addNonUrgentMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
 			if(logMINOR) checkOrder();
 			if(itemsNonUrgent == null) return null;
@@ -448,13 +555,14 @@ public class PeerMessageQueue {
 			for(ListIterator<MessageItem> items = itemsNonUrgent.listIterator();items.hasNext();) {
 				MessageItem item = items.next();
 				items.remove();
+				removedNonUrgent(item);
 				item.setDeadline(item.submitted + timeout);
 				ret = item;
 				if(itemsByID != null) {
 					long id = item.getID();
 					Items tracker = itemsByID.get(id);
 					if(tracker != null) {
-						tracker.timeLastSent = now;
+						setTimeLastSent(tracker, now);
 						DoublyLinkedList<? super Items> parent = tracker.getParent();
 						// Demote the corresponding tracker to maintain round-robin.
 						if(tracker.items.isEmpty()) {
@@ -540,13 +648,12 @@ public class PeerMessageQueue {
 						list = nonEmptyItemsWithID.head();
 						continue;
 					}
-					MessageItem item = list.items.getFirst();
-					list.items.removeFirst();
+					MessageItem item = list.removeFirst();
 					// Move to end of list.
 					Items prev = list.getPrev();
 					nonEmptyItemsWithID.remove(list);
 					item.setDeadline(list.timeLastSent + timeout);
-					list.timeLastSent = now;
+					setTimeLastSent(list, now);
 					if(!list.items.isEmpty()) {
 						if(logDEBUG) Logger.debug(this, "Moving "+list+" to end of non empty list in addUrgentMessages");
 						addToNonEmptyBackward(list);
@@ -638,6 +745,7 @@ public class PeerMessageQueue {
 					else if(old != list)
 						Logger.error(this, "Different list in the items by ID tracker: "+old+" not "+list+" for "+list.id);
 					emptyItemsWithID.remove(list);
+					untrack(list);
 					removed++;
 				} else {
 					if(logDEBUG && removed > 0)
@@ -652,6 +760,12 @@ public class PeerMessageQueue {
 			nonEmptyItemsWithID = null;
 			itemsByID = null;
 			itemsNonUrgent = null;
+			nonUrgentCountByID = null;
+			waitingTrackers = null;
+			urgentCount = 0;
+			urgentBytes = 0;
+			nonUrgentCount = 0;
+			nonUrgentBytes = 0;
 			if(logMINOR) checkOrder();
 		}
 
@@ -673,9 +787,10 @@ public class PeerMessageQueue {
 				}
 			}
 			if(logMINOR) checkOrder();
-			if(itemsNonUrgent != null)
-				return itemsNonUrgent.remove(item);
-			else
+			if(itemsNonUrgent != null && itemsNonUrgent.remove(item)) {
+				removedNonUrgent(item);
+				return true;
+			} else
 				return false;
 		}
 		
@@ -690,22 +805,14 @@ public class PeerMessageQueue {
 					assert(emptyItemsWithID != null);
 					assert(items.getParent() == emptyItemsWithID);
 					emptyItemsWithID.remove(items);
+					untrack(items);
 				}
 			}
 			if(logMINOR) checkOrder();
 		}
 
 		public boolean isEmpty() {
-			if(itemsNonUrgent != null && !itemsNonUrgent.isEmpty()) {
-				return false;
-			}
-			if(nonEmptyItemsWithID != null) {
-				for(Items items : nonEmptyItemsWithID) {
-					if(items.items.size() == 0) continue;
-					return false;
-				}
-			}
-			return true;
+			return size() == 0;
 		}
 
 	}
@@ -729,41 +836,26 @@ public class PeerMessageQueue {
 	 * Queue a <code>MessageItem</code> and return an estimate of the size of
 	 * this queue. The value returned is the estimated number of bytes
 	 * needed for sending the all messages in this queue. Note that if the
-	 * returned estimate is higher than 1024, it might not cover all messages.
+	 * returned estimate is higher than <code>maxSize</code>, it need not be 
+	 * accurate.
 	 * @param item the <code>MessageItem</code> to queue
 	 * @return an estimate of the size of this queue
 	 */
 	public synchronized int queueAndEstimateSize(MessageItem item, int maxSize) {
 		enqueuePrioritizedMessageItem(item);
-		int x = 0;
+		long x = 0;
 		for(PrioQueue pq : queuesByPriority) {
-			if(pq.itemsNonUrgent != null) {
-				for(MessageItem it : pq.itemsNonUrgent) {
-					x += it.getLength() + 2;
-					if(x > maxSize)
-						break;
-				}
-			}
-			if(pq.nonEmptyItemsWithID != null) {
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items) {
-						x += it.getLength() + 2;
-						if(x > maxSize)
-							break;
-					}
-			}
+			x += pq.bytes() + 2 * pq.size();
+			if(x > maxSize)
+				break;
 		}
-		return x;
+		return (int) Math.min(x, Integer.MAX_VALUE);
 	}
 
 	public synchronized long getMessageQueueLengthBytes() {
 		long x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.nonEmptyItemsWithID != null)
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items)
-						x += it.getLength() + 2;
-		}
+		for(PrioQueue pq : queuesByPriority)
+			x += pq.urgentBytes + 2 * pq.urgentCount;
 		return x;
 	}
 
@@ -845,9 +937,9 @@ public class PeerMessageQueue {
 	 * messages in this queue is greater than <code>maxSize</code>
 	 */
 	public synchronized boolean mustSendSize(int minSize, int maxSize) {
-		int length = minSize;
+		long length = minSize;
 		for(PrioQueue items : queuesByPriority) {
-			length = items.addSize(length, maxSize);
+			length += items.bytes();
 			if(length > maxSize) return true;
 		}
 		return false;
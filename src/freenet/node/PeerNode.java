@@ -77,6 +77,7 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
 import freenet.support.WeakHashSet;
+import freenet.support.io.NativeThread.PriorityLevel;
 import freenet.support.math.MersenneTwister;
 import freenet.support.math.RunningAverage;
 import freenet.support.math.SimpleRunningAverage;
@@ -1733,6 +1734,138 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		}
 	}
 
+	/** Callback for sendAcked(). Exactly one method is called, once, on the node's executor. */
+	public interface SendAckedCallback {
+		/** The message has been acknowledged. */
+		void acknowledged();
+		/** We were disconnected before the message was acknowledged. */
+		void disconnected();
+		/** The message was not sent and acknowledged within a minute. As with sendSync(), it
+		 * has been unqueued if possible, and the peer has been told off for it. */
+		void waitedTooLong();
+	}
+
+	/**
+	 * Enqueue a message to be sent to this node, and call back once it has been acknowledged.
+	 * Behaves as sendSync(), including the timeouts, but doesn't tie up a thread while the
+	 * message waits in the queue and for its acknowledgement.
+	 */
+	public void sendAcked(Message req, ByteCounter ctr, boolean realTime, SendAckedCallback cb) {
+		AckedSend send = new AckedSend(req, realTime, cb);
+		try {
+			send.queued(sendAsync(req, send, ctr));
+		} catch (NotConnectedException e) {
+			// sendAsync() has already called disconnected().
+		}
+	}
+
+	private class AckedSend implements AsyncMessageCallback, Runnable {
+
+		private final Message req;
+		private final boolean realTime;
+		private final SendAckedCallback cb;
+		private MessageItem item;
+		private boolean done;
+		/** We have timed out once but couldn't unqueue the message. */
+		private boolean waitedOnce;
+
+		AckedSend(Message req, boolean realTime, SendAckedCallback cb) {
+			this.req = req;
+			this.realTime = realTime;
+			this.cb = cb;
+		}
+
+		void queued(MessageItem item) {
+			synchronized(this) {
+				if(done) return;
+				this.item = item;
+			}
+			node.getTicker().queueTimedJob(this, MINUTES.toMillis(1));
+		}
+
+		/** @return False if we have already called back. */
+		private synchronized boolean complete() {
+			if(done) return false;
+			done = true;
+			return true;
+		}
+
+		@Override
+		public void acknowledged() {
+			if(!complete()) return;
+			node.executor.execute(new PrioRunnable() {
+
+				@Override
+				public void run() {
+					cb.acknowledged();
+				}
+
+				@Override
+				public int getPriority() {
+					return PriorityLevel.HIGH_PRIORITY.value;
+				}
+
+			}, "Acknowledged "+req+" to "+PeerNode.this);
+		}
+
+		@Override
+		public void disconnected() {
+			if(!complete()) return;
+			node.executor.execute(new PrioRunnable() {
+
+				@Override
+				public void run() {
+					cb.disconnected();
+				}
+
+				@Override
+				public int getPriority() {
+					return PriorityLevel.HIGH_PRIORITY.value;
+				}
+
+			}, "Disconnected sending "+req+" to "+PeerNode.this);
+		}
+
+		@Override
+		public void fatalError() {
+			// As in sendSync().
+			acknowledged();
+		}
+
+		@Override
+		public void sent() {
+			// It might have been lost, we wait until it is acked.
+		}
+
+		/** Timeout, on the ticker. */
+		@Override
+		public void run() {
+			boolean firstTimeout;
+			synchronized(this) {
+				if(done) return;
+				firstTimeout = !waitedOnce;
+				waitedOnce = true;
+			}
+			if(firstTimeout) {
+				Logger.warning(this, "Waited too long for a blocking send for " + req + " to " + PeerNode.this);
+				localRejectedOverload("SendSyncTimeout", realTime);
+				// Try to unqueue it, since it presumably won't be of any use now.
+				if(!messageQueue.removeMessage(item)) {
+					node.getTicker().queueTimedJob(this, SECONDS.toMillis(10));
+					return;
+				}
+			} else {
+				Logger.error(this, "Waited too long for blocking send and then could not unqueue for "+req+" to "+PeerNode.this);
+				// Can't cancel yet can't send, something seriously wrong.
+				// Treat as fatal timeout as probably their fault.
+				fatalTimeout();
+			}
+			if(complete())
+				cb.waitedTooLong();
+		}
+
+	}
+
 	/**
 	 * Determines the degree of the peer via the locations of its peers it provides.
 	 * @return The number of peers this peer reports having, or 0 if this peer does not provide that information.
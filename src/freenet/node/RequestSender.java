@@ -45,6 +45,8 @@ import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
 import freenet.support.io.NativeThread;
 import freenet.support.math.MedianMeanRunningAverage;
+import freenet.support.metrics.Histogram;
+import freenet.support.metrics.MetricsRegistry;
 
 /**
  * @author amphibian
@@ -142,6 +144,21 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     	return getStatusString(getStatus());
     }
     
+    /** Time from starting to route a request until it finishes, by [isSSK][status]. */
+    private static final Histogram[][] timeTakenByStatus = new Histogram[2][GET_OFFER_TRANSFER_FAILED+1];
+    static {
+    	MetricsRegistry registry = MetricsRegistry.getDefault();
+    	for(int i=0;i<2;i++) {
+    		for(int code=0;code<timeTakenByStatus[i].length;code++) {
+    			String status = getStatusString(code);
+    			if(status.startsWith("UNKNOWN")) continue;
+    			timeTakenByStatus[i][code] = registry.histogram("freenet_request_sender_seconds", 
+    					"Time taken to route a request, from starting to route it until it finishes", 
+    					1e-3, "type", i == 0 ? "chk" : "ssk", "status", status.toLowerCase().replace(' ', '_'));
+    		}
+    	}
+    }
+    
     private static volatile boolean logMINOR;
     static {
 	Logger.registerLogThresholdCallback(new LogThresholdCallback(){
@@ -414,7 +431,10 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     	
     	private final PeerNode waitingFor;
     	private final boolean noReroute;
-    	private final long deadline;
+    	private long deadline;
+    	/** We have timed out once, and finished the request if we could. Now we wait
+    	 * for the peer to either reply or time out a second (fatal) time. */
+    	private boolean waitingForSecondTimeout;
 		public byte[] sskData;
 		public byte[] headers;
 		final long searchTimeout;
@@ -436,7 +456,10 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
         	if(action == DO.FINISHED)
         		return;
         	else if(action == DO.NEXT_PEER) {
-        		if(!noReroute) {
+        		if(waitingForSecondTimeout) {
+        			// Already timed out, don't try others.
+        			waitingFor.noLongerRoutingTo(origTag, false);
+        		} else if(!noReroute) {
         			// Try another peer
         			routeRequests();
         		}
@@ -469,6 +492,12 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 
 		@Override
 		public void onTimeout() {
+			if(waitingForSecondTimeout) {
+				// Second timeout.
+				Logger.error(this, "Fatal timeout waiting for reply after Accepted on "+RequestSender.this+" from "+waitingFor);
+				waitingFor.fatalTimeout(origTag, false);
+				return;
+			}
 			// This is probably a downstream timeout.
 			// It's not a serious problem until we have a second (fatal) timeout.
 			Logger.warning(this, "Timed out after waiting "+searchTimeout+" on "+uid+" from "+waitingFor+" ("+gotMessages+" messages; last="+lastMessage+") for "+uid+" noReroute="+noReroute);
@@ -483,45 +512,16 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 			}
     		
 			// Wait for second timeout.
-    		// FIXME make this async.
-    		long deadline = System.currentTimeMillis() + searchTimeout;
-			while(true) {
-				
-				Message msg;
-				try {
-		        	int timeout = (int)(Math.min(Integer.MAX_VALUE, deadline - System.currentTimeMillis()));
-					msg = node.usm.waitFor(createMessageFilter(timeout, waitingFor), RequestSender.this);
-				} catch (DisconnectedException e) {
-					Logger.normal(this, "Disconnected from " + waitingFor
-							+ " while waiting for reply on " + this);
-					waitingFor.noLongerRoutingTo(origTag, false);
-					return;
-				}
-				
-				if(msg == null) {
-					// Second timeout.
-					Logger.error(this, "Fatal timeout waiting for reply after Accepted on "+this+" from "+waitingFor);
-					waitingFor.fatalTimeout(origTag, false);
-					return;
-				}
-				
-				DO action = handleMessage(msg, noReroute, waitingFor, this);
-				
-				if(action == DO.FINISHED)
-					return;
-				else if(action == DO.NEXT_PEER) {
-					waitingFor.noLongerRoutingTo(origTag, false);
-					return; // Don't try others
-				}
-				// else if(action == DO.WAIT) continue;
-			}
+			waitingForSecondTimeout = true;
+			deadline = System.currentTimeMillis() + searchTimeout;
+			schedule();
 		}
 
 		@Override
 		public void onDisconnect(PeerContext ctx) {
 			Logger.normal(this, "Disconnected from "+waitingFor+" while waiting for data on "+uid);
 			waitingFor.noLongerRoutingTo(origTag, false);
-			if(noReroute) return;
+			if(noReroute || waitingForSecondTimeout) return;
 			// Try another peer.
 			routeRequests();
 		}
@@ -1581,6 +1581,9 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
             notifyAll();
         }
         
+        if(code >= 0 && code < timeTakenByStatus[0].length && timeTakenByStatus[0][code] != null)
+        	timeTakenByStatus[isSSK ? 1 : 0][code].record(System.currentTimeMillis() - startTime);
+        
     	boolean shouldUnlock = doOpennet && next != null;
         
         if(status == SUCCESS) {
@@ -2123,6 +2126,17 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 	protected long getAcceptedTimeout() {
 		return ACCEPTED_TIMEOUT;
 	}
+	
+	@Override
+	protected boolean waitForAcceptedAsync() {
+		return true;
+	}
+	
+	@Override
+	protected void startedAsyncWait() {
+		// The callback is responsible for completion from now on.
+		receivingAsync = true;
+	}
 
 	@Override
 	protected void timedOutWhileWaiting(double load) {
@@ -147,6 +147,9 @@ public class RealNodeBusyNetworkTest extends RealNodeRoutingTest {
         }
 
         // Now queue requests for each key on every node.
+        SenderThreadSampler senderThreadSampler = new SenderThreadSampler(executor);
+        int[] maxThreads = new int[3];
+        long startTime = System.currentTimeMillis();
         for(int i=0;i<INSERT_KEYS;i++) {
         	ClientCHK key = keys[i];
         	System.err.println("Queueing requests for "+i+" of "+INSERT_KEYS);
@@ -167,10 +170,14 @@ public class RealNodeBusyNetworkTest extends RealNodeRoutingTest {
         	for(int i=0;i<nodes.length;i++) {
         		totalRunningRequests += nodes[i].clientCore.countQueuedRequests();
         	}
-        	System.err.println("Running requests: "+totalRunningRequests);
+        	int[] threads = senderThreadSampler.getAndResetPeaks();
+        	for(int i=0;i<threads.length;i++)
+        		if(threads[i] > maxThreads[i]) maxThreads[i] = threads[i];
+        	System.err.println("Running requests: "+totalRunningRequests+", peak sender threads: "+threads[0]+" (max "+maxThreads[0]+"), peak busy executor threads: "+threads[1]+" (max "+maxThreads[1]+"), peak total threads: "+threads[2]+" (max "+maxThreads[2]+")");
         	if(totalRunningRequests == 0) break;
         	Thread.sleep(1000);
         }
+        System.err.println("Requests finished in "+(System.currentTimeMillis() - startTime)+"ms, peak sender threads: "+maxThreads[0]+", peak busy executor threads: "+maxThreads[1]+", peak total threads: "+maxThreads[2]);
         System.exit(0);
     }
 }
@@ -138,6 +138,8 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
     	this.nodes = nodes;
     	this.random = random;
     	this.targetSuccesses = targetSuccesses;
+    	// The nodes share an executor.
+    	this.senderThreadSampler = new SenderThreadSampler(nodes[0].executor);
 	}
 
     private final Node[] nodes;
@@ -148,6 +150,8 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
 	private int insertAttempts = 0;
 	private int fetchSuccesses = 0;
 	private final int targetSuccesses;
+	private final int[] maxThreads = new int[3];
+	private final SenderThreadSampler senderThreadSampler;
 
 	/**
 	 * @param nodes
@@ -259,6 +263,10 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
         		load.append(' ');
         }
         System.err.println(load.toString());
+        int[] threads = senderThreadSampler.getAndResetPeaks();
+        for(int i=0;i<threads.length;i++)
+        	if(threads[i] > maxThreads[i]) maxThreads[i] = threads[i];
+        System.err.println("Peak sender threads: "+threads[0]+" (max "+maxThreads[0]+"), peak busy executor threads: "+threads[1]+" (max "+maxThreads[1]+"), peak total threads: "+threads[2]+" (max "+maxThreads[2]+")");
         if(totalRunningUIDsAlt != 0)
         	System.err.println("Still running UIDs (alt): "+totalRunningUIDsAlt);
         if(!runningUIDsList.isEmpty()) {
@@ -7,9 +7,11 @@ import java.io.File;
 
 import freenet.crypt.DummyRandomSource;
 import freenet.crypt.RandomSource;
+import freenet.io.comm.VirtualNetwork;
 import freenet.node.LocationManager;
 import freenet.node.Node;
 import freenet.node.NodeStarter;
+import freenet.node.NodeStarter.TestNodeParameters;
 import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.PooledExecutor;
@@ -25,6 +27,9 @@ import freenet.support.math.SimpleRunningAverage;
  * Create a mesh of nodes and let them sort out their locations.
  * 
  * Then run some node-to-node searches.
+ * 
+ * With --virtual, the nodes talk over a VirtualNetwork with 20ms latency rather than real UDP
+ * sockets, and a summary of the traffic is printed at the end.
  */
 public class RealNodeRoutingTest extends RealNodeTest {
 
@@ -59,9 +64,30 @@ public class RealNodeRoutingTest extends RealNodeTest {
 		Node[] nodes = new Node[NUMBER_OF_NODES];
 		Logger.normal(RealNodeRoutingTest.class, "Creating nodes...");
 		Executor executor = new PooledExecutor();
+		VirtualNetwork network = null;
+		if(args.length > 0 && args[0].equals("--virtual")) {
+			network = new VirtualNetwork(3144);
+			network.setLatency(20);
+		}
 		for(int i = 0; i < NUMBER_OF_NODES; i++) {
 			System.err.println("Creating node " + i);
-			nodes[i] = NodeStarter.createTestNode(DARKNET_PORT_BASE + i, 0, dir, true, MAX_HTL, 0 /* no dropped packets */, random, executor, 500 * NUMBER_OF_NODES, 65536, true, ENABLE_SWAPPING, false, false, false, ENABLE_SWAP_QUEUEING, true, 0, ENABLE_FOAF, false, true, false, null);
+			TestNodeParameters params = new TestNodeParameters();
+			params.port = DARKNET_PORT_BASE + i;
+			params.baseDirectory = wd;
+			params.disableProbabilisticHTLs = true;
+			params.maxHTL = MAX_HTL;
+			params.random = random;
+			params.executor = executor;
+			params.threadLimit = 500 * NUMBER_OF_NODES;
+			params.storeSize = 65536;
+			params.ramStore = true;
+			params.enableSwapping = ENABLE_SWAPPING;
+			params.enableSwapQueueing = ENABLE_SWAP_QUEUEING;
+			params.enablePacketCoalescing = true;
+			params.enableFOAF = ENABLE_FOAF;
+			params.longPingTimes = true;
+			params.virtualNetwork = network;
+			nodes[i] = NodeStarter.createTestNode(params);
 			Logger.normal(RealNodeRoutingTest.class, "Created node " + i);
 		}
 		Logger.normal(RealNodeRoutingTest.class, "Created " + NUMBER_OF_NODES + " nodes");
@@ -82,6 +108,8 @@ public class RealNodeRoutingTest extends RealNodeTest {
 		// and the choice of nodes to start and finish are deterministic, so
 		// the overall result should be more or less deterministic.
 		waitForPingAverage(0.98, nodes, new DummyRandomSource(3143), MAX_PINGS, 5000);
+		if(network != null)
+			System.out.println(network.getReport());
 		System.exit(0);
 	}
 
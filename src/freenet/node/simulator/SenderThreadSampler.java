@@ -0,0 +1,64 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import freenet.support.Executor;
+
+/** Samples the threads used by the nodes under test: the threads running request and 
+ * insert senders (the executor names its threads after the job), the executor's busy 
+ * threads, and all live threads. Senders waiting for a reply should not hold a thread, 
+ * but that only helps if the callbacks don't block in turn, hence the other counts. */
+class SenderThreadSampler implements Runnable {
+	
+	private final Executor executor;
+	private int peakSenders;
+	private int peakBusy;
+	private int peakTotal;
+	
+	SenderThreadSampler(Executor executor) {
+		this.executor = executor;
+		Thread t = new Thread(this, "Sender thread sampler");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	@Override
+	public void run() {
+		Thread[] threads = new Thread[0];
+		while(true) {
+			if(threads.length < Thread.activeCount() * 2)
+				threads = new Thread[Thread.activeCount() * 2];
+			int count = Thread.enumerate(threads);
+			int senders = 0;
+			for(int i=0;i<count;i++) {
+				if(threads[i].getName().contains("Sender for UID"))
+					senders++;
+			}
+			int busy = 0;
+			for(int running : executor.runningThreads())
+				busy += running;
+			synchronized(this) {
+				if(senders > peakSenders) peakSenders = senders;
+				if(busy > peakBusy) peakBusy = busy;
+				if(count > peakTotal) peakTotal = count;
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+		}
+	}
+	
+	/** @return The peak number of sender threads, busy executor threads and live threads 
+	 * since the last call, in that order. */
+	synchronized int[] getAndResetPeaks() {
+		int[] ret = new int[] { peakSenders, peakBusy, peakTotal };
+		peakSenders = 0;
+		peakBusy = 0;
+		peakTotal = 0;
+		return ret;
+	}
+	
+}
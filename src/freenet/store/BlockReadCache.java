@@ -0,0 +1,262 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.support.LRUMap;
+
+/**
+ * In-memory cache of decoded blocks read from the datastore and datacache, so that popular
+ * blocks (well known freesites, update keys etc) can be served without a disk read and a
+ * decrypt each time.
+ * <p>
+ * Most keys are only requested once, so a plain LRU would be flushed constantly by one-off
+ * requests. Instead this uses TinyLFU admission: every lookup is counted in a small frequency
+ * sketch, new blocks go into a small LRU window, and a block leaving the window only replaces
+ * blocks in the main LRU area if it has been asked for more often than they have. The counts
+ * are halved periodically, so blocks which used to be popular eventually age out.
+ * </p><p>
+ * The caller decides what may be cached: the node only offers blocks which it would give to
+ * anyone who asks, i.e. blocks from the store or the cache which are not old blocks, never
+ * anything from the client cache or the slashdot cache.
+ * </p>
+ */
+public class BlockReadCache {
+
+	/** Percentage of the total size used for the admission window. */
+	private static final int WINDOW_PERCENT = 1;
+	/** The window must be able to hold at least a couple of CHK blocks, or they would never get
+	 * into a small cache at all. */
+	private static final long MIN_WINDOW_SIZE = 64 * 1024;
+	/** Rough average block size, used to size the frequency sketch. */
+	private static final int AVERAGE_BLOCK_SIZE = 4096;
+	/** Upper bound on the sketch size, 16MB of counters. */
+	private static final int MAX_SKETCH_KEYS = 1 << 22;
+
+	private final LRUMap<Key, KeyBlock> window;
+	private final LRUMap<Key, KeyBlock> main;
+	private FrequencySketch sketch;
+	private long maxSize;
+	private long maxWindowSize;
+	private long windowSize;
+	private long mainSize;
+	private long hits;
+	private long misses;
+	private long rejected;
+
+	/**
+	 * @param maxSize The maximum total size of the cached blocks, in bytes. 0 disables the
+	 * cache.
+	 */
+	public BlockReadCache(long maxSize) {
+		window = new LRUMap<Key, KeyBlock>();
+		main = new LRUMap<Key, KeyBlock>();
+		setMaxSize(maxSize);
+	}
+
+	/** Look up a block, and count the request for admission purposes.
+	 * @return The block, or null if it is not cached. */
+	public synchronized KeyBlock get(Key key) {
+		if(maxSize == 0) return null;
+		sketch.increment(key);
+		KeyBlock block = window.get(key);
+		if(block != null) {
+			window.push(key, block);
+		} else {
+			block = main.get(key);
+			if(block != null) main.push(key, block);
+		}
+		if(block != null)
+			hits++;
+		else
+			misses++;
+		return block;
+	}
+
+	/** Offer a block which has just been read from disk. It goes into the admission window,
+	 * which may push another block into the main area or out of the cache altogether. */
+	public synchronized void offer(KeyBlock block) {
+		if(maxSize == 0) return;
+		long size = sizeOf(block);
+		if(size > maxWindowSize) return;
+		Key key = block.getKey();
+		if(window.containsKey(key) || main.containsKey(key)) return;
+		window.push(key, block);
+		windowSize += size;
+		while(windowSize > maxWindowSize) {
+			KeyBlock candidate = window.popValue();
+			windowSize -= sizeOf(candidate);
+			admit(candidate);
+		}
+	}
+
+	/** Remove a block, e.g. because an SSK has been overwritten. */
+	public synchronized void remove(Key key) {
+		if(maxSize == 0) return;
+		removeKey(key);
+	}
+
+	private void removeKey(Key key) {
+		KeyBlock old = window.get(key);
+		if(old != null) {
+			window.removeKey(key);
+			windowSize -= sizeOf(old);
+			return;
+		}
+		old = main.get(key);
+		if(old != null) {
+			main.removeKey(key);
+			mainSize -= sizeOf(old);
+		}
+	}
+
+	/** Move a block which has dropped off the end of the window into the main area, if there
+	 * is room or if it is more popular than the blocks it would replace. */
+	private void admit(KeyBlock candidate) {
+		long size = sizeOf(candidate);
+		long maxMainSize = maxSize - maxWindowSize;
+		long needed = mainSize + size - maxMainSize;
+		if(needed > 0) {
+			int frequency = sketch.frequency(candidate.getKey());
+			List<Key> victims = new ArrayList<Key>();
+			Enumeration<Key> lru = main.keys();
+			while(needed > 0 && lru.hasMoreElements()) {
+				Key victim = lru.nextElement();
+				if(sketch.frequency(victim) >= frequency) {
+					rejected++;
+					return;
+				}
+				victims.add(victim);
+				needed -= sizeOf(main.get(victim));
+			}
+			for(Key victim : victims)
+				removeKey(victim);
+		}
+		main.push(candidate.getKey(), candidate);
+		mainSize += size;
+	}
+
+	private static long sizeOf(KeyBlock block) {
+		return block.getRawData().length + block.getRawHeaders().length;
+	}
+
+	public synchronized void setMaxSize(long maxSize) {
+		if(maxSize < 0) throw new IllegalArgumentException();
+		if(maxSize == this.maxSize) return;
+		this.maxSize = maxSize;
+		maxWindowSize = Math.min(maxSize, Math.max(maxSize * WINDOW_PERCENT / 100, MIN_WINDOW_SIZE));
+		if(maxSize == 0) {
+			window.clear();
+			main.clear();
+			windowSize = 0;
+			mainSize = 0;
+			sketch = null;
+			return;
+		}
+		sketch = new FrequencySketch((int) Math.min(maxSize / AVERAGE_BLOCK_SIZE, MAX_SKETCH_KEYS));
+		while(windowSize > maxWindowSize)
+			windowSize -= sizeOf(window.popValue());
+		while(mainSize > maxSize - maxWindowSize)
+			mainSize -= sizeOf(main.popValue());
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long getSize() {
+		return windowSize + mainSize;
+	}
+
+	public synchronized int getBlockCount() {
+		return window.size() + main.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** @return The number of blocks which were not admitted to the main area because they were
+	 * less popular than the blocks already there. */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Count-min sketch of how often each key has been requested, with 4 rows of counters which
+	 * saturate at 15. After a number of increments proportional to the width, all the counters
+	 * are halved.
+	 */
+	static final class FrequencySketch {
+
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+		private final byte[] counters;
+		private final int width;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int expectedKeys) {
+			int w = 16;
+			while(w < expectedKeys) w <<= 1;
+			width = w;
+			counters = new byte[DEPTH * width];
+			sampleSize = 10 * width;
+		}
+
+		void increment(Object o) {
+			int hash = spread(o.hashCode());
+			boolean added = false;
+			for(int i=0;i<DEPTH;i++) {
+				int index = indexOf(hash, i);
+				if(counters[index] < MAX_COUNT) {
+					counters[index]++;
+					added = true;
+				}
+			}
+			if(added && ++additions == sampleSize)
+				reset();
+		}
+
+		int frequency(Object o) {
+			int hash = spread(o.hashCode());
+			int frequency = MAX_COUNT;
+			for(int i=0;i<DEPTH;i++)
+				frequency = Math.min(frequency, counters[indexOf(hash, i)]);
+			return frequency;
+		}
+
+		private void reset() {
+			for(int i=0;i<counters.length;i++)
+				counters[i] >>= 1;
+			additions /= 2;
+		}
+
+		private int indexOf(int hash, int row) {
+			long h = (hash + SEEDS[row]) * SEEDS[row];
+			h += h >>> 32;
+			return row * width + ((int) h & (width - 1));
+		}
+
+		private static int spread(int x) {
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			return (x >>> 16) ^ x;
+		}
+
+	}
+
+}
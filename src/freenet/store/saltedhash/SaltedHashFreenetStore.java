@@ -61,6 +61,8 @@ import freenet.support.io.Closer;
 import freenet.support.io.Fallocate;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
+import freenet.support.metrics.Histogram;
+import freenet.support.metrics.MetricsRegistry;
 
 /**
  * Index-less data store based on salted hash.
@@ -114,6 +116,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private final File baseDir;
 	private final String name;
+	private final Histogram fetchHitTime;
+	private final Histogram fetchMissTime;
 	private final StoreCallback<T> callback;
 	private final boolean collisionPossible;
 	private final int headerBlockLength;
@@ -162,6 +166,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		this.baseDir = baseDir;
 		this.name = name;
+		MetricsRegistry registry = MetricsRegistry.getDefault();
+		fetchHitTime = registry.histogram("freenet_store_fetch_seconds", "Time taken to look up a key in the datastore",
+				1e-9, "store", name, "result", "hit");
+		fetchMissTime = registry.histogram("freenet_store_fetch_seconds", "Time taken to look up a key in the datastore",
+				1e-9, "store", name, "result", "miss");
 
 		this.callback = callback;
 		collisionPossible = callback.collisionPossible();
@@ -312,6 +321,17 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	@Override
 	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		long startTime = System.nanoTime();
+		T block = null;
+		try {
+			block = innerFetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+			return block;
+		} finally {
+			(block == null ? fetchMissTime : fetchHitTime).recordSince(startTime);
+		}
+	}
+
+	private T innerFetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
 
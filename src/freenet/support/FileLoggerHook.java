@@ -1,5 +1,6 @@
 package freenet.support;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.BufferedOutputStream;
@@ -25,7 +26,8 @@ import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPOutputStream;
 
 import freenet.node.SemiOrderedShutdownHook;
@@ -89,6 +91,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	private DateFormat df;
 	private int[] fmt;
 	private String[] str;
+	/** Whether the format includes things we have to capture on the logging thread. */
+	private boolean fmtHashCode, fmtThread;
 
 	/** Stream to write data to (compressed if rotate is on) */
 	protected OutputStream logStream;
@@ -109,23 +113,67 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected boolean redirectStdErr = false;
 
 	protected final int MAX_LIST_SIZE;
-	protected long MAX_LIST_BYTES = 10 * (1 << 20);
-	protected long LIST_WRITE_THRESHOLD;
+	protected volatile long MAX_LIST_BYTES = 10 * (1 << 20);
+	protected volatile long LIST_WRITE_THRESHOLD;
 
 	/**
 	 * Something weird happens when the disk gets full, also we don't want to
 	 * block So run the actual write on another thread
 	 * 
-	 * Unfortunately, we can't use ConcurrentBlockingQueue because we need to dump stuff when the queue gets
-	 * too big.
+	 * Logging threads only copy the details of the log line into a preallocated record in a 
+	 * ring buffer, without taking any locks; the writer thread formats and writes them. If the 
+	 * buffer is full, or more than MAX_LIST_BYTES is waiting, the line is dropped and counted,
+	 * and the writer logs how many were dropped. So a busy node logging at MINOR spends as 
+	 * little time as possible on the threads doing the real work, and never blocks on the disk.
 	 * 
-	 * FIXME PERFORMANCE: Using an ArrayBlockingQueue avoids some unnecessary memory allocations, but it 
-	 * means we have to take two locks. 
-	 * Seriously consider reverting 88268b99856919df0d42c2787d9ea3674a9f6f0d..e359b4005ef728a159fdee988c483de8ce8f3f6b
-	 * to go back to one lock and a LinkedList.
+	 * This is a bounded multi-producer queue after Dmitry Vyukov's: each slot has a sequence
+	 * number which says whether it is free to be claimed for a given position, or holds a record
+	 * ready for the writer.
 	 */
-	protected final ArrayBlockingQueue<byte[]> list;
-	protected long listBytes = 0;
+	private final LogRecord[] ring;
+	private final int ringMask;
+	/** The next position to be claimed by a logging thread. */
+	private final AtomicLong ringTail = new AtomicLong();
+	/** The next position to be written. Only used by the writer thread. */
+	private long ringHead;
+	/** Estimated bytes waiting to be written. */
+	private final AtomicLong listBytes = new AtomicLong();
+	private final AtomicLong loggedLines = new AtomicLong();
+	private final AtomicLong droppedLines = new AtomicLong();
+	/** Set by the writer thread when it is about to park, so loggers know to wake it. */
+	private volatile boolean writerWaiting;
+	private volatile Thread writerThread;
+	/** Waited on by the CloserThread, for closedFinished. */
+	private final Object closeSync = new Object();
+
+	/** A slot in the ring buffer. Reused, so logging doesn't allocate anything beyond what the 
+	 * caller has already allocated for the message. */
+	private static final class LogRecord {
+		/** Equal to the position when the slot is free to be claimed for that position, and 
+		 * position + 1 when it holds a record for the writer. */
+		volatile long sequence;
+		long time;
+		Class<?> c;
+		/** Hash code of the source object, if there was one. */
+		int hashCode;
+		boolean hasSource;
+		String threadName;
+		LogLevel priority;
+		String msg;
+		Throwable e;
+		/** An already formatted line, from logString(). */
+		byte[] raw;
+		long estimatedBytes;
+
+		void clear() {
+			c = null;
+			threadName = null;
+			priority = null;
+			msg = null;
+			e = null;
+			raw = null;
+		}
+	}
 
 	long maxOldLogfilesDiskUsage;
 	protected final Deque<OldLogFile> logFiles = new ArrayDeque<OldLogFile>();
@@ -145,10 +193,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	public void setMaxListBytes(long len) {
-		synchronized(list) {
-			MAX_LIST_BYTES = len;
-			LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
-		}
+		MAX_LIST_BYTES = len;
+		LIST_WRITE_THRESHOLD = len / 4;
 	}
 
 	public void setInterval(String intervalName) throws IntervalParseException {
@@ -249,7 +295,6 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		@SuppressWarnings("fallthrough")
 		public void run() {
 			File currentFilename = null;
-			byte[] o = null;
 			long thisTime;
 			long lastTime = -1;
 			long startTime;
@@ -298,11 +343,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				gc.add(INTERVAL, INTERVAL_MULTIPLIER);
 				nextHour = gc.getTimeInMillis();
 			}
-			long timeWaitingForSync = -1;
-			long flush;
-			synchronized(this) {
-				flush = flushTime;
-			}
+			writerThread = Thread.currentThread();
+			// When we must flush what we have written by, or -1 if there is nothing to flush.
+			long flushDeadline = -1;
+			StringBuilder sb = new StringBuilder(1024);
 			while (true) {
 				try {
 					thisTime = System.currentTimeMillis();
@@ -321,66 +365,32 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 							}
 						}
 					}
-					boolean died = false;
-					boolean timeoutFlush = false;
-					synchronized (list) {
-						flush = flushTime;
-						long maxWait;
-						if(timeWaitingForSync == -1)
-							maxWait = Long.MAX_VALUE;
-						else
-							maxWait = timeWaitingForSync + flush;
-						o = list.poll();
-						while(o == null) {
-							if (closed) {
-								died = true;
-								break;
-							}
-							try {
-								if(thisTime < maxWait) {
-									// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
-									list.wait(Math.min(500L, maxWait - thisTime));
-									thisTime = System.currentTimeMillis();
-									if(listBytes < LIST_WRITE_THRESHOLD) {
-										// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
-										assert((listBytes == 0) == (list.peek() == null));
-										if(listBytes != 0 && maxWait == Long.MAX_VALUE)
-											maxWait = thisTime + flush;
-										if(closed) // If closing, write stuff ASAP.
-											o = list.poll();
-										else if(maxWait != Long.MAX_VALUE) {
-											continue;
-										}
-									} else {
-										// Do NOT use list.poll(timeout) because it uses a separate lock.
-										o = list.poll();
-									}
-								}
-							} catch (InterruptedException e) {
-								// Ignored.
-							}
-							if(o == null) {
-								if(timeWaitingForSync == -1) {
-									timeWaitingForSync = thisTime;
-									maxWait = thisTime + flush;
-								}
-								if(thisTime >= maxWait) {
-									timeoutFlush = true;
-									timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
-									break;
-								}
-							} else break;
-						}
-						if(o != null) {
-							listBytes -= o.length + LINE_OVERHEAD;
+					boolean died = closed;
+					// Write everything that's waiting, up to the size of the buffer so we get 
+					// to check the time now and then.
+					boolean wrote = false;
+					for(int i=0;i<ring.length;i++) {
+						byte[] o = nextLine(sb);
+						if(o == null) break;
+						wrote = true;
+						myWrite(logStream, o);
+						if(altLogStream != null)
+							myWrite(altLogStream, o);
+					}
+					thisTime = System.currentTimeMillis();
+					if(wrote && flushDeadline == -1) {
+						synchronized(FileLoggerHook.this) {
+							flushDeadline = thisTime + flushTime;
 						}
 					}
-					if(timeoutFlush || died) {
+					if((flushDeadline != -1 && thisTime >= flushDeadline) || (died && !wrote)) {
 						// Flush to disk 
 						myWrite(logStream, null);
 				        if(altLogStream != null)
 				        	myWrite(altLogStream, null);
+				        flushDeadline = -1;
 					}
+					if(wrote) continue;
 					if(died) {
 						try {
 							logStream.close();
@@ -394,16 +404,21 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 								System.err.println("Failed to close compressed log stream: "+e);
 							}
 						}
-						synchronized(list) {
+						synchronized(closeSync) {
 							closedFinished = true;
-							list.notifyAll();
+							closeSync.notifyAll();
 						}
 						return;
 					}
-					if(o == null) continue;
-					myWrite(logStream,  o);
-			        if(altLogStream != null)
-			        	myWrite(altLogStream, o);
+					// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
+					long wait = 500;
+					if(flushDeadline != -1)
+						wait = Math.min(wait, flushDeadline - thisTime);
+					writerWaiting = true;
+					// Loggers only wake us up if there is a lot to write, or we are closing.
+					if(!closed && !hasNextLine())
+						LockSupport.parkNanos(this, MILLISECONDS.toNanos(Math.max(1, wait)));
+					writerWaiting = false;
 				} catch (OutOfMemoryError e) {
 					System.err.println(e.getClass());
 					System.err.println(e.getMessage());
@@ -854,7 +869,14 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		setInterval(logRotateInterval);
 		
 		MAX_LIST_SIZE = maxListSize;
-		list = new ArrayBlockingQueue<byte[]>(MAX_LIST_SIZE);
+		// Round up to a power of two.
+		int size = Integer.highestOneBit(Math.max(2, MAX_LIST_SIZE) - 1) << 1;
+		ring = new LogRecord[size];
+		for(int i=0;i<size;i++) {
+			ring[i] = new LogRecord();
+			ring[i].sequence = i;
+		}
+		ringMask = size - 1;
 		
 		setDateFormat(dfmt);
 		setLogFormat(fmt);
@@ -901,6 +923,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 		this.str = new String[strVec.size()];
 		str = strVec.toArray(str);
+		for(int type : this.fmt) {
+			if(type == HASHCODE) fmtHashCode = true;
+			if(type == THREAD) fmtThread = true;
+		}
 	}
 
 	private void setDateFormat(String dfmt) {
@@ -924,7 +950,104 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		if (closed)
 			return;
 		
-		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
+		long bytes = (msg == null ? 4 : msg.length()) + LINE_OVERHEAD;
+		if(e != null) bytes += 1024;
+		LogRecord r = claim(bytes);
+		if(r == null) return;
+		r.time = System.currentTimeMillis();
+		r.c = c;
+		r.hasSource = o != null;
+		r.hashCode = (o != null && fmtHashCode) ? o.hashCode() : 0;
+		r.threadName = fmtThread ? Thread.currentThread().getName() : null;
+		r.priority = priority;
+		r.msg = msg;
+		r.e = e;
+		publish(r);
+	}
+
+	/** Memory allocation overhead (estimated through experimentation with bsh) */
+	private static final int LINE_OVERHEAD = 60;
+	
+	/** Log an already formatted line. */
+	public void logString(byte[] b) {
+		LogRecord r = claim(b.length + LINE_OVERHEAD);
+		if(r == null) return;
+		r.raw = b;
+		publish(r);
+	}
+
+	/** Claim a slot in the ring buffer, without locking.
+	 * @return The slot to fill in and publish(), or null if the line must be dropped because 
+	 * there is too much waiting to be written. */
+	private LogRecord claim(long bytes) {
+		if(listBytes.get() + bytes > MAX_LIST_BYTES) {
+			droppedLines.incrementAndGet();
+			return null;
+		}
+		while(true) {
+			long pos = ringTail.get();
+			LogRecord r = ring[(int) pos & ringMask];
+			long seq = r.sequence;
+			if(seq == pos) {
+				if(ringTail.compareAndSet(pos, pos + 1)) {
+					r.estimatedBytes = bytes;
+					listBytes.addAndGet(bytes);
+					return r;
+				}
+			} else if(seq < pos) {
+				// Full. The writer hasn't finished with this slot from the last time around.
+				droppedLines.incrementAndGet();
+				return null;
+			}
+			// Else another thread claimed it first, try again.
+		}
+	}
+
+	private void publish(LogRecord r) {
+		long bytes = listBytes.get();
+		// The volatile write makes the record visible to the writer.
+		r.sequence++;
+		loggedLines.incrementAndGet();
+		if(writerWaiting && (bytes >= LIST_WRITE_THRESHOLD || closed)) {
+			Thread t = writerThread;
+			if(t != null) LockSupport.unpark(t);
+		}
+	}
+
+	private boolean hasNextLine() {
+		return ring[(int) ringHead & ringMask].sequence == ringHead + 1;
+	}
+
+	/** Called by the writer thread to format the next line. Also reports dropped lines.
+	 * @return The next line, or null if there is nothing to write. */
+	private byte[] nextLine(StringBuilder sb) throws UnsupportedEncodingException {
+		long dropped = droppedLines.get();
+		if(dropped != reportedDroppedLines) {
+			String err =
+				"GRRR: ERROR: Logging too fast, dropped "
+					+ (dropped - reportedDroppedLines)
+					+ " entries, "
+					+ listBytes.get()
+					+ " bytes in memory\n";
+			reportedDroppedLines = dropped;
+			return err.getBytes(ENCODING);
+		}
+		LogRecord r = ring[(int) ringHead & ringMask];
+		if(r.sequence != ringHead + 1) return null;
+		byte[] line = r.raw != null ? r.raw : format(r, sb);
+		listBytes.addAndGet(-r.estimatedBytes);
+		r.clear();
+		// Free for the next time around.
+		r.sequence = ringHead + ring.length;
+		ringHead++;
+		return line;
+	}
+
+	/** Only accessed by the writer thread. */
+	private long reportedDroppedLines;
+
+	private byte[] format(LogRecord r, StringBuilder sb) throws UnsupportedEncodingException {
+		sb.setLength(0);
 		int sctr = 0;
 
 		for (int f: fmt) {
@@ -933,29 +1056,26 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					sb.append(str[sctr++]);
 					break;
 				case DATE :
-					long now = System.currentTimeMillis();
-					synchronized (this) {
-						myDate.setTime(now);
-						sb.append(df.format(myDate));
-					}
+					myDate.setTime(r.time);
+					sb.append(df.format(myDate));
 					break;
 				case CLASS :
-					sb.append(c == null ? "<none>" : c.getName());
+					sb.append(r.c == null ? "<none>" : r.c.getName());
 					break;
 				case HASHCODE :
 					sb.append(
-						o == null
+						!r.hasSource
 							? "<none>"
-							: Integer.toHexString(o.hashCode()));
+							: Integer.toHexString(r.hashCode));
 					break;
 				case THREAD :
-					sb.append(Thread.currentThread().getName());
+					sb.append(r.threadName);
 					break;
 				case PRIORITY :
-					sb.append(priority.name());
+					sb.append(r.priority.name());
 					break;
 				case MESSAGE :
-					sb.append(msg);
+					sb.append(r.msg);
 					break;
 				case UNAME :
 					sb.append(uname);
@@ -965,6 +1085,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		sb.append('\n');
 
 		// Write stacktrace if available
+		Throwable e = r.e;
 		for(int j=0;j<20 && e != null;j++) {
 			sb.append(e.toString());
 			
@@ -988,70 +1109,22 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			else break;
 		}
 
-		try {
-			logString(sb.toString().getBytes(ENCODING));
-		} catch (UnsupportedEncodingException e1) {
-			throw new Error(e1);
-		}
+		return sb.toString().getBytes(ENCODING);
 	}
 
-	/** Memory allocation overhead (estimated through experimentation with bsh) */
-	private static final int LINE_OVERHEAD = 60;
-	
-	public void logString(byte[] b) throws UnsupportedEncodingException {
-		synchronized (list) {
-			int sz = list.size();
-			if(!list.offer(b)) {
-				byte[] ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ 2
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(list.offer(buf))
-					listBytes += (buf.length + LINE_OVERHEAD);
-				if(list.offer(b))
-					listBytes += (b.length + LINE_OVERHEAD);
-			} else
-				listBytes += (b.length + LINE_OVERHEAD);
-			int x = 0;
-			if (listBytes > MAX_LIST_BYTES) {
-				while ((list.size() > (MAX_LIST_SIZE * 0.9F))
-					|| (listBytes > (MAX_LIST_BYTES * 0.9F))) {
-					byte[] ss;
-					ss = list.poll();
-					listBytes -= (ss.length + LINE_OVERHEAD);
-					x++;
-				}
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ x
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(!list.offer(buf)) {
-					byte[] ss = list.poll();
-					if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-					if(list.offer(buf))
-						listBytes += (buf.length + LINE_OVERHEAD);
-				} else
-					listBytes += (buf.length + LINE_OVERHEAD);
-			}
-			if (sz == 0)
-				list.notifyAll();
-		}
+	/** @return Estimated bytes waiting to be written. */
+	public long listBytes() {
+		return listBytes.get();
 	}
 
-	public long listBytes() {
-		synchronized (list) {
-			return listBytes;
-		}
+	/** @return The number of lines logged since we were created, not including dropped lines. */
+	public long getLoggedLines() {
+		return loggedLines.get();
+	}
+
+	/** @return The number of lines dropped because we were logging faster than we could write. */
+	public long getDroppedLines() {
+		return droppedLines.get();
 	}
 
 	public static int numberOf(char c) {
@@ -1078,19 +1151,21 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	@Override
 	public void close() {
 		closed = true;
+		Thread t = writerThread;
+		if(t != null) LockSupport.unpark(t);
 	}
 
 	class CloserThread extends Thread {
 		@Override
 		public void run() {
-			synchronized(list) {
-				closed = true;
+			close();
+			synchronized(closeSync) {
 				long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
 				while(!closedFinished) {
 					int wait = (int) (deadline - System.currentTimeMillis());
 					if(wait <= 0) return;
 					try {
-						list.wait(wait);
+						closeSync.wait(wait);
 					} catch (InterruptedException e) {
 						// Ok.
 					}
@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -34,6 +35,23 @@ public class HTMLEncoder {
 	public static void encodeToBuffer(String s, StringBuilder sb) {
 		encodeToBuffer(s.length(), s, sb);
 	}
+
+	/** Encode directly to a Writer or other Appendable, e.g. when streaming a page. */
+	public static void encodeToBuffer(String s, Appendable out) throws IOException {
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			String entity;
+			if(Character.isLetterOrDigit(c)) {
+				out.append(c);
+			} else if((entity = charTable.get(c)) != null) {
+				out.append('&');
+				out.append(entity);
+				out.append(';');
+			} else {
+				out.append(c);
+			}
+		}
+	}
 	
 	private static void encodeToBuffer(int n, String s, StringBuilder sb) {
 		for (int i = 0; i < n; i++) {
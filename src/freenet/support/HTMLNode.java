@@ -1,5 +1,7 @@
 package freenet.support;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -374,23 +376,41 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 	}
 
 	public StringBuilder generate(StringBuilder tagBuffer, int indentDepth ) {
+		try {
+			generate((Appendable) tagBuffer, indentDepth);
+		} catch (IOException e) {
+			// StringBuilder doesn't throw.
+			throw new Error(e);
+		}
+		return tagBuffer;
+	}
+
+	/**
+	 * Render the tree straight to a Writer, for example one encoding to the reply stream, rather
+	 * than building the whole page as a String first.
+	 */
+	public void generate(Writer out) throws IOException {
+		generate(out, 0);
+	}
+
+	protected void generate(Appendable tagBuffer, int indentDepth) throws IOException {
 		if("#".equals(name)) {
 			if(content != null) {
 				HTMLEncoder.encodeToBuffer(content, tagBuffer);
-				return tagBuffer;
+				return;
 			}
 			
 			for(int childIndex = 0, childCount = children.size(); childIndex < childCount; childIndex++) {
 				HTMLNode childNode = children.get(childIndex);
-				childNode.generate(tagBuffer);
+				childNode.generate(tagBuffer, 0);
 			}
-			return tagBuffer;
+			return;
 		}
 		// Perhaps this should be something else, but since I don't know if '#' was not just arbitrary chosen, I'll just pick '%'
 		// This allows non-encoded text to be appended to the tag buffer
 		if ("%".equals(name)) {
 			tagBuffer.append(content);
-			return tagBuffer;
+			return;
 		}
 		/* start the open tag */
 		tagBuffer.append('<').append(name);
@@ -436,7 +456,6 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 			tagBuffer.append('\n');
 			tagBuffer.append(indentString(indentDepth));
 		}
-		return tagBuffer;
 	}
 	
 	public String generateChildren(){
@@ -485,12 +504,12 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 		 * @see freenet.support.HTMLNode#generate(java.lang.StringBuilder)
 		 */
 		@Override
-		public StringBuilder generate(StringBuilder tagBuffer) {
+		protected void generate(Appendable tagBuffer, int indentDepth) throws IOException {
 			tagBuffer.append("<!DOCTYPE ").append(name).append(" PUBLIC \"").append(systemUri).append("\">\n");
 			//TODO A meaningful exception should be raised 
 			// when trying to call the method for a HTMLDoctype 
 			// with number of child != 1 
-			return children.get(0).generate(tagBuffer);
+			children.get(0).generate(tagBuffer, 0);
 		}
 
 	}
@@ -7,10 +7,13 @@ package freenet.support;
 public final class MemoryLimitedChunk {
     private final MemoryLimitedJobRunner memoryLimitedJobRunner;
     private long used;
+    /** System.nanoTime() when the job started. */
+    private final long startTime;
     MemoryLimitedChunk(MemoryLimitedJobRunner memoryLimitedJobRunner, long used) {
         this.memoryLimitedJobRunner = memoryLimitedJobRunner;
         if(used < 0) throw new IllegalArgumentException();
         this.used = used;
+        this.startTime = System.nanoTime();
     }
     
     /** Should be called when the caller has finished using the resource. Usually when a 
@@ -23,6 +26,7 @@ public final class MemoryLimitedChunk {
             released = used;
             used = 0;
         }
+        MemoryLimitedJobRunner.jobTime.recordSince(startTime);
         this.memoryLimitedJobRunner.deallocate(released, true);
         return released;
     }
@@ -36,6 +40,8 @@ public final class MemoryLimitedChunk {
             used -= amount;
             finishedThread = (used == 0);
         }
+        if(finishedThread)
+            MemoryLimitedJobRunner.jobTime.recordSince(startTime);
         this.memoryLimitedJobRunner.deallocate(amount, finishedThread);
         return amount;
     }
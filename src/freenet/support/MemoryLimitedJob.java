@@ -4,6 +4,8 @@ package freenet.support;
 public abstract class MemoryLimitedJob {
     
     protected final long initialAllocation;
+    /** System.nanoTime() when the job was queued. Set by MemoryLimitedJobRunner. */
+    long queuedTime;
     
     public MemoryLimitedJob(long initial) {
         this.initialAllocation = initial;
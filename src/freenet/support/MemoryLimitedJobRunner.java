@@ -2,9 +2,14 @@ package freenet.support;
 
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.List;
 
 import freenet.node.PrioRunnable;
+import freenet.support.metrics.Gauge;
+import freenet.support.metrics.Histogram;
+import freenet.support.metrics.MetricsRegistry;
 import freenet.support.io.NativeThread;
+import freenet.support.io.TempBucketFactory;
 
 /** Start jobs as long as there is sufficient memory (or other limited resource) available, then 
  * queue them. FIXME I bet there is something like this in the standard libraries?
@@ -22,12 +27,20 @@ public class MemoryLimitedJobRunner {
     private int runningThreads;
     private int maxThreads;
     private boolean shutdown;
+    /** If not null, keeps temporary data in RAM using whatever capacity we aren't using. */
+    private TempBucketFactory tempBucketFactory;
     
     private static boolean logMINOR;
     static {
         Logger.registerClass(MemoryLimitedJobRunner.class);
     }
     
+    static final Histogram waitTime = MetricsRegistry.getDefault().histogram(
+            "freenet_memory_limited_job_wait_seconds", "Time jobs such as FEC decodes wait for memory or a thread", 1e-9);
+    /** Recorded by MemoryLimitedChunk when the job releases the last of its memory. */
+    static final Histogram jobTime = MetricsRegistry.getDefault().histogram(
+            "freenet_memory_limited_job_seconds", "Time jobs such as FEC decodes run for, until they release their memory", 1e-9);
+    
     @SuppressWarnings("unchecked")
     public MemoryLimitedJobRunner(long capacity, int maxThreads, Executor executor, int priorities) {
         this.capacity = capacity;
@@ -46,6 +59,7 @@ public class MemoryLimitedJobRunner {
         if(shutdown) return;
         if(job.initialAllocation > capacity) throw new IllegalArgumentException("Job size "+job.initialAllocation+" > capacity "+capacity);
         if(logMINOR) Logger.minor(this, "Queueing job "+job+" at priority "+job.getPriority());
+        job.queuedTime = System.nanoTime();
         jobs[job.getPriority()].add(job);
         maybeStartJobs();
     }
@@ -72,16 +86,25 @@ public class MemoryLimitedJobRunner {
                 if(job != null) break;
             }
             if(job == null) return;
-            if(job.initialAllocation + counter <= capacity && runningThreads < maxThreads) {
+            long borrowed = tempBucketFactory == null ? 0 : tempBucketFactory.getRamBorrowed();
+            if(job.initialAllocation + counter + borrowed <= capacity && runningThreads < maxThreads) {
                 jobs[prio].removeFirst();
                 startJob(job);
-            } else return;
+            } else {
+                if(borrowed > 0 && job.initialAllocation + counter <= capacity) {
+                    // We'll be called back when it has freed some.
+                    if(logMINOR) Logger.minor(this, "Reclaiming "+borrowed+" bytes from temp buckets for "+job);
+                    tempBucketFactory.reclaimBorrowedRam();
+                }
+                return;
+            }
         }
     }
     
     private synchronized void startJob(final MemoryLimitedJob job) {
         counter += job.initialAllocation;
         runningThreads++;
+        waitTime.recordSince(job.queuedTime);
         if(logMINOR) Logger.minor(this, "Starting job "+job);
         executor.execute(new PrioRunnable() {
 
@@ -100,8 +123,141 @@ public class MemoryLimitedJobRunner {
         });
     }
 
+    /** Run independent tasks for a job which is already running, using whatever threads and 
+     * memory are spare to run several at once. The calling thread runs tasks too, so this makes
+     * progress even if nothing is spare, and it never takes resources from queued jobs. Returns 
+     * when all the tasks have finished.
+     * @param tasks The tasks to run, in any order.
+     * @param memoryPerThread The memory used by a thread while it is running a task, on top of 
+     * what the calling job already has.
+     * @throws RuntimeException The first thing thrown by a task, wrapped if necessary. */
+    public void runParallel(List<? extends Runnable> tasks, long memoryPerThread) {
+        final ParallelTasks state = new ParallelTasks(tasks);
+        int helpers;
+        synchronized(this) {
+            helpers = 0;
+            if(!shutdown && !hasQueuedJobs()) {
+                long spare = capacity - counter - 
+                    (tempBucketFactory == null ? 0 : tempBucketFactory.getRamBorrowed());
+                helpers = (int) Math.min(tasks.size() - 1, Math.min(maxThreads - runningThreads, 
+                        memoryPerThread <= 0 ? Integer.MAX_VALUE : spare / memoryPerThread));
+                helpers = Math.max(0, helpers);
+            }
+            counter += helpers * memoryPerThread;
+            runningThreads += helpers;
+        }
+        if(logMINOR && helpers > 0) 
+            Logger.minor(this, "Running "+tasks.size()+" tasks on "+(helpers+1)+" threads");
+        final long memory = memoryPerThread;
+        for(int i=0;i<helpers;i++) {
+            executor.execute(new PrioRunnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        state.runTasks();
+                    } finally {
+                        if(memory > 0)
+                            deallocate(memory, true);
+                        else
+                            threadFinished();
+                    }
+                }
+
+                @Override
+                public int getPriority() {
+                    return THREAD_PRIORITY;
+                }
+                
+            });
+        }
+        state.runTasks();
+        state.waitForCompletion();
+    }
+    
+    private synchronized void threadFinished() {
+        runningThreads--;
+        if(shutdown) notifyAll();
+        maybeStartJobs();
+    }
+    
+    private boolean hasQueuedJobs() {
+        for(Deque<MemoryLimitedJob> queue : jobs)
+            if(!queue.isEmpty()) return true;
+        return false;
+    }
+    
+    private static class ParallelTasks {
+        
+        private final List<? extends Runnable> tasks;
+        private int next;
+        private int completed;
+        private Throwable failure;
+        
+        ParallelTasks(List<? extends Runnable> tasks) {
+            this.tasks = tasks;
+        }
+        
+        void runTasks() {
+            while(true) {
+                Runnable task;
+                synchronized(this) {
+                    if(next == tasks.size() || failure != null) return;
+                    task = tasks.get(next++);
+                }
+                Throwable t = null;
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    t = e;
+                }
+                synchronized(this) {
+                    completed++;
+                    if(t != null && failure == null) failure = t;
+                    notifyAll();
+                }
+            }
+        }
+        
+        synchronized void waitForCompletion() {
+            // If a task failed, we stop starting tasks, but still wait for the running ones.
+            while(completed < next) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+            if(failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if(failure instanceof Error)
+                throw (Error) failure;
+            if(failure != null)
+                throw new RuntimeException(failure);
+        }
+        
+    }
+
+    /** Called by TempBucketFactory.shareMemoryWith(). The factory's RAM buckets may use 
+     * capacity we aren't using, but must give it back when we need it to start a job. */
+    public synchronized void shareMemoryWith(TempBucketFactory factory) {
+        tempBucketFactory = factory;
+    }
+
+    /** @return How much memory the TempBucketFactory can borrow right now. None if there are 
+     * jobs waiting for memory. */
+    public synchronized long spareCapacity() {
+        if(hasQueuedJobs()) return 0;
+        return Math.max(0, capacity - counter);
+    }
+
+    /** Called by the TempBucketFactory when it has freed memory it had borrowed from us. */
+    public synchronized void onMemoryReturned() {
+        maybeStartJobs();
+    }
+
     /** For tests and stats. How much of the scarce resource is used right now? */
-    long used() {
+    synchronized long used() {
         return counter;
     }
 
@@ -142,5 +298,40 @@ public class MemoryLimitedJobRunner {
         return runningThreads;
     }
 
+    public synchronized int getQueuedJobs() {
+        int count = 0;
+        for(Deque<MemoryLimitedJob> queue : jobs)
+            count += queue.size();
+        return count;
+    }
+
+    /** Export the number of running and queued jobs and the memory in use as gauges. */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("freenet_memory_limited_job_threads", "Threads running memory limited jobs", new Gauge() {
+
+            @Override
+            public double getValue() {
+                return getRunningThreads();
+            }
+
+        });
+        registry.gauge("freenet_memory_limited_job_queued", "Memory limited jobs waiting to start", new Gauge() {
+
+            @Override
+            public double getValue() {
+                return getQueuedJobs();
+            }
+
+        });
+        registry.gauge("freenet_memory_limited_job_memory_bytes", "Memory in use by memory limited jobs", new Gauge() {
+
+            @Override
+            public double getValue() {
+                return used();
+            }
+
+        });
+    }
+
 }
 
@@ -0,0 +1,163 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import freenet.support.io.NativeThread;
+import freenet.support.io.NativeThread.PriorityLevel;
+
+/**
+ * A Ticker and Executor which run on simulated time, for simulations. Nothing happens until the
+ * owner calls runUntil() or runFor(). These run the queued jobs one at a time on the calling
+ * thread, in order of their scheduled time and then the order they were queued, advancing the
+ * clock to each job's time as it goes. So a simulation driven only by this ticker runs the same
+ * way every time, and as fast as the jobs themselves allow rather than in real time.
+ *
+ * Jobs can queue further jobs, including for the current time, which run in the same call if
+ * they are before the target time. Code being simulated must get the time from
+ * currentTimeMillis() rather than System.currentTimeMillis().
+ */
+public class VirtualTicker implements Ticker, Executor {
+
+	private static final class Job implements Comparable<Job> {
+		final long time;
+		final long sequence;
+		final Runnable job;
+
+		Job(long time, long sequence, Runnable job) {
+			this.time = time;
+			this.sequence = sequence;
+			this.job = job;
+		}
+
+		@Override
+		public int compareTo(Job o) {
+			if(time != o.time) return time < o.time ? -1 : 1;
+			if(sequence != o.sequence) return sequence < o.sequence ? -1 : 1;
+			return 0;
+		}
+	}
+
+	private final PriorityQueue<Job> jobs = new PriorityQueue<Job>();
+	private long now;
+	private long sequence;
+	private boolean running;
+
+	public VirtualTicker(long startTime) {
+		now = startTime;
+	}
+
+	/** @return The simulated time. */
+	public synchronized long currentTimeMillis() {
+		return now;
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, null, offset, false, false);
+	}
+
+	@Override
+	public synchronized void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		queueTimedJobAbsolute(job, name, now + Math.max(0, offset), runOnTickerAnyway, noDupes);
+	}
+
+	@Override
+	public synchronized void queueTimedJobAbsolute(Runnable job, String name, long time, boolean runOnTickerAnyway, boolean noDupes) {
+		if(noDupes) {
+			for(Job j : jobs)
+				if(j.job == job) return;
+		}
+		jobs.add(new Job(Math.max(now, time), sequence++, job));
+	}
+
+	@Override
+	public synchronized void removeQueuedJob(Runnable job) {
+		for(Iterator<Job> i = jobs.iterator(); i.hasNext();) {
+			if(i.next().job == job) i.remove();
+		}
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return this;
+	}
+
+	/** Run the job at the current simulated time, after any jobs already queued for it. */
+	@Override
+	public void execute(Runnable job) {
+		queueTimedJob(job, 0);
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		queueTimedJob(job, 0);
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName, boolean fromTicker) {
+		queueTimedJob(job, 0);
+	}
+
+	@Override
+	public synchronized int[] waitingThreads() {
+		return new int[NativeThread.JAVA_PRIORITY_RANGE+1];
+	}
+
+	@Override
+	public synchronized int[] runningThreads() {
+		int[] retval = new int[NativeThread.JAVA_PRIORITY_RANGE+1];
+		if(running)
+			retval[PriorityLevel.NORM_PRIORITY.value] = 1;
+		return retval;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return 0;
+	}
+
+	/** Run all the jobs due up to and including the given time, then set the clock to it.
+	 * @return The number of jobs run. */
+	public int runUntil(long time) {
+		int count = 0;
+		while(true) {
+			Job job;
+			synchronized(this) {
+				job = jobs.peek();
+				if(job == null || job.time > time) {
+					if(time > now) now = time;
+					return count;
+				}
+				jobs.remove();
+				now = job.time;
+				running = true;
+			}
+			try {
+				job.job.run();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" running "+job.job, t);
+			} finally {
+				synchronized(this) {
+					running = false;
+				}
+			}
+			count++;
+		}
+	}
+
+	/** Run all the jobs due in the next given number of milliseconds of simulated time.
+	 * @return The number of jobs run. */
+	public int runFor(long millis) {
+		return runUntil(currentTimeMillis() + millis);
+	}
+
+	/** @return The number of jobs waiting to run. */
+	public synchronized int queuedJobs() {
+		return jobs.size();
+	}
+
+}
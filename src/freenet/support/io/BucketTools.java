@@ -2,14 +2,17 @@ package freenet.support.io;
 
 import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -37,6 +40,12 @@ import freenet.support.api.RandomAccessBuffer;
 public class BucketTools {
 
 	private static final int BUFFER_SIZE = 64 * 1024;
+	/** Size of the pooled buffers used to copy big buckets to a stream. Large enough that an
+	 * encrypted bucket is decrypted in long runs and the socket gets large writes. */
+	private static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+	private static final int MAX_POOLED_TRANSFER_BUFFERS = 8;
+	/** Free transfer buffers. Synchronized on itself. */
+	private static final ArrayDeque<byte[]> transferBuffers = new ArrayDeque<byte[]>();
         
 	private static volatile boolean logMINOR;
 	static {
@@ -307,11 +316,30 @@ public class BucketTools {
 	public static long copyTo(Bucket decodedData, OutputStream os, long truncateLength) throws IOException {
 		if(truncateLength == 0) return 0;
 		if(truncateLength < 0) truncateLength = Long.MAX_VALUE;
+		if(os instanceof BufferedChannelOutputStream && ((BufferedChannelOutputStream) os).hasChannel()) {
+			FileInputStream fis = openUnencryptedFile(decodedData);
+			if(fis != null) {
+				try {
+					BufferedChannelOutputStream bcos = (BufferedChannelOutputStream) os;
+					WritableByteChannel channel = bcos.flushToChannel();
+					if(channel != null)
+						return transferTo(fis.getChannel(), bcos, channel, truncateLength);
+				} finally {
+					fis.close();
+				}
+			}
+		}
 		InputStream is = decodedData.getInputStreamUnbuffered();
+		byte[] buf = null;
+		boolean pooled = truncateLength >= TRANSFER_BUFFER_SIZE;
 		try {
-			int bufferSize = BUFFER_SIZE;
-			if(truncateLength > 0 && truncateLength < bufferSize) bufferSize = (int) truncateLength;
-			byte[] buf = new byte[bufferSize];
+			if(pooled) {
+				buf = takeTransferBuffer();
+			} else {
+				int bufferSize = BUFFER_SIZE;
+				if(truncateLength < bufferSize) bufferSize = (int) truncateLength;
+				buf = new byte[bufferSize];
+			}
 			long moved = 0;
 			while(moved < truncateLength) {
 				// DO NOT move the (int) inside the Math.min()! big numbers truncate to negative numbers.
@@ -331,11 +359,67 @@ public class BucketTools {
 			}
 			return moved;
 		} finally {
+			if(pooled && buf != null) returnTransferBuffer(buf);
 			is.close();
 			os.flush();
 		}
 	}
 
+	/** Open the file holding a bucket's data if it is stored as is, i.e. on disk and not
+	 * encrypted, so it can be sent with FileChannel.transferTo(). Otherwise return null. */
+	private static FileInputStream openUnencryptedFile(Bucket bucket) throws IOException {
+		InputStream is;
+		if(bucket instanceof BaseFileBucket)
+			is = bucket.getInputStreamUnbuffered();
+		else if(bucket instanceof TempBucketFactory.TempBucket)
+			is = ((TempBucketFactory.TempBucket) bucket).getUnencryptedFileInputStream();
+		else
+			return null;
+		if(is instanceof FileInputStream)
+			return (FileInputStream) is;
+		if(is != null) is.close();
+		return null;
+	}
+
+	/** Send a file to a channel. If the channel is a socket, the kernel copies straight from the
+	 * page cache, without the data passing through the JVM. */
+	private static long transferTo(FileChannel fc, BufferedChannelOutputStream os, WritableByteChannel channel, long truncateLength) throws IOException {
+		long length = fc.size();
+		if(truncateLength != Long.MAX_VALUE) {
+			if(length < truncateLength)
+				throw new IOException("Could not move required quantity of data in copyTo: file has "+length+" bytes, need "+truncateLength);
+			length = truncateLength;
+		}
+		long moved = 0;
+		while(moved < length) {
+			long bytes = fc.transferTo(moved, length - moved, channel);
+			if(bytes == 0 && moved < fc.size()) {
+				// A non-blocking channel is full.
+				os.awaitWritable();
+				continue;
+			}
+			if(bytes <= 0)
+				throw new IOException("Could not move required quantity of data in copyTo: transferTo returned "+bytes+" (moved "+moved+" of "+length+")");
+			moved += bytes;
+		}
+		return moved;
+	}
+
+	private static byte[] takeTransferBuffer() {
+		synchronized(transferBuffers) {
+			byte[] buf = transferBuffers.pollFirst();
+			if(buf != null) return buf;
+		}
+		return new byte[TRANSFER_BUFFER_SIZE];
+	}
+
+	private static void returnTransferBuffer(byte[] buf) {
+		synchronized(transferBuffers) {
+			if(transferBuffers.size() < MAX_POOLED_TRANSFER_BUFFERS)
+				transferBuffers.addFirst(buf);
+		}
+	}
+
 	/** Copy data from an InputStream into a Bucket. */
 	public static void copyFrom(Bucket bucket, InputStream is, long truncateLength) throws IOException {
 		OutputStream os = bucket.getOutputStreamUnbuffered();
@@ -0,0 +1,41 @@
+package freenet.support.io;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/** A BufferedOutputStream that also knows the channel it ultimately writes to, if any, so bulk
+ * data can bypass the stream. {@link BucketTools#copyTo(freenet.support.api.Bucket, OutputStream,
+ * long)} uses this to send file-backed buckets with FileChannel.transferTo(), which for a socket
+ * lets the kernel send straight from the page cache. */
+public class BufferedChannelOutputStream extends BufferedOutputStream {
+
+	private final WritableByteChannel channel;
+
+	/** @param out The stream to write to.
+	 * @param channel The channel underlying out, or null if there isn't one. Writes to it must be
+	 * equivalent to writing to out. If it is non-blocking, override {@link #awaitWritable()}. */
+	public BufferedChannelOutputStream(OutputStream out, WritableByteChannel channel, int size) {
+		super(out, size);
+		this.channel = channel;
+	}
+
+	public boolean hasChannel() {
+		return channel != null;
+	}
+
+	/** Flush any buffered data and return the underlying channel, or null if there is none. */
+	public synchronized WritableByteChannel flushToChannel() throws IOException {
+		if(channel == null) return null;
+		flush();
+		return channel;
+	}
+
+	/** Called when a write to the channel wrote nothing. Wait until it can be written to again.
+	 * A blocking channel never does this, so by default this fails. */
+	protected void awaitWritable() throws IOException {
+		throw new IOException("Channel not writable");
+	}
+
+}
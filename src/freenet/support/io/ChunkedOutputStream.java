@@ -0,0 +1,88 @@
+package freenet.support.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Writes an HTTP/1.1 body with chunked transfer encoding (RFC 7230 section 4.1). Data is
+ * buffered and sent as one chunk each time the buffer fills or flush() is called. close() writes
+ * the terminating empty chunk and flushes, but does not close the underlying stream, which is
+ * usually a persistent connection. */
+public class ChunkedOutputStream extends FilterOutputStream {
+
+	private static final byte[] LAST_CHUNK = new byte[] { '0', '\r', '\n', '\r', '\n' };
+
+	/** Room for the chunk size in hex and its CRLF in front of the data. */
+	private static final int HEADER_SPACE = 10;
+
+	/** Chunk header space, then up to size bytes of data, then room for the trailing CRLF. */
+	private final byte[] buffer;
+	private final int size;
+	private int count;
+	private boolean closed;
+
+	public ChunkedOutputStream(OutputStream out, int bufferSize) {
+		super(out);
+		if(bufferSize <= 0) throw new IllegalArgumentException();
+		size = bufferSize;
+		buffer = new byte[HEADER_SPACE + bufferSize + 2];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(closed) throw new IOException("Closed");
+		if(count == size) writeChunk();
+		buffer[HEADER_SPACE + count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] buf, int offset, int length) throws IOException {
+		if(closed) throw new IOException("Closed");
+		while(length > 0) {
+			if(count == size) writeChunk();
+			int copy = Math.min(length, size - count);
+			System.arraycopy(buf, offset, buffer, HEADER_SPACE + count, copy);
+			count += copy;
+			offset += copy;
+			length -= copy;
+		}
+	}
+
+	/** Write the buffered data as a single chunk. An empty chunk would end the body, so nothing
+	 * is written if the buffer is empty. */
+	private void writeChunk() throws IOException {
+		if(count == 0) return;
+		// Write the header and trailing CRLF around the data in place so the whole chunk goes out
+		// in one write: the underlying stream is usually an unbuffered socket.
+		int start = HEADER_SPACE;
+		buffer[--start] = '\n';
+		buffer[--start] = '\r';
+		int length = count;
+		do {
+			buffer[--start] = (byte) Character.forDigit(length & 0xF, 16);
+			length >>>= 4;
+		} while(length != 0);
+		int end = HEADER_SPACE + count;
+		buffer[end++] = '\r';
+		buffer[end++] = '\n';
+		out.write(buffer, start, end - start);
+		count = 0;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if(closed) return;
+		writeChunk();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		writeChunk();
+		out.write(LAST_CHUNK);
+		out.flush();
+		closed = true;
+	}
+
+}
@@ -0,0 +1,268 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import freenet.support.Logger;
+
+/**
+ * Allocates memory for in-RAM temporary storage outside the Java heap. Memory is taken in 32 KiB
+ * slabs of direct memory, and handed out in power of two size classes from 1 KiB up to a whole
+ * slab. The smaller classes are carved out of a slab, so a slab only ever holds chunks of one
+ * size. Freed chunks are reused, and once all the chunks in a slab have been freed it can be
+ * used for a different size class.
+ *
+ * This keeps the data in TempBucketFactory's RAM buckets off the heap, so thousands of temporary
+ * buckets don't have to be scanned and copied by the garbage collector, and growing a bucket
+ * doesn't mean copying it into a bigger array.
+ *
+ * The caller is responsible for limiting how much is in use; we only limit how many free slabs
+ * are kept around for reuse rather than being left to the garbage collector.
+ *
+ * If direct memory runs out (it is limited by -XX:MaxDirectMemorySize), new slabs are put on
+ * the heap instead. Once we have dropped some direct slabs we try direct memory again, at most
+ * every RETRY_DIRECT_INTERVAL, as a failed attempt makes the JVM run the garbage collector and
+ * wait for it. Heap slabs are not kept for reuse while direct memory is available.
+ */
+class SlabAllocator {
+
+    static final int SLAB_SIZE = 32768;
+    static final int MIN_CHUNK_SIZE = 1024;
+    /** Number of size classes: 1KiB, 2KiB, ... up to SLAB_SIZE. */
+    private static final int SIZE_CLASSES =
+        Integer.numberOfTrailingZeros(SLAB_SIZE / MIN_CHUNK_SIZE) + 1;
+    static final long RETRY_DIRECT_INTERVAL = SECONDS.toMillis(10);
+
+    /** For each size class, slabs which have at least one free chunk. */
+    private final ArrayDeque<Slab>[] partial;
+    /** Slabs with no chunks in use, not assigned to any size class. */
+    private final ArrayDeque<ByteBuffer> freeSlabs;
+    private int maxFreeSlabs;
+    /** Number of slabs we have allocated and not yet dropped, including free slabs. */
+    private int slabs;
+    /** Bytes in chunks which have been handed out and not yet freed. */
+    private long used;
+    private boolean outOfDirectMemory;
+    /** When we last failed to allocate direct memory. */
+    private long outOfDirectMemorySince;
+    /** Direct slabs dropped since we last failed to allocate direct memory. */
+    private int directSlabsDropped;
+    /** Number of slabs on the heap, because we ran out of direct memory. Included in slabs. */
+    private int heapSlabs;
+
+    @SuppressWarnings("unchecked")
+    SlabAllocator(long maxFreeBytes) {
+        partial = (ArrayDeque<Slab>[]) new ArrayDeque<?>[SIZE_CLASSES];
+        for(int i=0;i<partial.length;i++)
+            partial[i] = new ArrayDeque<Slab>();
+        freeSlabs = new ArrayDeque<ByteBuffer>();
+        setMaxFreeBytes(maxFreeBytes);
+    }
+
+    /** @return The size class of the smallest chunk which can hold the given number of bytes. */
+    static int sizeClass(int size) {
+        if(size <= 0 || size > SLAB_SIZE) throw new IllegalArgumentException("Bad chunk size "+size);
+        if(size <= MIN_CHUNK_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_CHUNK_SIZE);
+    }
+
+    static int chunkSize(int sizeClass) {
+        return MIN_CHUNK_SIZE << sizeClass;
+    }
+
+    /** Allocate a chunk of at least the given size, which must be no more than SLAB_SIZE. The
+     * contents of the chunk are undefined. */
+    synchronized Chunk allocate(int size) {
+        int sizeClass = sizeClass(size);
+        Slab slab = partial[sizeClass].peekFirst();
+        if(slab == null) {
+            slab = new Slab(newSlab(), sizeClass);
+            partial[sizeClass].addFirst(slab);
+        }
+        Chunk chunk = slab.take();
+        if(slab.isFull())
+            partial[sizeClass].removeFirst();
+        used += chunk.size();
+        return chunk;
+    }
+
+    private ByteBuffer newSlab() {
+        ByteBuffer buf = freeSlabs.pollFirst();
+        if(buf != null) return buf;
+        slabs++;
+        boolean retrying = false;
+        if(outOfDirectMemory && directSlabsDropped > 0 &&
+                now() - outOfDirectMemorySince >= RETRY_DIRECT_INTERVAL) {
+            outOfDirectMemory = false;
+            retrying = true;
+        }
+        if(!outOfDirectMemory) {
+            try {
+                buf = allocateDirect(SLAB_SIZE);
+                if(retrying)
+                    Logger.normal(this, "Using direct memory for temporary buckets again, "+heapSlabs+" slabs still on the heap");
+                return buf;
+            } catch (OutOfMemoryError e) {
+                // Limited by -XX:MaxDirectMemorySize. Carry on, on the heap.
+                outOfDirectMemory = true;
+                outOfDirectMemorySince = now();
+                directSlabsDropped = 0;
+                if(!retrying)
+                    Logger.error(this, "Out of direct memory after allocating "+slabs+" slabs, using the heap for temporary buckets until some is freed");
+            }
+        }
+        heapSlabs++;
+        return ByteBuffer.allocate(SLAB_SIZE);
+    }
+
+    /** Let the garbage collector have a slab. */
+    private void drop(ByteBuffer buf) {
+        slabs--;
+        if(!buf.isDirect())
+            heapSlabs--;
+        else if(outOfDirectMemory)
+            directSlabsDropped++;
+    }
+
+    ByteBuffer allocateDirect(int size) {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    /** Return a chunk to the pool. Freeing a chunk twice is harmless. */
+    synchronized void free(Chunk chunk) {
+        if(chunk.freed) return;
+        chunk.freed = true;
+        Slab slab = chunk.slab;
+        boolean wasFull = slab.isFull();
+        slab.give(chunk.index);
+        used -= chunk.size();
+        if(slab.isEmpty()) {
+            if(!wasFull)
+                partial[slab.sizeClass].remove(slab);
+            if(freeSlabs.size() < maxFreeSlabs && (slab.buf.isDirect() || outOfDirectMemory))
+                freeSlabs.addFirst(slab.buf);
+            else
+                drop(slab.buf);
+        } else if(wasFull) {
+            partial[slab.sizeClass].addFirst(slab);
+        }
+    }
+
+    synchronized void setMaxFreeBytes(long bytes) {
+        maxFreeSlabs = (int) Math.min(Integer.MAX_VALUE, bytes / SLAB_SIZE);
+        while(freeSlabs.size() > maxFreeSlabs)
+            drop(freeSlabs.removeFirst());
+    }
+
+    /** @return The number of bytes in chunks which are in use. */
+    synchronized long getUsed() {
+        return used;
+    }
+
+    /** @return The number of bytes we have allocated, whether in use or not. */
+    synchronized long getAllocated() {
+        return (long) slabs * SLAB_SIZE;
+    }
+
+    /** @return The number of bytes allocated on the heap because we ran out of direct memory,
+     * whether in use or not. */
+    synchronized long getAllocatedOnHeap() {
+        return (long) heapSlabs * SLAB_SIZE;
+    }
+
+    /** @return True if we are allocating new slabs on the heap. */
+    synchronized boolean isOutOfDirectMemory() {
+        return outOfDirectMemory;
+    }
+
+    private static class Slab {
+
+        final ByteBuffer buf;
+        final int sizeClass;
+        /** Stack of the indexes of the free chunks. */
+        private final int[] free;
+        private int freeCount;
+
+        Slab(ByteBuffer buf, int sizeClass) {
+            this.buf = buf;
+            this.sizeClass = sizeClass;
+            free = new int[SLAB_SIZE / chunkSize(sizeClass)];
+            for(int i=0;i<free.length;i++)
+                free[i] = free.length - 1 - i;
+            freeCount = free.length;
+        }
+
+        Chunk take() {
+            int index = free[--freeCount];
+            int chunkSize = chunkSize(sizeClass);
+            ByteBuffer b = buf.duplicate();
+            b.position(index * chunkSize);
+            b.limit((index + 1) * chunkSize);
+            return new Chunk(b.slice(), this, index);
+        }
+
+        void give(int index) {
+            free[freeCount++] = index;
+        }
+
+        boolean isFull() {
+            return freeCount == 0;
+        }
+
+        boolean isEmpty() {
+            return freeCount == free.length;
+        }
+
+    }
+
+    /** A piece of a slab. Reads and writes do not change the position of the buffer, so are
+     * safe as long as the caller does not write to the same part of a chunk at the same time. */
+    static final class Chunk {
+
+        private final ByteBuffer buf;
+        private final Slab slab;
+        private final int index;
+        /** Protected by the allocator. */
+        private boolean freed;
+
+        private Chunk(ByteBuffer buf, Slab slab, int index) {
+            this.buf = buf;
+            this.slab = slab;
+            this.index = index;
+        }
+
+        int size() {
+            return buf.capacity();
+        }
+
+        void read(int offset, byte[] data, int dataOffset, int length) {
+            ByteBuffer b = buf.duplicate();
+            b.position(offset);
+            b.get(data, dataOffset, length);
+        }
+
+        void write(int offset, byte[] data, int dataOffset, int length) {
+            ByteBuffer b = buf.duplicate();
+            b.position(offset);
+            b.put(data, dataOffset, length);
+        }
+
+        void clear() {
+            ByteBuffer b = buf.duplicate();
+            byte[] zeros = new byte[Math.min(b.remaining(), 4096)];
+            while(b.hasRemaining())
+                b.put(zeros, 0, Math.min(zeros.length, b.remaining()));
+        }
+
+    }
+
+}
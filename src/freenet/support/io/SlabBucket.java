@@ -0,0 +1,273 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.SlabAllocator.Chunk;
+
+/**
+ * An in-RAM bucket kept in chunks from a SlabAllocator, i.e. off the heap. The first chunk is
+ * sized from the expected size of the bucket, after that the capacity doubles with each new chunk
+ * until the chunks are whole slabs. Unlike ArrayBucket, the data is never copied as the bucket
+ * grows, and data is visible to readers as soon as it is written, so TempBucketFactory can copy
+ * a bucket to disk while it is still being written to.
+ */
+class SlabBucket implements RandomAccessBucket {
+
+    private final SlabAllocator allocator;
+    private final int firstChunkSize;
+    private ArrayList<Chunk> chunks;
+    private long capacity;
+    private long size;
+    /** Incremented each time an OutputStream is opened, which truncates the bucket. */
+    private int generation;
+    private boolean readOnly;
+    private boolean freed;
+    /** If we have been converted, the buffer which now owns our chunks. */
+    private SlabRandomAccessBuffer raf;
+
+    SlabBucket(SlabAllocator allocator, long sizeHint) {
+        this.allocator = allocator;
+        this.firstChunkSize = (int) Math.max(1, Math.min(sizeHint, SlabAllocator.SLAB_SIZE));
+        chunks = new ArrayList<Chunk>();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return new BufferedOutputStream(getOutputStreamUnbuffered());
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStreamUnbuffered() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        if(readOnly) throw new IOException("Read only");
+        for(Chunk chunk : chunks)
+            allocator.free(chunk);
+        chunks.clear();
+        capacity = 0;
+        size = 0;
+        return new SlabOutputStream(++generation);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new BufferedInputStream(getInputStreamUnbuffered());
+    }
+
+    @Override
+    public synchronized InputStream getInputStreamUnbuffered() throws IOException {
+        checkFreed();
+        return new SlabInputStream(generation);
+    }
+
+    private void checkFreed() throws IOException {
+        if(freed || (raf != null && raf.hasBeenFreed())) throw new IOException("Already freed");
+    }
+
+    private synchronized void write(int gen, byte[] buf, int offset, int length) throws IOException {
+        checkFreed();
+        if(gen != generation) throw new IOException("Bucket has been reopened for writing");
+        if(readOnly) throw new IOException("Read only");
+        while(length > 0) {
+            if(size == capacity) {
+                int chunkSize = capacity == 0 ? firstChunkSize :
+                    (int) Math.min(SlabAllocator.SLAB_SIZE, capacity);
+                Chunk chunk = allocator.allocate(chunkSize);
+                chunks.add(chunk);
+                capacity += chunk.size();
+            }
+            Chunk chunk = chunks.get(chunks.size() - 1);
+            int chunkOffset = (int) (size - (capacity - chunk.size()));
+            int toWrite = Math.min(length, chunk.size() - chunkOffset);
+            chunk.write(chunkOffset, buf, offset, toWrite);
+            size += toWrite;
+            offset += toWrite;
+            length -= toWrite;
+        }
+    }
+
+    /** Read from the bucket. Can be called while the bucket is being written.
+     * @return The number of bytes read, or -1 at the end of the data. */
+    private synchronized int read(int gen, long position, byte[] buf, int offset, int length) throws IOException {
+        checkFreed();
+        if(gen != generation) throw new IOException("Bucket has been reopened for writing");
+        if(position >= size) return -1;
+        length = (int) Math.min(length, size - position);
+        long chunkStart = 0;
+        int read = 0;
+        for(Chunk chunk : chunks) {
+            if(read == length) break;
+            long chunkEnd = chunkStart + chunk.size();
+            if(position < chunkEnd) {
+                int chunkOffset = (int) (position - chunkStart);
+                int toRead = Math.min(length - read, chunk.size() - chunkOffset);
+                chunk.read(chunkOffset, buf, offset + read, toRead);
+                read += toRead;
+                position += toRead;
+            }
+            chunkStart = chunkEnd;
+        }
+        return read;
+    }
+
+    /** Copy part of the bucket to a stream. The lock is only held while reading each slab, so
+     * this can be used while the bucket is being written to.
+     * @throws IOException If the bucket has been freed or reopened, or on a write error. */
+    void copyTo(OutputStream os, long position, long length) throws IOException {
+        int gen;
+        synchronized(this) {
+            gen = generation;
+        }
+        byte[] buf = new byte[(int) Math.min(length, SlabAllocator.SLAB_SIZE)];
+        while(length > 0) {
+            int read = read(gen, position, buf, 0, (int) Math.min(length, buf.length));
+            if(read <= 0) throw new IOException("Bucket truncated while copying");
+            os.write(buf, 0, read);
+            position += read;
+            length -= read;
+        }
+    }
+
+    private class SlabOutputStream extends OutputStream {
+
+        private final int gen;
+        private boolean closed;
+
+        SlabOutputStream(int gen) {
+            this.gen = gen;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            if(closed) throw new IOException("Closed");
+            SlabBucket.this.write(gen, buf, offset, length);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+    private class SlabInputStream extends InputStream {
+
+        private final int gen;
+        private long position;
+
+        SlabInputStream(int gen) {
+            this.gen = gen;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buf = new byte[1];
+            if(read(buf, 0, 1) <= 0) return -1;
+            return buf[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+            if(length == 0) return 0;
+            int read = SlabBucket.this.read(gen, position, buf, offset, length);
+            if(read > 0) position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            if(n <= 0) return 0;
+            n = Math.min(n, Math.max(0, size() - position));
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size() - position));
+        }
+
+    }
+
+    @Override
+    public String getName() {
+        return "SlabBucket";
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    @Override
+    public void free() {
+        SlabRandomAccessBuffer converted;
+        ArrayList<Chunk> toFree;
+        synchronized(this) {
+            if(freed) return;
+            freed = true;
+            converted = raf;
+            toFree = chunks;
+            chunks = new ArrayList<Chunk>(0);
+        }
+        if(converted != null) {
+            converted.free();
+        } else {
+            for(Chunk chunk : toFree)
+                allocator.free(chunk);
+        }
+    }
+
+    /** The returned buffer shares our storage. Freeing either frees both. */
+    @Override
+    public synchronized LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+        checkFreed();
+        readOnly = true;
+        if(raf == null)
+            raf = new SlabRandomAccessBuffer(allocator, chunks, size, true);
+        return raf;
+    }
+
+    @Override
+    public RandomAccessBucket createShadow() {
+        return null;
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Not persistent.
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        throw new UnsupportedOperationException();
+    }
+
+}
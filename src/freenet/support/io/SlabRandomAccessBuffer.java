@@ -0,0 +1,171 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.io.SlabAllocator.Chunk;
+
+/** A fixed size in-RAM LockableRandomAccessBuffer kept in chunks from a SlabAllocator, i.e. off
+ * the heap. Used by TempBucketFactory, either directly or by converting a SlabBucket. */
+class SlabRandomAccessBuffer implements LockableRandomAccessBuffer {
+
+    private final SlabAllocator allocator;
+    private final Chunk[] chunks;
+    /** Offset of the start of each chunk. Chunks need not all be the same size. */
+    private final long[] offsets;
+    private final long size;
+    private boolean readOnly;
+    private boolean closed;
+    private boolean freed;
+
+    /** Create a zeroed buffer. Whole slabs followed by the smallest chunk that fits the rest. */
+    SlabRandomAccessBuffer(SlabAllocator allocator, int size) {
+        this(allocator, allocate(allocator, size), size, false);
+        for(Chunk chunk : chunks)
+            chunk.clear();
+    }
+
+    SlabRandomAccessBuffer(SlabAllocator allocator, byte[] initialContents, int offset, int size, boolean readOnly) throws IOException {
+        this(allocator, allocate(allocator, size), size, false);
+        pwrite(0, initialContents, offset, size);
+        this.readOnly = readOnly;
+    }
+
+    /** Take over chunks from a SlabBucket. */
+    SlabRandomAccessBuffer(SlabAllocator allocator, List<Chunk> chunks, long size, boolean readOnly) {
+        this.allocator = allocator;
+        this.chunks = chunks.toArray(new Chunk[chunks.size()]);
+        this.size = size;
+        this.readOnly = readOnly;
+        offsets = new long[this.chunks.length];
+        long offset = 0;
+        for(int i=0;i<this.chunks.length;i++) {
+            offsets[i] = offset;
+            offset += this.chunks[i].size();
+        }
+        if(offset < size) throw new IllegalArgumentException("Chunks too small for "+size+" bytes");
+    }
+
+    private static List<Chunk> allocate(SlabAllocator allocator, int size) {
+        ArrayList<Chunk> list = new ArrayList<Chunk>(size / SlabAllocator.SLAB_SIZE + 1);
+        int left = size;
+        while(left > 0) {
+            Chunk chunk = allocator.allocate(Math.min(left, SlabAllocator.SLAB_SIZE));
+            list.add(chunk);
+            left -= Math.min(left, chunk.size());
+        }
+        return list;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+        if(closed) throw new IOException("Closed");
+        if(fileOffset < 0) throw new IllegalArgumentException("Cannot read before zero");
+        if(fileOffset + length > size) throw new IOException("Cannot read after end: trying to read from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+        int i = chunkAt(fileOffset);
+        while(length > 0) {
+            int offset = (int) (fileOffset - offsets[i]);
+            int toRead = Math.min(length, chunks[i].size() - offset);
+            chunks[i].read(offset, buf, bufOffset, toRead);
+            fileOffset += toRead;
+            bufOffset += toRead;
+            length -= toRead;
+            i++;
+        }
+    }
+
+    @Override
+    public synchronized void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+        if(closed) throw new IOException("Closed");
+        if(fileOffset < 0) throw new IllegalArgumentException("Cannot write before zero");
+        if(fileOffset + length > size) throw new IOException("Cannot write after end: trying to write from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+        if(readOnly) throw new IOException("Read-only");
+        int i = chunkAt(fileOffset);
+        while(length > 0) {
+            int offset = (int) (fileOffset - offsets[i]);
+            int toWrite = Math.min(length, chunks[i].size() - offset);
+            chunks[i].write(offset, buf, bufOffset, toWrite);
+            fileOffset += toWrite;
+            bufOffset += toWrite;
+            length -= toWrite;
+            i++;
+        }
+    }
+
+    private int chunkAt(long offset) {
+        int i = Arrays.binarySearch(offsets, offset);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /** Copy the contents onto the heap, for migrating to disk. */
+    synchronized byte[] toByteArray() throws IOException {
+        byte[] buf = new byte[(int) size];
+        pread(0, buf, 0, buf.length);
+        return buf;
+    }
+
+    synchronized boolean hasBeenFreed() {
+        return freed;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public RAFLock lockOpen() {
+        return new RAFLock() {
+
+            @Override
+            protected void innerUnlock() {
+                // Do nothing. Always open.
+            }
+
+        };
+    }
+
+    @Override
+    public void free() {
+        synchronized(this) {
+            if(freed) return;
+            freed = true;
+            closed = true;
+        }
+        for(Chunk chunk : chunks)
+            allocator.free(chunk);
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Not persistent.
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -29,6 +29,7 @@ import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.Bucket;
@@ -41,12 +42,12 @@ import freenet.support.api.RandomAccessBucket;
  * Temporary Bucket Factory
  * 
  * Buckets created by this factory can be either:
- *	- ArrayBuckets
+ *	- SlabBuckets, kept in RAM but off the heap (@see SlabAllocator)
  * OR
- *	- FileBuckets
+ *	- FileBuckets, encrypted if reallyEncrypt
  * 
- * ArrayBuckets are used if and only if:
- *	1) there is enough room remaining on the pool (@see maxRamUsed and @see bytesInUse)
+ * SlabBuckets are used if and only if:
+ *	1) there is enough room remaining on the pool (@see ramLimit() and @see bytesInUse)
  *	2) the initial size is smaller than (@maxRAMBucketSize)
  * 
  * Depending on how they are used they might switch from one type to another transparently.
@@ -54,6 +55,15 @@ import freenet.support.api.RandomAccessBucket;
  * Currently they are two factors considered for a migration:
  *	- if they are long-lived or not (@see RAMBUCKET_MAX_AGE)
  *	- if their size is over RAMBUCKET_CONVERSION_FACTOR*maxRAMBucketSize
+ * 
+ * Migration normally happens in the background, on the executor, and copies the data without 
+ * holding the bucket's lock. A writer only migrates its own bucket if it has run out of room.
+ * 
+ * The pool may be shared with a MemoryLimitedJobRunner (@see shareMemoryWith()), in which case
+ * we can keep more in RAM while it isn't using all its capacity, and migrate to disk to give 
+ * the memory back when it needs it. So ownRamLimit is only what we can always use: RAM buckets
+ * can use up to ownRamLimit plus the runner's capacity (@see getMaxRamIncludingBorrowed()), but
+ * together with the runner's jobs they never use more than the two limits added up.
  */
 public class TempBucketFactory implements BucketFactory, LockableRandomAccessBufferFactory {
 	public final static long defaultIncrement = 4096;
@@ -67,16 +77,25 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	private final Executor executor;
 	private volatile boolean reallyEncrypt;
 	private final MasterSecret secret;
+	/** Off-heap memory for RAM buckets. */
+	private final SlabAllocator allocator;
+	/** If not null, we may borrow memory it isn't using. */
+	private volatile MemoryLimitedJobRunner jobRunner;
 	
 	/** How big can the defaultSize be for us to consider using RAMBuckets? */
 	private long maxRAMBucketSize;
-	/** How much memory do we dedicate to the RAMBucketPool? (in bytes) */
-	private long maxRamUsed;
+	/** How much memory do we dedicate to the RAMBucketPool? (in bytes) We may borrow more from
+	 * the MemoryLimitedJobRunner. */
+	private long ownRamLimit;
 
 	/** How old is a long-lived RAMBucket? */
 	private final static long RAMBUCKET_MAX_AGE = MINUTES.toMillis(5);
 	/** How many times the maxRAMBucketSize can a RAMBucket be before it gets migrated? */
 	final static int RAMBUCKET_CONVERSION_FACTOR = 4;
+	/** Start migrating a RAMBucket in the background when it is this many times the 
+	 * maxRAMBucketSize, so hopefully the writer doesn't have to when it gets to 
+	 * RAMBUCKET_CONVERSION_FACTOR. */
+	final static int RAMBUCKET_MIGRATE_FACTOR = RAMBUCKET_CONVERSION_FACTOR / 2;
 	
 	final static boolean TRACE_BUCKET_LEAKS = false;
 
@@ -114,6 +133,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		/** A timestamp used to evaluate the age of the bucket and maybe consider it for a migration */
 		public final long creationTime;
 		private boolean hasBeenFreed = false;
+		/** Have we asked the executor to migrate us? */
+		private boolean migrationQueued;
 		
 		private final Throwable tracer;
 		
@@ -152,58 +173,109 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			}
 		}
 		
-		/** A blocking method to force-migrate from a RAMBucket to a FileBucket */
+		/** Migrate from a RAMBucket to a FileBucket. The data is copied to disk without holding
+		 * the lock on the bucket, so writers and readers can carry on meanwhile; only what has 
+		 * been written since is copied with the lock held, when we switch over. If the caller 
+		 * holds the lock, e.g. a writer which has run out of room, everything is copied with 
+		 * the lock held.
+		 * @return True if we migrated, false if it had already been migrated or freed. */
 		public final boolean migrateToDisk() throws IOException {
-			Bucket toMigrate = null;
-			long size;
-			synchronized(this) {
-				if(!isRAMBucket() || hasBeenFreed)
-					// Nothing to migrate! We don't want to switch back to ram, do we?					
-					return false;
-				toMigrate = currentBucket;
+			while(true) {
+				SlabBucket toMigrate;
+				short index;
+				long copied;
+				synchronized(this) {
+					if(!isRAMBucket() || hasBeenFreed)
+						// Nothing to migrate! We don't want to switch back to ram, do we?
+						return false;
+					toMigrate = (SlabBucket) currentBucket;
+					index = osIndex;
+					copied = currentSize;
+				}
 				RandomAccessBucket tempFB = _makeFileBucket();
-				size = currentSize;
-				if(os != null) {
-					os.flush();
-					os.close();
-					// DO NOT INCREMENT THE osIndex HERE!
-					os = tempFB.getOutputStreamUnbuffered();
-					if(size > 0)
-						BucketTools.copyTo(toMigrate, os, size);
-				} else {
-					if(size > 0) {
-						OutputStream temp = tempFB.getOutputStreamUnbuffered();
-						try {
-						BucketTools.copyTo(toMigrate, temp, size);
-						} finally {
-						temp.close();
+				OutputStream fos = null;
+				long size;
+				boolean migrated = false;
+				try {
+					fos = tempFB.getOutputStreamUnbuffered();
+					try {
+						toMigrate.copyTo(fos, 0, copied);
+					} catch (IOException e) {
+						synchronized(this) {
+							if(currentBucket == toMigrate && !hasBeenFreed && osIndex == index)
+								throw e;
+						}
+						// Freed, migrated or rewritten while we were copying.
+						continue;
+					}
+					synchronized(this) {
+						if(currentBucket != toMigrate || hasBeenFreed)
+							return false;
+						if(osIndex != index)
+							continue; // Rewritten while we were copying, start again.
+						size = currentSize;
+						if(size > copied)
+							toMigrate.copyTo(fos, copied, size - copied);
+						if(os != null) {
+							os.close();
+							// DO NOT INCREMENT THE osIndex HERE!
+							os = fos;
+						} else {
+							fos.close();
 						}
+						fos = null;
+						if(toMigrate.isReadOnly())
+							tempFB.setReadOnly();
+						
+						currentBucket = tempFB;
+						// We need streams to be reset to point to the new bucket
+						closeInputStreams(false);
+						migrated = true;
+					}
+				} finally {
+					if(!migrated) {
+						Closer.close(fos);
+						tempFB.free();
 					}
 				}
-				if(toMigrate.isReadOnly())
-					tempFB.setReadOnly();
+				if(logMINOR)
+					Logger.minor(this, "We have migrated "+toMigrate.hashCode());
 				
-				closeInputStreams(false);
+				synchronized(ramBucketQueue) {
+					ramBucketQueue.remove(getReference());
+				}
 				
-				currentBucket = tempFB;
-				// We need streams to be reset to point to the new bucket
+				// We can free it on-thread as it's a rambucket
+				toMigrate.free();
+				// Might have changed already so we can't rely on currentSize!
+				_hasFreed(size);
+				return true;
 			}
-			if(logMINOR)
-				Logger.minor(this, "We have migrated "+toMigrate.hashCode());
+		}
+		
+		private final Runnable backgroundMigrator = new Runnable() {
 			
-			synchronized(ramBucketQueue) {
-				ramBucketQueue.remove(getReference());
+			@Override
+			public void run() {
+				try {
+					migrateToDisk();
+				} catch (IOException e) {
+					Logger.error(this, "An IOE occured while migrating "+TempBucket.this+" : "+e, e);
+				}
 			}
 			
-			// We can free it on-thread as it's a rambucket
-			toMigrate.free();
-			// Might have changed already so we can't rely on currentSize!
-			_hasFreed(size);
-			return true;
-		}
+		};
 		
 		public synchronized final boolean isRAMBucket() {
-			return (currentBucket instanceof ArrayBucket);
+			return (currentBucket instanceof SlabBucket);
+		}
+
+		/** If the data is on disk and not encrypted, open the file directly, bypassing migration
+		 * handling: a bucket on disk is never migrated again. Otherwise return null. */
+		synchronized InputStream getUnencryptedFileInputStream() throws IOException {
+			if(hasBeenFreed) throw new IOException("Already freed");
+			if(!hasWritten || !(currentBucket instanceof BaseFileBucket)) return null;
+			return currentBucket.getInputStreamUnbuffered();
 		}
 		
 		@Override
@@ -241,11 +313,12 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				if(isRAMBucket()) {
 					boolean shouldMigrate = false;
 					boolean isOversized = false;
+					long limit = ramLimit();
 					
 					if(futureSize >= Math.min(Integer.MAX_VALUE, maxRAMBucketSize * RAMBUCKET_CONVERSION_FACTOR)) {
 						isOversized = true;
 						shouldMigrate = true;
-					} else if ((futureSize - currentSize) + bytesInUse >= maxRamUsed)
+					} else if ((futureSize - currentSize) + bytesInUse >= limit)
 						shouldMigrate = true;
 					
 					if(shouldMigrate) {
@@ -256,6 +329,14 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 								Logger.minor(this, "The bucketpool is full: force-migrate before we go over the limit");
 						}
 						migrateToDisk();
+					} else {
+						if(futureSize >= maxRAMBucketSize * RAMBUCKET_MIGRATE_FACTOR && !migrationQueued) {
+							if(logMINOR)
+								Logger.minor(this, "The bucket "+TempBucket.this+" is over "+SizeUtil.formatSize(maxRAMBucketSize*RAMBUCKET_MIGRATE_FACTOR)+": migrating it in the background.");
+							migrationQueued = true;
+							executor.execute(backgroundMigrator);
+						}
+						maybeStartCleaner(limit);
 					}
 				} else {
 				    // Check for excess disk usage.
@@ -540,9 +621,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	}
 	
 	// Storage accounting disabled by default.
-	public TempBucketFactory(Executor executor, FilenameGenerator filenameGenerator, long maxBucketSizeKeptInRam, long maxRamUsed, Random weakPRNG, boolean reallyEncrypt, long minDiskSpace, MasterSecret masterSecret) {
+	public TempBucketFactory(Executor executor, FilenameGenerator filenameGenerator, long maxBucketSizeKeptInRam, long ownRamLimit, Random weakPRNG, boolean reallyEncrypt, long minDiskSpace, MasterSecret masterSecret) {
 		this.filenameGenerator = filenameGenerator;
-		this.maxRamUsed = maxRamUsed;
+		this.ownRamLimit = ownRamLimit;
 		this.maxRAMBucketSize = maxBucketSizeKeptInRam;
 		this.reallyEncrypt = reallyEncrypt;
 		this.executor = executor;
@@ -550,8 +631,56 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		underlyingDiskRAFFactory.enableCrypto(reallyEncrypt);
 		this.minDiskSpace = minDiskSpace;
 		this.diskRAFFactory = new DiskSpaceCheckingRandomAccessBufferFactory(underlyingDiskRAFFactory, 
-		        filenameGenerator.getDir(), minDiskSpace - maxRamUsed);
+		        filenameGenerator.getDir(), minDiskSpace - ownRamLimit);
 		this.secret = masterSecret;
+		this.allocator = new SlabAllocator(ownRamLimit / 4);
+	}
+	
+	/**
+	 * Share memory with a MemoryLimitedJobRunner. While it isn't using all of its capacity, we
+	 * can keep more than ownRamLimit in RAM; when it needs the memory to start a job, it will ask
+	 * us to migrate buckets to disk until we are back within our own limit.
+	 */
+	public void shareMemoryWith(MemoryLimitedJobRunner runner) {
+		jobRunner = runner;
+		runner.shareMemoryWith(this);
+	}
+	
+	/** The most we can keep in RAM right now, including whatever we can borrow from the 
+	 * MemoryLimitedJobRunner. Must not be called with the lock held, as the runner calls us 
+	 * with its lock held. */
+	private long ramLimit() {
+		long limit;
+		synchronized(this) {
+			limit = ownRamLimit;
+		}
+		MemoryLimitedJobRunner runner = jobRunner;
+		if(runner != null)
+			limit += runner.spareCapacity();
+		return limit;
+	}
+	
+	/** @return How much of the MemoryLimitedJobRunner's capacity we are using. */
+	public synchronized long getRamBorrowed() {
+		return Math.max(0, bytesInUse - ownRamLimit);
+	}
+	
+	/** Called by the MemoryLimitedJobRunner when it needs the memory we have borrowed, to start
+	 * a job. It will be told when we have freed some memory. */
+	public void reclaimBorrowedRam() {
+		synchronized(this) {
+			if(bytesInUse <= ownRamLimit || runningCleaner) return;
+			runningCleaner = true;
+		}
+		executor.execute(cleaner);
+	}
+	
+	private void maybeStartCleaner(long limit) {
+		synchronized(this) {
+			if(bytesInUse < limit * MAX_USAGE_HIGH || runningCleaner) return;
+			runningCleaner = true;
+		}
+		executor.execute(cleaner);
 	}
 	
 	@Override
@@ -567,25 +696,50 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		bytesInUse += size;
 	}
 	
-	private synchronized void _hasFreed(long size) {
-		bytesInUse -= size;
+	private void _hasFreed(long size) {
+		boolean wasBorrowing;
+		synchronized(this) {
+			wasBorrowing = bytesInUse > ownRamLimit;
+			bytesInUse -= size;
+		}
+		MemoryLimitedJobRunner runner = jobRunner;
+		if(wasBorrowing && runner != null)
+			runner.onMemoryReturned();
 	}
 	
 	public synchronized long getRamUsed() {
 		return bytesInUse;
 	}
 	
-	public synchronized void setMaxRamUsed(long size) {
-		maxRamUsed = size;
+	public synchronized void setOwnRamLimit(long size) {
+		ownRamLimit = size;
+		allocator.setMaxFreeBytes(size / 4);
 	}
 	
-	public synchronized long getMaxRamUsed() {
-		return maxRamUsed;
+	/** @return The RAM we can always use, not counting what we can borrow. */
+	public synchronized long getOwnRamLimit() {
+		return ownRamLimit;
+	}
+	
+	/** @return The most that RAM buckets can use, if they borrow all of the
+	 * MemoryLimitedJobRunner's capacity. All of it may have to be migrated to disk. */
+	public long getMaxRamIncludingBorrowed() {
+		long limit = getOwnRamLimit();
+		MemoryLimitedJobRunner runner = jobRunner;
+		if(runner != null)
+			limit += runner.getCapacity();
+		return limit;
+	}
+	
+	/** @return How much of the memory for RAM buckets is on the heap, because we ran out of 
+	 * direct memory. */
+	public long getRamOnHeap() {
+		return allocator.getAllocatedOnHeap();
 	}
 	
 	public synchronized void setMaxRAMBucketSize(long size) {
 		maxRAMBucketSize = size;
-		diskRAFFactory.setMinDiskSpace(minDiskSpace - maxRamUsed);
+		diskRAFFactory.setMinDiskSpace(minDiskSpace - ownRamLimit);
 	}
 	
 	public synchronized long getMaxRAMBucketSize() {
@@ -599,7 +753,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	
 	public synchronized void setMinDiskSpace(long min) {
 	    minDiskSpace = min;
-	    diskRAFFactory.setMinDiskSpace(minDiskSpace - maxRamUsed);
+	    diskRAFFactory.setMinDiskSpace(minDiskSpace - ownRamLimit);
 	}
 	
 	public boolean isEncrypting() {
@@ -626,19 +780,17 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		RandomAccessBucket realBucket = null;
 		boolean useRAMBucket = false;
 		long now = System.currentTimeMillis();
+		long limit = ramLimit();
 		
 		synchronized(this) {
-			if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
+			if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < limit) && (bytesInUse + size <= limit)) {
 				useRAMBucket = true;
 			}
-			if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
-				runningCleaner = true;
-				executor.execute(cleaner);
-			}
 		}
+		maybeStartCleaner(limit);
 		
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		realBucket = (useRAMBucket ? new SlabBucket(allocator, size) : _makeFileBucket());
 		
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if(useRAMBucket) { // No need to consider them for migration if they can't be migrated
@@ -686,8 +838,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				saidSo = false;
 				while(true) {
 					// Now migrate buckets until usage is below the lower threshold.
+					long limit = ramLimit();
 					synchronized(TempBucketFactory.this) {
-						if(bytesInUse <= maxRamUsed * MAX_USAGE_LOW) return;
+						if(bytesInUse <= limit * MAX_USAGE_LOW) return;
 					}
 					try {
                         if(!cleanBucketQueue(System.currentTimeMillis(), true)) return;
@@ -802,7 +955,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    private final Throwable tracer;
 	    
 	    TempRandomAccessBuffer(int size, long time) throws IOException {
-	        super(new ByteArrayRandomAccessBuffer(size), size);
+	        super(new SlabRandomAccessBuffer(allocator, size), size);
 	        creationTime = time;
 	        hasMigrated = false;
 	        original = null;
@@ -813,7 +966,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    }
 
         public TempRandomAccessBuffer(byte[] initialContents, int offset, int size, long time, boolean readOnly) throws IOException {
-            super(new ByteArrayRandomAccessBuffer(initialContents, offset, size, readOnly), size);
+            super(new SlabRandomAccessBuffer(allocator, initialContents, offset, size, readOnly), size);
             creationTime = time;
             hasMigrated = false;
             original = null;
@@ -836,8 +989,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 
         @Override
         protected LockableRandomAccessBuffer innerMigrate(LockableRandomAccessBuffer underlying) throws IOException {
-            ByteArrayRandomAccessBuffer b = (ByteArrayRandomAccessBuffer)underlying;
-            byte[] buf = b.getBuffer();
+            SlabRandomAccessBuffer b = (SlabRandomAccessBuffer)underlying;
+            // Only briefly on the heap, and no bigger than maxRAMBucketSize.
+            byte[] buf = b.toByteArray();
             return diskRAFFactory.makeRAF(buf, 0, (int)size, b.isReadOnly());
         }
 
@@ -925,17 +1079,15 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    long now = System.currentTimeMillis();
 	    
 	    TempRandomAccessBuffer raf = null;
+	    long limit = ramLimit();
 	    
 	    synchronized(this) {
-	        if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
+	        if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < limit) && (bytesInUse + size <= limit)) {
 	            raf = new TempRandomAccessBuffer((int)size, now);
 	            bytesInUse += size;
 	        }
-	        if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
-	            runningCleaner = true;
-	            executor.execute(cleaner);
-	        }
 	    }
+	    maybeStartCleaner(limit);
 	    
 	    if(raf != null) {
             synchronized(ramBucketQueue) {
@@ -973,17 +1125,15 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
         long now = System.currentTimeMillis();
         
         TempRandomAccessBuffer raf = null;
+        long limit = ramLimit();
         
         synchronized(this) {
-            if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
+            if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < limit) && (bytesInUse + size <= limit)) {
                 raf = new TempRandomAccessBuffer(initialContents, offset, size, now, readOnly);
                 bytesInUse += size;
             }
-            if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
-                runningCleaner = true;
-                executor.execute(cleaner);
-            }
         }
+        maybeStartCleaner(limit);
         
         if(raf != null) {
             synchronized(ramBucketQueue) {
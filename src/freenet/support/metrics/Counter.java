@@ -0,0 +1,29 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A count which only goes up, e.g. the number of requests which have completed. */
+public final class Counter {
+
+	private final AtomicLong value = new AtomicLong();
+
+	Counter() {
+	}
+
+	public void increment() {
+		value.incrementAndGet();
+	}
+
+	public void add(long delta) {
+		if(delta < 0) throw new IllegalArgumentException("Counters cannot go down");
+		value.addAndGet(delta);
+	}
+
+	public long get() {
+		return value.get();
+	}
+
+}
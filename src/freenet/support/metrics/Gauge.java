@@ -0,0 +1,13 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+/** A value which can go up and down, e.g. the length of a queue. It is read when the metrics are
+ * exported, so the code being measured doesn't have to do anything. */
+public interface Gauge {
+
+	/** Called when exporting. Must be quick and must not block for long. */
+	double getValue();
+
+}
@@ -0,0 +1,113 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of a non-negative value, usually a time, so we can report percentiles
+ * rather than just an average. Each value is counted against the smallest power of two which is
+ * at least as large as it, so the number of values up to any power of two is known exactly, for
+ * export, and a percentile is known to within a factor of two, in a fixed 64 counters.
+ *
+ * Recording a value is a few atomic increments and never allocates, so it is safe to use on hot
+ * paths. Reading is not atomic with respect to concurrent recording, but the counts are only
+ * ever slightly out of date.
+ */
+public final class Histogram {
+
+	/** Index i counts the values which are at most 2^i but more than 2^(i-1). */
+	private final AtomicLongArray powerOfTwoCounts = new AtomicLongArray(64);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	/** Multiply recorded values by this to get the exported unit, e.g. 1e-9 for nanoseconds to
+	 * seconds. */
+	final double scale;
+
+	/** @param scale Multiply recorded values by this to get the unit the histogram is exported
+	 * in. Prometheus expects seconds and bytes, so a histogram recording nanoseconds should use
+	 * 1e-9. */
+	Histogram(double scale) {
+		this.scale = scale;
+	}
+
+	/** Record a value. Negative values, e.g. from a clock going backwards, are recorded as 0. */
+	public void record(long value) {
+		if(value < 0) value = 0;
+		powerOfTwoCounts.incrementAndGet(powerOfTwoIndex(value));
+		sum.addAndGet(value);
+		count.incrementAndGet();
+		long oldMax;
+		while(value > (oldMax = max.get())) {
+			if(max.compareAndSet(oldMax, value)) break;
+		}
+	}
+
+	/** Record the time since startNanos, which was returned by System.nanoTime(). The histogram
+	 * should have been created with a scale of 1e-9. */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/** @return The smallest exponent such that value <= 2^exponent. */
+	static int powerOfTwoIndex(long value) {
+		if(value <= 1) return 0;
+		return 64 - Long.numberOfLeadingZeros(value - 1);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	double getMean() {
+		long c = count.get();
+		return c == 0 ? 0.0 : ((double) sum.get()) / c;
+	}
+
+	/** @return The number of recorded values which are less than or equal to the given power of
+	 * two. */
+	long countAtMostPowerOfTwo(int exponent) {
+		long total = 0;
+		for(int i=0;i<=exponent && i<64;i++)
+			total += powerOfTwoCounts.get(i);
+		return total;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100, e.g. 99 for the 99th percentile.
+	 * @return A value such that at least the given percentage of the recorded values are no
+	 * larger than it. It is the power of two at the top of the bucket, so it may overestimate by
+	 * up to a factor of two, but it is never more than the largest value recorded. 0 if nothing
+	 * has been recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if(percentile < 0 || percentile > 100) throw new IllegalArgumentException("Bad percentile "+percentile);
+		long[] snapshot = new long[64];
+		long total = 0;
+		for(int i=0;i<64;i++) {
+			snapshot[i] = powerOfTwoCounts.get(i);
+			total += snapshot[i];
+		}
+		if(total == 0) return 0;
+		long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		for(int i=0;i<64;i++) {
+			seen += snapshot[i];
+			if(seen >= target)
+				return i == 63 ? max.get() : Math.min(1L << i, max.get());
+		}
+		return max.get();
+	}
+
+}
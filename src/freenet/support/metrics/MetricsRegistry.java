@@ -0,0 +1,228 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps track of the counters, gauges and histograms in the node, and writes them out in the
+ * Prometheus text exposition format. Metrics are registered once, usually in a static field or a
+ * constructor, and then updated directly; the registry is only involved when creating them and
+ * when exporting them.
+ *
+ * A metric has a name and optionally some labels, given as alternating names and values, e.g.
+ * <code>histogram("freenet_store_fetch_seconds", "...", 1e-9, "store", "CHK-store")</code>.
+ * Registering the same name and labels again returns the existing counter or histogram, so it
+ * is harmless if e.g. a store is recreated. Registering a gauge again replaces the old one.
+ * Names should follow the Prometheus conventions: snake case, prefixed with freenet_, and in
+ * seconds or bytes with the unit as a suffix.
+ */
+public class MetricsRegistry {
+
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+	/** Histogram buckets cover this range of powers of two in the exported unit: about a
+	 * microsecond to 18 hours, for seconds. Anything larger is only counted in +Inf. */
+	private static final int MIN_BUCKET_EXPONENT = -20;
+	private static final int MAX_BUCKET_EXPONENT = 16;
+	private static final double MIN_BUCKET = Math.pow(2, MIN_BUCKET_EXPONENT);
+	private static final double MAX_BUCKET = Math.pow(2, MAX_BUCKET_EXPONENT);
+
+	/** @return The registry used by the node, and exported by MetricsToadlet. */
+	public static MetricsRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	private enum Type {
+		COUNTER("counter"),
+		GAUGE("gauge"),
+		HISTOGRAM("histogram");
+
+		final String prometheusName;
+
+		Type(String prometheusName) {
+			this.prometheusName = prometheusName;
+		}
+	}
+
+	private static class Family {
+		final String name;
+		final String help;
+		final Type type;
+		/** Metrics by their formatted labels, e.g. store="CHK-store". */
+		final Map<String, Object> children = new TreeMap<String, Object>();
+
+		Family(String name, String help, Type type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private final Map<String, Family> families = new TreeMap<String, Family>();
+
+	public synchronized Counter counter(String name, String help, String... labels) {
+		Family family = getFamily(name, help, Type.COUNTER);
+		String key = formatLabels(labels);
+		Counter counter = (Counter) family.children.get(key);
+		if(counter == null) {
+			counter = new Counter();
+			family.children.put(key, counter);
+		}
+		return counter;
+	}
+
+	public synchronized void gauge(String name, String help, Gauge gauge, String... labels) {
+		if(gauge == null) throw new NullPointerException();
+		getFamily(name, help, Type.GAUGE).children.put(formatLabels(labels), gauge);
+	}
+
+	/** Remove a gauge, e.g. because the object it reads from has been shut down. */
+	public synchronized void removeGauge(String name, String... labels) {
+		Family family = families.get(name);
+		if(family == null || family.type != Type.GAUGE) return;
+		family.children.remove(formatLabels(labels));
+		if(family.children.isEmpty()) families.remove(name);
+	}
+
+	/** @param scale Multiply recorded values by this to get the unit of the name, e.g. 1e-9 if
+	 * recording nanoseconds for a metric ending in _seconds. */
+	public synchronized Histogram histogram(String name, String help, double scale, String... labels) {
+		Family family = getFamily(name, help, Type.HISTOGRAM);
+		String key = formatLabels(labels);
+		Histogram histogram = (Histogram) family.children.get(key);
+		if(histogram == null) {
+			histogram = new Histogram(scale);
+			family.children.put(key, histogram);
+		} else if(histogram.scale != scale) {
+			throw new IllegalArgumentException("Histogram "+name+" already registered with scale "+histogram.scale);
+		}
+		return histogram;
+	}
+
+	private Family getFamily(String name, String help, Type type) {
+		checkName(name);
+		Family family = families.get(name);
+		if(family == null) {
+			family = new Family(name, help, type);
+			families.put(name, family);
+		} else if(family.type != type) {
+			throw new IllegalArgumentException(name+" is already registered as a "+family.type.prometheusName);
+		}
+		return family;
+	}
+
+	private static void checkName(String name) {
+		if(name.isEmpty()) throw new IllegalArgumentException("Empty metric name");
+		for(int i=0;i<name.length();i++) {
+			char c = name.charAt(i);
+			if(!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' ||
+					(i > 0 && c >= '0' && c <= '9')))
+				throw new IllegalArgumentException("Bad metric name "+name);
+		}
+	}
+
+	static String formatLabels(String[] labels) {
+		if(labels.length % 2 != 0) throw new IllegalArgumentException("Labels must be name, value pairs");
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<labels.length;i+=2) {
+			checkName(labels[i]);
+			if(labels[i].equals("le")) throw new IllegalArgumentException("le is reserved for histograms");
+			if(i > 0) sb.append(',');
+			sb.append(labels[i]).append("=\"");
+			escape(labels[i+1], sb);
+			sb.append('"');
+		}
+		return sb.toString();
+	}
+
+	private static void escape(String value, StringBuilder sb) {
+		for(int i=0;i<value.length();i++) {
+			char c = value.charAt(i);
+			if(c == '\\') sb.append("\\\\");
+			else if(c == '"') sb.append("\\\"");
+			else if(c == '\n') sb.append("\\n");
+			else sb.append(c);
+		}
+	}
+
+	/** Write all the metrics in the Prometheus text format, version 0.0.4. Histograms are
+	 * written with a bucket for each power of two in the recorded unit whose value in the
+	 * exported unit is between 2^MIN_BUCKET_EXPONENT and 2^MAX_BUCKET_EXPONENT. The set of
+	 * buckets only depends on the scale, so it is the same on every scrape, as Prometheus
+	 * expects, and each counts the values less than or equal to its bound. */
+	public synchronized void writePrometheus(StringBuilder sb) {
+		for(Family family : families.values()) {
+			sb.append("# HELP ").append(family.name).append(' ');
+			escapeHelp(family.help, sb);
+			sb.append('\n');
+			sb.append("# TYPE ").append(family.name).append(' ').append(family.type.prometheusName).append('\n');
+			for(Map.Entry<String, Object> child : family.children.entrySet()) {
+				String labels = child.getKey();
+				switch(family.type) {
+				case COUNTER:
+					writeSample(sb, family.name, "", labels, null, ((Counter) child.getValue()).get());
+					break;
+				case GAUGE:
+					double value;
+					try {
+						value = ((Gauge) child.getValue()).getValue();
+					} catch (RuntimeException e) {
+						value = Double.NaN;
+					}
+					writeSample(sb, family.name, "", labels, null, value);
+					break;
+				case HISTOGRAM:
+					writeHistogram(sb, family.name, labels, (Histogram) child.getValue());
+					break;
+				}
+			}
+		}
+	}
+
+	private static void writeHistogram(StringBuilder sb, String name, String labels, Histogram histogram) {
+		long count = histogram.getCount();
+		for(int exponent=0;exponent<63;exponent++) {
+			double bound = (1L << exponent) * histogram.scale;
+			if(bound < MIN_BUCKET) continue;
+			if(bound > MAX_BUCKET) break;
+			writeSample(sb, name, "_bucket", labels, Double.toString(bound), histogram.countAtMostPowerOfTwo(exponent));
+		}
+		writeSample(sb, name, "_bucket", labels, "+Inf", count);
+		writeSample(sb, name, "_sum", labels, null, histogram.getSum() * histogram.scale);
+		writeSample(sb, name, "_count", labels, null, count);
+	}
+
+	private static void writeSample(StringBuilder sb, String name, String suffix, String labels, String le, double value) {
+		sb.append(name).append(suffix);
+		if(!labels.isEmpty() || le != null) {
+			sb.append('{').append(labels);
+			if(le != null) {
+				if(!labels.isEmpty()) sb.append(',');
+				sb.append("le=\"").append(le).append('"');
+			}
+			sb.append('}');
+		}
+		sb.append(' ');
+		if(Double.isNaN(value))
+			sb.append("NaN");
+		else if(Double.isInfinite(value))
+			sb.append(value > 0 ? "+Inf" : "-Inf");
+		else if(value == Math.rint(value) && Math.abs(value) < 1e15)
+			sb.append((long) value);
+		else
+			sb.append(value);
+		sb.append('\n');
+	}
+
+	private static void escapeHelp(String help, StringBuilder sb) {
+		for(int i=0;i<help.length();i++) {
+			char c = help.charAt(i);
+			if(c == '\\') sb.append("\\\\");
+			else if(c == '\n') sb.append("\\n");
+			else sb.append(c);
+		}
+	}
+
+}
@@ -0,0 +1,5 @@
+/**
+ * Counters, gauges and histograms which can be updated cheaply from busy code, and exported in
+ * the Prometheus text format by {@link freenet.clients.http.MetricsToadlet}.
+ */
+package freenet.support.metrics;
@@ -0,0 +1,206 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.ByteArrayRandomAccessBuffer;
+
+public class ArchiveManagerTest extends TestCase {
+
+	private static final String LONG_NAME =
+		"a/directory/with/a/name/which/is/long/enough/that/the/tar/needs/a/gnu/long/name/entry/before/the/header/index.html";
+
+	private final ArchiveContext actx = new ArchiveContext(1024 * 1024, 1);
+	private byte[] small;
+	private byte[] big;
+
+	@Override
+	protected void setUp() {
+		Random random = new Random(1234);
+		small = new byte[1000];
+		random.nextBytes(small);
+		big = new byte[10000];
+		random.nextBytes(big);
+	}
+
+	public void testIndexed() throws Exception {
+		checkContents(new ArchiveManager(10, 1024 * 1024, 1024 * 1024, 100, new ArrayBucketFactory(), true));
+	}
+
+	public void testExtracted() throws Exception {
+		checkContents(new ArchiveManager(10, 1024 * 1024, 1024 * 1024, 100, new ArrayBucketFactory(), false));
+	}
+
+	private void checkContents(ArchiveManager manager) throws Exception {
+		FreenetURI key = new FreenetURI("KSK@test");
+		TestContainer data = new TestContainer(makeTar());
+		Callback callback = new Callback();
+		extract(manager, key, data, "big", callback);
+		assertTrue(Arrays.equals(big, BucketTools.toByteArray(callback.data)));
+		assertTrue(Arrays.equals(small, BucketTools.toByteArray(manager.getCached(key, "small"))));
+		assertTrue(Arrays.equals(small, BucketTools.toByteArray(manager.getCached(key, LONG_NAME))));
+		assertEquals(0, manager.getCached(key, "empty").size());
+		assertNotNull(manager.getCached(key, ".metadata"));
+		assertNull(manager.getCached(key, "missing"));
+		callback.data.free();
+	}
+
+	public void testNotInArchive() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024 * 1024, 1024 * 1024, 100, new ArrayBucketFactory());
+		Callback callback = new Callback();
+		extract(manager, new FreenetURI("KSK@test"), new TestContainer(makeTar()), "missing", callback);
+		assertNull(callback.data);
+		assertTrue(callback.notInArchive);
+	}
+
+	public void testTooBig() throws Exception {
+		ArchiveManager manager = new ArchiveManager(10, 1024 * 1024, 5000, 100, new ArrayBucketFactory());
+		FreenetURI key = new FreenetURI("KSK@test");
+		extract(manager, key, new TestContainer(makeTar()), "small", new Callback());
+		assertTrue(Arrays.equals(small, BucketTools.toByteArray(manager.getCached(key, "small"))));
+		// Files which are too big are not cached.
+		assertNull(manager.getCached(key, "big"));
+		// But if it's the file we asked for, we get it anyway.
+		Callback callback = new Callback();
+		extract(manager, key, new TestContainer(makeTar()), "big", callback);
+		assertTrue(Arrays.equals(big, BucketTools.toByteArray(callback.data)));
+	}
+
+	/** Indexed containers count towards the cache limit, and are freed when dropped, but not
+	 * while someone is still reading a file from them. */
+	public void testEviction() throws Exception {
+		byte[] tar = makeTar();
+		ArchiveManager manager = new ArchiveManager(10, tar.length * 3 / 2, 1024 * 1024, 100, new ArrayBucketFactory());
+		FreenetURI key1 = new FreenetURI("KSK@test1");
+		FreenetURI key2 = new FreenetURI("KSK@test2");
+		TestContainer data1 = new TestContainer(tar);
+		Callback callback = new Callback();
+		extract(manager, key1, data1, "small", callback);
+		callback.data.free();
+		Bucket reader = manager.getCached(key1, "big");
+		assertNotNull(reader);
+		TestContainer data2 = new TestContainer(tar);
+		callback = new Callback();
+		extract(manager, key2, data2, "small", callback);
+		callback.data.free();
+		assertNull(manager.getCached(key1, "big"));
+		assertNotNull(manager.getCached(key2, "big"));
+		assertFalse(data1.freed);
+		assertTrue(Arrays.equals(big, BucketTools.toByteArray(reader)));
+		reader.free();
+		assertTrue(data1.freed);
+		assertFalse(data2.freed);
+	}
+
+	private void extract(ArchiveManager manager, FreenetURI key, Bucket data, String element, Callback callback) throws ArchiveFailureException, ArchiveRestartException {
+		ArchiveStoreContext ctx = manager.makeContext(key, ARCHIVE_TYPE.TAR, null, false);
+		manager.extractToCache(key, ARCHIVE_TYPE.TAR, null, data, actx, ctx, element, callback, null);
+	}
+
+	private byte[] makeTar() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		TarArchiveOutputStream tar = new TarArchiveOutputStream(baos);
+		tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+		addFile(tar, "small", small);
+		addFile(tar, "empty", new byte[0]);
+		addFile(tar, "big", big);
+		addFile(tar, LONG_NAME, small);
+		tar.close();
+		return baos.toByteArray();
+	}
+
+	private static void addFile(TarArchiveOutputStream tar, String name, byte[] data) throws IOException {
+		TarArchiveEntry entry = new TarArchiveEntry(name);
+		entry.setSize(data.length);
+		tar.putArchiveEntry(entry);
+		tar.write(data);
+		tar.closeArchiveEntry();
+	}
+
+	/** Remembers whether the container was freed after being handed to the ArchiveManager. */
+	private static class TestContainer extends ArrayBucket {
+
+		private static final long serialVersionUID = 1L;
+
+		boolean freed;
+
+		TestContainer(byte[] data) {
+			super(data);
+		}
+
+		@Override
+		public LockableRandomAccessBuffer toRandomAccessBuffer() {
+			byte[] data;
+			try {
+				data = BucketTools.toByteArray(this);
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+			return new ByteArrayRandomAccessBuffer(data, 0, data.length, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public void free() {
+					freed = true;
+				}
+
+			};
+		}
+
+		@Override
+		public void free() {
+			freed = true;
+			super.free();
+		}
+
+	}
+
+	private static class Callback implements ArchiveExtractCallback {
+
+		private static final long serialVersionUID = 1L;
+
+		Bucket data;
+		boolean notInArchive;
+
+		@Override
+		public void gotBucket(Bucket data, ClientContext context) {
+			this.data = data;
+		}
+
+		@Override
+		public void notInArchive(ClientContext context) {
+			notInArchive = true;
+		}
+
+		@Override
+		public void onFailed(ArchiveRestartException e, ClientContext context) {
+			fail(e.toString());
+		}
+
+		@Override
+		public void onFailed(ArchiveFailureException e, ClientContext context) {
+			fail(e.toString());
+		}
+
+	}
+
+}
@@ -0,0 +1,237 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import freenet.keys.ClientKey;
+import freenet.keys.ClientKeyBlock;
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.RequestStarter;
+import freenet.node.SendableGet;
+import freenet.support.PooledExecutor;
+import freenet.support.VirtualTicker;
+import junit.framework.TestCase;
+
+public class DatastoreCheckerTest extends TestCase {
+
+	private static final short HIGH = RequestStarter.INTERACTIVE_PRIORITY_CLASS;
+	private static final short LOW = RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+
+	private ClientRequestScheduler sched;
+	private int nextKey;
+
+	@Override
+	protected void setUp() {
+		sched = mock(ClientRequestScheduler.class);
+	}
+
+	private Key[] keys(int count) {
+		Key[] keys = new Key[count];
+		for(int i=0;i<count;i++) {
+			byte[] routingKey = new byte[32];
+			int k = nextKey++;
+			routingKey[0] = (byte) k;
+			routingKey[1] = (byte) (k >> 8);
+			keys[i] = new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+		}
+		return keys;
+	}
+
+	private SendableGet getter(Key[] keys, short prio) {
+		SendableGet getter = mock(SendableGet.class);
+		when(getter.listKeys()).thenReturn(keys);
+		when(getter.getPriorityClass()).thenReturn(prio);
+		when(getter.getScheduler(any(ClientContext.class))).thenReturn(sched);
+		return getter;
+	}
+
+	private static List<Key> list(Key[]... keys) {
+		List<Key> list = new ArrayList<Key>();
+		for(Key[] k : keys)
+			Collections.addAll(list, k);
+		return list;
+	}
+
+	/** Records the order keys are looked up in. Only the keys in found are in the set. */
+	private static class TestBlockSet implements BlockSet {
+
+		final List<Key> lookups = new ArrayList<Key>();
+		final Set<Key> found = new HashSet<Key>();
+
+		@Override
+		public KeyBlock get(Key key) {
+			synchronized(this) {
+				lookups.add(key);
+			}
+			lookedUp(key);
+			return found.contains(key) ? mock(KeyBlock.class) : null;
+		}
+
+		/** Called for each lookup, without the lock held. */
+		void lookedUp(Key key) {
+			// Do nothing.
+		}
+
+		@Override
+		public void add(KeyBlock block) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Set<Key> keys() {
+			return found;
+		}
+
+		@Override
+		public ClientKeyBlock get(ClientKey key) {
+			return null;
+		}
+
+	}
+
+	public void testPriorityOrder() {
+		VirtualTicker executor = new VirtualTicker(0);
+		DatastoreChecker checker = new DatastoreChecker(null, true, executor, "test");
+		TestBlockSet blocks = new TestBlockSet();
+		Key[] low1 = keys(2);
+		Key[] low2 = keys(1);
+		Key[] high = keys(3);
+		SendableGet getLow1 = getter(low1, LOW);
+		SendableGet getLow2 = getter(low2, LOW);
+		SendableGet getHigh = getter(high, HIGH);
+		checker.queueRequest(getLow1, blocks);
+		checker.queueRequest(getLow2, blocks);
+		checker.queueRequest(getHigh, blocks);
+		assertEquals(3, checker.getQueuedRequests());
+		// Run the checker threads one at a time, so the order is deterministic.
+		executor.runFor(0);
+		assertEquals(list(high, low1, low2), blocks.lookups);
+		assertEquals(0, checker.getQueuedRequests());
+		assertEquals(6, checker.getKeysChecked());
+		verify(sched).finishRegister(aryEq(new SendableGet[] { getHigh }), anyBoolean(), anyBoolean());
+		verify(sched).finishRegister(aryEq(new SendableGet[] { getLow1 }), anyBoolean(), anyBoolean());
+		verify(sched).finishRegister(aryEq(new SendableGet[] { getLow2 }), anyBoolean(), anyBoolean());
+	}
+
+	/** A big request is checked in jobs of KEYS_PER_JOB, so a more urgent request which arrives
+	 * while it is being checked goes next rather than waiting for all of it. */
+	public void testSplitIntoJobs() {
+		VirtualTicker executor = new VirtualTicker(0);
+		final DatastoreChecker checker = new DatastoreChecker(null, true, executor, "test");
+		final Key[] big = keys(DatastoreChecker.KEYS_PER_JOB * 2);
+		final Key[] high = keys(1);
+		final SendableGet getHigh = getter(high, HIGH);
+		final TestBlockSet blocks = new TestBlockSet() {
+
+			@Override
+			void lookedUp(Key key) {
+				if(key == big[0])
+					checker.queueRequest(getHigh, this);
+			}
+
+		};
+		blocks.found.add(big[1]);
+		blocks.found.add(high[0]);
+		SendableGet getBig = getter(big, LOW);
+		checker.queueRequest(getBig, blocks);
+		executor.runFor(0);
+		List<Key> expected = new ArrayList<Key>();
+		for(int i=0;i<DatastoreChecker.KEYS_PER_JOB;i++)
+			expected.add(big[i]);
+		expected.add(high[0]);
+		for(int i=DatastoreChecker.KEYS_PER_JOB;i<big.length;i++)
+			expected.add(big[i]);
+		assertEquals(expected, blocks.lookups);
+		verify(sched, times(2)).tripPendingKey(any(KeyBlock.class));
+		// Some of the big request's keys were not found, so it still needs the network.
+		verify(sched).finishRegister(new SendableGet[] { getBig }, false, true);
+		// All of the other request's keys were found.
+		verify(sched).finishRegister(new SendableGet[] { getHigh }, false, false);
+	}
+
+	public void testRemoveRequest() {
+		VirtualTicker executor = new VirtualTicker(0);
+		final DatastoreChecker checker = new DatastoreChecker(null, true, executor, "test");
+		final Key[] started = keys(DatastoreChecker.KEYS_PER_JOB + 1);
+		Key[] removed = keys(1);
+		final SendableGet getStarted = getter(started, LOW);
+		SendableGet getRemoved = getter(removed, LOW);
+		TestBlockSet blocks = new TestBlockSet() {
+
+			@Override
+			void lookedUp(Key key) {
+				// Too late, it will be checked anyway.
+				if(key == started[0])
+					checker.removeRequest(getStarted, false, null, LOW);
+			}
+
+		};
+		checker.queueRequest(getStarted, blocks);
+		checker.queueRequest(getRemoved, blocks);
+		checker.removeRequest(getRemoved, false, null, LOW);
+		assertEquals(1, checker.getQueuedRequests());
+		executor.runFor(0);
+		assertEquals(list(started), blocks.lookups);
+		verify(sched).finishRegister(new SendableGet[] { getStarted }, false, true);
+		verify(sched, never()).finishRegister(aryEq(new SendableGet[] { getRemoved }), anyBoolean(), anyBoolean());
+	}
+
+	/** The jobs of one request are checked on all the threads at once, and the request is only
+	 * finished when the last of them is. */
+	public void testConcurrentLookups() throws InterruptedException {
+		DatastoreChecker checker = new DatastoreChecker(null, true, new PooledExecutor(), "test");
+		final CountDownLatch allThreads = new CountDownLatch(DatastoreChecker.THREADS);
+		final CountDownLatch finish = new CountDownLatch(1);
+		TestBlockSet blocks = new TestBlockSet() {
+
+			@Override
+			void lookedUp(Key key) {
+				allThreads.countDown();
+				try {
+					finish.await();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+
+		};
+		Key[] keys = keys(DatastoreChecker.THREADS * DatastoreChecker.KEYS_PER_JOB);
+		for(Key key : keys)
+			blocks.found.add(key);
+		SendableGet getter = getter(keys, LOW);
+		checker.queueRequest(getter, blocks);
+		// Every thread is in the middle of a lookup.
+		assertTrue(allThreads.await(10, TimeUnit.SECONDS));
+		verify(sched, never()).finishRegister(any(SendableGet[].class), anyBoolean(), anyBoolean());
+		assertEquals(0, checker.getQueuedRequests());
+		finish.countDown();
+		verify(sched, timeout(10000)).finishRegister(new SendableGet[] { getter }, false, false);
+		synchronized(blocks) {
+			assertEquals(keys.length, blocks.lookups.size());
+			assertEquals(keys.length, new HashSet<Key>(blocks.lookups).size());
+		}
+		verify(sched, times(keys.length)).tripPendingKey(any(KeyBlock.class));
+		assertEquals(keys.length, checker.getKeysChecked());
+	}
+
+}
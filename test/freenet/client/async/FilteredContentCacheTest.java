@@ -0,0 +1,191 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import freenet.client.filter.FoundURICallback;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class FilteredContentCacheTest extends TestCase {
+
+	private static final String CHK1 = "CHK@tjmSMM1BvA7hlGf5yp2oF2K6xRq8cJsR3v~J~nY5Bt4,WzC2pHeDVJHUY0CT1gm8j-8sUIJWfE~mfhTrGeBOysU,AAMC--8";
+	private static final String CHK2 = "CHK@LCP1hD~jK3wxmo8vOIvI2hNjnAkKJ1gd8MkbH9jfy0Y,6cyQSwOW9MCvLr7zkPRLs86uhkbKeqBuT~2D1Ty3pj8,AAMC--8";
+	private static final String SSK = "SSK@tEFZdC1zpyAiEd5MpXodqFwB3IbS9rGEkEUKyvGlwaU,Bc4n2SOHFdTrW1n7nBXI0ziKbtYm9gzdvuU13klOnkw,AQACAAE/site-1";
+
+	private final ArrayBucketFactory bf = new ArrayBucketFactory();
+
+	public void testMakeKey() throws MalformedURLException {
+		FreenetURI uri = new FreenetURI(SSK+"/index.html");
+		assertNotNull(FilteredContentCache.makeKey(new FreenetURI(CHK1), uri, "text/html", null, null));
+		assertNotNull(FilteredContentCache.makeKey(new FreenetURI(CHK1+"/index.html"), uri, "text/html", null, null));
+		// Not a CHK, or we don't know where the data came from: can't cache.
+		assertNull(FilteredContentCache.makeKey(new FreenetURI(SSK), uri, "text/html", null, null));
+		assertNull(FilteredContentCache.makeKey(FreenetURI.EMPTY_CHK_URI, uri, "text/html", null, null));
+		assertNull(FilteredContentCache.makeKey(FreenetURI.EMPTY_CHK_URI.pushMetaString("index.html"), uri, "text/html", null, null));
+		assertNull(FilteredContentCache.makeKey(null, uri, "text/html", null, null));
+		assertNull(FilteredContentCache.makeKey(new FreenetURI(CHK1), uri, null, null, null));
+
+		assertEquals(FilteredContentCache.makeKey(new FreenetURI(CHK1), uri, "text/html", "UTF-8", null),
+				FilteredContentCache.makeKey(new FreenetURI(CHK1), uri, "text/html", "UTF-8", null));
+		assertFalse(FilteredContentCache.makeKey(new FreenetURI(CHK1), uri, "text/html", "UTF-8", null).equals(
+				FilteredContentCache.makeKey(new FreenetURI(CHK1), uri, "text/html", "ISO-8859-1", null)));
+		assertFalse(FilteredContentCache.makeKey(new FreenetURI(CHK1), uri, "text/html", null, null).equals(
+				FilteredContentCache.makeKey(new FreenetURI(CHK1), uri, "text/css", null, null)));
+		assertFalse(FilteredContentCache.makeKey(new FreenetURI(CHK1), uri, "text/html", null, null).equals(
+				FilteredContentCache.makeKey(new FreenetURI(CHK1), new FreenetURI(SSK+"/other.html"), "text/html", null, null)));
+	}
+
+	public void testHitAndMiss() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(bf, 1024);
+		FilteredContentCache.CacheKey key = key(CHK1);
+		assertNull(cache.get(key, new ArrayBucket()));
+		assertEquals(1, cache.getMisses());
+
+		Bucket filtered = data(100, 1);
+		cache.put(key, filtered, "text/html; charset=UTF-8");
+		// The cache keeps its own copy.
+		filtered.free();
+		assertEquals(1, cache.getEntryCount());
+		assertEquals(100, cache.getSize());
+
+		Bucket out = new ArrayBucket();
+		assertEquals("text/html; charset=UTF-8", cache.get(key, out));
+		assertTrue(Arrays.equals(BucketTools.toByteArray(data(100, 1)), BucketTools.toByteArray(out)));
+		assertEquals(1, cache.getHits());
+		assertNull(cache.get(key(CHK2), new ArrayBucket()));
+		assertEquals(2, cache.getMisses());
+	}
+
+	public void testLRUEviction() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(bf, 200);
+		cache.put(key(CHK1), data(50, 1), "text/html");
+		cache.put(key(CHK2), data(50, 2), "text/html");
+		cache.put(key(CHK1+"/a"), data(50, 3), "text/html");
+		cache.put(key(CHK1+"/b"), data(50, 4), "text/html");
+		assertEquals(200, cache.getSize());
+		assertEquals(0, cache.getEvictions());
+		// Touch the first entry, so the second is now the least recently used.
+		assertNotNull(cache.get(key(CHK1), new ArrayBucket()));
+		cache.put(key(CHK1+"/c"), data(50, 5), "text/html");
+		assertEquals(1, cache.getEvictions());
+		assertEquals(4, cache.getEntryCount());
+		assertEquals(200, cache.getSize());
+		assertNull(cache.get(key(CHK2), new ArrayBucket()));
+		assertNotNull(cache.get(key(CHK1), new ArrayBucket()));
+		assertNotNull(cache.get(key(CHK1+"/a"), new ArrayBucket()));
+		assertNotNull(cache.get(key(CHK1+"/b"), new ArrayBucket()));
+		assertNotNull(cache.get(key(CHK1+"/c"), new ArrayBucket()));
+
+		cache.setMaxSize(100);
+		assertEquals(2, cache.getEntryCount());
+		assertEquals(100, cache.getSize());
+		// The most recently used entries survive.
+		assertNotNull(cache.get(key(CHK1+"/b"), new ArrayBucket()));
+		assertNotNull(cache.get(key(CHK1+"/c"), new ArrayBucket()));
+	}
+
+	public void testTooBig() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(bf, 1000);
+		cache.put(key(CHK1), data(251, 1), "text/html");
+		assertEquals(0, cache.getEntryCount());
+		cache.put(key(CHK1), data(250, 1), "text/html");
+		assertEquals(1, cache.getEntryCount());
+		cache = new FilteredContentCache(bf, 0);
+		cache.put(key(CHK1), data(0, 1), "text/html");
+		assertEquals(0, cache.getEntryCount());
+	}
+
+	public void testLinksReplayedOnHit() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(bf, 1024);
+		RecordingHook filterHook = new RecordingHook();
+		FilteredContentCache.LinkRecorder links = new FilteredContentCache.LinkRecorder(filterHook);
+		// As the content filter does it.
+		FreenetURI image = new FreenetURI(CHK2+"/image.png");
+		FreenetURI page = new FreenetURI(SSK+"/other.html");
+		links.foundURI(image);
+		links.foundURI(image, true);
+		links.onText("some text", "title", null);
+		links.foundURI(page);
+		links.foundURI(page, false);
+		links.onFinishedPage();
+		assertEquals(Arrays.asList("uri:"+image, "uri:"+image+":true", "text:some text",
+				"uri:"+page, "uri:"+page+":false", "finished"), filterHook.calls);
+		cache.put(key(CHK1), data(100, 1), "text/html", links);
+
+		RecordingHook hitHook = new RecordingHook();
+		assertEquals("text/html", cache.get(key(CHK1), new ArrayBucket(), hitHook));
+		// Text is not recorded.
+		assertEquals(Arrays.asList("uri:"+image, "uri:"+image+":true",
+				"uri:"+page, "uri:"+page+":false", "finished"), hitHook.calls);
+
+		// Nothing on a miss.
+		hitHook = new RecordingHook();
+		assertNull(cache.get(key(CHK2), new ArrayBucket(), hitHook));
+		assertTrue(hitHook.calls.isEmpty());
+	}
+
+	public void testTooManyLinksNotCached() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(bf, 1024);
+		RecordingHook filterHook = new RecordingHook();
+		FilteredContentCache.LinkRecorder links = new FilteredContentCache.LinkRecorder(filterHook);
+		FreenetURI image = new FreenetURI(CHK2+"/image.png");
+		for(int i=0;i<=FilteredContentCache.MAX_LINKS;i++)
+			links.foundURI(image, true);
+		// The hook still sees all of them.
+		assertEquals(FilteredContentCache.MAX_LINKS + 1, filterHook.calls.size());
+		cache.put(key(CHK1), data(100, 1), "text/html", links);
+		assertEquals(0, cache.getEntryCount());
+	}
+
+	private static class RecordingHook implements FoundURICallback {
+
+		final List<String> calls = new ArrayList<String>();
+
+		@Override
+		public void foundURI(FreenetURI uri) {
+			calls.add("uri:"+uri);
+		}
+
+		@Override
+		public void foundURI(FreenetURI uri, boolean inline) {
+			calls.add("uri:"+uri+":"+inline);
+		}
+
+		@Override
+		public void onText(String text, String type, URI baseURI) {
+			calls.add("text:"+text);
+		}
+
+		@Override
+		public void onFinishedPage() {
+			calls.add("finished");
+		}
+
+	}
+
+	private static FilteredContentCache.CacheKey key(String chk) throws MalformedURLException {
+		return FilteredContentCache.makeKey(new FreenetURI(chk), new FreenetURI(SSK+"/index.html"),
+				"text/html", null, null);
+	}
+
+	private static Bucket data(int length, int seed) {
+		byte[] buf = new byte[length];
+		for(int i=0;i<length;i++)
+			buf[i] = (byte) (i * seed);
+		return new ArrayBucket(buf);
+	}
+
+}
@@ -0,0 +1,139 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import freenet.client.HighLevelSimpleClientImpl;
+import freenet.client.InsertContext;
+import freenet.client.InsertContext.CompatibilityMode;
+import freenet.client.events.SimpleEventProducer;
+import freenet.crypt.SHA256;
+import freenet.keys.Key;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.FileUtil;
+
+public class InsertedFileCacheTest extends TestCase {
+
+	private final File dir = new File("inserted-file-cache-test");
+	private final InsertContext ctx =
+		HighLevelSimpleClientImpl.makeDefaultInsertContext(new ArrayBucketFactory(), new SimpleEventProducer());
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(dir);
+	}
+
+	public void testMakeKey() {
+		byte[] hash = SHA256.digest(new byte[] { 1, 2, 3 });
+		byte[] key = InsertedFileCache.makeKey(hash, "text/html", ctx, Key.ALGO_AES_CTR_256_SHA256, "random");
+		assertEquals(32, key.length);
+		assertTrue(Arrays.equals(key, InsertedFileCache.makeKey(hash, "text/html", ctx, Key.ALGO_AES_CTR_256_SHA256, "random")));
+		assertFalse(Arrays.equals(key, InsertedFileCache.makeKey(SHA256.digest(new byte[] { 1, 2 }), "text/html", ctx, Key.ALGO_AES_CTR_256_SHA256, "random")));
+		assertFalse(Arrays.equals(key, InsertedFileCache.makeKey(hash, "text/css", ctx, Key.ALGO_AES_CTR_256_SHA256, "random")));
+		assertFalse(Arrays.equals(key, InsertedFileCache.makeKey(hash, "text/html", ctx, Key.ALGO_AES_CTR_256_SHA256, "none")));
+		assertFalse(Arrays.equals(key, InsertedFileCache.makeKey(hash, "text/html", ctx, Key.ALGO_AES_CTR_256_SHA256,
+				InsertedFileCache.forcedKeyMode(new byte[32]))));
+		assertFalse(Arrays.equals(key, InsertedFileCache.makeKey(hash, "text/html", ctx, Key.ALGO_AES_PCFB_256_SHA256, "random")));
+		InsertContext other = ctx.clone();
+		other.dontCompress = true;
+		assertFalse(Arrays.equals(key, InsertedFileCache.makeKey(hash, "text/html", other, Key.ALGO_AES_CTR_256_SHA256, "random")));
+		other = ctx.clone();
+		other.setCompatibilityMode(CompatibilityMode.COMPAT_1255);
+		assertFalse(Arrays.equals(key, InsertedFileCache.makeKey(hash, "text/html", other, Key.ALGO_AES_CTR_256_SHA256, "random")));
+	}
+
+	public void testPutAndGet() {
+		InsertedFileCache cache = new InsertedFileCache(null, 1024);
+		byte[] key = key(1);
+		assertNull(cache.get(key));
+		cache.put(key, metadata(100, 1));
+		assertTrue(Arrays.equals(metadata(100, 1), cache.get(key)));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(100, cache.getSize());
+		// Replacing an entry.
+		cache.put(key, metadata(50, 2));
+		assertTrue(Arrays.equals(metadata(50, 2), cache.get(key)));
+		assertEquals(1, cache.getCount());
+		assertEquals(50, cache.getSize());
+	}
+
+	public void testLimit() {
+		InsertedFileCache cache = new InsertedFileCache(null, 1000);
+		for(int i=0;i<20;i++)
+			cache.put(key(i), metadata(100, i));
+		assertEquals(10, cache.getCount());
+		assertEquals(1000, cache.getSize());
+		assertNull(cache.get(key(0)));
+		assertNotNull(cache.get(key(19)));
+		cache.setMaxSize(500);
+		assertEquals(5, cache.getCount());
+		assertNotNull(cache.get(key(19)));
+		// Too big for the cache.
+		cache.put(key(100), metadata(501, 100));
+		assertNull(cache.get(key(100)));
+		cache.setMaxSize(0);
+		assertEquals(0, cache.getCount());
+		cache.put(key(1), metadata(10, 1));
+		assertNull(cache.get(key(1)));
+	}
+
+	public void testPersistent() {
+		InsertedFileCache cache = new InsertedFileCache(dir, 1000);
+		for(int i=0;i<15;i++)
+			cache.put(key(i), metadata(100, i));
+		// Evicted entries are deleted from disk too.
+		assertEquals(10, dir.listFiles().length);
+
+		cache = new InsertedFileCache(dir, 1000);
+		assertEquals(10, cache.getCount());
+		assertNull(cache.get(key(4)));
+		assertTrue(Arrays.equals(metadata(100, 5), cache.get(key(5))));
+		assertTrue(Arrays.equals(metadata(100, 14), cache.get(key(14))));
+
+		cache.forgetOnDisk();
+		assertEquals(0, dir.listFiles().length);
+		assertEquals(10, cache.getCount());
+		cache.put(key(20), metadata(100, 20));
+		assertEquals(0, dir.listFiles().length);
+		assertNotNull(cache.get(key(20)));
+	}
+
+	public void testConcurrentPutsLeaveNoOrphans() throws InterruptedException {
+		final InsertedFileCache cache = new InsertedFileCache(dir, 1000);
+		Thread[] threads = new Thread[4];
+		for(int t=0;t<threads.length;t++) {
+			final int base = t * 1000;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int i=0;i<200;i++)
+						cache.put(key(base + i), metadata(100, i));
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		// Every entry has a file, and every file has an entry.
+		assertEquals(10, cache.getCount());
+		assertEquals(10, dir.listFiles().length);
+		assertEquals(10, new InsertedFileCache(dir, 1000).getCount());
+	}
+
+	private static byte[] key(int i) {
+		return SHA256.digest(new byte[] { (byte) i, (byte) (i >> 8) });
+	}
+
+	private static byte[] metadata(int length, int seed) {
+		byte[] buf = new byte[length];
+		Arrays.fill(buf, (byte) seed);
+		return buf;
+	}
+
+}
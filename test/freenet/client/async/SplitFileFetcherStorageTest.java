@@ -361,6 +361,7 @@ public class SplitFileFetcherStorageTest extends TestCase {
         private boolean closed;
         private boolean failed;
         private boolean hasRestartedOnCorruption;
+        private boolean progressiveData;
         private LockableRandomAccessBuffer raf;
 
         public StorageCallback(TestSplitfile splitfile) {
@@ -382,6 +383,12 @@ public class SplitFileFetcherStorageTest extends TestCase {
             notifyAll();
         }
 
+        @Override
+        public synchronized void onProgressiveData() {
+            progressiveData = true;
+            notifyAll();
+        }
+
         @Override
         public synchronized void onClosed() {
             closed = true;
@@ -460,6 +467,16 @@ public class SplitFileFetcherStorageTest extends TestCase {
             }
         }
         
+        public synchronized void waitForProgressiveData() {
+            while(!(progressiveData || failed)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        }
+
         public synchronized void waitForFailed() {
             while(!(succeeded || failed)) {
                 try {
@@ -819,6 +836,113 @@ public class SplitFileFetcherStorageTest extends TestCase {
         cb.checkFailed();
     }
 
+    /** A transient download succeeds as soon as every segment is decoding, and the output
+     * waits for each segment in turn. */
+    public void testStreamWhileDecoding() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException {
+        TestSplitfile test = TestSplitfile.constructMultipleSegments(32768*9-1, new int[] { 3, 3, 3 },
+                new int[] { 4, 4, 4 }, 3, 4, 0, InsertContext.CompatibilityMode.COMPAT_1416, null, false);
+        MemoryLimitedJobRunner oldRunner = memoryLimitedJobRunner;
+        // Don't let any decodes run until we say so.
+        memoryLimitedJobRunner = new MemoryLimitedJobRunner(9*1024*1024L, 0, exec, NativeThread.JAVA_PRIORITY_RANGE);
+        try {
+            StorageCallback cb = test.createStorageCallback();
+            SplitFileFetcherStorage storage = test.createStorage(cb);
+            for(SplitFileFetcherSegmentStorage segment : storage.segments) {
+                for(int i=0;i<segment.totalBlocks();i++)
+                    segment.onNonFatalFailure(i); // We want healing on all blocks that aren't found.
+            }
+            for(int i=0;i<test.dataBlocks.length;i++) {
+                SplitFileFetcherSegmentStorage segment = storage.segments[test.segmentFor(i)];
+                assertTrue(segment.onGotKey(test.getCHK(i), test.encodeBlock(i)));
+                cb.markDownloadedBlock(i);
+            }
+            cb.waitForFinished();
+            cb.checkFailed();
+            for(SplitFileFetcherSegmentStorage segment : storage.segments)
+                assertFalse(segment.hasSucceeded());
+            memoryLimitedJobRunner.setMaxThreads(1);
+            test.verifyOutput(storage);
+            cb.checkFailed();
+            storage.finishedFetcher();
+            cb.waitForFree(storage);
+            cb.checkFailed();
+        } finally {
+            memoryLimitedJobRunner = oldRunner;
+            test.free();
+        }
+    }
+
+    public void testFetchInOrder() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException {
+        final TestSplitfile test = TestSplitfile.constructMultipleSegments(32768*9-1, new int[] { 3, 3, 3 },
+                new int[] { 4, 4, 4 }, 3, 4, 0, InsertContext.CompatibilityMode.COMPAT_1416, null, false);
+        try {
+            final StorageCallback cb = test.createStorageCallback();
+            FetchContext ctx = test.makeFetchContext();
+            ctx.fetchInOrder = true;
+            final SplitFileFetcherStorage storage = test.createStorage(cb, ctx);
+            // All the keys in the first segment, then move on to the next.
+            for(int i=0;i<7;i++) {
+                SplitFileFetcherStorage.MyKey key = storage.chooseRandomKey();
+                assertEquals(0, key.segmentNumber);
+                test.fetchingKeys.add(storage.getKey(key).getNodeKey());
+            }
+            assertEquals(1, storage.chooseRandomKey().segmentNumber);
+            test.fetchingKeys.clear();
+            for(SplitFileFetcherSegmentStorage segment : storage.segments) {
+                for(int i=0;i<segment.totalBlocks();i++)
+                    segment.onNonFatalFailure(i); // We want healing on all blocks that aren't found.
+            }
+            // The data can be read before the download has finished.
+            InputStream is = storage.progressiveData().getInputStream();
+            for(int i=0;i<3;i++) {
+                assertTrue(storage.segments[0].onGotKey(test.getCHK(i), test.encodeBlock(i)));
+                cb.markDownloadedBlock(i);
+            }
+            cb.waitForProgressiveData();
+            cb.checkFailed();
+            byte[] buf = new byte[32768*9-1];
+            new DataInputStream(is).readFully(buf, 0, 32768*3);
+            assertFalse(storage.segments[1].hasSucceeded());
+            // Reads block until the rest has been fetched.
+            Thread t = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for(int i=3;i<test.dataBlocks.length;i++) {
+                            SplitFileFetcherSegmentStorage segment = storage.segments[test.segmentFor(i)];
+                            segment.onGotKey(test.getCHK(i), test.encodeBlock(i));
+                            cb.markDownloadedBlock(i);
+                        }
+                    } catch (CHKEncodeException e) {
+                        throw new Error(e);
+                    } catch (IOException e) {
+                        throw new Error(e);
+                    }
+                }
+
+            });
+            t.start();
+            new DataInputStream(is).readFully(buf, 32768*3, buf.length-32768*3);
+            assertEquals(-1, is.read());
+            assertTrue(Arrays.equals(BucketTools.toByteArray(test.originalData), buf));
+            cb.waitForFinished();
+            cb.checkFailed();
+            storage.finishedFetcher();
+            is.close();
+            cb.waitForFree(storage);
+            cb.checkFailed();
+            try {
+                storage.progressiveData().getInputStream();
+                fail("Storage is closed");
+            } catch (IOException e) {
+                // Expected.
+            }
+        } finally {
+            test.free();
+        }
+    }
+
     private void printChosenBlocks(boolean[] hits) {
         StringBuilder sb = new StringBuilder();
         sb.append("Blocks: ");
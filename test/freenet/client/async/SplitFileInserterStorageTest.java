@@ -1194,6 +1194,11 @@ public class SplitFileInserterStorageTest extends TestCase {
             notifyAll();
         }
 
+        @Override
+        public void onProgressiveData() {
+            // Ignore.
+        }
+
         public synchronized int getRequiredBlocks() {
             return requiredBlocks;
         }
@@ -1521,6 +1526,48 @@ public class SplitFileInserterStorageTest extends TestCase {
         assertEquals(Status.SUCCEEDED, resumed.getStatus());
     }
     
+    public void testPersistentEncodedBlocksAfterResume() throws IOException, InsertException, StorageFormatException, ChecksumFailedException, ResumeFailedException {
+        Random r = new Random(12121);
+        long size = 65536; // Exact multiple, so no last block
+        LockableRandomAccessBuffer data = generateData(r, size, bigRAFFactory);
+        HashResult[] hashes = getHashes(data);
+        MyCallback cb = new MyCallback();
+        KeysFetchingLocally keys = new MyKeysFetchingLocally();
+        SplitFileInserterStorage plain = new SplitFileInserterStorage(data, size, cb, null,
+                new ClientMetadata(), false, null, smallRAFFactory, true, baseContext.clone(), 
+                cryptoAlgorithm, cryptoKey, null, hashes, smallBucketFactory, checker, 
+                r, memoryLimitedJobRunner, jobRunner, ticker, keys, false, 0, 0, 0, 0);
+        assertFalse(plain.hasEncodedBlocks());
+        plain.start();
+        cb.waitForFinishedEncode();
+        cb = new MyCallback();
+        InsertContext context = baseContext.clone();
+        context.cacheEncodedBlocks = true;
+        SplitFileInserterStorage storage = new SplitFileInserterStorage(data, size, cb, null,
+                new ClientMetadata(), false, null, smallRAFFactory, true, context, 
+                cryptoAlgorithm, cryptoKey, null, hashes, smallBucketFactory, checker, 
+                r, memoryLimitedJobRunner, jobRunner, ticker, keys, false, 0, 0, 0, 0);
+        assertTrue(storage.hasEncodedBlocks());
+        storage.start();
+        cb.waitForFinishedEncode();
+        assertTrue(storage.getStatus() == Status.ENCODED);
+        executor.waitForIdle();
+        SplitFileInserterStorage resumed = new SplitFileInserterStorage(storage.getRAF(), data, cb, r, 
+                memoryLimitedJobRunner, jobRunner, ticker, keys, fg, persistentFileTracker, null);
+        assertTrue(resumed.hasEncodedBlocks());
+        assertTrue(resumed.getStatus() == Status.ENCODED);
+        SplitFileInserterSegmentStorage segment = resumed.segments[0];
+        // A corrupt stored block is encrypted again.
+        resumed.writeSegmentEncodedBlock(0, 0, segment.encodeBlock(1).getBlock());
+        for(int i=0;i<segment.totalBlockCount;i++) {
+            ClientCHKBlock expected = plain.segments[0].encodeBlock(i);
+            ClientCHKBlock block = segment.encodeBlock(i);
+            assertEquals(expected.getClientKey(), block.getClientKey());
+            assertTrue(Arrays.equals(expected.getBlock().getRawData(), block.getBlock().getRawData()));
+            assertTrue(Arrays.equals(expected.getBlock().getRawHeaders(), block.getBlock().getRawHeaders()));
+        }
+    }
+
     public void testPersistentSmallSplitfileWithLastBlockCompletionAfterResume() throws IOException, InsertException, StorageFormatException, ChecksumFailedException, ResumeFailedException {
         Random r = new Random(12121);
         long size = 65535; // Exact multiple, so no last block
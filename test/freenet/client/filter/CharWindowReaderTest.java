@@ -0,0 +1,222 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URI;
+
+import junit.framework.TestCase;
+
+import freenet.support.io.FileUtil;
+
+/**
+ * Tests for {@link CharWindowReader}, and a differential test of the HTML and CSS tokenizers
+ * which use it.
+ * <p>
+ * The files in <code>tokenizer/</code> are the output of the filters for each entry in the
+ * corpora below, recorded with the tokenizers as they were before CharWindowReader, reading a
+ * character at a time from a BufferedReader. The filters must still produce exactly that output,
+ * both when the input arrives in large blocks and when every character arrives in a separate
+ * window refill. If you add to the corpora, record the new outputs with a build from before
+ * CharWindowReader. Avoid input which makes the filters write localised messages.
+ * </p>
+ */
+public class CharWindowReaderTest extends TestCase {
+
+	/** Relative links on the test pages resolve against this, so the filter keeps them rather
+	 * than replacing them with a (localised) error comment. */
+	private static final String BASE_URI = "http://localhost:8888/USK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AQACAAE/index/55/";
+
+	private static final String RESOURCE_PATH = "tokenizer/";
+
+	static final String[] HTML_CORPUS = new String[] {
+		"<html><head><title>Test</title></head><body><p>Hello world</p></body></html>",
+		"\uFEFF<html><body>BOM at the start \uFEFF and in the middle</body></html>",
+		"<html><body>Nulls\u0000 in\u0000\u0000 text <b\u0000>and tags</b></body></html>",
+		"<html><!-- a comment -- with -- dashes --><body><!----><p>after</p></body></html>",
+		"<html><body><a href=\"test.html\" title='single \"quoted\"'>link</a> <img src = 'a.png' ></body></html>",
+		"<html><head><style type=\"text/css\">body { color: red; } /* comment */ h1 { font-size: 12pt; }</style></head><body><h1>x</h1></body></html>",
+		"<html><body><p>1 < 2 and 3 > 2</p><p>a<b>b</b>c</p></body></html>",
+		"<html xmlns=\"http://www.w3.org/1999/xhtml\"><body> <h1> unclosed <h2> tags",
+		"<html><body><p>truncated in a tag <a href=\"foo",
+		"<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01//EN\">\n<HTML>\n  <HEAD>\n  <TITLE>Bach's home page</TITLE>\n  </HEAD>\n  <BODY>\n    <H1>Bach's home page</H1>\n    <P>Johann Sebastian Bach was a prolific composer.\n  </BODY>\n</HTML>",
+		longPage(40),
+	};
+
+	static final String[] CSS_CORPUS = new String[] {
+		"h2 { color: red; }",
+		"\uFEFFbody { margin: 3em; font-family: \"Gill Sans\", sans-serif; }",
+		"@media screen { h1 { text-align: left; } } /* trailing comment */",
+		"div { background: url(test.png) } p:first-letter { font-size: 200% }",
+		"* { content: \"this string does not terminate\n}\nbody {\nbackground: url(http://www.google.co.uk/intl/en_uk/images/logo.gif); }\n\" }",
+		"p.a\\{b { color: red } h1\\,h2 { color: blue; } a\\:hover { color: green }",
+		"h1 { font-family: \"Gill\\\nSans\", 'it\\'s' } h2 { color: /* mid * value */ red; } /**/ /* * / */ h3 { color: blue }",
+		"p { color: red;; margin: 0 ;  } \n\t div  ,  span , em{ color : blue ; }",
+		"h1 { color: red; { bogus: value } color: blue } h2 { color: \"unterminated\r} h3 { color: green }",
+		"@page :first { margin: 1in; } @page { margin: 2in } h1 { color: red }",
+		"@import url(\"other.css\") screen;\n@import 'print.css' print, screen;\n<!-- h1 { color: red } -->",
+		"@charset \"UTF-8\"; p { content: \"\u00e9\u4e2d\u6587\"; color: red } /* \u00e9 */ h1 { color:\u0000 red }",
+		"p { color: red }\uFEFF h1 { color: blue } \u0000\u0000 h2 { color: green \u0000}",
+		"@media screen, print { h1 { color: red } p { margin: 0 } } @media bogus { h1 { color: red } } h2 { color: blue",
+		"h1 { background: url( 'a b.png' ) } h2 { background: url(a\\)b.png) } h3 { content: '/* not a comment */' }",
+		longStyleSheet(40),
+	};
+
+	public void testReadMatchesUnderlyingReader() throws IOException {
+		String s = longPage(10);
+		CharWindowReader in = new CharWindowReader(new StringReader(s), 7, 50);
+		for(int i=0;i<s.length();i++)
+			assertEquals(s.charAt(i), in.read());
+		assertEquals(-1, in.read());
+		assertEquals(-1, in.read());
+	}
+
+	public void testAppendTextRun() throws IOException {
+		CharWindowReader in = new CharWindowReader(new StringReader("abc<def\u0000gh\uFEFFij"), 16, 16);
+		StringBuilder sb = new StringBuilder();
+		// Nothing buffered yet.
+		assertEquals(0, in.appendTextRun(sb, '<'));
+		assertEquals('a', in.read());
+		assertEquals(2, in.appendTextRun(sb, '<'));
+		assertEquals("bc", sb.toString());
+		assertEquals('c', in.lastChar(1));
+		assertEquals('b', in.lastChar(2));
+		assertEquals('a', in.lastChar(3));
+		assertEquals(0, in.appendTextRun(sb, '<'));
+		assertEquals('<', in.read());
+		assertEquals(3, in.appendTextRun(sb, '<'));
+		assertEquals(0, in.read());
+		assertEquals(2, in.appendTextRun(sb, '<'));
+		assertEquals(0xFEFF, in.read());
+		assertEquals(2, in.appendTextRun(sb, '<'));
+		assertEquals("bcdefghij", sb.toString());
+		assertEquals(-1, in.read());
+	}
+
+	public void testAppendTextRunStopsAtWindowEnd() throws IOException {
+		CharWindowReader in = new CharWindowReader(new StringReader("abcdefgh"), 4, 4);
+		StringBuilder sb = new StringBuilder();
+		assertEquals('a', in.read());
+		assertEquals(3, in.appendTextRun(sb, '<'));
+		assertEquals(0, in.appendTextRun(sb, '<'));
+		assertEquals('e', in.read());
+		assertEquals(3, in.appendTextRun(sb, '<'));
+		assertEquals("bcdfgh", sb.toString());
+	}
+
+	public void testAppendRun() throws IOException {
+		boolean[] stops = CharWindowReader.stopChars("{}");
+		CharWindowReader in = new CharWindowReader(new StringReader("ab{c\u00e9d}e\u0000f\uFEFFg"), 16, 16);
+		StringBuilder sb = new StringBuilder();
+		assertEquals(0, in.appendRun(sb, stops));
+		assertEquals('a', in.read());
+		assertEquals(1, in.appendRun(sb, stops));
+		assertEquals('{', in.read());
+		assertEquals(3, in.appendRun(sb, stops));
+		assertEquals('d', in.lastChar(1));
+		assertEquals('\u00e9', in.lastChar(2));
+		assertEquals('}', in.read());
+		// Skip rather than copy.
+		assertEquals(1, in.appendRun(null, stops));
+		assertEquals(0, in.read());
+		assertEquals(1, in.appendRun(sb, stops));
+		assertEquals(0xFEFF, in.read());
+		assertEquals(1, in.appendRun(sb, stops));
+		assertEquals("bc\u00e9dfg", sb.toString());
+		assertEquals(-1, in.read());
+	}
+
+	public void testHTMLFilterMatchesReaderTokenizer() throws Exception {
+		for(int i=0;i<HTML_CORPUS.length;i++) {
+			byte[] data = HTML_CORPUS[i].getBytes("UTF-8");
+			String expected = expected("html-"+i);
+			assertEquals(HTML_CORPUS[i], expected, filterHTML(data, false));
+			assertEquals(HTML_CORPUS[i], expected, filterHTML(data, true));
+		}
+	}
+
+	public void testCSSFilterMatchesReaderTokenizer() throws Exception {
+		for(int i=0;i<CSS_CORPUS.length;i++) {
+			byte[] data = CSS_CORPUS[i].getBytes("UTF-8");
+			String expected = expected("css-"+i);
+			assertEquals(CSS_CORPUS[i], expected, filterCSS(data, false));
+			assertEquals(CSS_CORPUS[i], expected, filterCSS(data, true));
+		}
+	}
+
+	private static String expected(String name) throws IOException {
+		InputStream is = CharWindowReaderTest.class.getResourceAsStream(RESOURCE_PATH + name);
+		if(is == null)
+			throw new AssertionError("Test resource could not be opened: " + name);
+		try {
+			return FileUtil.readUTF(is).toString();
+		} finally {
+			is.close();
+		}
+	}
+
+	static String filterHTML(byte[] data, boolean trickle) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new HTMLFilter().readFilter(input(data, trickle), out, "UTF-8", null, null,
+				new GenericReadFilterCallback(new URI(BASE_URI), null, null, null));
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	static String filterCSS(byte[] data, boolean trickle) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new CSSReadFilter().readFilter(input(data, trickle), out, "UTF-8", null, null,
+				new GenericReadFilterCallback(new URI(BASE_URI), null, null, null));
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	/** @param trickle If true, return the data a byte at a time, so that every character
+	 * arrives in a separate window refill. */
+	private static InputStream input(byte[] data, boolean trickle) {
+		InputStream is = new ByteArrayInputStream(data);
+		if(!trickle) return is;
+		return new FilterInputStream(is) {
+			@Override
+			public int read(byte[] buf, int offset, int length) throws IOException {
+				return super.read(buf, offset, Math.min(length, 1));
+			}
+		};
+	}
+
+	/** Something resembling a typical freesite index page. */
+	private static String longPage(int entries) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<!DOCTYPE html>\n<html><head><title>Index</title>\n");
+		sb.append("<style type=\"text/css\">body { font-family: sans-serif; } .entry { margin: 1em; }</style>\n");
+		sb.append("</head><body>\n");
+		for(int i=0;i<entries;i++) {
+			sb.append("<div class=\"entry\"><!-- entry ").append(i).append(" -->\n");
+			sb.append("<h2><a href=\"site").append(i).append("/index.html\">Site number ").append(i).append("</a></h2>\n");
+			sb.append("<p style=\"color: #333\">A description of the site, with some &amp; entities, some <em>emphasis</em> ");
+			sb.append("and enough running text to be representative of a real page. ");
+			sb.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor.</p>\n");
+			sb.append("<img src=\"activelink").append(i).append(".png\" alt='activelink' width=\"108\" height=\"36\">\n");
+			sb.append("</div>\n");
+		}
+		sb.append("</body></html>\n");
+		return sb.toString();
+	}
+
+	private static String longStyleSheet(int rules) {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<rules;i++) {
+			sb.append("/* rule ").append(i).append(" */\n");
+			sb.append("div.c").append(i).append(" > p, h").append(i % 6 + 1).append(" {\n");
+			sb.append("  margin: 0 auto; padding: 1em 2em;\n");
+			sb.append("  background: #fff url(bg").append(i).append(".png) no-repeat;\n");
+			sb.append("  font-family: \"Gill Sans\", sans-serif; color: red;\n}\n");
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,135 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import freenet.clients.fcp.ClientGet.ReturnType;
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.support.SimpleFieldSet;
+import junit.framework.TestCase;
+
+public class ClientGetBatchMessageTest extends TestCase {
+
+	private static final String URI = "CHK@VZmXz1zVuPZJ1DhWk9sJFZ8Kx0Mvl4v5ANcN5a9xCsU,bDrLmC-A5LlsBaJGqj~PKBSIKqkOJOgpLp8mD5nr8b0,AAMC--8";
+
+	private static SimpleFieldSet batch() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", "batch");
+		fs.putSingle("Persistence", "reboot");
+		fs.put("Global", true);
+		fs.putSingle("ReturnType", "none");
+		fs.put("PriorityClass", 4);
+		fs.put("ProgressInterval", 5000);
+		for(int i=0;i<3;i++) {
+			fs.putSingle("Get."+i+".URI", URI);
+			fs.putSingle("Get."+i+".Identifier", "get"+i);
+		}
+		return fs;
+	}
+
+	public void testDefaultsAndOverrides() throws MessageInvalidException {
+		SimpleFieldSet fs = batch();
+		fs.put("Get.1.PriorityClass", 2);
+		// Persistence and Global can't be overridden.
+		fs.putSingle("Get.2.Persistence", "connection");
+		fs.put("Get.2.Global", false);
+		ClientGetBatchMessage msg = new ClientGetBatchMessage(fs);
+		assertEquals("batch", msg.identifier);
+		assertEquals(Persistence.REBOOT, msg.persistence);
+		assertTrue(msg.global);
+		assertEquals(5000, msg.progressInterval);
+		assertEquals(3, msg.gets.size());
+		assertTrue(msg.invalid.isEmpty());
+		for(int i=0;i<3;i++) {
+			ClientGetMessage get = msg.gets.get(i);
+			assertEquals("get"+i, get.identifier);
+			assertEquals(URI, get.uri.toString(false, false));
+			assertEquals(ReturnType.NONE, get.returnType);
+			assertEquals(Persistence.REBOOT, get.persistence);
+			assertTrue(get.global);
+			assertEquals(i == 1 ? 2 : 4, get.priorityClass);
+			// No per-request progress unless asked for.
+			assertEquals(0, get.verbosity);
+		}
+	}
+
+	public void testNoPerRequestProgress() throws MessageInvalidException {
+		SimpleFieldSet fs = batch();
+		fs.put("Verbosity", 1 | 2 | 64);
+		fs.put("Get.1.Verbosity", 1);
+		fs.putSingle("Get.2.Verbosity", "x");
+		ClientGetBatchMessage msg = new ClientGetBatchMessage(fs);
+		assertEquals(2, msg.gets.size());
+		// Progress is reported for the batch, other events are still sent per request.
+		assertEquals(2 | 64, msg.gets.get(0).verbosity);
+		assertEquals(0, msg.gets.get(1).verbosity);
+		assertEquals(ProtocolErrorMessage.ERROR_PARSING_NUMBER, msg.invalid.get(0).protocolCode);
+	}
+
+	public void testInvalidRequestsReportedSeparately() throws MessageInvalidException {
+		SimpleFieldSet fs = batch();
+		fs.putOverwrite("Get.1.URI", "not a uri");
+		fs.removeValue("Get.2.Identifier");
+		fs.putSingle("Get.3.URI", URI);
+		fs.putSingle("Get.3.Identifier", "get3");
+		fs.put("Get.3.InitialMetadata.DataLength", 100);
+		ClientGetBatchMessage msg = new ClientGetBatchMessage(fs);
+		assertEquals(1, msg.gets.size());
+		assertEquals("get0", msg.gets.get(0).identifier);
+		assertEquals(3, msg.invalid.size());
+		assertEquals("get1", msg.invalid.get(0).ident);
+		assertEquals(ProtocolErrorMessage.FREENET_URI_PARSE_ERROR, msg.invalid.get(0).protocolCode);
+		assertEquals(ProtocolErrorMessage.MISSING_FIELD, msg.invalid.get(1).protocolCode);
+		assertEquals(ProtocolErrorMessage.NOT_SUPPORTED, msg.invalid.get(2).protocolCode);
+	}
+
+	public void testInvalidBatch() {
+		SimpleFieldSet fs = batch();
+		fs.removeValue("Identifier");
+		assertInvalid(fs, ProtocolErrorMessage.MISSING_FIELD);
+		fs = batch();
+		fs.removeSubset("Get");
+		assertInvalid(fs, ProtocolErrorMessage.MISSING_FIELD);
+		fs = batch();
+		fs.putOverwrite("ProgressInterval", "-1");
+		assertInvalid(fs, ProtocolErrorMessage.INVALID_FIELD);
+	}
+
+	private static void assertInvalid(SimpleFieldSet fs, int code) {
+		try {
+			new ClientGetBatchMessage(fs);
+			fail();
+		} catch (MessageInvalidException e) {
+			assertEquals(code, e.protocolCode);
+		}
+	}
+
+	public void testProgressInterval() throws MessageInvalidException {
+		SimpleFieldSet fs = batch();
+		fs.removeValue("ProgressInterval");
+		assertEquals(ClientGetBatchMessage.DEFAULT_PROGRESS_INTERVAL, new ClientGetBatchMessage(fs).progressInterval);
+		fs.putOverwrite("ProgressInterval", "0");
+		assertEquals(0, new ClientGetBatchMessage(fs).progressInterval);
+		fs.putOverwrite("ProgressInterval", "1");
+		assertEquals(ClientGetBatchMessage.MIN_PROGRESS_INTERVAL, new ClientGetBatchMessage(fs).progressInterval);
+	}
+
+	public void testProgressMessage() {
+		ClientGetBatchProgressMessage running = new ClientGetBatchProgressMessage("batch", true,
+				10, 9, 1, 3, 2, 100, 80, 50, 1, 0, false);
+		assertFalse(running.isFinished());
+		SimpleFieldSet fs = running.getFieldSet();
+		assertEquals(4, fs.getInt("Running", -1));
+		assertFalse(fs.getBoolean("Finished", true));
+		assertTrue(running.sameAs(new ClientGetBatchProgressMessage("batch", true,
+				10, 9, 1, 3, 2, 100, 80, 50, 1, 0, false)));
+		assertFalse(running.sameAs(new ClientGetBatchProgressMessage("batch", true,
+				10, 9, 1, 3, 2, 100, 80, 51, 1, 0, false)));
+		assertFalse(running.sameAs(null));
+		ClientGetBatchProgressMessage finished = new ClientGetBatchProgressMessage("batch", true,
+				10, 9, 1, 7, 2, 100, 80, 80, 1, 0, true);
+		assertTrue(finished.isFinished());
+		assertTrue(finished.getFieldSet().getBoolean("Finished", false));
+	}
+
+}
@@ -0,0 +1,185 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import freenet.support.PooledExecutor;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileBucket;
+import junit.framework.TestCase;
+
+public class FCPConnectionChannelTest extends TestCase {
+
+	private static byte[] bytes(String s) throws IOException {
+		return s.getBytes("UTF-8");
+	}
+
+	private static int headerEnd(String s) throws IOException {
+		byte[] buf = bytes(s);
+		return new FCPConnectionChannel.HeaderScanner().find(buf, buf.length);
+	}
+
+	public void testFindHeaderEnd() throws IOException {
+		String msg = "ClientHello\nName=test\nExpectedVersion=2.0\nEndMessage\n";
+		assertEquals(msg.length(), headerEnd(msg));
+		assertEquals(msg.length(), headerEnd(msg+"ClientGet\n"));
+		// Incomplete.
+		assertEquals(-1, headerEnd("ClientHello\nName=test\n"));
+		assertEquals(-1, headerEnd("ClientHello\nName=test\nEndMess"));
+		assertEquals(-1, headerEnd("ClientHello"));
+		assertEquals(-1, headerEnd("\n\r\n"));
+		// Blank lines and comments aren't end markers, even with CRLF.
+		msg = "ClientHello\r\n\r\n#comment\r\nName=test\r\n\r\nEndMessage\r\n";
+		assertEquals(msg.length(), headerEnd(msg));
+		// Data follows the end marker.
+		msg = "ClientPut\nDataLength=3\nData\n";
+		assertEquals(msg.length(), headerEnd(msg+"abc"));
+	}
+
+	/** The header arriving a byte at a time gives the same result, and blank lines before the
+	 * name are skipped. */
+	public void testFindHeaderEndIncremental() throws IOException {
+		byte[] buf = bytes("\n\r\nClientHello\nName=test\nEndMessage\nListPeers\n");
+		FCPConnectionChannel.HeaderScanner scanner = new FCPConnectionChannel.HeaderScanner();
+		int end = bytes("\n\r\nClientHello\nName=test\nEndMessage\n").length;
+		for(int i=0;i<end;i++)
+			assertEquals(-1, scanner.find(buf, i));
+		assertEquals(end, scanner.find(buf, end));
+		assertEquals(end, scanner.find(buf, buf.length));
+		assertEquals(3, scanner.nameStart());
+		scanner.reset();
+		assertEquals(end, scanner.find(buf, buf.length));
+	}
+
+	/** Messages trickling in over a real socket are handed over whole, data is read through the
+	 * blocking stream, and output larger than the socket buffer waits for the selector. */
+	public void testLoopback() throws Exception {
+		FCPSelector selector = new FCPSelector(new PooledExecutor());
+		selector.start();
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		Socket client = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+		SocketChannel sc = server.accept();
+		server.close();
+
+		final List<String> headers = new ArrayList<String>();
+		final byte[] data = new byte[100 * 1000];
+		final FCPConnectionChannel[] conn = new FCPConnectionChannel[1];
+		Runnable inputHandler = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					byte[] header;
+					while((header = conn[0].takeHeader()) != null) {
+						String s = new String(header, "UTF-8");
+						if(s.endsWith("Data\n"))
+							new DataInputStream(conn[0].getInputStream()).readFully(data);
+						synchronized(headers) {
+							headers.add(s);
+							headers.notifyAll();
+						}
+					}
+					if(conn[0].isEOF()) {
+						synchronized(headers) {
+							headers.add("EOF");
+							headers.notifyAll();
+						}
+					}
+				} catch (IOException e) {
+					fail(e.toString());
+				}
+			}
+
+		};
+		conn[0] = new FCPConnectionChannel(sc, selector, inputHandler);
+		conn[0].register();
+
+		byte[] sent = new byte[data.length];
+		new Random(0).nextBytes(sent);
+		OutputStream os = client.getOutputStream();
+		os.write(bytes("\nClientHello\nName=test\nEnd"));
+		os.flush();
+		Thread.sleep(100);
+		synchronized(headers) {
+			assertTrue(headers.isEmpty());
+		}
+		os.write(bytes("Message\nClientPut\nDataLength="+sent.length+"\nData\n"));
+		os.write(sent);
+		os.write(bytes("ListPeers\nEndMessage\n"));
+		os.flush();
+		waitFor(headers, 3);
+		assertEquals("ClientHello\nName=test\nEndMessage\n", headers.get(0));
+		assertEquals("ClientPut\nDataLength="+sent.length+"\nData\n", headers.get(1));
+		assertTrue(Arrays.equals(sent, data));
+		assertEquals("ListPeers\nEndMessage\n", headers.get(2));
+
+		// Much more than fits in the socket buffers, read slowly. Written once from memory and
+		// once from a file, which is sent with transferTo().
+		final byte[] reply = new byte[8 * 1024 * 1024];
+		new Random(1).nextBytes(reply);
+		File f = File.createTempFile("fcpchannel", ".tmp");
+		final FileBucket bucket = new FileBucket(f, false, false, false, true);
+		BucketTools.copyFrom(bucket, new ByteArrayInputStream(reply), -1);
+		Thread writer = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					OutputStream out = conn[0].getOutputStream(4096);
+					out.write(reply);
+					BucketTools.copyTo(bucket, out, -1);
+					out.flush();
+				} catch (IOException e) {
+					// Checked below.
+				}
+			}
+
+		};
+		writer.start();
+		byte[] received = new byte[reply.length];
+		InputStream is = client.getInputStream();
+		Thread.sleep(100);
+		new DataInputStream(is).readFully(received);
+		assertTrue(Arrays.equals(reply, received));
+		new DataInputStream(is).readFully(received);
+		assertTrue(Arrays.equals(reply, received));
+		writer.join();
+		bucket.free();
+
+		client.shutdownOutput();
+		waitFor(headers, 4);
+		assertEquals("EOF", headers.get(3));
+		client.close();
+		sc.close();
+		selector.close();
+	}
+
+	private static void waitFor(List<String> headers, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		synchronized(headers) {
+			while(headers.size() < count) {
+				long now = System.currentTimeMillis();
+				assertTrue("Timed out with "+headers, now < deadline);
+				headers.wait(deadline - now);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,197 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import freenet.client.async.ClientContext;
+import freenet.client.async.PersistenceDisabledException;
+import freenet.client.async.PersistentJob;
+import freenet.client.async.PersistentJobRunner;
+import freenet.crypt.DummyRandomSource;
+import freenet.node.Node;
+import freenet.node.NodeStarter;
+import freenet.node.NodeStarter.TestNodeParameters;
+import freenet.support.Logger;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleFieldSet;
+import freenet.support.TestProperty;
+import freenet.support.io.FileUtil;
+
+/** Starts a batch of downloads through an FCPConnectionHandler on a single node, and checks what
+ * the client is sent. The handler has no socket, so messages stay in its output queue. */
+public class FCPConnectionHandlerBatchTest {
+
+    private static final File dir = new File("test-fcp-batch");
+
+    private static final String URI = "CHK@VZmXz1zVuPZJ1DhWk9sJFZ8Kx0Mvl4v5ANcN5a9xCsU,bDrLmC-A5LlsBaJGqj~PKBSIKqkOJOgpLp8mD5nr8b0,AAMC--8";
+
+    @Test
+    public void testPersistentBatch() throws Exception {
+        if(!TestProperty.EXTENSIVE) return;
+        DummyRandomSource random = new DummyRandomSource(3141);
+        FileUtil.removeAll(dir);
+        dir.mkdir();
+        NodeStarter.globalTestInit(dir, false, Logger.LogLevel.ERROR, "", true, random);
+        TestNodeParameters params = new TestNodeParameters();
+        params.random = new DummyRandomSource(31415);
+        params.ramStore = true;
+        params.storeSize = 1024*1024;
+        params.baseDirectory = dir;
+        params.executor = new PooledExecutor();
+        Node node = NodeStarter.createTestNode(params);
+        node.start(false);
+        ClientContext context = node.clientCore.clientContext;
+        CountingJobRunner jobs = new CountingJobRunner(context.jobRunner);
+        Field field = ClientContext.class.getField("jobRunner");
+        field.setAccessible(true);
+        field.set(context, jobs);
+        FCPServer server = node.clientCore.getFCPServer();
+        FCPConnectionHandler handler = new FCPConnectionHandler(null, server);
+
+        SimpleFieldSet fs = new SimpleFieldSet(true);
+        fs.putSingle("Identifier", "batch");
+        fs.putSingle("Persistence", "forever");
+        fs.put("Global", true);
+        fs.putSingle("ReturnType", "none");
+        fs.put("DSOnly", true);
+        fs.put("Verbosity", 1);
+        fs.put("ProgressInterval", 1000);
+        fs.putSingle("Get.0.URI", URI);
+        fs.putSingle("Get.0.Identifier", "get0");
+        fs.putSingle("Get.1.URI", URI);
+        fs.putSingle("Get.1.Identifier", "get1");
+        fs.putSingle("Get.2.URI", URI);
+        fs.putSingle("Get.2.Identifier", "get1");
+        fs.putSingle("Get.3.URI", "not a uri");
+        fs.putSingle("Get.3.Identifier", "get3");
+        jobs.countOn(Thread.currentThread());
+        handler.startClientGetBatch(new ClientGetBatchMessage(fs));
+        jobs.countOn(null);
+        // Every request is registered and started by the same job.
+        assertEquals(1, jobs.getCount());
+
+        List<FCPMessage> sent = new ArrayList<FCPMessage>();
+        ClientGetBatchProgressMessage progress = null;
+        for(int i=0;i<600 && (progress == null || !progress.isFinished());i++) {
+            Thread.sleep(100);
+            synchronized(handler.outputHandler.outQueue) {
+                sent.addAll(handler.outputHandler.outQueue);
+                handler.outputHandler.outQueue.clear();
+            }
+            for(FCPMessage msg : sent)
+                if(msg instanceof ClientGetBatchProgressMessage)
+                    progress = (ClientGetBatchProgressMessage) msg;
+        }
+        assertNotNull(progress);
+        assertTrue(progress.isFinished());
+        assertEquals(4, progress.total);
+        assertEquals(2, progress.started);
+        assertEquals(2, progress.rejected);
+        assertEquals(2, progress.failed);
+
+        boolean invalid = false;
+        boolean collision = false;
+        for(FCPMessage msg : sent) {
+            if(msg instanceof ProtocolErrorMessage) {
+                assertEquals("get3", ((ProtocolErrorMessage) msg).ident);
+                invalid = true;
+            } else if(msg instanceof IdentifierCollisionMessage) {
+                assertEquals("get1", ((IdentifierCollisionMessage) msg).identifier);
+                collision = true;
+            }
+            // Progress is only reported for the whole batch.
+            assertFalse(msg instanceof SimpleProgressMessage);
+        }
+        assertTrue(invalid);
+        assertTrue(collision);
+        assertNotNull(server.getGlobalRequest("get0"));
+        assertNotNull(server.getGlobalRequest("get1"));
+    }
+
+    @After
+    public void cleanUp() {
+        FileUtil.removeAll(dir);
+    }
+
+    /** Counts the jobs queued from one thread, and passes everything on. */
+    private static class CountingJobRunner implements PersistentJobRunner {
+
+        private final PersistentJobRunner runner;
+        private Thread thread;
+        private int count;
+
+        CountingJobRunner(PersistentJobRunner runner) {
+            this.runner = runner;
+        }
+
+        synchronized void countOn(Thread t) {
+            thread = t;
+        }
+
+        synchronized int getCount() {
+            return count;
+        }
+
+        private synchronized void counted() {
+            if(Thread.currentThread() == thread) count++;
+        }
+
+        @Override
+        public void queue(PersistentJob job, int threadPriority) throws PersistenceDisabledException {
+            counted();
+            runner.queue(job, threadPriority);
+        }
+
+        @Override
+        public void queueNormalOrDrop(PersistentJob job) {
+            counted();
+            runner.queueNormalOrDrop(job);
+        }
+
+        @Override
+        public void queueInternal(PersistentJob job, int threadPriority) throws PersistenceDisabledException {
+            counted();
+            runner.queueInternal(job, threadPriority);
+        }
+
+        @Override
+        public void queueInternal(PersistentJob job) {
+            counted();
+            runner.queueInternal(job);
+        }
+
+        @Override
+        public void setCheckpointASAP() {
+            runner.setCheckpointASAP();
+        }
+
+        @Override
+        public boolean hasLoaded() {
+            return runner.hasLoaded();
+        }
+
+        @Override
+        public CheckpointLock lock() throws PersistenceDisabledException {
+            return runner.lock();
+        }
+
+        @Override
+        public boolean newSalt() {
+            return runner.newSalt();
+        }
+
+        @Override
+        public boolean shuttingDown() {
+            return runner.shuttingDown();
+        }
+
+    }
+
+}
@@ -0,0 +1,129 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import freenet.support.SimpleFieldSet;
+import freenet.support.VirtualTicker;
+import junit.framework.TestCase;
+
+public class ProgressSubscriptionTest extends TestCase {
+
+	private VirtualTicker ticker;
+	private ProgressSubscription sub;
+
+	@Override
+	protected void setUp() throws Exception {
+		ticker = new VirtualTicker(0);
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", "monitor");
+		fs.put("Interval", 2000);
+		sub = new ProgressSubscription(new SubscribeProgressMessage(fs), mock(FCPConnectionHandler.class), ticker);
+	}
+
+	private static ClientRequest request(String identifier) {
+		ClientRequest req = mock(ClientRequest.class);
+		when(req.getIdentifier()).thenReturn(identifier);
+		when(req.getTotalBlocks()).thenReturn(-1.0);
+		when(req.getMinBlocks()).thenReturn(-1.0);
+		return req;
+	}
+
+	private static void progress(ClientRequest req, int total, int required, int succeeded, int failed) {
+		when(req.getTotalBlocks()).thenReturn((double) total);
+		when(req.getMinBlocks()).thenReturn((double) required);
+		when(req.getFetchedBlocks()).thenReturn((double) succeeded);
+		when(req.getFailedBlocks()).thenReturn((double) failed);
+	}
+
+	/** Round trip through the wire format, like a client would see it. */
+	private static SimpleFieldSet received(ProgressDeltaMessage msg) throws Exception {
+		return new SimpleFieldSet(msg.getFieldSet().toOrderedString(), false, true, false);
+	}
+
+	public void testCoalesced() throws Exception {
+		ClientRequest a = request("a");
+		ClientRequest b = request("b");
+		for(int i=0;i<100;i++) {
+			sub.changed(a);
+			sub.changed(b);
+		}
+		// One update for everything that happened in the interval.
+		assertEquals(1, ticker.queuedJobs());
+		SimpleFieldSet fs = received(sub.takeDelta());
+		assertEquals("monitor", fs.get("Identifier"));
+		assertEquals(2, fs.getInt("Count"));
+		assertEquals("a", fs.get("Request.0.Identifier"));
+		assertEquals("b", fs.get("Request.1.Identifier"));
+		// The first time, everything is sent.
+		assertEquals(0, fs.getInt("Request.0.Total"));
+		assertFalse(fs.getBoolean("Request.0.Finished", true));
+		assertNull(sub.takeDelta());
+	}
+
+	public void testOnlyChangedFields() throws Exception {
+		ClientRequest a = request("a");
+		ClientRequest b = request("b");
+		progress(a, 100, 80, 10, 0);
+		sub.changed(a);
+		sub.changed(b);
+		assertNotNull(sub.takeDelta());
+		// No change at all, nothing to send.
+		sub.changed(a);
+		sub.changed(b);
+		assertNull(sub.takeDelta());
+		progress(a, 100, 80, 20, 1);
+		sub.changed(a);
+		sub.changed(b);
+		SimpleFieldSet fs = received(sub.takeDelta());
+		assertEquals(1, fs.getInt("Count"));
+		assertEquals("a", fs.get("Request.0.Identifier"));
+		assertEquals(20, fs.getInt("Request.0.Succeeded"));
+		assertEquals(1, fs.getInt("Request.0.Failed"));
+		assertNull(fs.get("Request.0.Total"));
+		assertNull(fs.get("Request.0.Required"));
+		assertNull(fs.get("Request.0.Finished"));
+	}
+
+	public void testFinished() throws Exception {
+		ClientRequest a = request("a");
+		progress(a, 100, 80, 79, 0);
+		sub.changed(a);
+		sub.takeDelta();
+		// Some requests forget their counts when they finish.
+		progress(a, 1, 1, 0, 0);
+		when(a.hasFinished()).thenReturn(true);
+		when(a.hasSucceeded()).thenReturn(true);
+		sub.changed(a);
+		SimpleFieldSet fs = received(sub.takeDelta());
+		assertTrue(fs.getBoolean("Request.0.Finished", false));
+		assertTrue(fs.getBoolean("Request.0.Successful", false));
+		assertNull(fs.get("Request.0.Total"));
+		assertNull(fs.get("Request.0.Succeeded"));
+		// Forgotten once finished: seen again, it is listed in full.
+		sub.changed(a);
+		fs = received(sub.takeDelta());
+		assertEquals(1, fs.getInt("Request.0.Total"));
+		assertTrue(fs.getBoolean("Request.0.Finished", false));
+	}
+
+	public void testUnsubscribed() {
+		ClientRequest a = request("a");
+		sub.unsubscribe();
+		sub.changed(a);
+		assertEquals(0, ticker.queuedJobs());
+		assertNull(sub.takeDelta());
+	}
+
+	public void testInterval() throws MessageInvalidException {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", "monitor");
+		assertEquals(SubscribeProgressMessage.DEFAULT_INTERVAL, new SubscribeProgressMessage(fs).interval);
+		fs.put("Interval", 1);
+		assertEquals(SubscribeProgressMessage.MIN_INTERVAL, new SubscribeProgressMessage(fs).interval);
+	}
+
+}
@@ -0,0 +1,126 @@
+package freenet.clients.fcp;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.client.events.SplitfileProgressEvent;
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.clients.fcp.RequestStatusIndex.Category;
+import freenet.clients.fcp.RequestStatusIndex.Entry;
+import freenet.clients.fcp.RequestStatusIndex.SortBy;
+import freenet.keys.FreenetURI;
+import freenet.node.RequestStarter;
+import junit.framework.TestCase;
+
+public class RequestStatusIndexTest extends TestCase {
+
+	private static DownloadRequestStatus download(String identifier, String name, short prio, boolean toDisk) throws MalformedURLException {
+		return new DownloadRequestStatus(identifier, Persistence.FOREVER, true, false, false,
+				100, 100, 0, null, 0, 0, null, false, prio, null, null, 1000, toDisk ? new File(name) : null,
+				null, null, new FreenetURI("KSK@"+name), null, null, false, null, false, false);
+	}
+
+	private static List<String> page(RequestStatusCache cache, Category category, SortBy sortBy, boolean reversed, RequestStatusIndex.Filter filter, int offset, int limit) {
+		List<RequestStatus> out = new ArrayList<RequestStatus>();
+		cache.getPage(category, sortBy, reversed, filter, offset, limit, out);
+		List<String> ids = new ArrayList<String>();
+		for(RequestStatus status : out)
+			ids.add(status.getIdentifier());
+		return ids;
+	}
+
+	private static List<String> list(String... ids) {
+		List<String> list = new ArrayList<String>();
+		for(String id : ids) list.add(id);
+		return list;
+	}
+
+	public void testSortAndPage() throws Exception {
+		RequestStatusCache cache = new RequestStatusCache();
+		cache.addDownload(download("a", "zebra.txt", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, false));
+		cache.addDownload(download("b", "apple.txt", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, false));
+		cache.addDownload(download("c", "Mango.txt", RequestStarter.INTERACTIVE_PRIORITY_CLASS, false));
+		cache.addDownload(download("d", "kiwi.txt", RequestStarter.PAUSED_PRIORITY_CLASS, false));
+		assertEquals(4, cache.count(Category.DOWNLOAD_RUNNING));
+		assertEquals(4000, cache.getDataSize(Category.DOWNLOAD_RUNNING));
+		assertEquals(RequestStarter.INTERACTIVE_PRIORITY_CLASS, cache.getMostUrgentPriority(Category.DOWNLOAD_RUNNING));
+		assertEquals(-1, cache.getMostUrgentPriority(Category.DOWNLOAD_FAILED));
+
+		assertEquals(list("c", "a", "b", "d"), page(cache, Category.DOWNLOAD_RUNNING, SortBy.PRIORITY, false, null, 0, 10));
+		assertEquals(list("b", "d", "c", "a"), page(cache, Category.DOWNLOAD_RUNNING, SortBy.NAME, false, null, 0, 10));
+		assertEquals(list("a", "c", "d", "b"), page(cache, Category.DOWNLOAD_RUNNING, SortBy.NAME, true, null, 0, 10));
+		assertEquals(list("d", "c"), page(cache, Category.DOWNLOAD_RUNNING, SortBy.NAME, false, null, 1, 2));
+		assertEquals(list(), page(cache, Category.DOWNLOAD_RUNNING, SortBy.NAME, false, null, 4, 2));
+
+		List<RequestStatus> out = new ArrayList<RequestStatus>();
+		assertEquals(1, cache.getPage(Category.DOWNLOAD_RUNNING, SortBy.NAME, false, RequestStatusIndex.matching("AN"), 0, 10, out));
+		assertEquals(1, out.size());
+		assertEquals("c", out.get(0).getIdentifier());
+		out.clear();
+		// Matches a, b and c by name or identifier.
+		assertEquals(3, cache.getPage(Category.DOWNLOAD_RUNNING, SortBy.NAME, false, RequestStatusIndex.matching("a"), 1, 1, out));
+		assertEquals(1, out.size());
+		assertEquals("c", out.get(0).getIdentifier());
+	}
+
+	public void testUpdates() throws Exception {
+		RequestStatusCache cache = new RequestStatusCache();
+		cache.addDownload(download("a", "a.txt", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, false));
+		cache.addDownload(download("b", "b.txt", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, true));
+		cache.addDownload(download("c", "c.txt", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, false));
+		// Build the sorted views before changing anything.
+		assertEquals(list("a", "b", "c"), page(cache, Category.DOWNLOAD_RUNNING, SortBy.PRIORITY, false, null, 0, 10));
+		assertEquals(list("a", "b", "c"), page(cache, Category.DOWNLOAD_RUNNING, SortBy.PROGRESS, false, null, 0, 10));
+
+		cache.setPriority("c", RequestStarter.MAXIMUM_PRIORITY_CLASS);
+		assertEquals(list("c", "a", "b"), page(cache, Category.DOWNLOAD_RUNNING, SortBy.PRIORITY, false, null, 0, 10));
+
+		cache.updateStatus("a", new SplitfileProgressEvent(100, 50, null, 0, 0, null, 100, 0, false));
+		assertEquals(list("b", "c", "a"), page(cache, Category.DOWNLOAD_RUNNING, SortBy.PROGRESS, false, null, 0, 10));
+
+		cache.finishedDownload("b", true, 1000, "text/plain", null, null, null, null, false);
+		cache.finishedDownload("a", false, 1000, "application/x-unknown", FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME, null, null, null, false);
+		assertEquals(list("c"), page(cache, Category.DOWNLOAD_RUNNING, SortBy.PRIORITY, false, null, 0, 10));
+		assertEquals(list("c"), page(cache, Category.DOWNLOAD_RUNNING, SortBy.PROGRESS, false, null, 0, 10));
+		assertEquals(list("b"), page(cache, Category.DOWNLOAD_SUCCEEDED_TO_DISK, SortBy.PRIORITY, false, null, 0, 10));
+		assertEquals(list("a"), page(cache, Category.DOWNLOAD_FAILED_MIME, SortBy.PRIORITY, false, null, 0, 10));
+		assertEquals(0, cache.count(Category.DOWNLOAD_SUCCEEDED_TO_TEMP));
+		assertEquals(1000, cache.getDataSize(Category.DOWNLOAD_RUNNING));
+
+		cache.updateStarted("a", false);
+		assertEquals(2, cache.count(Category.DOWNLOAD_RUNNING));
+		cache.removeByIdentifier("c");
+		assertEquals(list("a"), page(cache, Category.DOWNLOAD_RUNNING, SortBy.PROGRESS, false, null, 0, 10));
+		cache.clear();
+		assertEquals(0, cache.count(Category.DOWNLOAD_RUNNING));
+		assertEquals(list(), page(cache, Category.DOWNLOAD_RUNNING, SortBy.PRIORITY, false, null, 0, 10));
+	}
+
+	public void testMerge() throws Exception {
+		List<Entry> first = new ArrayList<Entry>();
+		List<Entry> second = new ArrayList<Entry>();
+		short prio = RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+		first.add(new Entry(download("a", "a.txt", prio, false)));
+		first.add(new Entry(download("c", "c.txt", prio, false)));
+		second.add(new Entry(download("b", "b.txt", prio, false)));
+		second.add(new Entry(download("d", "d.txt", prio, false)));
+		List<Entry> out = new ArrayList<Entry>();
+		RequestStatusIndex.merge(first, second, SortBy.NAME, false, 1, 2, out);
+		assertEquals(2, out.size());
+		assertEquals("b", out.get(0).identifier);
+		assertEquals("c", out.get(1).identifier);
+		// Reversed pages come in descending order.
+		Collections.reverse(first);
+		Collections.reverse(second);
+		out.clear();
+		RequestStatusIndex.merge(first, second, SortBy.NAME, true, 0, 10, out);
+		assertEquals(4, out.size());
+		assertEquals("d", out.get(0).identifier);
+		assertEquals("a", out.get(3).identifier);
+	}
+
+}
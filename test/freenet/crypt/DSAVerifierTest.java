@@ -0,0 +1,183 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.params.DSAPrivateKeyParameters;
+import org.bouncycastle.crypto.params.DSAPublicKeyParameters;
+import org.bouncycastle.crypto.signers.DSASigner;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
+
+import freenet.keys.ClientSSKBlock;
+import freenet.keys.InsertableClientSSK;
+import freenet.keys.Key;
+import freenet.keys.NodeSSK;
+import freenet.keys.SSKBlock;
+import freenet.support.TestProperty;
+import freenet.support.io.ArrayBucket;
+
+public class DSAVerifierTest extends TestCase {
+
+	private static final DSAGroup GROUP = Global.DSAgroupBigA;
+
+	private final DummyRandomSource random = new DummyRandomSource(1234);
+
+	public void testBarrettReducer() {
+		Random r = new Random(1);
+		DSAVerifier.BarrettReducer reducer = new DSAVerifier.BarrettReducer(GROUP.getP());
+		BigInteger pMinusOne = GROUP.getP().subtract(BigInteger.ONE);
+		assertEquals(BigInteger.ONE, reducer.multiply(pMinusOne, pMinusOne));
+		assertEquals(BigInteger.ZERO, reducer.multiply(BigInteger.ZERO, pMinusOne));
+		for(int i=0;i<100;i++) {
+			BigInteger x = new BigInteger(GROUP.getP().bitLength(), r).mod(GROUP.getP());
+			BigInteger y = new BigInteger(GROUP.getP().bitLength(), r).mod(GROUP.getP());
+			assertEquals(x.multiply(y).mod(GROUP.getP()), reducer.multiply(x, y));
+		}
+	}
+
+	public void testCombMatchesModPow() {
+		Random r = new Random(2);
+		BigInteger base = GROUP.getG();
+		DSAVerifier.Comb comb = new DSAVerifier.Comb(base, 4, 2);
+		BigInteger qMinusOne = GROUP.getQ().subtract(BigInteger.ONE);
+		assertEquals(BigInteger.ONE, comb.pow(BigInteger.ZERO));
+		assertEquals(base, comb.pow(BigInteger.ONE));
+		assertEquals(base.modPow(qMinusOne, GROUP.getP()), comb.pow(qMinusOne));
+		BigInteger y = new DSAPublicKey(GROUP, new DSAPrivateKey(GROUP, random)).getY();
+		DSAVerifier.Comb yComb = new DSAVerifier.Comb(y, 3, 3);
+		for(int i=0;i<20;i++) {
+			BigInteger e1 = new BigInteger(GROUP.getQ().bitLength(), r).mod(GROUP.getQ());
+			BigInteger e2 = new BigInteger(GROUP.getQ().bitLength(), r).mod(GROUP.getQ());
+			assertEquals(base.modPow(e1, GROUP.getP()), comb.pow(e1));
+			BigInteger expected = base.modPow(e1, GROUP.getP()).multiply(y.modPow(e2, GROUP.getP())).mod(GROUP.getP());
+			assertEquals(expected, DSAVerifier.Comb.multiExp(new DSAVerifier.Comb[] { comb, yComb }, new BigInteger[] { e1, e2 }));
+		}
+	}
+
+	/** Compare against BouncyCastle for good and bad signatures, including the odd way it
+	 * handles hashes longer than q, and on both the cold and the precomputed path. */
+	public void testMatchesDSASigner() {
+		Random r = new Random(3);
+		for(int k=0;k<3;k++) {
+			DSAPrivateKey priv = new DSAPrivateKey(GROUP, random);
+			DSAPublicKey pub = new DSAPublicKey(GROUP, priv);
+			for(int i=0;i<2*DSAVerifier.PRECOMPUTE_AFTER_USES;i++) {
+				byte[] hash = new byte[32];
+				r.nextBytes(hash);
+				byte[][] messages = new byte[][] { hash, Global.truncateHash(hash), new byte[] { 0, 1, 2 },
+						concat(new byte[] { 0 }, hash) };
+				for(byte[] message : messages) {
+					BigInteger[] sig = sign(priv, message);
+					checkSame(pub, message, sig[0], sig[1]);
+					checkSame(pub, message, sig[0].add(BigInteger.ONE), sig[1]);
+					checkSame(pub, message, sig[0], sig[1].add(BigInteger.ONE));
+					byte[] wrong = message.clone();
+					wrong[wrong.length-1] ^= 1;
+					checkSame(pub, wrong, sig[0], sig[1]);
+				}
+				// As used by SSKBlock.
+				BigInteger[] sig = sign(priv, Global.truncateHash(hash));
+				assertTrue(DSAVerifier.verify(pub, sig[0], sig[1], Global.truncateHash(hash), hash));
+				if(!new BigInteger(1, hash).equals(new BigInteger(1, Global.truncateHash(hash))))
+					assertFalse(DSAVerifier.verify(pub, sig[0], sig[1], hash));
+			}
+		}
+	}
+
+	public void testOutOfRange() {
+		DSAPrivateKey priv = new DSAPrivateKey(GROUP, random);
+		DSAPublicKey pub = new DSAPublicKey(GROUP, priv);
+		byte[] hash = new byte[32];
+		BigInteger[] sig = sign(priv, hash);
+		assertTrue(DSAVerifier.verify(pub, sig[0], sig[1], hash));
+		assertFalse(DSAVerifier.verify(pub, BigInteger.ZERO, sig[1], hash));
+		assertFalse(DSAVerifier.verify(pub, sig[0], BigInteger.ZERO, hash));
+		assertFalse(DSAVerifier.verify(pub, sig[0].add(GROUP.getQ()), sig[1], hash));
+		assertFalse(DSAVerifier.verify(pub, sig[0], sig[1].add(GROUP.getQ()), hash));
+	}
+
+	public void testNotInGroup() {
+		// p-1 has order 2, so it isn't in the subgroup of order q.
+		DSAPublicKey pub = new DSAPublicKey(GROUP, GROUP.getP().subtract(BigInteger.ONE));
+		for(int i=0;i<2*DSAVerifier.PRECOMPUTE_AFTER_USES;i++)
+			assertFalse(DSAVerifier.verify(pub, BigInteger.ONE, BigInteger.ONE, new byte[32]));
+	}
+
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		InsertableClientSSK ik = InsertableClientSSK.createRandom(random, "test");
+		byte[] data = new byte[1024];
+		random.nextBytes(data);
+		ClientSSKBlock cb = ik.encode(new ArrayBucket(data), false, true, (short)-1, data.length, random, null);
+		SSKBlock block = (SSKBlock) cb.getBlock();
+		NodeSSK key = block.getKey();
+		byte[] rawData = block.getRawData();
+		byte[] headers = block.getRawHeaders();
+		byte[] pubKeyBytes = key.getPubKey().asBytes();
+		int iterations = 500;
+		// Warm up
+		for(int i=0;i<50;i++) {
+			new SSKBlock(rawData, headers, key, false);
+			new SSKBlock(rawData, headers, freshKey(key, pubKeyBytes), false);
+		}
+		// As when a key is only seen once.
+		long start = System.nanoTime();
+		for(int i=0;i<iterations;i++)
+			new SSKBlock(rawData, headers, freshKey(key, pubKeyBytes), false);
+		long cold = System.nanoTime() - start;
+		// As for a popular key, which will be in the node's pubkey cache.
+		start = System.nanoTime();
+		for(int i=0;i<iterations;i++)
+			new SSKBlock(rawData, headers, key, false);
+		long hot = System.nanoTime() - start;
+
+		DSAPrivateKey priv = new DSAPrivateKey(GROUP, random);
+		DSAPublicKey pub = new DSAPublicKey(GROUP, priv);
+		byte[] hash = new byte[32];
+		BigInteger[] sig = sign(priv, hash);
+		start = System.nanoTime();
+		for(int i=0;i<iterations;i++) {
+			DSASigner dsa = new DSASigner();
+			dsa.init(false, new DSAPublicKeyParameters(pub.getY(), Global.getDSAgroupBigAParameters()));
+			assertTrue(dsa.verifySignature(hash, sig[0], sig[1]));
+		}
+		long bc = System.nanoTime() - start;
+		System.out.println("SSK verify/sec: DSASigner "+rate(iterations, bc)+", new key each time "+
+				rate(iterations, cold)+", same key "+rate(iterations, hot));
+	}
+
+	private static NodeSSK freshKey(NodeSSK key, byte[] pubKeyBytes) throws Exception {
+		return new NodeSSK(key.getPubKeyHash(), key.getKeyBytes(), DSAPublicKey.create(pubKeyBytes),
+				Key.ALGO_AES_PCFB_256_SHA256);
+	}
+
+	private static String rate(int iterations, long nanos) {
+		return String.format("%.1f", iterations / (nanos / 1e9));
+	}
+
+	private static void checkSame(DSAPublicKey pub, byte[] message, BigInteger r, BigInteger s) {
+		DSASigner dsa = new DSASigner();
+		dsa.init(false, new DSAPublicKeyParameters(pub.getY(), Global.getDSAgroupBigAParameters()));
+		assertEquals(dsa.verifySignature(message, r, s), DSAVerifier.verify(pub, r, s, message));
+	}
+
+	private static BigInteger[] sign(DSAPrivateKey priv, byte[] message) {
+		DSASigner dsa = new DSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+		dsa.init(true, new DSAPrivateKeyParameters(priv.getX(), Global.getDSAgroupBigAParameters()));
+		return dsa.generateSignature(message);
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] out = new byte[a.length + b.length];
+		System.arraycopy(a, 0, out, 0, a.length);
+		System.arraycopy(b, 0, out, a.length, b.length);
+		return out;
+	}
+
+}
@@ -27,11 +27,13 @@ public class RandomShortReadInputStream extends FilterInputStream {
     
     @Override
     public int read(byte[] buf, int offset, int length) throws IOException {
+        // Never ask for 0 bytes: a blocking read must return at least one byte, and callers
+        // treat 0 as end of stream.
         if(length > 3 && random.nextBoolean()) {
             if(length > 16 && random.nextBoolean()) {
-                length = random.nextInt(16);
+                length = random.nextInt(15) + 1;
             } else {
-                length = random.nextInt(length);
+                length = random.nextInt(length - 1) + 1;
             }
         }
         return in.read(buf, offset, length);
@@ -0,0 +1,162 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import freenet.support.TestProperty;
+
+public class ThreadLocalRandomSourceTest extends TestCase {
+
+	/** Counts the calls to nextBytes(), which is how the generators are seeded, and the entropy
+	 * passed to it. */
+	private static class CountingRandomSource extends DummyRandomSource {
+		private static final long serialVersionUID = 1L;
+		int seeds;
+		int entropy;
+		boolean seedWritten;
+
+		CountingRandomSource() {
+			super(1234);
+		}
+
+		@Override
+		public synchronized void nextBytes(byte[] bytes) {
+			seeds++;
+			super.nextBytes(bytes);
+		}
+
+		@Override
+		public int acceptEntropy(EntropySource source, long data, int entropyGuess) {
+			entropy += entropyGuess;
+			return entropyGuess;
+		}
+	}
+
+	private static class PersistentCountingRandomSource extends CountingRandomSource implements PersistentRandomSource {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void write_seed(boolean force) {
+			seedWritten = true;
+		}
+	}
+
+	public void testNextBytes() {
+		ThreadLocalRandomSource random = new ThreadLocalRandomSource(new CountingRandomSource());
+		random.nextBytes(new byte[0]);
+		for(int length : new int[] { 1, 3, 16, 479, 480, 481, 1000, 5000 }) {
+			byte[] a = new byte[length];
+			byte[] b = new byte[length];
+			random.nextBytes(a);
+			random.nextBytes(b);
+			assertFalse(Arrays.equals(a, b));
+		}
+		// Roughly half the bits should be set.
+		byte[] buf = new byte[100000];
+		random.nextBytes(buf);
+		int bits = 0;
+		for(byte x : buf)
+			bits += Integer.bitCount(x & 0xff);
+		assertTrue(Math.abs(bits - buf.length * 4) < buf.length / 20);
+	}
+
+	public void testNext() {
+		ThreadLocalRandomSource random = new ThreadLocalRandomSource(new CountingRandomSource());
+		Set<Long> seen = new HashSet<Long>();
+		for(int i=0;i<10000;i++)
+			assertTrue(seen.add(random.nextLong()));
+		for(int i=0;i<10000;i++) {
+			int x = random.nextInt(10);
+			assertTrue(x >= 0 && x < 10);
+			assertTrue(random.next(1) >>> 1 == 0);
+			assertTrue(random.next(31) >= 0);
+		}
+	}
+
+	public void testThreadsGetDifferentGenerators() throws InterruptedException {
+		CountingRandomSource master = new CountingRandomSource();
+		final ThreadLocalRandomSource random = new ThreadLocalRandomSource(master);
+		final byte[][] output = new byte[4][64];
+		Thread[] threads = new Thread[output.length];
+		for(int i=0;i<threads.length;i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					random.nextBytes(output[index]);
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertEquals(threads.length, master.seeds);
+		for(int i=0;i<output.length;i++)
+			for(int j=i+1;j<output.length;j++)
+				assertFalse(Arrays.equals(output[i], output[j]));
+	}
+
+	public void testReseed() {
+		CountingRandomSource master = new CountingRandomSource();
+		ThreadLocalRandomSource random = new ThreadLocalRandomSource(master);
+		random.nextInt();
+		assertEquals(1, master.seeds);
+		random.nextBytes(new byte[(int) ThreadLocalRandomSource.RESEED_BYTES - 1000]);
+		assertEquals(1, master.seeds);
+		random.nextBytes(new byte[2000]);
+		assertEquals(2, master.seeds);
+	}
+
+	public void testPassesThroughToMaster() {
+		CountingRandomSource master = new CountingRandomSource();
+		ThreadLocalRandomSource random = new ThreadLocalRandomSource(master);
+		assertEquals(5, random.acceptEntropy(new EntropySource(), 123, 5));
+		assertEquals(5, master.entropy);
+		// Master doesn't support it, so do nothing.
+		random.write_seed(true);
+		master = new PersistentCountingRandomSource();
+		random = new ThreadLocalRandomSource(master);
+		random.write_seed(true);
+		assertTrue(master.seedWritten);
+	}
+
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final RandomSource yarrow = new Yarrow(new File("/dev/urandom"), "SHA1", "Rijndael", false, false, false);
+		final RandomSource local = new ThreadLocalRandomSource(yarrow);
+		for(int threads : new int[] { 1, 4 }) {
+			for(int round=0;round<2;round++) {
+				long y = time(yarrow, threads);
+				long l = time(local, threads);
+				if(round == 1)
+					System.out.println(threads+" threads: Yarrow "+y/1000000+"ms, thread local "+l/1000000+"ms");
+			}
+		}
+	}
+
+	private static long time(final RandomSource random, int threadCount) throws InterruptedException {
+		Thread[] threads = new Thread[threadCount];
+		long start = System.nanoTime();
+		for(int i=0;i<threads.length;i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<200000;j++)
+						random.nextInt();
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		return System.nanoTime() - start;
+	}
+
+}
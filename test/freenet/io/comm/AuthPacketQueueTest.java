@@ -0,0 +1,119 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import static org.mockito.Mockito.mock;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.io.comm.IncomingPacketFilter.DECODED;
+import freenet.node.PeerNode;
+import freenet.support.VirtualTicker;
+import junit.framework.TestCase;
+
+public class AuthPacketQueueTest extends TestCase {
+
+	private VirtualTicker executor;
+	private List<Peer> processed;
+	private boolean fail;
+	private AuthPacketQueue queue;
+
+	@Override
+	protected void setUp() {
+		executor = new VirtualTicker(0);
+		processed = new ArrayList<Peer>();
+		queue = new AuthPacketQueue(executor, "test", new AuthPacketQueue.Processor() {
+
+			@Override
+			public DECODED process(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now) {
+				processed.add(peer);
+				if(fail) throw new IllegalStateException("Test");
+				return DECODED.NOT_DECODED;
+			}
+
+		});
+	}
+
+	private static Peer peer(int port) {
+		return new Peer(InetAddress.getLoopbackAddress(), port);
+	}
+
+	private DECODED queue(Peer peer, PeerNode opn, long now) {
+		return queue.queue(new byte[100], 0, 100, peer, opn, now);
+	}
+
+	public void testBurstThenRefill() {
+		Peer peer = peer(1);
+		for(int i=0;i<AuthPacketQueue.AUTH_PACKET_BURST;i++)
+			assertEquals(DECODED.QUEUED, queue(peer, null, 0));
+		assertEquals(DECODED.DROPPED, queue(peer, null, 0));
+		assertEquals(DECODED.DROPPED, queue(peer, null, AuthPacketQueue.AUTH_PACKET_INTERVAL - 1));
+		// Other addresses have their own allowance.
+		assertEquals(DECODED.QUEUED, queue(peer(2), null, 0));
+		// Then one per interval.
+		long now = AuthPacketQueue.AUTH_PACKET_INTERVAL;
+		assertEquals(DECODED.QUEUED, queue(peer, null, now));
+		assertEquals(DECODED.DROPPED, queue(peer, null, now));
+		now += 3 * AuthPacketQueue.AUTH_PACKET_INTERVAL;
+		for(int i=0;i<3;i++)
+			assertEquals(DECODED.QUEUED, queue(peer, null, now));
+		assertEquals(DECODED.DROPPED, queue(peer, null, now));
+		assertEquals(4, queue.getDroppedAuthPackets());
+		// A long pause refills the whole burst, but no more.
+		now += 1000 * AuthPacketQueue.AUTH_PACKET_INTERVAL;
+		for(int i=0;i<AuthPacketQueue.AUTH_PACKET_BURST;i++)
+			assertEquals(DECODED.QUEUED, queue(peer, null, now));
+		assertEquals(DECODED.DROPPED, queue(peer, null, now));
+	}
+
+	public void testDropWhenFull() {
+		PeerNode known = mock(PeerNode.class);
+		for(int i=0;i<AuthPacketQueue.MAX_QUEUED_AUTH_PACKETS;i++)
+			assertEquals(DECODED.QUEUED, queue(peer(i), null, 0));
+		assertEquals(DECODED.DROPPED, queue(peer(-1 & 0xFFFF), null, 0));
+		assertEquals(1, queue.getDroppedAuthPackets());
+		// The queue for known sources is separate.
+		assertEquals(DECODED.QUEUED, queue(peer(-1 & 0xFFFF), known, 0));
+		executor.runFor(0);
+		assertEquals(AuthPacketQueue.MAX_QUEUED_AUTH_PACKETS + 1, processed.size());
+		// Room again once processed.
+		assertEquals(DECODED.QUEUED, queue(peer(0), null, 0));
+	}
+
+	public void testKnownSourcesFirst() {
+		PeerNode known = mock(PeerNode.class);
+		queue(peer(1), null, 0);
+		queue(peer(2), null, 0);
+		queue(peer(3), known, 0);
+		queue(peer(4), null, 0);
+		queue(peer(5), known, 0);
+		executor.runFor(0);
+		assertEquals(5, processed.size());
+		assertEquals(peer(3), processed.get(0));
+		assertEquals(peer(5), processed.get(1));
+		assertEquals(peer(1), processed.get(2));
+		assertEquals(peer(2), processed.get(3));
+		assertEquals(peer(4), processed.get(4));
+	}
+
+	public void testThreadsFinish() {
+		fail = true;
+		for(int i=0;i<10;i++)
+			queue(peer(i), null, 0);
+		assertEquals(AuthPacketQueue.AUTH_PACKET_THREADS, queue.getRunningAuthPacketThreads());
+		// Only that many are started.
+		assertEquals(AuthPacketQueue.AUTH_PACKET_THREADS, executor.queuedJobs());
+		executor.runFor(0);
+		assertEquals(10, processed.size());
+		assertEquals(0, queue.getRunningAuthPacketThreads());
+		// And started again for the next packet.
+		queue(peer(1), null, 0);
+		assertEquals(1, queue.getRunningAuthPacketThreads());
+		executor.runFor(0);
+		assertEquals(0, queue.getRunningAuthPacketThreads());
+	}
+
+}
@@ -0,0 +1,131 @@
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.io.comm.VirtualNetwork.VirtualSocket;
+import freenet.support.VirtualTicker;
+import junit.framework.TestCase;
+
+public class VirtualNetworkTest extends TestCase {
+
+	public void testLatencyAndBandwidth() throws IOException {
+		VirtualTicker ticker = new VirtualTicker(0);
+		VirtualNetwork network = new VirtualNetwork(1, ticker);
+		network.setLatency(50);
+		// 1000 bytes takes 10ms.
+		network.setBandwidth(100000);
+		VirtualSocket a = network.bind(1);
+		VirtualSocket b = network.bind(2);
+		Recorder recorder = new Recorder(ticker);
+		b.setLowLevelFilter(recorder);
+		a.send(new byte[1000], 0, 1000, 2);
+		a.send(new byte[1000], 0, 1000, 2);
+		ticker.runUntil(59);
+		assertTrue(recorder.times.isEmpty());
+		ticker.runUntil(1000);
+		assertEquals(2, recorder.times.size());
+		assertEquals(60, (long) recorder.times.get(0));
+		assertEquals(70, (long) recorder.times.get(1));
+		assertEquals(1, recorder.fromPort);
+		assertEquals(2, network.getPacketsDelivered());
+	}
+
+	public void testLossIsDeterministic() throws IOException {
+		List<Long> first = runLossy(1234);
+		List<Long> second = runLossy(1234);
+		assertEquals(first, second);
+		assertTrue(first.size() > 300);
+		assertTrue(first.size() < 700);
+	}
+
+	private List<Long> runLossy(long seed) throws IOException {
+		VirtualTicker ticker = new VirtualTicker(0);
+		VirtualNetwork network = new VirtualNetwork(seed, ticker);
+		network.setLatency(10);
+		network.setJitter(20);
+		network.setLossProbability(0.5);
+		VirtualSocket a = network.bind(1);
+		VirtualSocket b = network.bind(2);
+		Recorder recorder = new Recorder(ticker);
+		b.setLowLevelFilter(recorder);
+		for(int i=0;i<1000;i++) {
+			a.send(new byte[] { (byte) i }, 0, 1, 2);
+			ticker.runFor(1);
+		}
+		ticker.runFor(1000);
+		assertEquals(1000, network.getPacketsSent());
+		assertEquals(1000, network.getPacketsDelivered() + network.getPacketsLost());
+		return recorder.times;
+	}
+
+	public void testRealTime() throws IOException {
+		VirtualNetwork network = new VirtualNetwork(1);
+		network.setLatency(10);
+		network.setMaxQueuedPackets(2);
+		VirtualSocket a = network.bind(1000);
+		VirtualSocket b = network.bind(1001);
+		try {
+			network.bind(1001);
+			fail();
+		} catch (SocketException e) {
+			// Expected.
+		}
+		byte[] data = new byte[] { 1, 2, 3, 4 };
+		DatagramPacket packet = new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), 1001);
+		long start = System.currentTimeMillis();
+		a.send(packet);
+		DatagramPacket received = new DatagramPacket(new byte[3], 3);
+		b.receive(received);
+		assertTrue(System.currentTimeMillis() - start >= 10);
+		// Truncated like UDP.
+		assertEquals(3, received.getLength());
+		assertEquals(1, received.getData()[0]);
+		assertEquals(3, received.getData()[2]);
+		assertEquals(1000, received.getPort());
+		// Nobody is reading, so the third packet is dropped.
+		for(int i=0;i<3;i++)
+			a.send(packet);
+		while(network.getPacketsDelivered() + network.getPacketsOverflowed() < 4)
+			Thread.yield();
+		assertEquals(1, network.getPacketsOverflowed());
+		b.close();
+		try {
+			b.receive(received);
+			fail();
+		} catch (SocketException e) {
+			// Expected.
+		}
+		assertTrue(network.getReport().contains("Packets sent: 4 (16 bytes)"));
+	}
+
+	private static class Recorder implements IncomingPacketFilter {
+
+		final VirtualTicker ticker;
+		final List<Long> times = new ArrayList<Long>();
+		int fromPort;
+
+		Recorder(VirtualTicker ticker) {
+			this.ticker = ticker;
+		}
+
+		@Override
+		public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+			assertEquals(now, ticker.currentTimeMillis());
+			times.add(now);
+			fromPort = peer.getPort();
+			return DECODED.DECODED;
+		}
+
+		@Override
+		public boolean isDisconnected(PeerContext context) {
+			return false;
+		}
+
+	}
+
+}
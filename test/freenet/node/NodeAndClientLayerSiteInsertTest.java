@@ -0,0 +1,174 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import freenet.client.FetchContext;
+import freenet.client.FetchException;
+import freenet.client.FetchResult;
+import freenet.client.FetchWaiter;
+import freenet.client.HighLevelSimpleClient;
+import freenet.client.InsertContext;
+import freenet.client.InsertContext.UnchangedFiles;
+import freenet.client.InsertException;
+import freenet.client.PutWaiter;
+import freenet.client.async.BaseManifestPutter;
+import freenet.client.async.ClientContext;
+import freenet.client.async.ClientPutCallback;
+import freenet.client.async.InsertedFileCache;
+import freenet.client.async.PersistenceDisabledException;
+import freenet.client.async.TooManyFilesInsertException;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.FreenetURI;
+import freenet.node.NodeStarter.TestNodeParameters;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.LoggerHook.InvalidThresholdException;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
+import freenet.support.api.ManifestElement;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+
+/** Creates a node and inserts a site to it several times, checking that files which have
+ * already been inserted are recorded in the InsertedFileCache and reused by later inserts. */
+public class NodeAndClientLayerSiteInsertTest extends NodeAndClientLayerTestBase {
+
+    private static final File dir = new File("test-site-insert-single-node");
+
+    /** Files bigger than this are inserted separately rather than in the site's container. */
+    private static final int MAX_CONTAINER_ITEM_SIZE = 1024;
+
+    private static final int EXTERNAL_SIZE = 16*1024;
+
+    @Test
+    public void testUnchangedFilesSingleNode() throws InvalidThresholdException, NodeInitException, InsertException, FetchException, IOException, TooManyFilesInsertException, PersistenceDisabledException {
+        if(!TestProperty.EXTENSIVE) return;
+        DummyRandomSource random = new DummyRandomSource(25312);
+        final Executor executor = new PooledExecutor();
+        FileUtil.removeAll(dir);
+        dir.mkdir();
+        NodeStarter.globalTestInit(dir, false,
+                Logger.LogLevel.ERROR, "", true, random);
+        TestNodeParameters params = new TestNodeParameters();
+        params.random = new DummyRandomSource(253121);
+        params.ramStore = true;
+        params.storeSize = FILE_SIZE * 3;
+        params.baseDirectory = dir;
+        params.executor = executor;
+        Node node = NodeStarter.createTestNode(params);
+        node.start(false);
+        InsertedFileCache cache = node.clientCore.insertedFileCache;
+        cache.setMaxSize(1024*1024);
+        HighLevelSimpleClient client =
+                node.clientCore.makeClient((short)0, false, false);
+
+        byte[] index = "<html><body><a href=\"data.bin\">data</a></body></html>".getBytes("UTF-8");
+        byte[] unchanged = new byte[EXTERNAL_SIZE];
+        random.nextBytes(unchanged);
+        byte[] data = new byte[EXTERNAL_SIZE];
+        random.nextBytes(data);
+        byte[] changed = new byte[EXTERNAL_SIZE];
+        random.nextBytes(changed);
+
+        // The default mode inserts everything, but still records the external files. The small
+        // index page goes in the container, so is not recorded.
+        FreenetURI first = insertSite(node, client, UnchangedFiles.INSERT, index, unchanged, data);
+        assertEquals(2, cache.getCount());
+        assertEquals(0, cache.getHits());
+
+        // Nothing has changed: the same metadata, so the same site.
+        FreenetURI skipped = insertSite(node, client, UnchangedFiles.SKIP, index, unchanged, data);
+        assertEquals(first, skipped);
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getCount());
+
+        // One file changed: it is inserted and recorded, the other is reused and healed. The
+        // insert only finishes when the healing inserts have.
+        FreenetURI healed = insertSite(node, client, UnchangedFiles.HEAL, index, unchanged, changed);
+        assertFalse(first.equals(healed));
+        assertEquals(3, cache.getHits());
+        assertEquals(3, cache.getCount());
+
+        assertArrayEquals(index, fetch(client, first, "index.html"));
+        assertArrayEquals(unchanged, fetch(client, first, "unchanged.bin"));
+        assertArrayEquals(data, fetch(client, first, "data.bin"));
+        assertArrayEquals(unchanged, fetch(client, healed, "unchanged.bin"));
+        assertArrayEquals(index, fetch(client, healed, "index.html"));
+        assertArrayEquals(changed, fetch(client, healed, "data.bin"));
+    }
+
+    private FreenetURI insertSite(Node node, HighLevelSimpleClient client, UnchangedFiles mode,
+            byte[] index, byte[] unchanged, byte[] data) throws InsertException, TooManyFilesInsertException, PersistenceDisabledException {
+        HashMap<String, Object> files = new HashMap<String, Object>();
+        files.put("index.html", bucket(index));
+        files.put("unchanged.bin", bucket(unchanged));
+        files.put("data.bin", bucket(data));
+        InsertContext ictx = client.getInsertContext(true);
+        ictx.localRequestOnly = true;
+        // Compression doesn't affect what is cached, and makes the test slower.
+        ictx.dontCompress = true;
+        ictx.unchangedFiles = mode;
+        PutWaiter pw = new PutWaiter(rc);
+        SmallFilesPutter putter = new SmallFilesPutter(pw,
+                BaseManifestPutter.bucketsByNameToManifestEntries(files),
+                ictx, node.clientCore.clientContext);
+        node.clientCore.clientContext.start(putter);
+        return pw.waitForCompletion();
+    }
+
+    private byte[] fetch(HighLevelSimpleClient client, FreenetURI site, String name) throws FetchException, IOException {
+        FetchContext ctx = client.getFetchContext(FILE_SIZE);
+        ctx.localRequestOnly = true;
+        FetchWaiter fw = new FetchWaiter(rc);
+        client.fetch(site.pushMetaString(name), FILE_SIZE, fw, ctx, (short)0);
+        FetchResult result = fw.waitForCompletion();
+        return BucketTools.toByteArray(result.asBucket());
+    }
+
+    private static RandomAccessBucket bucket(byte[] data) {
+        return new SimpleReadOnlyArrayBucket(data);
+    }
+
+    /** Like DefaultManifestPutter, but with a much smaller limit on the size of files in the
+     * container, so that the files inserted separately don't have to be splitfiles. */
+    private static class SmallFilesPutter extends BaseManifestPutter {
+
+        private static final long serialVersionUID = 1L;
+
+        SmallFilesPutter(ClientPutCallback cb, HashMap<String, Object> manifestElements,
+                InsertContext ctx, ClientContext context) throws TooManyFilesInsertException {
+            super(cb, manifestElements, (short)0, FreenetURI.EMPTY_CHK_URI, "index.html", ctx,
+                    false, null, context);
+        }
+
+        @Override
+        protected void makePutHandlers(HashMap<String, Object> manifestElements, String defaultName) {
+            ContainerBuilder container = getRootContainer();
+            for(Map.Entry<String, Object> entry : manifestElements.entrySet()) {
+                String name = entry.getKey();
+                ManifestElement element = (ManifestElement) entry.getValue();
+                if(element.getSize() > MAX_CONTAINER_ITEM_SIZE)
+                    container.addExternal(name, element.getData(), element.getMimeTypeOverride(), name.equals(defaultName));
+                else
+                    container.addItem(name, element, name.equals(defaultName));
+            }
+        }
+
+    }
+
+    @After
+    public void cleanUp() {
+        FileUtil.removeAll(dir);
+    }
+
+}
@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import freenet.io.comm.DMT;
 import junit.framework.TestCase;
 
 public class PeerMessageQueueTest extends TestCase {
@@ -81,4 +82,63 @@ public class PeerMessageQueueTest extends TestCase {
 		//grabQueuedMessageItem() should return the most urgent item, even though it was queued last
 		assertSame(itemUrgent, pmq.grabQueuedMessageItem(0));
 	}
+
+	public void testSizes() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		assertFalse(pmq.mustSendSize(0, 0));
+
+		MessageItem item1 = new MessageItem(new byte[100], null, false, null, (short) 0, false, false);
+		MessageItem item2 = new MessageItem(new byte[200], null, false, null, DMT.PRIORITY_BULK_DATA, false, false);
+		MessageItem item3 = new MessageItem(new byte[300], null, false, null, DMT.PRIORITY_REALTIME_DATA, false, false);
+
+		assertEquals(102, pmq.queueAndEstimateSize(item1, 1024));
+		assertEquals(304, pmq.queueAndEstimateSize(item2, 1024));
+		assertEquals(606, pmq.queueAndEstimateSize(item3, 1024));
+		assertTrue(pmq.mustSendSize(1, 600));
+		assertFalse(pmq.mustSendSize(0, 600));
+
+		assertTrue(pmq.removeMessage(item2));
+		assertFalse(pmq.removeMessage(item2));
+		assertFalse(pmq.mustSendSize(0, 400));
+		assertTrue(pmq.mustSendSize(1, 400));
+
+		assertSame(item1, pmq.grabQueuedMessageItem(0));
+		assertSame(item3, pmq.grabQueuedMessageItem(0));
+		assertNull(pmq.grabQueuedMessageItem(0));
+		assertFalse(pmq.mustSendSize(0, 0));
+		assertEquals(0, pmq.getMessageQueueLengthBytes());
+		assertEquals(Long.MAX_VALUE, pmq.getNextUrgentTime(Long.MAX_VALUE, 0));
+	}
+
+	public void testGrabQueuedMessageItems() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		MessageItem item1 = new MessageItem(new byte[100], null, false, null, (short) 0, false, false);
+		MessageItem item2 = new MessageItem(new byte[200], null, false, null, DMT.PRIORITY_BULK_DATA, false, false);
+		pmq.queueAndEstimateSize(item1, 1024);
+		pmq.queueAndEstimateSize(item2, 1024);
+		MessageItem[] items = pmq.grabQueuedMessageItems();
+		assertEquals(2, items.length);
+		assertSame(item1, items[0]);
+		assertSame(item2, items[1]);
+		assertFalse(pmq.mustSendSize(0, 0));
+		assertEquals(102, pmq.queueAndEstimateSize(item1, 1024));
+	}
+
+	/* Requeued bulk messages are urgent even if they were queued recently, and are sent first. */
+	public void testUrgentTimeRequeued() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		MessageItem item1 = new MessageItem(new byte[100], null, false, null, DMT.PRIORITY_BULK_DATA, false, false);
+		MessageItem item2 = new MessageItem(new byte[100], null, false, null, DMT.PRIORITY_BULK_DATA, false, false);
+		pmq.queueAndEstimateSize(item1, 1024);
+		pmq.queueAndEstimateSize(item2, 1024);
+		assertEquals(item1.submitted + PacketSender.MAX_COALESCING_DELAY_BULK,
+				pmq.getNextUrgentTime(Long.MAX_VALUE, 0));
+		assertSame(item1, pmq.grabQueuedMessageItem(0));
+		pmq.pushfrontPrioritizedMessageItem(item1);
+		// Only the requeued message is on the urgent list.
+		assertEquals(102, pmq.getMessageQueueLengthBytes());
+		assertSame(item1, pmq.grabQueuedMessageItem(0));
+		assertSame(item2, pmq.grabQueuedMessageItem(0));
+		assertEquals(Long.MAX_VALUE, pmq.getNextUrgentTime(Long.MAX_VALUE, 0));
+	}
 }
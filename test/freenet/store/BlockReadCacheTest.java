@@ -0,0 +1,100 @@
+package freenet.store;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.compress.Compressor;
+
+public class BlockReadCacheTest extends TestCase {
+
+	/** Room for 18 CHK blocks in the main area and one in the window. */
+	private static final long CACHE_SIZE = 20 * (CHKBlock.DATA_LENGTH + CHKBlock.TOTAL_HEADERS_LENGTH);
+
+	public void testOfferAndGet() throws CHKEncodeException, IOException {
+		BlockReadCache cache = new BlockReadCache(CACHE_SIZE);
+		CHKBlock block = encodeBlock("test");
+		assertNull(cache.get(block.getKey()));
+		cache.offer(block);
+		assertSame(block, cache.get(block.getKey()));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getBlockCount());
+	}
+
+	public void testRemove() throws CHKEncodeException, IOException {
+		BlockReadCache cache = new BlockReadCache(CACHE_SIZE);
+		CHKBlock block = encodeBlock("test");
+		cache.offer(block);
+		cache.remove(block.getKey());
+		assertNull(cache.get(block.getKey()));
+		assertEquals(0, cache.getSize());
+	}
+
+	public void testDisabled() throws CHKEncodeException, IOException {
+		BlockReadCache cache = new BlockReadCache(0);
+		CHKBlock block = encodeBlock("test");
+		cache.offer(block);
+		assertNull(cache.get(block.getKey()));
+		assertEquals(0, cache.getBlockCount());
+	}
+
+	/** A scan of blocks which are only requested once must not flush out popular blocks. */
+	public void testPopularBlocksSurviveScan() throws CHKEncodeException, IOException {
+		BlockReadCache cache = new BlockReadCache(CACHE_SIZE);
+		CHKBlock[] popular = new CHKBlock[18];
+		for(int i=0;i<popular.length;i++) {
+			popular[i] = encodeBlock("popular "+i);
+			assertNull(cache.get(popular[i].getKey()));
+			cache.offer(popular[i]);
+		}
+		for(int j=0;j<4;j++) {
+			for(CHKBlock block : popular)
+				assertSame(block, cache.get(block.getKey()));
+		}
+		for(int i=0;i<200;i++) {
+			CHKBlock block = encodeBlock("scan "+i);
+			assertNull(cache.get(block.getKey()));
+			cache.offer(block);
+		}
+		for(CHKBlock block : popular)
+			assertSame(block, cache.get(block.getKey()));
+		assertTrue(cache.getRejected() > 0);
+		assertTrue(cache.getSize() <= CACHE_SIZE);
+	}
+
+	/** Blocks which become popular replace blocks which are no longer asked for. */
+	public void testNewPopularBlocksAdmitted() throws CHKEncodeException, IOException {
+		BlockReadCache cache = new BlockReadCache(CACHE_SIZE);
+		for(int i=0;i<40;i++)
+			cache.offer(encodeBlock("old "+i));
+		CHKBlock block = encodeBlock("new");
+		for(int i=0;i<3;i++)
+			assertNull(cache.get(block.getKey()));
+		cache.offer(block);
+		// Push it out of the window into the main area.
+		cache.offer(encodeBlock("other"));
+		assertSame(block, cache.get(block.getKey()));
+	}
+
+	public void testShrink() throws CHKEncodeException, IOException {
+		BlockReadCache cache = new BlockReadCache(CACHE_SIZE);
+		for(int i=0;i<20;i++)
+			cache.offer(encodeBlock("block "+i));
+		cache.setMaxSize(CACHE_SIZE / 4);
+		assertTrue(cache.getSize() <= CACHE_SIZE / 4);
+		assertTrue(cache.getBlockCount() > 0);
+	}
+
+	private CHKBlock encodeBlock(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR,
+				null, (byte)0).getBlock();
+	}
+
+}
@@ -0,0 +1,86 @@
+package freenet.support;
+
+import java.io.ByteArrayOutputStream;
+
+import freenet.support.Logger.LogLevel;
+import junit.framework.TestCase;
+
+public class FileLoggerHookTest extends TestCase {
+
+	private static final long TIMEOUT = 10000;
+
+	public void testWritesInOrder() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(os, "p|t|m", "", LogLevel.MINOR);
+		hook.start();
+		String thread = Thread.currentThread().getName();
+		for(int i=0;i<1000;i++)
+			hook.log(this, FileLoggerHookTest.class, "line "+i, null, LogLevel.NORMAL);
+		hook.log(this, FileLoggerHookTest.class, "not logged", null, LogLevel.DEBUG);
+		hook.close();
+		String[] lines = waitForLines(os, 1000);
+		for(int i=0;i<1000;i++)
+			assertEquals("NORMAL|"+thread+"|line "+i, lines[i]);
+		assertEquals(1000, hook.getLoggedLines());
+		assertEquals(0, hook.getDroppedLines());
+		assertEquals(0, hook.listBytes());
+	}
+
+	public void testStackTrace() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(os, "m", "", LogLevel.MINOR);
+		hook.start();
+		hook.log(this, FileLoggerHookTest.class, "failed", new Exception("test"), LogLevel.ERROR);
+		hook.close();
+		String[] lines = waitForLines(os, 3);
+		assertEquals("failed", lines[0]);
+		assertEquals("java.lang.Exception: test", lines[1]);
+		assertTrue(lines[2].startsWith("\tat "+FileLoggerHookTest.class.getName()));
+	}
+
+	public void testDropsWhenTooMuchWaiting() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(os, "m", "", LogLevel.MINOR);
+		hook.setMaxListBytes(10000);
+		// Not started yet, so nothing is written until we start.
+		for(int i=0;i<1000;i++)
+			hook.log(this, FileLoggerHookTest.class, "line "+i, null, LogLevel.NORMAL);
+		long logged = hook.getLoggedLines();
+		assertTrue(logged > 0);
+		assertTrue(logged < 1000);
+		assertEquals(1000 - logged, hook.getDroppedLines());
+		assertTrue(hook.listBytes() <= 10000);
+		hook.start();
+		hook.close();
+		String[] lines = waitForLines(os, (int) logged + 1);
+		// The dropped lines are reported before anything else is written.
+		assertTrue(lines[0].startsWith("GRRR: ERROR: Logging too fast, dropped "+(1000 - logged)+" entries"));
+		for(int i=0;i<logged;i++)
+			assertEquals("line "+i, lines[i+1]);
+	}
+
+	public void testDropsWhenRingFull() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(os, "m", "", LogLevel.MINOR);
+		// The ring holds 10000 records rounded up to a power of two.
+		for(int i=0;i<20000;i++)
+			hook.log(this, FileLoggerHookTest.class, "x", null, LogLevel.NORMAL);
+		assertEquals(16384, hook.getLoggedLines());
+		assertEquals(20000 - 16384, hook.getDroppedLines());
+	}
+
+	private String[] waitForLines(ByteArrayOutputStream os, int count) throws Exception {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while(true) {
+			String[] lines;
+			synchronized(os) {
+				lines = new String(os.toByteArray(), "UTF-8").split("\n");
+			}
+			if(lines.length >= count && !lines[0].isEmpty()) return lines;
+			if(System.currentTimeMillis() > deadline)
+				fail("Only got "+lines.length+" lines, expected "+count);
+			Thread.sleep(10);
+		}
+	}
+
+}
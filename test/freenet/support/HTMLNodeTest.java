@@ -15,6 +15,8 @@
  */
 package freenet.support;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.List;
 
 import junit.framework.TestCase;
@@ -713,4 +715,22 @@ public class HTMLNodeTest extends TestCase {
 		
 	}
 
+	/**
+	 * Tests that rendering to a Writer gives
+	 * exactly the same output as generate().
+	 */
+	public void testGenerate_toWriter() throws IOException {
+		HTMLNode methodHTMLNodeDoc = new HTMLNode.HTMLDoctype("html", "-//W3C//DTD XHTML 1.1//EN");
+		HTMLNode html = methodHTMLNodeDoc.addChild("html");
+		HTMLNode body = html.addChild("body");
+		HTMLNode div = body.addChild("div", "class", "a&b");
+		div.addChild("#", "<escaped> & \"quoted\"");
+		div.addChild("br");
+		div.addChild("%", "<b>raw</b>");
+		body.addChild("table").addChild("tr").addChild("td", SAMPLE_NODE_CONTENT);
+		StringWriter sw = new StringWriter();
+		methodHTMLNodeDoc.generate(sw);
+		assertEquals(methodHTMLNodeDoc.generate(), sw.toString());
+	}
+
 }
@@ -1,5 +1,11 @@
 package freenet.support;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import junit.framework.TestCase;
 
 import freenet.support.io.NativeThread;
@@ -324,6 +330,63 @@ public class MemoryLimitedJobRunnerTest extends TestCase {
         waitForZero(runner);
     }
 
+    public void testRunParallel() throws InterruptedException {
+        final MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(100, 4, executor, NativeThread.JAVA_PRIORITY_RANGE+1);
+        final int[] done = new int[1000];
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for(int i=0;i<done.length;i++) {
+            final int x = i;
+            tasks.add(new Runnable() {
+                
+                @Override
+                public void run() {
+                    threads.add(Thread.currentThread());
+                    checkRunner(runner);
+                    assertTrue(runner.getRunningThreads() <= 4);
+                    done[x]++;
+                }
+                
+            });
+        }
+        runner.runParallel(tasks, 30);
+        for(int i : done)
+            assertEquals(1, i);
+        assertTrue(threads.contains(Thread.currentThread()));
+        assertTrue(threads.size() <= 4);
+        waitForZero(runner);
+        while(runner.getRunningThreads() > 0)
+            Thread.sleep(10);
+        // Nothing spare, so the calling thread does everything.
+        threads.clear();
+        runner.runParallel(tasks, 101);
+        assertEquals(1, threads.size());
+        assertTrue(threads.contains(Thread.currentThread()));
+        assertEquals(0, runner.getRunningThreads());
+    }
+
+    public void testRunParallelFailure() {
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(100, 4, executor, NativeThread.JAVA_PRIORITY_RANGE+1);
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for(int i=0;i<100;i++) {
+            final int x = i;
+            tasks.add(new Runnable() {
+                
+                @Override
+                public void run() {
+                    if(x == 50) throw new IllegalStateException("test");
+                }
+                
+            });
+        }
+        try {
+            runner.runParallel(tasks, 10);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("test", e.getMessage());
+        }
+    }
+
     protected void checkRunner(MemoryLimitedJobRunner runner) {
         long used = runner.used();
         assertTrue(used <= runner.capacity);
@@ -0,0 +1,74 @@
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class VirtualTickerTest extends TestCase {
+
+	public void testRunsInTimeOrder() {
+		final VirtualTicker ticker = new VirtualTicker(1000);
+		final List<String> log = new ArrayList<String>();
+		ticker.queueTimedJob(new Logged(ticker, log, "b"), 20);
+		ticker.queueTimedJob(new Logged(ticker, log, "a"), 10);
+		ticker.queueTimedJobAbsolute(new Logged(ticker, log, "c"), "c", 1020, false, false);
+		ticker.execute(new Logged(ticker, log, "now"));
+		assertEquals(4, ticker.queuedJobs());
+		assertEquals(1, ticker.runUntil(1005));
+		assertEquals(1005, ticker.currentTimeMillis());
+		assertEquals(3, ticker.runFor(100));
+		assertEquals(1105, ticker.currentTimeMillis());
+		// Jobs at the same time run in the order they were queued.
+		assertEquals(Arrays.asList("now@1000", "a@1010", "b@1020", "c@1020"), log);
+	}
+
+	public void testJobsQueueJobs() {
+		final VirtualTicker ticker = new VirtualTicker(0);
+		final int[] count = new int[1];
+		ticker.queueTimedJob(new Runnable() {
+			@Override
+			public void run() {
+				count[0]++;
+				ticker.queueTimedJob(this, 100);
+			}
+		}, 100);
+		assertEquals(10, ticker.runUntil(1000));
+		assertEquals(10, count[0]);
+		assertEquals(1, ticker.queuedJobs());
+	}
+
+	public void testRemoveAndNoDupes() {
+		VirtualTicker ticker = new VirtualTicker(0);
+		List<String> log = new ArrayList<String>();
+		Runnable job = new Logged(ticker, log, "x");
+		ticker.queueTimedJob(job, "x", 10, false, true);
+		ticker.queueTimedJob(job, "x", 20, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		ticker.removeQueuedJob(job);
+		assertEquals(0, ticker.queuedJobs());
+		assertEquals(0, ticker.runFor(100));
+		assertTrue(log.isEmpty());
+	}
+
+	private static class Logged implements Runnable {
+
+		private final VirtualTicker ticker;
+		private final List<String> log;
+		private final String name;
+
+		Logged(VirtualTicker ticker, List<String> log, String name) {
+			this.ticker = ticker;
+			this.log = log;
+			this.name = name;
+		}
+
+		@Override
+		public void run() {
+			log.add(name+"@"+ticker.currentTimeMillis());
+		}
+
+	}
+
+}
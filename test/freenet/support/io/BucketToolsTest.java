@@ -0,0 +1,106 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.api.Bucket;
+import junit.framework.TestCase;
+
+public class BucketToolsTest extends TestCase {
+
+	private File tempDir;
+
+	@Override
+	protected void setUp() throws IOException {
+		tempDir = File.createTempFile("buckettools", ".tmp");
+		tempDir.delete();
+		tempDir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	private static byte[] randomData(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] out = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, out, a.length, b.length);
+		return out;
+	}
+
+	private Bucket fileBucket(byte[] data) throws IOException {
+		FileBucket bucket = new FileBucket(new File(tempDir, "data"+data.length), false, true, false, true);
+		BucketTools.copyFrom(bucket, new ByteArrayInputStream(data), data.length);
+		return bucket;
+	}
+
+	/** A plain file is sent with transferTo() to the channel, after whatever is buffered. */
+	public void testCopyToChannel() throws IOException {
+		byte[] header = "AllData\n".getBytes("UTF-8");
+		byte[] data = randomData(300 * 1000);
+		Bucket bucket = fileBucket(data);
+		File out = new File(tempDir, "out");
+		FileOutputStream fos = new FileOutputStream(out);
+		OutputStream os = new BufferedChannelOutputStream(fos, fos.getChannel(), 4096);
+		os.write(header);
+		assertEquals(data.length, BucketTools.copyTo(bucket, os, data.length));
+		os.close();
+		assertTrue(Arrays.equals(concat(header, data), readFully(out)));
+		bucket.free();
+	}
+
+	/** Asking for more than the file has fails rather than sending a short message. */
+	public void testCopyToChannelTooShort() throws IOException {
+		byte[] data = randomData(1000);
+		Bucket bucket = fileBucket(data);
+		FileOutputStream fos = new FileOutputStream(new File(tempDir, "out"));
+		OutputStream os = new BufferedChannelOutputStream(fos, fos.getChannel(), 4096);
+		try {
+			BucketTools.copyTo(bucket, os, 2000);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		os.close();
+		bucket.free();
+	}
+
+	/** Without a channel, and for buckets that aren't plain files, data is copied in chunks. */
+	public void testCopyToStream() throws IOException {
+		byte[] data = randomData(1000 * 1000);
+		// Twice, so the second copy reuses the pooled buffer.
+		for(int i=0;i<2;i++) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			OutputStream os = new BufferedChannelOutputStream(baos, null, 4096);
+			assertEquals(data.length, BucketTools.copyTo(new ArrayBucket(data), os, -1));
+			assertTrue(Arrays.equals(data, baos.toByteArray()));
+		}
+		Bucket bucket = fileBucket(data);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		assertEquals(1000, BucketTools.copyTo(bucket, baos, 1000));
+		assertTrue(Arrays.equals(Arrays.copyOf(data, 1000), baos.toByteArray()));
+		bucket.free();
+	}
+
+	private static byte[] readFully(File f) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		BucketTools.copyTo(new FileBucket(f, true, false, false, false), baos, -1);
+		return baos.toByteArray();
+	}
+
+}
@@ -0,0 +1,66 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class ChunkedOutputStreamTest extends TestCase {
+
+	private static String write(int bufferSize, String... writes) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ChunkedOutputStream os = new ChunkedOutputStream(baos, bufferSize);
+		for(String s : writes)
+			os.write(s.getBytes("US-ASCII"));
+		os.close();
+		// Closing again must not write a second terminator.
+		os.close();
+		return baos.toString("US-ASCII");
+	}
+
+	public void testEmpty() throws IOException {
+		assertEquals("0\r\n\r\n", write(16));
+		assertEquals("0\r\n\r\n", write(16, ""));
+	}
+
+	public void testSingleChunk() throws IOException {
+		assertEquals("b\r\nhello world\r\n0\r\n\r\n", write(16, "hello", " ", "world"));
+	}
+
+	public void testSplitAcrossChunks() throws IOException {
+		assertEquals("4\r\nabcd\r\n4\r\nefgh\r\n2\r\nij\r\n0\r\n\r\n", write(4, "abcdefghij"));
+		assertEquals("4\r\nabcd\r\n0\r\n\r\n", write(4, "ab", "cd"));
+	}
+
+	public void testLargeChunkSize() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<0x1234;i++)
+			sb.append((char)('a' + i % 26));
+		String data = sb.toString();
+		assertEquals("1234\r\n" + data + "\r\n0\r\n\r\n", write(0x10000, data));
+	}
+
+	public void testFlushAndSingleBytes() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ChunkedOutputStream os = new ChunkedOutputStream(baos, 16);
+		os.write('x');
+		os.flush();
+		assertEquals("1\r\nx\r\n", baos.toString("US-ASCII"));
+		// Nothing buffered, so no empty chunk that would end the body early.
+		os.flush();
+		assertEquals("1\r\nx\r\n", baos.toString("US-ASCII"));
+		os.write('y');
+		os.close();
+		assertEquals("1\r\nx\r\n1\r\ny\r\n0\r\n\r\n", baos.toString("US-ASCII"));
+		try {
+			os.write('z');
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+}
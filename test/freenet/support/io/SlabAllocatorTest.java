@@ -0,0 +1,127 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import freenet.support.io.SlabAllocator.Chunk;
+
+public class SlabAllocatorTest extends TestCase {
+
+    public void testSizeClasses() {
+        assertEquals(0, SlabAllocator.sizeClass(1));
+        assertEquals(0, SlabAllocator.sizeClass(1024));
+        assertEquals(1, SlabAllocator.sizeClass(1025));
+        assertEquals(1, SlabAllocator.sizeClass(2048));
+        assertEquals(2, SlabAllocator.sizeClass(2049));
+        assertEquals(5, SlabAllocator.sizeClass(SlabAllocator.SLAB_SIZE));
+        assertEquals(SlabAllocator.SLAB_SIZE, SlabAllocator.chunkSize(5));
+        try {
+            SlabAllocator.sizeClass(SlabAllocator.SLAB_SIZE + 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Ok.
+        }
+    }
+
+    public void testAllocateAndFree() {
+        SlabAllocator allocator = new SlabAllocator(SlabAllocator.SLAB_SIZE);
+        ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+        // 32 1KiB chunks fit in a single slab.
+        for(int i=0;i<32;i++)
+            chunks.add(allocator.allocate(100));
+        assertEquals(32 * 1024, allocator.getUsed());
+        assertEquals(SlabAllocator.SLAB_SIZE, allocator.getAllocated());
+        chunks.add(allocator.allocate(100));
+        assertEquals(2 * SlabAllocator.SLAB_SIZE, allocator.getAllocated());
+        for(Chunk chunk : chunks)
+            allocator.free(chunk);
+        // Freeing twice is harmless.
+        allocator.free(chunks.get(0));
+        assertEquals(0, allocator.getUsed());
+        // One free slab is kept, the other is left to the garbage collector.
+        assertEquals(SlabAllocator.SLAB_SIZE, allocator.getAllocated());
+        // The free slab can be used for a different size class.
+        Chunk big = allocator.allocate(SlabAllocator.SLAB_SIZE);
+        assertEquals(SlabAllocator.SLAB_SIZE, big.size());
+        assertEquals(SlabAllocator.SLAB_SIZE, allocator.getAllocated());
+        allocator.free(big);
+        allocator.setMaxFreeBytes(0);
+        assertEquals(0, allocator.getAllocated());
+    }
+
+    public void testChunksDontOverlap() {
+        SlabAllocator allocator = new SlabAllocator(0);
+        Chunk[] chunks = new Chunk[8];
+        for(int i=0;i<chunks.length;i++) {
+            chunks[i] = allocator.allocate(4096);
+            byte[] buf = new byte[4096];
+            Arrays.fill(buf, (byte) i);
+            chunks[i].write(0, buf, 0, buf.length);
+        }
+        for(int i=0;i<chunks.length;i++) {
+            byte[] buf = new byte[4096];
+            chunks[i].read(0, buf, 0, buf.length);
+            for(byte b : buf)
+                assertEquals(i, b);
+        }
+        chunks[3].clear();
+        byte[] buf = new byte[4096];
+        chunks[3].read(0, buf, 0, buf.length);
+        assertTrue(Arrays.equals(new byte[4096], buf));
+        for(Chunk chunk : chunks)
+            allocator.free(chunk);
+        assertEquals(0, allocator.getAllocated());
+    }
+
+    public void testOutOfDirectMemory() {
+        final int[] directLeft = new int[] { 2 };
+        final long[] time = new long[] { 0 };
+        SlabAllocator allocator = new SlabAllocator(SlabAllocator.SLAB_SIZE * 4) {
+            @Override
+            ByteBuffer allocateDirect(int size) {
+                if(directLeft[0] == 0) throw new OutOfMemoryError("Direct buffer memory");
+                directLeft[0]--;
+                return ByteBuffer.allocateDirect(size);
+            }
+            @Override
+            long now() {
+                return time[0];
+            }
+        };
+        Chunk[] chunks = new Chunk[4];
+        for(int i=0;i<chunks.length;i++)
+            chunks[i] = allocator.allocate(SlabAllocator.SLAB_SIZE);
+        assertTrue(allocator.isOutOfDirectMemory());
+        assertEquals(2 * SlabAllocator.SLAB_SIZE, allocator.getAllocatedOnHeap());
+        // Direct memory is back, but we haven't given any up, so we don't try yet.
+        directLeft[0] = 2;
+        time[0] = SlabAllocator.RETRY_DIRECT_INTERVAL - 1;
+        Chunk chunk = allocator.allocate(SlabAllocator.SLAB_SIZE);
+        assertEquals(3 * SlabAllocator.SLAB_SIZE, allocator.getAllocatedOnHeap());
+        // Having dropped a direct slab, we try again, but not straight away.
+        allocator.setMaxFreeBytes(0);
+        allocator.free(chunks[0]);
+        chunks[0] = allocator.allocate(SlabAllocator.SLAB_SIZE);
+        assertEquals(4 * SlabAllocator.SLAB_SIZE, allocator.getAllocatedOnHeap());
+        time[0]++;
+        Chunk direct = allocator.allocate(SlabAllocator.SLAB_SIZE);
+        assertFalse(allocator.isOutOfDirectMemory());
+        assertEquals(4 * SlabAllocator.SLAB_SIZE, allocator.getAllocatedOnHeap());
+        assertEquals(1, directLeft[0]);
+        // Heap slabs aren't kept for reuse once we have direct memory again.
+        allocator.setMaxFreeBytes(SlabAllocator.SLAB_SIZE * 4);
+        allocator.free(chunk);
+        allocator.free(chunks[2]);
+        assertEquals(2 * SlabAllocator.SLAB_SIZE, allocator.getAllocatedOnHeap());
+        assertEquals(4 * SlabAllocator.SLAB_SIZE, allocator.getAllocated());
+        allocator.free(direct);
+        assertEquals(4 * SlabAllocator.SLAB_SIZE, allocator.getAllocated());
+    }
+
+}
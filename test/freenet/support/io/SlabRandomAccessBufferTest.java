@@ -0,0 +1,27 @@
+package freenet.support.io;
+
+import freenet.support.api.RandomAccessBuffer;
+
+public class SlabRandomAccessBufferTest extends RandomAccessBufferTestBase {
+
+    private static final int[] TEST_LIST = new int[] { 0, 1, 32, 64, 32768, 1024*1024, 1024*1024+1 };
+
+    private final SlabAllocator allocator = new SlabAllocator(1024*1024);
+
+    public SlabRandomAccessBufferTest() {
+        super(TEST_LIST);
+    }
+
+    @Override
+    protected RandomAccessBuffer construct(long size) {
+        assert(size < Integer.MAX_VALUE);
+        return new SlabRandomAccessBuffer(allocator, (int)size);
+    }
+
+    @Override
+    public void tearDown() {
+        // Everything should have been free()'ed.
+        assertEquals(0, allocator.getUsed());
+    }
+
+}
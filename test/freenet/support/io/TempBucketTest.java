@@ -19,8 +19,13 @@ import freenet.crypt.DummyRandomSource;
 import freenet.crypt.MasterSecret;
 import freenet.crypt.RandomSource;
 import freenet.support.Executor;
+import freenet.support.MemoryLimitedChunk;
+import freenet.support.MemoryLimitedJob;
+import freenet.support.MemoryLimitedJobRunner;
+import freenet.support.PooledExecutor;
 import freenet.support.SerialExecutor;
 import freenet.support.api.Bucket;
+import freenet.support.io.NativeThread.PriorityLevel;
 import freenet.support.io.TempBucketFactory.TempBucket;
 
 public class TempBucketTest extends TestSuite {
@@ -35,7 +40,7 @@ public class TempBucketTest extends TestSuite {
     
 	public static class TempBucketMigrationTest extends TestCase {
 		private Random weakPRNG = new Random(12340);
-		private Executor exec = new SerialExecutor(NativeThread.NORM_PRIORITY);
+		private Executor exec = new SerialExecutor(PriorityLevel.NORM_PRIORITY.value);
 		private FilenameGenerator fg;
 
 		public TempBucketMigrationTest() throws IOException {
@@ -151,13 +156,89 @@ public class TempBucketTest extends TestSuite {
 			os.close();
 		}
 		
+		// The writer carries on while the bucket is copied to disk.
+		public void testBackgroundMigration() throws IOException, InterruptedException {
+			TempBucketFactory tbf = new TempBucketFactory(new PooledExecutor(), fg, 1024, 65536, weakPRNG, false, MIN_DISK_SPACE, secret);
+			
+			TempBucket bucket = (TempBucket) tbf.makeBucket(1024);
+			OutputStream os = bucket.getOutputStreamUnbuffered();
+			byte[] data = new byte[1024 * TempBucketFactory.RAMBUCKET_CONVERSION_FACTOR - 1];
+			new Random(89).nextBytes(data);
+			int written = 1024 * TempBucketFactory.RAMBUCKET_MIGRATE_FACTOR;
+			os.write(data, 0, written);
+			for(int i=0;i<100 && bucket.isRAMBucket();i++)
+				Thread.sleep(100);
+			assertFalse(bucket.isRAMBucket());
+			assertEquals(0, tbf.getRamUsed());
+			os.write(data, written, data.length - written);
+			os.close();
+			byte[] readTo = new byte[data.length];
+			InputStream is = bucket.getInputStream();
+			new DataInputStream(is).readFully(readTo);
+			assertEquals(-1, is.read());
+			is.close();
+			for(int i=0;i<readTo.length;i++)
+				assertTrue(readTo[i] == data[i]);
+			bucket.free();
+		}
+		
+		public void testShareMemoryWithJobRunner() throws IOException, InterruptedException {
+			Executor executor = new PooledExecutor();
+			MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(1024, 1, executor, NativeThread.JAVA_PRIORITY_RANGE);
+			TempBucketFactory tbf = new TempBucketFactory(executor, fg, 1024, 1024, weakPRNG, false, MIN_DISK_SPACE, secret);
+			tbf.shareMemoryWith(runner);
+			assertEquals(2048, tbf.getMaxRamIncludingBorrowed());
+			
+			// While the runner is idle, we can use its capacity as well as our own.
+			TempBucket[] b = new TempBucket[3];
+			for(int i=0;i<b.length;i++) {
+				b[i] = (TempBucket) tbf.makeBucket(512);
+				OutputStream os = b[i].getOutputStream();
+				os.write(new byte[512]);
+				os.close();
+				assertTrue(b[i].isRAMBucket());
+			}
+			assertEquals(512, tbf.getRamBorrowed());
+			
+			// A job which needs it gets it back once buckets have been migrated.
+			final boolean[] started = new boolean[1];
+			runner.queueJob(new MemoryLimitedJob(1024) {
+				
+				@Override
+				public int getPriority() {
+					return PriorityLevel.NORM_PRIORITY.value;
+				}
+				
+				@Override
+				public boolean start(MemoryLimitedChunk chunk) {
+					synchronized(started) {
+						started[0] = true;
+						started.notifyAll();
+					}
+					return true;
+				}
+				
+			});
+			synchronized(started) {
+				for(int i=0;i<100 && !started[0];i++)
+					started.wait(100);
+				assertTrue(started[0]);
+			}
+			assertEquals(0, tbf.getRamBorrowed());
+			assertFalse(b[0].isRAMBucket());
+			assertTrue(b[2].isRAMBucket());
+			for(Bucket bucket : b)
+				bucket.free();
+			assertEquals(0, tbf.getRamUsed());
+		}
+		
 	}
 
 	// Private because we only use it as a base class for the actual tests.
 	private static class RealTempBucketTest_ extends BucketTestBase {
 		private RandomSource strongPRNG = new DummyRandomSource(12345);
 		private Random weakPRNG = new DummyRandomSource(54321);
-		private Executor exec = new SerialExecutor(NativeThread.NORM_PRIORITY);
+		private Executor exec = new SerialExecutor(PriorityLevel.NORM_PRIORITY.value);
 		private FilenameGenerator fg;
 
 		private TempBucketFactory tbf;
@@ -0,0 +1,97 @@
+package freenet.support.metrics;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class HistogramTest extends TestCase {
+
+	public void testPercentiles() {
+		Histogram h = new Histogram(1.0);
+		assertEquals(0, h.getValueAtPercentile(99));
+		for(int i=1;i<=1000;i++)
+			h.record(i);
+		assertEquals(1000, h.getCount());
+		assertEquals(500500, h.getSum());
+		assertEquals(1000, h.getMax());
+		assertEquals(1000, h.getValueAtPercentile(100));
+		assertEquals(1, h.getValueAtPercentile(0));
+		assertEquals(512, h.getValueAtPercentile(50));
+		assertEquals(1000, h.getValueAtPercentile(99));
+	}
+
+	public void testRandomPercentiles() {
+		Random r = new Random(1234);
+		Histogram h = new Histogram(1e-9);
+		long[] values = new long[10000];
+		for(int i=0;i<values.length;i++) {
+			// Spread over several orders of magnitude.
+			values[i] = (long) Math.exp(r.nextDouble() * 25);
+			h.record(values[i]);
+		}
+		Arrays.sort(values);
+		for(double p : new double[] { 50, 90, 99, 99.9 }) {
+			long exact = values[(int) Math.ceil(values.length * p / 100.0) - 1];
+			checkClose(exact, h.getValueAtPercentile(p));
+		}
+	}
+
+	public void testNegative() {
+		Histogram h = new Histogram(1.0);
+		h.record(-5);
+		assertEquals(1, h.getCount());
+		assertEquals(0, h.getMax());
+		assertEquals(0, h.getValueAtPercentile(50));
+	}
+
+	public void testCountAtMostPowerOfTwo() {
+		Histogram h = new Histogram(1.0);
+		h.record(0);
+		h.record(1);
+		h.record(3);
+		h.record(4);
+		h.record(5);
+		h.record(1023);
+		h.record(1024);
+		h.record(1025);
+		h.record(Long.MAX_VALUE);
+		assertEquals(2, h.countAtMostPowerOfTwo(0));
+		assertEquals(2, h.countAtMostPowerOfTwo(1));
+		assertEquals(4, h.countAtMostPowerOfTwo(2));
+		assertEquals(5, h.countAtMostPowerOfTwo(3));
+		assertEquals(5, h.countAtMostPowerOfTwo(9));
+		assertEquals(7, h.countAtMostPowerOfTwo(10));
+		assertEquals(8, h.countAtMostPowerOfTwo(11));
+		assertEquals(8, h.countAtMostPowerOfTwo(62));
+		assertEquals(9, h.countAtMostPowerOfTwo(63));
+	}
+
+	public void testConcurrent() throws InterruptedException {
+		final Histogram h = new Histogram(1.0);
+		Thread[] threads = new Thread[4];
+		for(int i=0;i<threads.length;i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<100000;j++)
+						h.record(j);
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertEquals(400000, h.getCount());
+		assertEquals(4L * (99999L * 100000L / 2), h.getSum());
+		assertEquals(99999, h.getMax());
+	}
+
+	/** The estimate is the power of two at the top of the bucket, so it is less than twice the
+	 * exact value. */
+	private void checkClose(long exact, long estimate) {
+		assertTrue("Estimate "+estimate+" below "+exact, estimate >= exact);
+		assertTrue("Estimate "+estimate+" too far above "+exact, estimate < exact * 2);
+	}
+
+}
@@ -0,0 +1,152 @@
+package freenet.support.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MetricsRegistryTest extends TestCase {
+
+	public void testCounter() {
+		MetricsRegistry registry = new MetricsRegistry();
+		Counter c = registry.counter("freenet_test_total", "A test counter");
+		c.increment();
+		c.add(2);
+		assertSame(c, registry.counter("freenet_test_total", "A test counter"));
+		Counter labelled = registry.counter("freenet_test_total", "A test counter", "type", "x\"y");
+		assertNotSame(c, labelled);
+		labelled.increment();
+		assertEquals(
+				"# HELP freenet_test_total A test counter\n" +
+				"# TYPE freenet_test_total counter\n" +
+				"freenet_test_total 3\n" +
+				"freenet_test_total{type=\"x\\\"y\"} 1\n", export(registry));
+	}
+
+	public void testGauge() {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.gauge("freenet_test_queue", "Queue\nlength", new Gauge() {
+			@Override
+			public double getValue() {
+				return 7;
+			}
+		});
+		registry.gauge("freenet_test_ratio", "Ratio", new Gauge() {
+			@Override
+			public double getValue() {
+				return 0.25;
+			}
+		}, "a", "b");
+		assertEquals(
+				"# HELP freenet_test_queue Queue\\nlength\n" +
+				"# TYPE freenet_test_queue gauge\n" +
+				"freenet_test_queue 7\n" +
+				"# HELP freenet_test_ratio Ratio\n" +
+				"# TYPE freenet_test_ratio gauge\n" +
+				"freenet_test_ratio{a=\"b\"} 0.25\n", export(registry));
+		registry.removeGauge("freenet_test_ratio", "a", "b");
+		assertFalse(export(registry).contains("freenet_test_ratio"));
+	}
+
+	public void testHistogram() {
+		MetricsRegistry registry = new MetricsRegistry();
+		Histogram h = registry.histogram("freenet_test_seconds", "Time", 1e-3, "type", "chk");
+		assertSame(h, registry.histogram("freenet_test_seconds", "Time", 1e-3, "type", "chk"));
+		h.record(3);
+		h.record(4);
+		h.record(6);
+		h.record(100000000);
+		String out = export(registry);
+		assertTrue(out.startsWith(
+				"# HELP freenet_test_seconds Time\n" +
+				"# TYPE freenet_test_seconds histogram\n" +
+				"freenet_test_seconds_bucket{type=\"chk\",le=\"0.001\"} 0\n" +
+				"freenet_test_seconds_bucket{type=\"chk\",le=\"0.002\"} 0\n" +
+				"freenet_test_seconds_bucket{type=\"chk\",le=\"0.004\"} 2\n" +
+				"freenet_test_seconds_bucket{type=\"chk\",le=\"0.008\"} 3\n" +
+				"freenet_test_seconds_bucket{type=\"chk\",le=\"0.016\"} 3\n"));
+		assertTrue(out.endsWith(
+				"freenet_test_seconds_bucket{type=\"chk\",le=\"33554.432\"} 3\n" +
+				"freenet_test_seconds_bucket{type=\"chk\",le=\"+Inf\"} 4\n" +
+				"freenet_test_seconds_sum{type=\"chk\"} 100000.013\n" +
+				"freenet_test_seconds_count{type=\"chk\"} 4\n"));
+	}
+
+	/** The same buckets are written whatever has been recorded, so that every scrape has the
+	 * same series. */
+	public void testHistogramBucketsFixed() {
+		MetricsRegistry registry = new MetricsRegistry();
+		Histogram h = registry.histogram("freenet_test_seconds", "Time", 1e-9);
+		String empty = export(registry);
+		h.record(1);
+		h.record(1000L * 1000 * 1000 * 1000 * 1000);
+		String full = export(registry);
+		assertEquals(buckets(empty), buckets(full));
+		// About a microsecond to 18 hours: 2^10 to 2^45 nanoseconds.
+		assertEquals(37, buckets(full).size());
+		assertEquals("freenet_test_seconds_bucket{le=\"1.024E-6\"}", buckets(full).get(0));
+		assertEquals("freenet_test_seconds_bucket{le=\"35184.372088832\"}", buckets(full).get(35));
+		assertTrue(full.contains("freenet_test_seconds_bucket{le=\"1.024E-6\"} 1\n"));
+		assertTrue(full.contains("freenet_test_seconds_bucket{le=\"+Inf\"} 2\n"));
+	}
+
+	private static List<String> buckets(String export) {
+		List<String> buckets = new ArrayList<String>();
+		for(String line : export.split("\n")) {
+			if(line.contains("_bucket{"))
+				buckets.add(line.substring(0, line.lastIndexOf(' ')));
+		}
+		return buckets;
+	}
+
+	public void testEmptyHistogram() {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.histogram("freenet_test_seconds", "Time", 1.0);
+		String out = export(registry);
+		assertTrue(out.startsWith(
+				"# HELP freenet_test_seconds Time\n" +
+				"# TYPE freenet_test_seconds histogram\n" +
+				"freenet_test_seconds_bucket{le=\"1.0\"} 0\n"));
+		assertTrue(out.endsWith(
+				"freenet_test_seconds_bucket{le=\"65536.0\"} 0\n" +
+				"freenet_test_seconds_bucket{le=\"+Inf\"} 0\n" +
+				"freenet_test_seconds_sum 0\n" +
+				"freenet_test_seconds_count 0\n"));
+	}
+
+	public void testBadRegistrations() {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("freenet_test", "Test");
+		try {
+			registry.histogram("freenet_test", "Test", 1.0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		try {
+			registry.counter("freenet-test", "Test");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		try {
+			registry.counter("freenet_test", "Test", "odd");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		try {
+			registry.histogram("freenet_test_seconds", "Test", 1.0, "le", "1");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	private String export(MetricsRegistry registry) {
+		StringBuilder sb = new StringBuilder();
+		registry.writePrometheus(sb);
+		return sb.toString();
+	}
+
+}